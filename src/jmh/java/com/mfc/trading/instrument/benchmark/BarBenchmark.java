@@ -0,0 +1,77 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.pojo.PriceBar;
+import com.mfc.trading.instrument.service.aggregate.AggregatingPricingService;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Cost of the weekly bar of a vendor/instrument series, looked up from the bars maintained on add versus
+ * aggregated from the prices of the week read out of the store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BarBenchmark {
+
+    private static final long WEEK = 7 * DAY_IN_MIL_SEC;
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+    @Param({"5"})
+    public int vendors;
+
+    @Param({"1000"})
+    public int instruments;
+
+    private PriceDataSet dataSet;
+    private AggregatingPricingService service;
+
+    @Setup(Level.Trial)
+    public void load() {
+        dataSet = new PriceDataSet(vendors, instruments, (int) DEFAULT_CACHE_AGE);
+        service = (AggregatingPricingService) dataSet.load(new AggregatingPricingService(new PricingServiceImpl(), DAY_IN_MIL_SEC, WEEK));
+    }
+
+    @Benchmark
+    public PriceBar barLookup(Cursor cursor) {
+        return service.getBar(dataSet.instrument(cursor.nextInstrument()), dataSet.vendor(cursor.nextVendor()), WEEK, dataSet.date(cursor.nextDate()));
+    }
+
+    @Benchmark
+    public BigDecimal[] barFromHistory(Cursor cursor) {
+        String vendor = dataSet.vendor(cursor.nextVendor());
+        long start = dataSet.date(cursor.nextDate()).getTime() / WEEK * WEEK;
+        BigDecimal[] ohlc = new BigDecimal[4];
+        long open = Long.MAX_VALUE;
+        long close = Long.MIN_VALUE;
+        for (Price price : service.getByInstrumentBetween(dataSet.instrument(cursor.nextInstrument()), new Date(start), new Date(start + WEEK))) {
+            if (!price.getVendor().equals(vendor)) {
+                continue;
+            }
+            BigDecimal mid = price.getBid().add(price.getAsk()).divide(TWO);
+            long time = price.getAsOfDate().getTime();
+            if (time < open) {
+                open = time;
+                ohlc[0] = mid;
+            }
+            if (time > close) {
+                close = time;
+                ohlc[3] = mid;
+            }
+            ohlc[1] = ohlc[1] == null ? mid : ohlc[1].max(mid);
+            ohlc[2] = ohlc[2] == null ? mid : ohlc[2].min(mid);
+        }
+        return ohlc;
+    }
+}
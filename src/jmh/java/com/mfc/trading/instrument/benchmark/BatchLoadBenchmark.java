@@ -0,0 +1,71 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Loading a vendor EOD file of instruments x days prices into an empty service, one add per price
+ * against a single addAll of the file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchLoadBenchmark {
+
+    @Param({"LOCKED", "CONCURRENT", "COMPACT"})
+    public Implementation implementation;
+
+    @Param({"1000"})
+    public int instruments;
+
+    @Param({"10"})
+    public int days;
+
+    private List<Price> vendorFile;
+    private PricingService service;
+
+    @Setup(Level.Trial)
+    public void createFile() {
+        PriceDataSet dataSet = new PriceDataSet(1, instruments, days);
+        Random random = new Random(42);
+        vendorFile = new ArrayList<>(instruments * days);
+        for (int d = 0; d < days; d++) {
+            for (int i = 0; i < instruments; i++) {
+                vendorFile.add(PriceDataSet.price(dataSet.date(d), dataSet.instrument(i), dataSet.vendor(0), random));
+            }
+        }
+        //files are not sorted by series
+        Collections.shuffle(vendorFile, random);
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyService() {
+        service = implementation.create(DEFAULT_CACHE_AGE);
+    }
+
+    @Benchmark
+    public PricingService addEach() {
+        for (Price price : vendorFile) {
+            service.add(price);
+        }
+        return service;
+    }
+
+    @Benchmark
+    public PricingService addAll() {
+        service.addAll(vendorFile);
+        return service;
+    }
+}
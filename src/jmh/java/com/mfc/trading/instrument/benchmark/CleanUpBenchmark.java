@@ -0,0 +1,44 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.service.PricingService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Cost of one cleanUp run over a store holding 5 days more than the cache age, so every run purges
+ * 5 days of vendors x instruments prices. The store is reloaded before each run, and the GC
+ * profiler attributes that reload to the run, so compare the allocation of single shots relative
+ * to each other only.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CleanUpBenchmark {
+
+    @Param({"LOCKED", "CONCURRENT", "COMPACT"})
+    public Implementation implementation;
+
+    @Param({"5"})
+    public int vendors;
+
+    @Param({"1000"})
+    public int instruments;
+
+    private PricingService service;
+
+    @Setup(Level.Iteration)
+    public void load() {
+        service = new PriceDataSet(vendors, instruments, (int) DEFAULT_CACHE_AGE + 5).load(implementation.create(DEFAULT_CACHE_AGE));
+    }
+
+    @Benchmark
+    public int cleanUp() {
+        return service.cleanUp();
+    }
+}
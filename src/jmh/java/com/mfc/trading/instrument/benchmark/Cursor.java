@@ -0,0 +1,32 @@
+package com.mfc.trading.instrument.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Per thread position in the data set, so consecutive invocations spread over instruments, vendors
+ * and days instead of hitting one hot series.
+ */
+@State(Scope.Thread)
+public class Cursor {
+    //odd strides visit every element of the data set before repeating
+    private int instrument = (int) Thread.currentThread().getId() * 7919;
+    private int vendor;
+    private int date;
+    final Random random = new Random(Thread.currentThread().getId());
+    long tick;
+
+    int nextInstrument() {
+        return instrument += 31;
+    }
+
+    int nextVendor() {
+        return ++vendor;
+    }
+
+    int nextDate() {
+        return date += 7;
+    }
+}
@@ -0,0 +1,38 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.compact.CompactPricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.offheap.OffHeapMemory;
+import com.mfc.trading.instrument.service.offheap.TieredPricingService;
+import com.mfc.trading.instrument.service.sharded.ShardedPricingService;
+import com.mfc.trading.instrument.service.util.PricingConstant;
+
+import java.util.function.LongFunction;
+
+/**
+ * The PricingService implementations under benchmark, selected by name through the
+ * {@code implementation} parameter of the benchmarks.
+ */
+public enum Implementation {
+    LOCKED(PricingServiceImpl::new),
+    CONCURRENT(ConcurrentPricingServiceImpl::new),
+    COMPACT(CompactPricingServiceImpl::new),
+    SHARDED(maxCacheAge -> new ShardedPricingService(Runtime.getRuntime().availableProcessors(), maxCacheAge)),
+    TIERED(maxCacheAge -> new TieredPricingService(PricingConstant.DEFAULT_HOT_DAYS, maxCacheAge, OffHeapMemory.direct()));
+
+    private final LongFunction<PricingService> factory;
+
+    Implementation(LongFunction<PricingService> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @return an empty service
+     */
+    public PricingService create(long maxCacheAge) {
+        return factory.apply(maxCacheAge);
+    }
+}
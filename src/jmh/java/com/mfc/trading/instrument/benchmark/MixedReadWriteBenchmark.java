@@ -0,0 +1,91 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Readers running against concurrent writers on a shared store. Each group is one read/write mix,
+ * JMH reports the readers and the writers of a group separately.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class MixedReadWriteBenchmark {
+
+    @Param({"LOCKED", "CONCURRENT", "COMPACT", "SHARDED", "TIERED"})
+    public Implementation implementation;
+
+    @Param({"5"})
+    public int vendors;
+
+    @Param({"1000"})
+    public int instruments;
+
+    private PriceDataSet dataSet;
+    private PricingService service;
+
+    @Setup(Level.Trial)
+    public void load() {
+        dataSet = new PriceDataSet(vendors, instruments, (int) DEFAULT_CACHE_AGE);
+        service = dataSet.load(implementation.create(DEFAULT_CACHE_AGE));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        if (service instanceof AutoCloseable) {
+            ((AutoCloseable) service).close();
+        }
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(7)
+    public Set<Price> readMostlyRead(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public void readMostlyWrite(Cursor cursor) {
+        write(cursor);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(4)
+    public Set<Price> balancedRead(Cursor cursor) {
+        return read(cursor);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(4)
+    public void balancedWrite(Cursor cursor) {
+        write(cursor);
+    }
+
+    private Set<Price> read(Cursor cursor) {
+        //latest prices are the bulk of the read traffic, every fourth read is a dated lookup
+        String instrument = dataSet.instrument(cursor.nextInstrument());
+        if ((cursor.tick++ & 3) == 0) {
+            return service.getByInstrument(instrument, dataSet.date(cursor.nextDate()));
+        }
+        return service.getByInstrument(instrument, null);
+    }
+
+    private void write(Cursor cursor) {
+        Date asOfDate = new Date(System.currentTimeMillis() + ++cursor.tick);
+        service.add(PriceDataSet.price(asOfDate, dataSet.instrument(cursor.nextInstrument()), dataSet.vendor(cursor.nextVendor()), cursor.random));
+    }
+}
@@ -0,0 +1,78 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Random;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+
+/**
+ * Synthetic vendors x instruments x days price history, one price per series and day. Day 0 is
+ * today, older days go back in time so the history ages out of the cache like live data.
+ */
+public final class PriceDataSet {
+
+    public static final String ASSET_EQUITY = "Equity";
+    public static final String MARKET_XLON = "XLON";
+
+    private final String[] vendors;
+    private final String[] instruments;
+    private final Date[] dates;
+
+    public PriceDataSet(int vendorCount, int instrumentCount, int days) {
+        vendors = new String[vendorCount];
+        for (int v = 0; v < vendorCount; v++) {
+            vendors[v] = "Vendor" + v;
+        }
+        instruments = new String[instrumentCount];
+        for (int i = 0; i < instrumentCount; i++) {
+            instruments[i] = String.format("GB%010d", i);
+        }
+        long today = System.currentTimeMillis() / DAY_IN_MIL_SEC * DAY_IN_MIL_SEC;
+        dates = new Date[days];
+        for (int d = 0; d < days; d++) {
+            dates[d] = new Date(today - d * DAY_IN_MIL_SEC);
+        }
+    }
+
+    /**
+     * Load the whole history into the service, oldest day first as the vendors would deliver it.
+     * @param service
+     * @return the service
+     */
+    public PricingService load(PricingService service) {
+        Random random = new Random(42);
+        for (int d = dates.length - 1; d >= 0; d--) {
+            for (String vendor : vendors) {
+                for (String instrument : instruments) {
+                    service.add(price(dates[d], instrument, vendor, random));
+                }
+            }
+        }
+        return service;
+    }
+
+    public static Price price(Date asOfDate, String instrument, String vendor, Random random) {
+        BigDecimal bid = BigDecimal.valueOf(10_000 + random.nextInt(10_000), 2);
+        return new Price(asOfDate, ASSET_EQUITY, instrument, vendor, MARKET_XLON, bid, bid.add(BigDecimal.valueOf(5, 2)));
+    }
+
+    public String vendor(int index) {
+        return vendors[Math.floorMod(index, vendors.length)];
+    }
+
+    public String instrument(int index) {
+        return instruments[Math.floorMod(index, instruments.length)];
+    }
+
+    public Date date(int index) {
+        return dates[Math.floorMod(index, dates.length)];
+    }
+
+    public int days() {
+        return dates.length;
+    }
+}
@@ -0,0 +1,25 @@
+package com.mfc.trading.instrument.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result comes with its allocation rate
+ * (gc.alloc.rate.norm is the bytes allocated per operation). Accepts the usual JMH command line,
+ * e.g. a benchmark regex or {@code -p implementation=CONCURRENT}.
+ */
+public final class PricingBenchmarks {
+
+    private PricingBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,111 @@
+package com.mfc.trading.instrument.benchmark;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Single threaded cost of each PricingService operation over a full store of
+ * vendors x instruments x 30 days.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PricingServiceBenchmark {
+
+    @Param({"LOCKED", "CONCURRENT", "COMPACT", "SHARDED", "TIERED"})
+    public Implementation implementation;
+
+    @Param({"5"})
+    public int vendors;
+
+    @Param({"1000"})
+    public int instruments;
+
+    private PriceDataSet dataSet;
+    private PricingService service;
+
+    @Setup(Level.Trial)
+    public void load() {
+        dataSet = new PriceDataSet(vendors, instruments, (int) DEFAULT_CACHE_AGE);
+        service = dataSet.load(implementation.create(DEFAULT_CACHE_AGE));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        if (service instanceof AutoCloseable) {
+            ((AutoCloseable) service).close();
+        }
+    }
+
+    @Benchmark
+    public void add(Cursor cursor) {
+        //strictly increasing dates, each price becomes the latest of its series
+        Date asOfDate = new Date(System.currentTimeMillis() + ++cursor.tick);
+        service.add(PriceDataSet.price(asOfDate, dataSet.instrument(cursor.nextInstrument()), dataSet.vendor(cursor.nextVendor()), cursor.random));
+    }
+
+    @Benchmark
+    public Set<Price> latestByInstrument(Cursor cursor) {
+        return service.getByInstrument(dataSet.instrument(cursor.nextInstrument()), null);
+    }
+
+    @Benchmark
+    public Set<Price> latestByVendor(Cursor cursor) {
+        return service.getByVendor(dataSet.vendor(cursor.nextVendor()), null);
+    }
+
+    @Benchmark
+    public Set<Price> datedByInstrument(Cursor cursor) {
+        return service.getByInstrument(dataSet.instrument(cursor.nextInstrument()), dataSet.date(cursor.nextDate()));
+    }
+
+    @Benchmark
+    public Set<Price> datedByVendor(Cursor cursor) {
+        return service.getByVendor(dataSet.vendor(cursor.nextVendor()), dataSet.date(cursor.nextDate()));
+    }
+
+    @Benchmark
+    public Set<Price> asOfByInstrument(Cursor cursor) {
+        return service.getByInstrumentAsOf(dataSet.instrument(cursor.nextInstrument()), dataSet.date(cursor.nextDate()));
+    }
+
+    @Benchmark
+    public Set<Price> asOfByVendorAndMarket(Cursor cursor) {
+        return service.query(PriceQuery.asOf(dataSet.date(cursor.nextDate())).vendor(dataSet.vendor(cursor.nextVendor())).market(PriceDataSet.MARKET_XLON));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Set<Price> getAllPrices() {
+        return service.getAllPrices();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void forEachPrice(Blackhole blackhole) {
+        service.forEach(PriceQuery.all(), blackhole::consume);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void cursorOverAllPrices(Blackhole blackhole) {
+        try (PriceCursor prices = service.cursor(PriceQuery.all())) {
+            while (prices.hasNext()) {
+                blackhole.consume(prices.next());
+            }
+        }
+    }
+}
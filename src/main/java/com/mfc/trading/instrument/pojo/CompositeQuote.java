@@ -0,0 +1,93 @@
+package com.mfc.trading.instrument.pojo;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Consolidated quote of an instrument across its vendors: the best bid, the best ask, the vendors
+ * quoting them and the mid. A side no fresh vendor quotes is null, and so is the mid then.
+ */
+public class CompositeQuote {
+    private final String instrument;
+    private final BigDecimal bestBid;
+    private final String bidVendor;
+    private final BigDecimal bestAsk;
+    private final String askVendor;
+    private final BigDecimal mid;
+    private final Date asOfDate;//date of the latest price taking part
+    private final int vendorCount;//number of fresh vendor prices taking part
+
+    public CompositeQuote(String instrument, BigDecimal bestBid, String bidVendor, BigDecimal bestAsk, String askVendor,
+                          BigDecimal mid, Date asOfDate, int vendorCount) {
+        this.instrument = instrument;
+        this.bestBid = bestBid;
+        this.bidVendor = bidVendor;
+        this.bestAsk = bestAsk;
+        this.askVendor = askVendor;
+        this.mid = mid;
+        this.asOfDate = asOfDate;
+        this.vendorCount = vendorCount;
+    }
+
+    public String getInstrument() {
+        return instrument;
+    }
+
+    public BigDecimal getBestBid() {
+        return bestBid;
+    }
+
+    public String getBidVendor() {
+        return bidVendor;
+    }
+
+    public BigDecimal getBestAsk() {
+        return bestAsk;
+    }
+
+    public String getAskVendor() {
+        return askVendor;
+    }
+
+    public BigDecimal getMid() {
+        return mid;
+    }
+
+    public Date getAsOfDate() {
+        return asOfDate;
+    }
+
+    public int getVendorCount() {
+        return vendorCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompositeQuote)) {
+            return false;
+        }
+        CompositeQuote that = (CompositeQuote) o;
+        return vendorCount == that.vendorCount
+                && Objects.equals(instrument, that.instrument)
+                && Objects.equals(bestBid, that.bestBid)
+                && Objects.equals(bidVendor, that.bidVendor)
+                && Objects.equals(bestAsk, that.bestAsk)
+                && Objects.equals(askVendor, that.askVendor)
+                && Objects.equals(mid, that.mid)
+                && Objects.equals(asOfDate, that.asOfDate);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(instrument, bestBid, bidVendor, bestAsk, askVendor, mid, asOfDate, vendorCount);
+    }
+
+    @Override
+    public String toString() {
+        return instrument + " " + bestBid + "(" + bidVendor + ") / " + bestAsk + "(" + askVendor + ") mid " + mid;
+    }
+}
@@ -73,6 +73,14 @@ public class Price implements Comparable<Price> {
                 .isPresent();
     }
 
+    /**
+     * @param other
+     * @return true if the other price is equal to this one and quotes the same bid and ask, i.e. a resend of it
+     */
+    public boolean sameQuote(Price other) {
+        return equals(other) && Objects.equals(bid, other.bid) && Objects.equals(ask, other.ask);
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(asOfDate, assetClass, instrument, vendor, market, bid, ask);
@@ -0,0 +1,109 @@
+package com.mfc.trading.instrument.pojo;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * OHLC bar of the mids a vendor quoted for an instrument within one interval, e.g. a minute or a day.
+ * Only prices quoting both sides have a mid and take part, the open and close are the mids of the
+ * earliest and latest of them.
+ */
+public class PriceBar {
+    private final String instrument;
+    private final String vendor;
+    private final Date start;
+    private final long interval;//in milliseconds
+    private final BigDecimal open;
+    private final BigDecimal high;
+    private final BigDecimal low;
+    private final BigDecimal close;
+    private final BigDecimal averageMid;
+    private final int count;//number of prices taking part
+
+    public PriceBar(String instrument, String vendor, Date start, long interval, BigDecimal open, BigDecimal high,
+                    BigDecimal low, BigDecimal close, BigDecimal averageMid, int count) {
+        this.instrument = instrument;
+        this.vendor = vendor;
+        this.start = start;
+        this.interval = interval;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.averageMid = averageMid;
+        this.count = count;
+    }
+
+    public String getInstrument() {
+        return instrument;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public BigDecimal getOpen() {
+        return open;
+    }
+
+    public BigDecimal getHigh() {
+        return high;
+    }
+
+    public BigDecimal getLow() {
+        return low;
+    }
+
+    public BigDecimal getClose() {
+        return close;
+    }
+
+    public BigDecimal getAverageMid() {
+        return averageMid;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PriceBar)) {
+            return false;
+        }
+        PriceBar that = (PriceBar) o;
+        return interval == that.interval
+                && count == that.count
+                && Objects.equals(instrument, that.instrument)
+                && Objects.equals(vendor, that.vendor)
+                && Objects.equals(start, that.start)
+                && Objects.equals(open, that.open)
+                && Objects.equals(high, that.high)
+                && Objects.equals(low, that.low)
+                && Objects.equals(close, that.close)
+                && Objects.equals(averageMid, that.averageMid);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(instrument, vendor, start, interval, open, high, low, close, averageMid, count);
+    }
+
+    @Override
+    public String toString() {
+        return instrument + "(" + vendor + ") " + start.getTime() + "+" + interval + "ms O " + open + " H " + high
+                + " L " + low + " C " + close + " avg " + averageMid + " x" + count;
+    }
+}
@@ -0,0 +1,63 @@
+package com.mfc.trading.instrument.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_EVICTION_PERIOD_IN_MIL_SEC;
+
+/**
+ * Runs {@link PricingService#cleanUp()} in the background on a fixed cadence, so expired prices are
+ * purged without the callers of the service having to schedule it.
+ */
+public class PriceEvictor implements AutoCloseable {
+
+    private final PricingService pricingService;
+    private final long period;
+    private final TimeUnit unit;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "price-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PriceEvictor(PricingService pricingService) {
+        this(pricingService, DEFAULT_EVICTION_PERIOD_IN_MIL_SEC, TimeUnit.MILLISECONDS);
+    }
+
+    public PriceEvictor(PricingService pricingService, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Eviction period must be positive: " + period);
+        }
+        this.pricingService = pricingService;
+        this.period = period;
+        this.unit = unit;
+    }
+
+    /**
+     * Schedule the clean up, the first run happens straight away.
+     * @return this evictor
+     */
+    public PriceEvictor start() {
+        scheduler.scheduleWithFixedDelay(this::evict, 0, period, unit);
+        return this;
+    }
+
+    /**
+     * Stop the clean up, a run in progress is allowed to complete.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    private void evict() {
+        try {
+            pricingService.cleanUp();
+        } catch (RuntimeException e) {
+            //a failed run must not cancel the following ones
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+}
@@ -1,14 +1,55 @@
 package com.mfc.trading.instrument.service;
 
+import com.mfc.trading.instrument.pojo.CompositeQuote;
 import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+import com.mfc.trading.instrument.service.util.BasketLookup;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 public interface PricingService {
     void add(Price price);
+    //publishes the whole batch at once, readers of the latest prices see none or all of it. Not atomic for the
+    //lock free ConcurrentPricingServiceImpl, publishing it series by series, and ShardedPricingService, shard by shard
+    void addAll(Collection<Price> prices);
     Set<Price> getByInstrument(String instrumentId, Date asOfDate);
+    //getByInstrument of every instrument of the basket resolved against one snapshot of the store, an unknown instrument maps to an empty set
+    Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate);
+    //the same completed on the executor, which also runs the lookups of the basket in parallel
+    CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor);
+    default CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate) {
+        return getByInstrumentsAsync(instrumentIds, asOfDate, BasketLookup.defaultExecutor());
+    }
     Set<Price> getByVendor(String vendor, Date date_03_07_2020);
+    //latest price of each series dated at or before asOfDate, i.e. the EOD marking price
+    Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate);
+    Set<Price> getByVendorAsOf(String vendor, Date asOfDate);
+    //all prices dated within [from, to)
+    Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to);
+    Set<Price> getByVendorBetween(String vendor, Date from, Date to);
     Set<Price> getAllPrices();
-    void cleanUp();
+    //prices matching every predicate of the query, resolved from the indexes without scanning the store
+    Set<Price> query(PriceQuery query);
+    //visits the prices of the query in place, e.g. PriceQuery.all() streams the store without copying it into a set
+    void forEach(PriceQuery query, Consumer<? super Price> visitor);
+    //the prices of the query evaluated lazily as the cursor advances, must be closed. Not snapshot consistent: each
+    //series is read as of the moment the cursor reaches it, writes to the other series may land in between
+    PriceCursor cursor(PriceQuery query);
+    //removes the prices older than the cache age, returns how many this call removed
+    int cleanUp();
+    //best bid/ask and mid across the fresh latest prices of the vendors, null if no vendor prices the instrument
+    CompositeQuote getCompositeQuote(String instrumentId);
+    //pushes every new latest price, a slow listener only receives the latest pending price of each series
+    PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener);
+    PriceSubscription subscribeToVendor(String vendor, PriceListener listener);
+    PriceSubscription subscribeToAll(PriceListener listener);
 }
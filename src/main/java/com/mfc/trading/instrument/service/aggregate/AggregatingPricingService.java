@@ -0,0 +1,444 @@
+package com.mfc.trading.instrument.service.aggregate;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.pojo.PriceBar;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.metrics.TimedReadWriteLock;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Pricing service maintaining OHLC bars and the average mid of every vendor/instrument series at the
+ * configured intervals, e.g. a minute and a day, so a bar is a lookup instead of an aggregation over the
+ * history of the series. Each price added updates the bar of its bucket at each interval incrementally, a
+ * correction replaces its mid in the bars, a resend leaves them unchanged. cleanUp drops the bars of the
+ * expired prices and recomputes the bar of the bucket the cut off falls in. Only prices quoting a bid and
+ * an ask have a mid and take part in the bars.
+ * <p>
+ * Queries other than the bars are served by the wrapped service. The writes of a series are applied to the
+ * service and its bars under the lock of the series, so the bars follow the service price by price while the
+ * other series are written and read concurrently. A batch locks all its series, in a fixed order, and is
+ * added to the service at once.
+ */
+public class AggregatingPricingService implements PricingService, StoreStatistics {
+
+    private final PricingService pricingService;
+    private final long maxCacheAge;//in number of days
+    private final LongSupplier clock;
+    private final long[] intervals;
+    private final ConcurrentMap<SeriesKey, SeriesBars> barsBySeries = new ConcurrentHashMap<>();
+    //the order series locks are taken in by a batch
+    private static final Comparator<SeriesKey> LOCK_ORDER = Comparator
+            .comparing((SeriesKey key) -> key.instrument, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+            .thenComparing(key -> key.vendor, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+
+    /**
+     * @param pricingService must use the default cache age
+     * @param intervals of the bars in milliseconds
+     */
+    public AggregatingPricingService(PricingService pricingService, long... intervals) {
+        this(pricingService, DEFAULT_CACHE_AGE, System::currentTimeMillis, intervals);
+    }
+
+    /**
+     * @param pricingService must use the same cache age and clock
+     * @param maxCacheAge in number of days
+     * @param clock current time in milliseconds, used by cleanUp
+     * @param intervals of the bars in milliseconds, bucket starts are multiples of the interval since the epoch
+     */
+    public AggregatingPricingService(PricingService pricingService, long maxCacheAge, LongSupplier clock, long... intervals) {
+        if (intervals.length == 0) {
+            throw new IllegalArgumentException("At least one bar interval is required");
+        }
+        for (int i = 0; i < intervals.length; i++) {
+            if (intervals[i] <= 0) {
+                throw new IllegalArgumentException("Bar interval must be positive: " + intervals[i]);
+            }
+            for (int j = 0; j < i; j++) {
+                if (intervals[j] == intervals[i]) {
+                    throw new IllegalArgumentException("Bar interval configured twice: " + intervals[i]);
+                }
+            }
+        }
+        this.pricingService = pricingService;
+        this.maxCacheAge = maxCacheAge;
+        this.clock = clock;
+        this.intervals = intervals.clone();
+    }
+
+    @Override
+    public void add(Price price) {
+        SeriesKey key = new SeriesKey(price.getInstrument(), price.getVendor());
+        Map<SeriesKey, SeriesBars> locked = lockSeries(Collections.singleton(key));
+        try {
+            SeriesBars series = locked.get(key);
+            Price previous = series.isAfterLast(price.getAsOfDate().getTime()) ? null : storedAt(price);
+            pricingService.add(price);
+            series.record(price, previous);
+        } finally {
+            unlockSeries(locked);
+        }
+    }
+
+    @Override
+    public void addAll(Collection<Price> prices) {
+        Map<SeriesKey, List<Price>> bySeries = new LinkedHashMap<>();
+        for (Price price : prices) {
+            bySeries.computeIfAbsent(new SeriesKey(price.getInstrument(), price.getVendor()), key -> new ArrayList<>()).add(price);
+        }
+        Map<SeriesKey, SeriesBars> locked = lockSeries(bySeries.keySet());
+        try {
+            //the prices the batch replaces, a price of the batch replaces an earlier one of the same time
+            Map<SeriesKey, List<Price>> previousBySeries = new HashMap<>();
+            bySeries.forEach((key, batch) -> {
+                SeriesBars series = locked.get(key);
+                List<Price> previous = new ArrayList<>(batch.size());
+                Map<Long, Price> added = new HashMap<>();
+                for (Price price : batch) {
+                    long time = price.getAsOfDate().getTime();
+                    Price replaced = added.put(time, price);
+                    if (replaced == null && !series.isAfterLast(time)) {
+                        replaced = storedAt(price);
+                    }
+                    previous.add(replaced);
+                }
+                previousBySeries.put(key, previous);
+            });
+            pricingService.addAll(prices);
+            bySeries.forEach((key, batch) -> {
+                SeriesBars series = locked.get(key);
+                List<Price> previous = previousBySeries.get(key);
+                for (int i = 0; i < batch.size(); i++) {
+                    series.record(batch.get(i), previous.get(i));
+                }
+            });
+        } finally {
+            unlockSeries(locked);
+        }
+    }
+
+    /**
+     * Bar of a series, a lookup.
+     * @param instrumentId
+     * @param vendor
+     * @param interval one of the configured intervals
+     * @param time any time of the bucket
+     * @return the bar of the bucket holding the time, or null if the series has no mid in it
+     * @throws IllegalArgumentException if the interval is not configured
+     */
+    public PriceBar getBar(String instrumentId, String vendor, long interval, Date time) {
+        int index = indexOf(interval);
+        SeriesBars series = barsBySeries.get(new SeriesKey(instrumentId, vendor));
+        if (series == null) {
+            return null;
+        }
+        try {
+            series.lock.lock();
+            Bar bar = series.bar(index, time.getTime());
+            return bar == null ? null : bar.toPriceBar(instrumentId, vendor, interval);
+        } finally {
+            series.lock.unlock();
+        }
+    }
+
+    /**
+     * Bars of a series starting within [from, to), oldest first.
+     * @param instrumentId
+     * @param vendor
+     * @param interval one of the configured intervals
+     * @param from
+     * @param to
+     * @return the bars, the buckets without a mid are skipped
+     * @throws IllegalArgumentException if the interval is not configured
+     */
+    public List<PriceBar> getBars(String instrumentId, String vendor, long interval, Date from, Date to) {
+        int index = indexOf(interval);
+        List<PriceBar> bars = new ArrayList<>();
+        SeriesBars series = barsBySeries.get(new SeriesKey(instrumentId, vendor));
+        if (series != null) {
+            try {
+                series.lock.lock();
+                series.bars(index, from.getTime(), to.getTime(), bars);
+            } finally {
+                series.lock.unlock();
+            }
+        }
+        return bars;
+    }
+
+    /**
+     * Bar of each vendor of an instrument for the bucket holding the time, the vendors are those pricing the
+     * instrument in the wrapped service.
+     * @param instrumentId
+     * @param interval one of the configured intervals
+     * @param time
+     * @return vendor -> bar, the vendors without a mid in the bucket are left out
+     * @throws IllegalArgumentException if the interval is not configured
+     */
+    public Map<String, PriceBar> getBarsByInstrument(String instrumentId, long interval, Date time) {
+        indexOf(interval);
+        Map<String, PriceBar> bars = new HashMap<>();
+        for (Price latest : pricingService.getByInstrument(instrumentId, null)) {
+            PriceBar bar = getBar(instrumentId, latest.getVendor(), interval, time);
+            if (bar != null) {
+                bars.put(latest.getVendor(), bar);
+            }
+        }
+        return bars;
+    }
+
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        return pricingService.getByInstrument(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        return pricingService.getByInstruments(instrumentIds, asOfDate);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        return pricingService.getByInstrumentsAsync(instrumentIds, asOfDate, executor);
+    }
+
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        return pricingService.getByVendor(vendor, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        return pricingService.getByInstrumentAsOf(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        return pricingService.getByVendorAsOf(vendor, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        return pricingService.getByInstrumentBetween(instrumentId, from, to);
+    }
+
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        return pricingService.getByVendorBetween(vendor, from, to);
+    }
+
+    @Override
+    public Set<Price> getAllPrices() {
+        return pricingService.getAllPrices();
+    }
+
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        return pricingService.query(query);
+    }
+
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        pricingService.forEach(query, visitor);
+    }
+
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        return pricingService.cursor(query);
+    }
+
+    /**
+     * Clean up the wrapped service and drop the bars of the prices it expired, series by series.
+     * @return the number of prices the wrapped service removed
+     */
+    @Override
+    public int cleanUp() {
+        long oldCacheTime = clock.getAsLong() - maxCacheAge * DAY_IN_MIL_SEC;
+        int expired = pricingService.cleanUp();
+        for (Map.Entry<SeriesKey, SeriesBars> entry : barsBySeries.entrySet()) {
+            SeriesBars series = entry.getValue();
+            try {
+                series.lock.lock();
+                if (!series.retired && series.expire(oldCacheTime)) {
+                    retire(entry.getKey(), series);
+                }
+            } finally {
+                series.lock.unlock();
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return pricingService.getCompositeQuote(instrumentId);
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return pricingService.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return pricingService.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return pricingService.subscribeToAll(listener);
+    }
+
+    /**
+     * The statistics of the wrapped service, empty if it keeps none.
+     * @return
+     */
+    @Override
+    public Map<String, Integer> priceCountByVendor() {
+        return statistics().map(StoreStatistics::priceCountByVendor).orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByInstrument() {
+        return statistics().map(StoreStatistics::priceCountByInstrument).orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public long expiredCount() {
+        return statistics().map(StoreStatistics::expiredCount).orElse(0L);
+    }
+
+    @Override
+    public long duplicateCount() {
+        return statistics().map(StoreStatistics::duplicateCount).orElse(0L);
+    }
+
+    @Override
+    public Optional<TimedReadWriteLock> storeLock() {
+        return statistics().flatMap(StoreStatistics::storeLock);
+    }
+
+    /**
+     * Lock the series in a fixed order, so batches sharing series do not deadlock. A series retired by
+     * cleanUp while waiting for its lock is replaced by a new one.
+     * @param keys
+     * @return the locked series by key
+     */
+    private Map<SeriesKey, SeriesBars> lockSeries(Collection<SeriesKey> keys) {
+        List<SeriesKey> ordered = new ArrayList<>(keys);
+        ordered.sort(LOCK_ORDER);
+        Map<SeriesKey, SeriesBars> locked = new HashMap<>();
+        for (SeriesKey key : ordered) {
+            for (;;) {
+                SeriesBars series = barsBySeries.computeIfAbsent(key, seriesKey ->
+                        new SeriesBars(seriesKey.instrument, seriesKey.vendor, intervals, pricingService));
+                series.lock.lock();
+                if (!series.retired) {
+                    locked.put(key, series);
+                    break;
+                }
+                series.lock.unlock();
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Unlock the series, retiring those left without a bar, e.g. of prices without a mid.
+     */
+    private void unlockSeries(Map<SeriesKey, SeriesBars> locked) {
+        locked.forEach((key, series) -> {
+            if (series.isEmpty()) {
+                retire(key, series);
+            }
+            series.lock.unlock();
+        });
+    }
+
+    /**
+     * Drop a series without a bar. Must be invoked holding its lock.
+     */
+    private void retire(SeriesKey key, SeriesBars series) {
+        series.retired = true;
+        barsBySeries.remove(key, series);
+    }
+
+    /**
+     * @return the price of the series the wrapped service holds for the time of the price, or null
+     */
+    private Price storedAt(Price price) {
+        long time = price.getAsOfDate().getTime();
+        for (Price stored : pricingService.getByInstrumentBetween(price.getInstrument(), price.getAsOfDate(), new Date(time + 1))) {
+            if (Objects.equals(stored.getVendor(), price.getVendor())) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    private int indexOf(long interval) {
+        for (int i = 0; i < intervals.length; i++) {
+            if (intervals[i] == interval) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Bar interval not configured: " + interval);
+    }
+
+    private Optional<StoreStatistics> statistics() {
+        return pricingService instanceof StoreStatistics ? Optional.of((StoreStatistics) pricingService) : Optional.empty();
+    }
+
+    private static final class SeriesKey {
+        private final String instrument;
+        private final String vendor;
+
+        private SeriesKey(String instrument, String vendor) {
+            this.instrument = instrument;
+            this.vendor = vendor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return Objects.equals(instrument, other.instrument) && Objects.equals(vendor, other.vendor);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(instrument) + Objects.hashCode(vendor);
+        }
+    }
+}
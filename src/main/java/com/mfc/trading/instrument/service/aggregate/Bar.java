@@ -0,0 +1,88 @@
+package com.mfc.trading.instrument.service.aggregate;
+
+import com.mfc.trading.instrument.pojo.PriceBar;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Date;
+
+/**
+ * Running OHLC, sum and count of the mids of one bucket of a series. A mid added extends the bar in
+ * constant time, a corrected mid too unless it was the high or low, then the bar is recomputed from the
+ * prices of its bucket held by the store.
+ */
+final class Bar {
+
+    private final long start;
+    private long openTime;
+    private long closeTime;
+    private BigDecimal open;
+    private BigDecimal high;
+    private BigDecimal low;
+    private BigDecimal close;
+    private BigDecimal sum = BigDecimal.ZERO;
+    private int count;
+
+    Bar(long start) {
+        this.start = start;
+    }
+
+    long start() {
+        return start;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    void add(long time, BigDecimal mid) {
+        if (count == 0 || time < openTime) {
+            openTime = time;
+            open = mid;
+        }
+        if (count == 0 || time > closeTime) {
+            closeTime = time;
+            close = mid;
+        }
+        if (count == 0 || mid.compareTo(high) > 0) {
+            high = mid;
+        }
+        if (count == 0 || mid.compareTo(low) < 0) {
+            low = mid;
+        }
+        sum = sum.add(mid);
+        count++;
+    }
+
+    /**
+     * Replace the mid of a time already in the bar.
+     * @param time
+     * @param replaced the mid added for the time before
+     * @param mid
+     * @return false if the replaced mid was the high or low, the bar must then be recomputed
+     */
+    boolean correct(long time, BigDecimal replaced, BigDecimal mid) {
+        sum = sum.subtract(replaced).add(mid);
+        if (time == openTime) {
+            open = mid;
+        }
+        if (time == closeTime) {
+            close = mid;
+        }
+        if ((replaced.compareTo(high) == 0 && mid.compareTo(high) < 0) || (replaced.compareTo(low) == 0 && mid.compareTo(low) > 0)) {
+            return false;
+        }
+        if (mid.compareTo(high) > 0) {
+            high = mid;
+        }
+        if (mid.compareTo(low) < 0) {
+            low = mid;
+        }
+        return true;
+    }
+
+    PriceBar toPriceBar(String instrument, String vendor, long interval) {
+        BigDecimal averageMid = sum.divide(BigDecimal.valueOf(count), MathContext.DECIMAL64);
+        return new PriceBar(instrument, vendor, new Date(start), interval, open, high, low, close, averageMid, count);
+    }
+}
@@ -0,0 +1,174 @@
+package com.mfc.trading.instrument.service.aggregate;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.pojo.PriceBar;
+import com.mfc.trading.instrument.service.PricingService;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bars of one vendor/instrument series at every interval of the book, keyed by the start of their bucket.
+ * Only the state of each bucket is kept, not the prices: a price after the last one of the series is new,
+ * an earlier one is told from a correction by the price the store held for its time, and a bar whose high
+ * or low was corrected away is recomputed from the prices of its bucket in the store. Not thread safe,
+ * guarded by its lock, taken by the {@link AggregatingPricingService} across the store write of the series.
+ */
+final class SeriesBars {
+
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+    private final String instrument;
+    private final String vendor;
+    private final long[] intervals;
+    private final PricingService pricingService;
+    //per interval, bucket start -> bar
+    private final List<NavigableMap<Long, Bar>> barsByInterval;
+    //latest time with a mid
+    private long lastTime = Long.MIN_VALUE;
+    final Lock lock = new ReentrantLock();
+    //set under the lock once the series is dropped from the book, a writer then starts a new series
+    boolean retired;
+
+    SeriesBars(String instrument, String vendor, long[] intervals, PricingService pricingService) {
+        this.instrument = instrument;
+        this.vendor = vendor;
+        this.intervals = intervals;
+        this.pricingService = pricingService;
+        this.barsByInterval = new ArrayList<>(intervals.length);
+        for (int i = 0; i < intervals.length; i++) {
+            barsByInterval.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * @return true if the series has no bar at any interval
+     */
+    boolean isEmpty() {
+        for (NavigableMap<Long, Bar> bars : barsByInterval) {
+            if (!bars.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param time
+     * @return true if no price of the series with a mid is dated at or after the time
+     */
+    boolean isAfterLast(long time) {
+        return time > lastTime;
+    }
+
+    /**
+     * Record a price added to the store.
+     * @param price
+     * @param previous the price the store held for the same time before, null if none
+     */
+    void record(Price price, Price previous) {
+        long time = price.getAsOfDate().getTime();
+        BigDecimal mid = midOf(price);
+        BigDecimal replaced = previous == null ? null : midOf(previous);
+        if (replaced == null) {
+            if (mid != null) {
+                for (int i = 0; i < intervals.length; i++) {
+                    barsByInterval.get(i).computeIfAbsent(bucketOf(time, intervals[i]), Bar::new).add(time, mid);
+                }
+                lastTime = Math.max(lastTime, time);
+            }
+            return;
+        }
+        if (mid != null && mid.compareTo(replaced) == 0) {
+            return;
+        }
+        for (int i = 0; i < intervals.length; i++) {
+            long bucket = bucketOf(time, intervals[i]);
+            Bar bar = barsByInterval.get(i).get(bucket);
+            //a price losing its mid leaves the bar like a correction of its high or low
+            if (bar == null || mid == null || !bar.correct(time, replaced, mid)) {
+                recompute(i, bucket);
+            }
+        }
+    }
+
+    /**
+     * Drop the bars of the buckets before the one holding the cut off, the bar of that bucket is
+     * recomputed from the prices the store kept. Must be invoked once the store is cleaned up.
+     * @param cutOff
+     * @return true if the series has no bar left
+     */
+    boolean expire(long cutOff) {
+        boolean empty = true;
+        for (int i = 0; i < intervals.length; i++) {
+            NavigableMap<Long, Bar> bars = barsByInterval.get(i);
+            long bucket = bucketOf(cutOff, intervals[i]);
+            bars.headMap(bucket, false).clear();
+            if (bucket < cutOff && bars.containsKey(bucket)) {
+                recompute(i, bucket);
+            }
+            empty &= bars.isEmpty();
+        }
+        return empty;
+    }
+
+    /**
+     * @param interval index of the interval in the book
+     * @param time
+     * @return the bar of the bucket holding the time, null if the series has no mid in it
+     */
+    Bar bar(int interval, long time) {
+        return barsByInterval.get(interval).get(bucketOf(time, intervals[interval]));
+    }
+
+    /**
+     * Bars of the buckets starting within [from, to), oldest first.
+     */
+    void bars(int interval, long from, long to, List<PriceBar> result) {
+        if (from >= to) {
+            return;
+        }
+        for (Bar bar : barsByInterval.get(interval).subMap(from, true, to, false).values()) {
+            result.add(bar.toPriceBar(instrument, vendor, intervals[interval]));
+        }
+    }
+
+    static long bucketOf(long time, long interval) {
+        return Math.floorDiv(time, interval) * interval;
+    }
+
+    /**
+     * @return the mid of a price quoting a bid and an ask, null otherwise
+     */
+    static BigDecimal midOf(Price price) {
+        if (price.getBid() == null || price.getAsk() == null) {
+            return null;
+        }
+        return price.getBid().add(price.getAsk()).divide(TWO);
+    }
+
+    /**
+     * Rebuild the bar of a bucket from the prices of the series the store holds in it.
+     */
+    private void recompute(int interval, long bucket) {
+        Bar bar = new Bar(bucket);
+        for (Price price : pricingService.getByInstrumentBetween(instrument, new Date(bucket), new Date(bucket + intervals[interval]))) {
+            BigDecimal mid = Objects.equals(vendor, price.getVendor()) ? midOf(price) : null;
+            if (mid != null) {
+                bar.add(price.getAsOfDate().getTime(), mid);
+            }
+        }
+        if (bar.isEmpty()) {
+            barsByInterval.get(interval).remove(bucket);
+        } else {
+            barsByInterval.get(interval).put(bucket, bar);
+        }
+    }
+}
@@ -0,0 +1,948 @@
+package com.mfc.trading.instrument.service.compact;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.composite.CompositeQuoteBook;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.memory.ExpiryBuckets;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.metrics.TimedReadWriteLock;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.query.QueryPlanner;
+import com.mfc.trading.instrument.service.query.SeriesIndex;
+import com.mfc.trading.instrument.service.query.SeriesSet;
+import com.mfc.trading.instrument.service.stream.PriceDispatcher;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+import com.mfc.trading.instrument.service.util.BasketLookup;
+import com.mfc.trading.instrument.service.util.ScaledDecimal;
+import com.mfc.trading.instrument.service.util.SymbolTable;
+import com.mfc.trading.instrument.service.util.Upsert;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Opt-in compact storage mode of the pricing service. Prices are stored as primitives, the date as epoch
+ * millis, bid/ask as unscaled long and scale, and instrument/vendor/market/asset class as int ids
+ * from symbol tables, so a stored tick costs no objects at all. Price objects are only created at the
+ * API boundary when a query returns them.
+ */
+public class CompactPricingServiceImpl implements PricingService, StoreStatistics {
+
+    private static final CompactSeries[] NO_SERIES = new CompactSeries[0];
+
+    //fair, timed only when asked for, see storeLock
+    private final ReadWriteLock pricingLock;
+    private final long maxCacheAge;//in number of days
+
+    private final SymbolTable instruments = new SymbolTable(1000); //expect 1000 instr as per requirement
+    private final SymbolTable vendors = new SymbolTable(5); //expects 5 vendors
+    private final SymbolTable markets = new SymbolTable(16);
+    private final SymbolTable assetClasses = new SymbolTable(4);
+    //new latest prices are published from the write lock, so each series is published in order
+    private final PriceDispatcher priceDispatcher;
+    //best bid/ask and mid per instrument, updated with the latest prices
+    private final CompositeQuoteBook compositeQuotes;
+
+    /*
+        single series store indexed [vendor id][instrument id]. The by-vendor view is a row, the by-instrument
+        view is a column across the vendors, so both views read the same series and are consistent by
+        construction. Rows grow to the number of instruments the vendor prices.
+         */
+    private CompactSeries[][] seriesByVendor = new CompactSeries[5][];
+    //series holding prices of a market or asset class, so a query only visits the matching series
+    private final SeriesIndex seriesByMarket = new SeriesIndex(Price::getMarket);
+    private final SeriesIndex seriesByAssetClass = new SeriesIndex(Price::getAssetClass);
+    //series holding prices of each day, so cleanUp only visits the series of the expired days
+    private final ExpiryBuckets expiryBuckets = new ExpiryBuckets();
+    //vendor -> instrument -> latest entry of the series, written under the write lock, read lock free by the resend check
+    private final ConcurrentMap<String, ConcurrentMap<String, LatestQuote>> latestQuotes = new ConcurrentHashMap<>();
+    //only written under the write lock
+    private volatile long expiredCount;
+    private final LongAdder duplicateCount = new LongAdder();
+
+    public CompactPricingServiceImpl() {
+        this(DEFAULT_CACHE_AGE);
+    }
+
+    public CompactPricingServiceImpl(long maxCacheAge) {
+        this(maxCacheAge, CompositeQuotePolicy.DEFAULT);
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     */
+    public CompactPricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy) {
+        this(maxCacheAge, compositeQuotePolicy, new PriceDispatcher());
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     * @param priceDispatcher publishes the new latest prices, may be shared with other stores
+     */
+    public CompactPricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy, PriceDispatcher priceDispatcher) {
+        this(maxCacheAge, compositeQuotePolicy, priceDispatcher, false);
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     * @param priceDispatcher publishes the new latest prices, may be shared with other stores
+     * @param timedLock whether to record the wait and hold times of the store lock, for the metrics
+     *                  decorator. Off by default, it costs two nanoTime calls per lock operation
+     */
+    public CompactPricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy, PriceDispatcher priceDispatcher, boolean timedLock) {
+        this.pricingLock = timedLock ? new TimedReadWriteLock(true) : new ReentrantReadWriteLock(true);
+        this.maxCacheAge = maxCacheAge;
+        this.compositeQuotes = new CompositeQuoteBook(compositeQuotePolicy);
+        this.priceDispatcher = priceDispatcher;
+    }
+
+    /**
+     * Add new price update from vendors to the service. A price for a date already held replaces the
+     * stored one, unless it quotes the same bid and ask. Resends of the latest price are dropped without
+     * taking any lock, so they never queue behind the fair lock, older resends are dropped under the write lock.
+     * @param price
+     */
+    @Override
+    public void add(Price price) {
+        //encode before taking the lock, an unsupported price is rejected without touching the store
+        long bid = ScaledDecimal.unscaled(price.getBid());
+        byte bidScale = ScaledDecimal.scale(price.getBid());
+        long ask = ScaledDecimal.unscaled(price.getAsk());
+        byte askScale = ScaledDecimal.scale(price.getAsk());
+        long time = price.getAsOfDate().getTime();
+        if (isResentLatest(price, time, bid, bidScale, ask, askScale)) {
+            duplicateCount.increment();
+            return;
+        }
+        Lock writeLock = pricingLock.writeLock();
+        try {
+            writeLock.lock();
+            CompactSeries series = seriesOf(vendors.intern(price.getVendor()), instruments.intern(price.getInstrument()));
+            Upsert upsert = series.add(time, assetClasses.intern(price.getAssetClass()), markets.intern(price.getMarket()), bid, bidScale, ask, askScale);
+            if (upsert == Upsert.DUPLICATE) {
+                duplicateCount.increment();
+            } else {
+                expiryBuckets.record(price);
+                seriesByMarket.record(price);
+                seriesByAssetClass.record(price);
+                publishIfLatest(series, time, price);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Add a batch of prices. Every price is validated before taking the write lock, so a rejected price
+     * leaves the store untouched, then the whole batch is inserted and published under one write lock.
+     * The batch is applied in its own order, series already absorb out of order dates with a binary
+     * search which is cheaper than sorting the batch up front. A batch of resends of the latest prices takes no lock.
+     * @param prices
+     */
+    @Override
+    public void addAll(Collection<Price> prices) {
+        Price[] batch = prices.toArray(new Price[0]);
+        for (Price price : batch) {
+            ScaledDecimal.scale(price.getBid());
+            ScaledDecimal.unscaled(price.getBid());
+            ScaledDecimal.scale(price.getAsk());
+            ScaledDecimal.unscaled(price.getAsk());
+        }
+        if (Arrays.stream(batch).allMatch(this::isResentLatest)) {
+            duplicateCount.add(batch.length);
+            return;
+        }
+        Lock writeLock = pricingLock.writeLock();
+        try {
+            writeLock.lock();
+            for (Price price : batch) {
+                add(seriesOf(vendors.intern(price.getVendor()), instruments.intern(price.getInstrument())), price);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns latest of prices for a given instrumentID, if a date is specified, then
+     * it returns set of prices based on the date  and the instrument specified. If no prices found
+     * for the given date, an empty set will be returned. The latest prices are returned read only,
+     * like the other storage modes.
+     * @param instrumentId
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        if (asOfDate == null) {
+            return Collections.unmodifiableSet(collectByInstrument(instrumentId, this::latest));
+        }
+        long time = asOfDate.getTime();
+        return collectByInstrument(instrumentId, (series, prices) -> add(series, series.indexOf(time), prices));
+    }
+
+    /**
+     * Method returns the prices of a basket of instruments, latest or dated like getByInstrument. The
+     * whole basket is read under one read lock while the lookups run in parallel on the default executor.
+     * @param instrumentIds
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        return getByInstruments(instrumentIds, asOfDate, BasketLookup.defaultExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getByInstruments(instrumentIds, asOfDate, executor), executor);
+    }
+
+    private Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        SeriesReader reader;
+        if (asOfDate == null) {
+            reader = this::latest;
+        } else {
+            long time = asOfDate.getTime();
+            reader = (series, prices) -> add(series, series.indexOf(time), prices);
+        }
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            //the lookups on the executor threads must not take the lock, a queued writer would block them behind this thread
+            return BasketLookup.resolve(instrumentIds, instrumentId -> readByInstrument(instrumentId, reader), executor);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns latest of prices for a given vendor, if a date is specified, then
+     * it returns set of prices based on the date  and the vendor specified. If no prices found
+     * for the given date, an empty set will be returned. The latest prices are returned read only,
+     * like the other storage modes.
+     * @param vendor
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        if (asOfDate == null) {
+            return Collections.unmodifiableSet(collectByVendor(vendor, this::latest));
+        }
+        long time = asOfDate.getTime();
+        return collectByVendor(vendor, (series, prices) -> add(series, series.indexOf(time), prices));
+    }
+
+    /**
+     * Method returns, for each vendor of the instrument, the latest price dated at or before the
+     * given date.
+     * @param instrumentId
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        long time = asOfDate.getTime();
+        return collectByInstrument(instrumentId, (series, prices) -> add(series, series.indexAtOrBefore(time), prices));
+    }
+
+    /**
+     * Method returns, for each instrument of the vendor, the latest price dated at or before the
+     * given date.
+     * @param vendor
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        long time = asOfDate.getTime();
+        return collectByVendor(vendor, (series, prices) -> add(series, series.indexAtOrBefore(time), prices));
+    }
+
+    /**
+     * Method returns all the prices of the instrument dated from (inclusive) up to to (exclusive).
+     * @param instrumentId
+     * @param from
+     * @param to
+     * @return
+     */
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        checkRange(from, to);
+        return collectByInstrument(instrumentId, (series, prices) -> addRange(series, from.getTime(), to.getTime(), prices));
+    }
+
+    /**
+     * Method returns all the prices of the vendor dated from (inclusive) up to to (exclusive).
+     * @param vendor
+     * @param from
+     * @param to
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        checkRange(from, to);
+        return collectByVendor(vendor, (series, prices) -> addRange(series, from.getTime(), to.getTime(), prices));
+    }
+
+    /**
+     * Method return all the stored prices, decoding every one of them into a copy. forEach and cursor of
+     * PriceQuery.all() decode the prices one at a time instead.
+     * @return Set<Price>
+     */
+    @Override
+    public Set<Price> getAllPrices() {
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            Set<Price> prices = new HashSet<>();
+            for (CompactSeries[] row : seriesByVendor) {
+                for (CompactSeries series : row == null ? NO_SERIES : row) {
+                    if (series != null) {
+                        addRange(series, Long.MIN_VALUE, Long.MAX_VALUE, prices);
+                    }
+                }
+            }
+            return prices;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns the prices matching a query combining vendor, instrument, market, asset class and
+     * dates. The planner intersects the series of the predicates set, so only the matching series are
+     * visited under the read lock, and only the prices returned are decoded.
+     * @param query
+     * @return
+     */
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        Set<Price> prices = new HashSet<>();
+        forEach(query, prices::add);
+        return prices;
+    }
+
+    /**
+     * Method visits the prices matching a query under the read lock, decoding each price as it is visited,
+     * so no set of the results is built. The visitor must not write to the store.
+     * @param query
+     * @param visitor
+     */
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            int market = idOf(markets, query.getMarket());
+            int assetClass = idOf(assetClasses, query.getAssetClass());
+            forEachSeries(query, series -> {
+                int end = endOfSelection(series, query);
+                for (int index = firstSelected(series, query); index < end; index++) {
+                    if (matches(series, index, market, assetClass)) {
+                        visitor.accept(decode(series, index));
+                    }
+                }
+            });
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns a cursor over the prices matching a query. The series are found under the read lock,
+     * then the cursor takes it again for each series it reaches and decodes the prices it picks from it.
+     * So an open cursor never holds back the writers, but it reads each series as of the moment it
+     * reaches it rather than one snapshot of the arrays, use forEach or query for that.
+     * @param query
+     * @return
+     */
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            List<CompactSeries> found = new ArrayList<>();
+            forEachSeries(query, found::add);
+            return PriceCursor.of(new Selection(found.iterator(), query, readLock), () -> {
+            });
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Clean up expired prices based on current system time. Only the series recorded in the expired day
+     * buckets are visited, each drops its expired prefix in one array copy, series left empty are released.
+     * @return the number of prices removed
+     */
+    @Override
+    public int cleanUp() {
+        long oldCacheTime = System.currentTimeMillis() - maxCacheAge * DAY_IN_MIL_SEC;
+        Lock writeLock = pricingLock.writeLock();
+        try {
+            writeLock.lock();
+            return expiryBuckets.expire(oldCacheTime, (vendor, instrument) -> expireSeries(vendor, instrument, oldCacheTime));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Must be invoked from the write lock.
+     * @param vendor
+     * @param instrument
+     * @param oldCacheTime
+     * @return the number of prices removed from the series
+     */
+    private int expireSeries(String vendor, String instrument, long oldCacheTime) {
+        int vendorId = vendors.find(vendor);
+        int instrumentId = instruments.find(instrument);
+        CompactSeries series = find(vendorId, instrumentId);
+        int expired = series == null ? 0 : series.expire(oldCacheTime);
+        if (expired == 0) {
+            return 0;
+        }
+        expiredCount += expired;
+        retainIndexed(series);
+        if (series.size() == 0) {
+            seriesByVendor[vendorId][instrumentId] = null;
+            compositeQuotes.reset(instrument, vendor, null);
+            Map<String, LatestQuote> byInstrument = latestQuotes.get(vendor);
+            if (byInstrument != null) {
+                byInstrument.remove(instrument);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Composite quote of the instrument across its vendors, a lookup of the quote consolidated when its
+     * latest prices were added.
+     * @param instrumentId
+     * @return the quote, or null if no vendor prices the instrument
+     */
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return compositeQuotes.quote(instrumentId);
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByVendor() {
+        return countBy(series -> vendors.symbol(series.vendor));
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByInstrument() {
+        return countBy(series -> instruments.symbol(series.instrument));
+    }
+
+    @Override
+    public long expiredCount() {
+        return expiredCount;
+    }
+
+    @Override
+    public long duplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    @Override
+    public Optional<TimedReadWriteLock> storeLock() {
+        return pricingLock instanceof TimedReadWriteLock ? Optional.of((TimedReadWriteLock) pricingLock) : Optional.empty();
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return priceDispatcher.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return priceDispatcher.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return priceDispatcher.subscribeToAll(listener);
+    }
+
+    /**
+     * Must be invoked from the write lock.
+     * @param vendor
+     * @param instrument
+     * @return the series of the pair, created if needed
+     */
+    private CompactSeries seriesOf(int vendor, int instrument) {
+        if (vendor >= seriesByVendor.length) {
+            seriesByVendor = Arrays.copyOf(seriesByVendor, Math.max(vendor + 1, seriesByVendor.length * 2));
+        }
+        CompactSeries[] row = seriesByVendor[vendor];
+        if (row == null || instrument >= row.length) {
+            row = row == null ? new CompactSeries[Math.max(instrument + 1, 16)] : Arrays.copyOf(row, Math.max(instrument + 1, row.length * 2));
+            seriesByVendor[vendor] = row;
+        }
+        CompactSeries series = row[instrument];
+        if (series == null) {
+            series = new CompactSeries(vendor, instrument);
+            row[instrument] = series;
+        }
+        return series;
+    }
+
+    /**
+     * Must be invoked from the write lock with a price already validated.
+     * @param series
+     * @param price
+     */
+    private void add(CompactSeries series, Price price) {
+        long time = price.getAsOfDate().getTime();
+        Upsert upsert = series.add(time,
+                assetClasses.intern(price.getAssetClass()),
+                markets.intern(price.getMarket()),
+                ScaledDecimal.unscaled(price.getBid()), ScaledDecimal.scale(price.getBid()),
+                ScaledDecimal.unscaled(price.getAsk()), ScaledDecimal.scale(price.getAsk()));
+        if (upsert == Upsert.DUPLICATE) {
+            duplicateCount.increment();
+        } else {
+            expiryBuckets.record(price);
+            seriesByMarket.record(price);
+            seriesByAssetClass.record(price);
+            publishIfLatest(series, time, price);
+        }
+    }
+
+    /**
+     * Must be invoked while a lock is held.
+     * @return the series of the pair, or null
+     */
+    private CompactSeries find(int vendor, int instrument) {
+        if (vendor == SymbolTable.UNKNOWN || instrument == SymbolTable.UNKNOWN || vendor >= seriesByVendor.length) {
+            return null;
+        }
+        CompactSeries[] row = seriesByVendor[vendor];
+        return row == null || instrument >= row.length ? null : row[instrument];
+    }
+
+    /**
+     * Resolve the series of a query with the planner. Must be invoked while the read lock is held.
+     */
+    private void forEachSeries(PriceQuery query, Consumer<CompactSeries> visitor) {
+        QueryPlanner.forEachSeries(query, this::seriesOfVendor, this::seriesOfInstrument, seriesByMarket::series, seriesByAssetClass::series,
+                allSeries(), (vendor, instrument) -> {
+                    CompactSeries series = find(vendors.find(vendor), instruments.find(instrument));
+                    if (series != null) {
+                        visitor.accept(series);
+                    }
+                });
+    }
+
+    /**
+     * The entries of a series selected by the dates of a query are the indexes within
+     * [firstSelected, endOfSelection), the vendor and instrument are matched by the planner already.
+     * @return index of the first entry selected
+     */
+    private static int firstSelected(CompactSeries series, PriceQuery query) {
+        switch (query.getDates()) {
+            case LATEST:
+                return Math.max(series.size() - 1, 0);
+            case ON:
+                int exact = series.indexOf(query.getTo().getTime());
+                return exact < 0 ? series.size() : exact;
+            case AS_OF:
+                int atOrBefore = series.indexAtOrBefore(query.getTo().getTime());
+                return atOrBefore < 0 ? series.size() : atOrBefore;
+            case BETWEEN:
+                return series.indexFrom(query.getFrom().getTime());
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return index after the last entry selected, at most size()
+     */
+    private static int endOfSelection(CompactSeries series, PriceQuery query) {
+        switch (query.getDates()) {
+            case BETWEEN:
+                return series.indexFrom(query.getTo().getTime());
+            case ALL:
+                return series.size();
+            default:
+                return Math.min(firstSelected(series, query) + 1, series.size());
+        }
+    }
+
+    /**
+     * @param market id of the market of the query, UNKNOWN if any market matches
+     * @param assetClass id of the asset class of the query, UNKNOWN if any asset class matches
+     */
+    private static boolean matches(CompactSeries series, int index, int market, int assetClass) {
+        return (market == SymbolTable.UNKNOWN || series.market(index) == market)
+                && (assetClass == SymbolTable.UNKNOWN || series.assetClass(index) == assetClass);
+    }
+
+    private static int idOf(SymbolTable symbols, String symbol) {
+        return symbol == null ? SymbolTable.UNKNOWN : symbols.find(symbol);
+    }
+
+    /**
+     * Drop the index entries of the markets and asset classes the series no longer holds. Must be invoked
+     * from the write lock.
+     */
+    private void retainIndexed(CompactSeries series) {
+        Set<String> heldMarkets = new HashSet<>();
+        Set<String> heldAssetClasses = new HashSet<>();
+        for (int index = 0; index < series.size(); index++) {
+            heldMarkets.add(markets.symbol(series.market(index)));
+            heldAssetClasses.add(assetClasses.symbol(series.assetClass(index)));
+        }
+        String vendor = vendors.symbol(series.vendor);
+        String instrument = instruments.symbol(series.instrument);
+        seriesByMarket.retainValues(vendor, instrument, heldMarkets);
+        seriesByAssetClass.retainValues(vendor, instrument, heldAssetClasses);
+    }
+
+    /**
+     * The size is the length of the row, an upper bound of the series of the vendor.
+     */
+    private SeriesSet seriesOfVendor(String vendorName) {
+        int vendor = vendors.find(vendorName);
+        if (vendor == SymbolTable.UNKNOWN || vendor >= seriesByVendor.length || seriesByVendor[vendor] == null) {
+            return SeriesSet.EMPTY;
+        }
+        CompactSeries[] row = seriesByVendor[vendor];
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return row.length;
+            }
+
+            @Override
+            public boolean contains(String seriesVendor, String instrument) {
+                return vendorName.equals(seriesVendor) && find(vendor, instruments.find(instrument)) != null;
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> visitor) {
+                for (CompactSeries series : row) {
+                    if (series != null) {
+                        visitor.accept(vendorName, instruments.symbol(series.instrument));
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * The size is the number of vendors, an upper bound of the series of the instrument.
+     */
+    private SeriesSet seriesOfInstrument(String instrumentId) {
+        int instrument = instruments.find(instrumentId);
+        if (instrument == SymbolTable.UNKNOWN) {
+            return SeriesSet.EMPTY;
+        }
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return seriesByVendor.length;
+            }
+
+            @Override
+            public boolean contains(String vendor, String seriesInstrument) {
+                return instrumentId.equals(seriesInstrument) && find(vendors.find(vendor), instrument) != null;
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> visitor) {
+                for (int vendor = 0; vendor < seriesByVendor.length; vendor++) {
+                    if (find(vendor, instrument) != null) {
+                        visitor.accept(vendors.symbol(vendor), instrumentId);
+                    }
+                }
+            }
+        };
+    }
+
+    private SeriesSet allSeries() {
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean contains(String vendor, String instrument) {
+                return find(vendors.find(vendor), instruments.find(instrument)) != null;
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> visitor) {
+                for (CompactSeries[] row : seriesByVendor) {
+                    for (CompactSeries series : row == null ? NO_SERIES : row) {
+                        if (series != null) {
+                            visitor.accept(vendors.symbol(series.vendor), instruments.symbol(series.instrument));
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Lock free check against the latest entry of the series, most resends are of the current price.
+     * @param price a price already validated
+     * @return true if the price is a resend of the latest price of its series
+     */
+    private boolean isResentLatest(Price price) {
+        return isResentLatest(price, price.getAsOfDate().getTime(),
+                ScaledDecimal.unscaled(price.getBid()), ScaledDecimal.scale(price.getBid()),
+                ScaledDecimal.unscaled(price.getAsk()), ScaledDecimal.scale(price.getAsk()));
+    }
+
+    private boolean isResentLatest(Price price, long time, long bid, byte bidScale, long ask, byte askScale) {
+        if (price.getVendor() == null || price.getInstrument() == null) {
+            return false;
+        }
+        Map<String, LatestQuote> byInstrument = latestQuotes.get(price.getVendor());
+        LatestQuote latest = byInstrument == null ? null : byInstrument.get(price.getInstrument());
+        return latest != null && latest.time == time
+                && latest.bid == bid && latest.bidScale == bidScale && latest.ask == ask && latest.askScale == askScale;
+    }
+
+    /**
+     * Publish a price just inserted or corrected if it is now the latest of its series, and record it for the resend
+     * check. Must be invoked from the write lock.
+     * @param series
+     * @param time
+     * @param price
+     */
+    private void publishIfLatest(CompactSeries series, long time, Price price) {
+        if (series.time(series.size() - 1) == time) {
+            if (price.getVendor() != null && price.getInstrument() != null) {
+                latestQuotes.computeIfAbsent(price.getVendor(), vendor -> new ConcurrentHashMap<>())
+                        .put(price.getInstrument(), new LatestQuote(series, series.size() - 1));
+            }
+            compositeQuotes.update(price);
+            priceDispatcher.publish(price);
+        }
+    }
+
+    private Map<String, Integer> countBy(Function<CompactSeries, String> group) {
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            Map<String, Integer> counts = new HashMap<>();
+            for (CompactSeries[] row : seriesByVendor) {
+                for (CompactSeries series : row == null ? NO_SERIES : row) {
+                    if (series != null) {
+                        counts.merge(group.apply(series), series.size(), Integer::sum);
+                    }
+                }
+            }
+            return counts;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private Set<Price> collectByInstrument(String instrumentId, SeriesReader reader) {
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            return readByInstrument(instrumentId, reader);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Must be invoked while the read lock is held, by the caller or by the thread it waits for.
+     */
+    private Set<Price> readByInstrument(String instrumentId, SeriesReader reader) {
+        Set<Price> prices = new HashSet<>();
+        int instrument = instruments.find(instrumentId);
+        if (instrument == SymbolTable.UNKNOWN) {
+            return prices;
+        }
+        for (CompactSeries[] row : seriesByVendor) {
+            if (row != null && instrument < row.length && row[instrument] != null) {
+                reader.read(row[instrument], prices);
+            }
+        }
+        return prices;
+    }
+
+    private Set<Price> collectByVendor(String vendorName, SeriesReader reader) {
+        Lock readLock = pricingLock.readLock();
+        try {
+            readLock.lock();
+            Set<Price> prices = new HashSet<>();
+            int vendor = vendors.find(vendorName);
+            if (vendor == SymbolTable.UNKNOWN || vendor >= seriesByVendor.length || seriesByVendor[vendor] == null) {
+                return prices;
+            }
+            for (CompactSeries series : seriesByVendor[vendor]) {
+                if (series != null) {
+                    reader.read(series, prices);
+                }
+            }
+            return prices;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void latest(CompactSeries series, Set<Price> prices) {
+        if (series.size() == 0) {
+            return;
+        }
+        Price latest = series.latest;
+        if (latest == null) {
+            latest = decode(series, series.size() - 1);
+            series.latest = latest;
+        }
+        prices.add(latest);
+    }
+
+    private void add(CompactSeries series, int index, Set<Price> prices) {
+        if (index >= 0) {
+            prices.add(decode(series, index));
+        }
+    }
+
+    private void addRange(CompactSeries series, long from, long to, Set<Price> prices) {
+        for (int index = series.indexFrom(from); index < series.size() && series.time(index) < to; index++) {
+            prices.add(decode(series, index));
+        }
+    }
+
+    /**
+     * Convert a stored entry to a Price, the only place the compact store creates price objects.
+     * @param series
+     * @param index
+     * @return
+     */
+    private Price decode(CompactSeries series, int index) {
+        return new Price(new Date(series.time(index)),
+                assetClasses.symbol(series.assetClass(index)),
+                instruments.symbol(series.instrument),
+                vendors.symbol(series.vendor),
+                markets.symbol(series.market(index)),
+                ScaledDecimal.decode(series.bid(index), series.bidScale(index)),
+                ScaledDecimal.decode(series.ask(index), series.askScale(index)));
+    }
+
+    private static void checkRange(Date from, Date to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Both from and to dates are required");
+        }
+        if (from.after(to)) {
+            throw new IllegalArgumentException("from date " + from + " is after to date " + to);
+        }
+    }
+
+    /**
+     * The entries of a query picked series by series and decoded as the iteration reaches them, each
+     * series under the read lock.
+     */
+    private final class Selection implements Iterator<Price> {
+        private final Iterator<CompactSeries> series;
+        private final PriceQuery query;
+        private final Lock readLock;
+        private final int market;
+        private final int assetClass;
+        private Iterator<Price> selected = Collections.emptyIterator();
+
+        private Selection(Iterator<CompactSeries> series, PriceQuery query, Lock readLock) {
+            this.series = series;
+            this.query = query;
+            this.readLock = readLock;
+            this.market = idOf(markets, query.getMarket());
+            this.assetClass = idOf(assetClasses, query.getAssetClass());
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!selected.hasNext()) {
+                if (!series.hasNext()) {
+                    return false;
+                }
+                selected = decodeSelection(series.next());
+            }
+            return true;
+        }
+
+        @Override
+        public Price next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return selected.next();
+        }
+
+        /**
+         * Decode the prices of the series picked by the query under the read lock, the arrays of the
+         * series move as writers insert and expire prices.
+         */
+        private Iterator<Price> decodeSelection(CompactSeries current) {
+            List<Price> prices = new ArrayList<>();
+            try {
+                readLock.lock();
+                int end = endOfSelection(current, query);
+                for (int index = firstSelected(current, query); index < end; index++) {
+                    if (matches(current, index, market, assetClass)) {
+                        prices.add(decode(current, index));
+                    }
+                }
+            } finally {
+                readLock.unlock();
+            }
+            return prices.iterator();
+        }
+    }
+
+    /**
+     * Immutable copy of the latest entry of a series.
+     */
+    private static final class LatestQuote {
+        private final long time;
+        private final long bid;
+        private final byte bidScale;
+        private final long ask;
+        private final byte askScale;
+
+        private LatestQuote(CompactSeries series, int index) {
+            this.time = series.time(index);
+            this.bid = series.bid(index);
+            this.bidScale = series.bidScale(index);
+            this.ask = series.ask(index);
+            this.askScale = series.askScale(index);
+        }
+    }
+
+    private interface SeriesReader {
+        void read(CompactSeries series, Set<Price> prices);
+    }
+}
@@ -0,0 +1,182 @@
+package com.mfc.trading.instrument.service.compact;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.Upsert;
+
+import java.util.Arrays;
+
+/**
+ * Price series of one (vendor, instrument) pair held in parallel primitive arrays, ordered by the
+ * epoch millis of the price date, oldest first. Vendor feeds mostly deliver in date order, so an insert
+ * is usually an append. Not thread safe, the owning service guards it with its lock.
+ */
+final class CompactSeries {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    final int vendor;
+    final int instrument;
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int[] assetClasses = new int[INITIAL_CAPACITY];
+    private int[] markets = new int[INITIAL_CAPACITY];
+    private long[] bids = new long[INITIAL_CAPACITY];
+    private long[] asks = new long[INITIAL_CAPACITY];
+    private byte[] bidScales = new byte[INITIAL_CAPACITY];
+    private byte[] askScales = new byte[INITIAL_CAPACITY];
+    private int size;
+    //latest price decoded at the API boundary, dropped whenever the latest entry changes
+    volatile Price latest;
+
+    CompactSeries(int vendor, int instrument) {
+        this.vendor = vendor;
+        this.instrument = instrument;
+    }
+
+    /**
+     * Insert a price at its date. A price for a date already held overwrites the stored entry, unless it
+     * quotes the same bid and ask.
+     * @return the outcome
+     */
+    Upsert add(long time, int assetClass, int market, long bid, byte bidScale, long ask, byte askScale) {
+        int index;
+        if (size == 0 || times[size - 1] < time) {
+            index = size;
+        } else {
+            index = Arrays.binarySearch(times, 0, size, time);
+            if (index >= 0) {
+                if (sameQuote(index, bid, bidScale, ask, askScale)) {
+                    return Upsert.DUPLICATE;
+                }
+                set(index, time, assetClass, market, bid, bidScale, ask, askScale);
+                if (index == size - 1) {
+                    latest = null;
+                }
+                return Upsert.CORRECTED;
+            }
+            index = -index - 1;
+        }
+        if (size == times.length) {
+            grow();
+        }
+        if (index < size) {
+            shift(index, index + 1, size - index);
+        }
+        set(index, time, assetClass, market, bid, bidScale, ask, askScale);
+        size++;
+        if (index == size - 1) {
+            latest = null;
+        }
+        return Upsert.ADDED;
+    }
+
+    /**
+     * @return true if the entry quotes the bid and ask, with the same scales
+     */
+    boolean sameQuote(int index, long bid, byte bidScale, long ask, byte askScale) {
+        return bids[index] == bid && bidScales[index] == bidScale && asks[index] == ask && askScales[index] == askScale;
+    }
+
+    /**
+     * @return index of the price dated exactly at the time, or -1
+     */
+    int indexOf(long time) {
+        int index = Arrays.binarySearch(times, 0, size, time);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * @return index of the latest price dated at or before the time, or -1
+     */
+    int indexAtOrBefore(long time) {
+        int index = Arrays.binarySearch(times, 0, size, time);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * @return index of the first price dated at or after the time, size() if there is none
+     */
+    int indexFrom(long time) {
+        int index = Arrays.binarySearch(times, 0, size, time);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Remove the prices dated strictly before the cut off.
+     * @return the number of prices removed
+     */
+    int expire(long cutOffTime) {
+        int expired = indexFrom(cutOffTime);
+        if (expired > 0) {
+            shift(expired, 0, size - expired);
+            size -= expired;
+            if (size == 0) {
+                latest = null;
+            }
+        }
+        return expired;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long time(int index) {
+        return times[index];
+    }
+
+    int assetClass(int index) {
+        return assetClasses[index];
+    }
+
+    int market(int index) {
+        return markets[index];
+    }
+
+    long bid(int index) {
+        return bids[index];
+    }
+
+    byte bidScale(int index) {
+        return bidScales[index];
+    }
+
+    long ask(int index) {
+        return asks[index];
+    }
+
+    byte askScale(int index) {
+        return askScales[index];
+    }
+
+    private void set(int index, long time, int assetClass, int market, long bid, byte bidScale, long ask, byte askScale) {
+        times[index] = time;
+        assetClasses[index] = assetClass;
+        markets[index] = market;
+        bids[index] = bid;
+        bidScales[index] = bidScale;
+        asks[index] = ask;
+        askScales[index] = askScale;
+    }
+
+    private void shift(int from, int to, int length) {
+        System.arraycopy(times, from, times, to, length);
+        System.arraycopy(assetClasses, from, assetClasses, to, length);
+        System.arraycopy(markets, from, markets, to, length);
+        System.arraycopy(bids, from, bids, to, length);
+        System.arraycopy(bidScales, from, bidScales, to, length);
+        System.arraycopy(asks, from, asks, to, length);
+        System.arraycopy(askScales, from, askScales, to, length);
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        assetClasses = Arrays.copyOf(assetClasses, capacity);
+        markets = Arrays.copyOf(markets, capacity);
+        bids = Arrays.copyOf(bids, capacity);
+        bidScales = Arrays.copyOf(bidScales, capacity);
+        asks = Arrays.copyOf(asks, capacity);
+        askScales = Arrays.copyOf(askScales, capacity);
+    }
+}
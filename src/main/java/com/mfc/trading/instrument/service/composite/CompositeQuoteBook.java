@@ -0,0 +1,138 @@
+package com.mfc.trading.instrument.service.composite;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Composite quotes of every instrument, maintained from the latest price of each (vendor, instrument)
+ * series. Writers update the book of an instrument whenever one of its latest prices changes, which
+ * consolidates the few vendor prices of the instrument into an immutable {@link CompositeQuote}. A read
+ * is a map lookup returning that quote, the book is only rebuilt on read once a price taking part in it
+ * has gone stale.
+ */
+public final class CompositeQuoteBook {
+
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+    private final CompositeQuotePolicy policy;
+    private final LongSupplier clock;
+    private final ConcurrentMap<String, Book> books = new ConcurrentHashMap<>();
+
+    public CompositeQuoteBook(CompositeQuotePolicy policy) {
+        this(policy, System::currentTimeMillis);
+    }
+
+    CompositeQuoteBook(CompositeQuotePolicy policy, LongSupplier clock) {
+        this.policy = policy;
+        this.clock = clock;
+    }
+
+    /**
+     * Record the new latest price of a series.
+     * @param price
+     */
+    public void update(Price price) {
+        books.compute(price.getInstrument(), (instrument, book) -> {
+            Map<String, Price> prices = book == null ? new HashMap<>() : new HashMap<>(book.prices);
+            prices.put(price.getVendor(), price);
+            return consolidate(instrument, prices);
+        });
+    }
+
+    /**
+     * Reset the latest price of a series after prices were removed from it.
+     * @param instrument
+     * @param vendor
+     * @param latest the new head of the series, or null if the series is now empty
+     */
+    public void reset(String instrument, String vendor, Price latest) {
+        books.computeIfPresent(instrument, (key, book) -> {
+            Map<String, Price> prices = new HashMap<>(book.prices);
+            if (latest == null) {
+                prices.remove(vendor);
+            } else {
+                prices.put(vendor, latest);
+            }
+            return prices.isEmpty() ? null : consolidate(key, prices);
+        });
+    }
+
+    /**
+     * @param instrumentId
+     * @return the composite quote of the instrument, or null if no vendor prices it
+     */
+    public CompositeQuote quote(String instrumentId) {
+        Book book = books.get(instrumentId);
+        if (book != null && book.staleAt <= clock.getAsLong()) {
+            book = books.computeIfPresent(instrumentId, (instrument, current) -> consolidate(instrument, current.prices));
+        }
+        return book == null ? null : book.quote;
+    }
+
+    private Book consolidate(String instrument, Map<String, Price> prices) {
+        long now = clock.getAsLong();
+        long staleAt = Long.MAX_VALUE;
+        Price bid = null;
+        Price ask = null;
+        Date asOfDate = null;
+        int vendorCount = 0;
+        for (Price price : prices.values()) {
+            long priceStaleAt = policy.staleAt(price);
+            if (priceStaleAt <= now) {
+                continue;
+            }
+            staleAt = Math.min(staleAt, priceStaleAt);
+            vendorCount++;
+            if (asOfDate == null || price.getAsOfDate().after(asOfDate)) {
+                asOfDate = price.getAsOfDate();
+            }
+            if (price.getBid() != null && (bid == null || better(price.getBid().compareTo(bid.getBid()), price, bid))) {
+                bid = price;
+            }
+            if (price.getAsk() != null && (ask == null || better(ask.getAsk().compareTo(price.getAsk()), price, ask))) {
+                ask = price;
+            }
+        }
+        BigDecimal bestBid = bid == null ? null : bid.getBid();
+        BigDecimal bestAsk = ask == null ? null : ask.getAsk();
+        //halving a decimal always terminates, no rounding needed
+        BigDecimal mid = bestBid == null || bestAsk == null ? null : bestBid.add(bestAsk).divide(TWO);
+        CompositeQuote quote = new CompositeQuote(instrument,
+                bestBid, bid == null ? null : bid.getVendor(),
+                bestAsk, ask == null ? null : ask.getVendor(),
+                mid, asOfDate, vendorCount);
+        return new Book(Collections.unmodifiableMap(prices), quote, staleAt);
+    }
+
+    /**
+     * @param comparison positive if the candidate price is better than the current one
+     */
+    private boolean better(int comparison, Price candidate, Price current) {
+        return comparison > 0 || comparison == 0 && policy.compareVendors(candidate.getVendor(), current.getVendor()) < 0;
+    }
+
+    /**
+     * Latest price per vendor of an instrument and the quote consolidated from them, never modified once built.
+     */
+    private static final class Book {
+        private final Map<String, Price> prices;
+        private final CompositeQuote quote;
+        //epoch millis at which the first fresh price goes stale
+        private final long staleAt;
+
+        private Book(Map<String, Price> prices, CompositeQuote quote, long staleAt) {
+            this.prices = prices;
+            this.quote = quote;
+            this.staleAt = staleAt;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.mfc.trading.instrument.service.composite;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How vendor prices are consolidated into a composite quote. Vendor priority breaks ties between vendors
+ * quoting the same best price, earlier vendors of the list win, unlisted vendors rank after the listed
+ * ones by name. A vendor price older than the staleness cutoff no longer takes part.
+ */
+public final class CompositeQuotePolicy {
+
+    //every vendor ranks by name and prices never go stale
+    public static final CompositeQuotePolicy DEFAULT = new CompositeQuotePolicy(Collections.emptyList(), Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+    private final Map<String, Integer> ranks = new HashMap<>();
+    private final long staleAfter;//in milliseconds
+
+    /**
+     * @param vendorPriority vendors in decreasing priority
+     * @param staleAfter age of a price from which it is stale
+     * @param unit
+     */
+    public CompositeQuotePolicy(List<String> vendorPriority, long staleAfter, TimeUnit unit) {
+        if (staleAfter <= 0) {
+            throw new IllegalArgumentException("Staleness cutoff must be positive: " + staleAfter);
+        }
+        for (String vendor : vendorPriority) {
+            ranks.putIfAbsent(vendor, ranks.size());
+        }
+        this.staleAfter = unit.toMillis(staleAfter);
+    }
+
+    /**
+     * @return negative if the first vendor has priority over the second, as a Comparator
+     */
+    int compareVendors(String first, String second) {
+        int rank = Integer.compare(rank(first), rank(second));
+        if (rank != 0 || first == null || second == null) {
+            return rank;
+        }
+        return first.compareTo(second);
+    }
+
+    /**
+     * @param price
+     * @return epoch millis from which the price is stale
+     */
+    long staleAt(Price price) {
+        long time = price.getAsOfDate().getTime();
+        return time > Long.MAX_VALUE - staleAfter ? Long.MAX_VALUE : time + staleAfter;
+    }
+
+    private int rank(String vendor) {
+        Integer rank = vendor == null ? null : ranks.get(vendor);
+        return rank == null ? ranks.size() : rank;
+    }
+}
@@ -0,0 +1,238 @@
+package com.mfc.trading.instrument.service.journal;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.ScaledDecimal;
+import com.mfc.trading.instrument.service.util.SymbolTable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * One day of the price journal, a memory mapped file of fixed 64 byte records. The first record is a
+ * header, then symbol records define the segment local ids used by the price records that follow them,
+ * so a segment can be replayed or deleted on its own.
+ *
+ * <pre>
+ * HEADER  type(1) pad(3) magic(4) version(4) pad(4) day(8)
+ * SYMBOL  type(1) pad(3) id(4) length(2, -1 for null) utf8 bytes(up to 54)
+ * PRICE   type(1) bidScale(1) askScale(1) pad(1) instrument(4) vendor(4) market(4) assetClass(4) pad(4)
+ *         time(8) bid(8) ask(8) pad(16)
+ * </pre>
+ * The type byte of a record is written last, a zero type marks the end of the journal, so a record
+ * torn by a crash before its commit is never replayed.
+ */
+final class JournalSegment {
+
+    static final int RECORD_SIZE = 64;
+    static final int MAX_SYMBOL_BYTES = RECORD_SIZE - 10;
+
+    private static final byte HEADER = 1;
+    private static final byte SYMBOL = 2;
+    private static final byte PRICE = 3;
+    private static final int MAGIC = 0x50524A4C;//PRJL
+    private static final int VERSION = 1;
+
+    final long day;
+    private final Path path;
+    private final FileChannel channel;
+    private final SymbolTable symbols = new SymbolTable(1024);
+    private MappedByteBuffer buffer;
+    private int position;
+
+    private JournalSegment(long day, Path path, FileChannel channel) {
+        this.day = day;
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Create a new, empty segment.
+     * @param day epoch day of the prices of the segment
+     * @param path
+     * @param size initial size of the mapping in bytes
+     * @return
+     * @throws IOException
+     */
+    static JournalSegment create(long day, Path path, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        JournalSegment segment = new JournalSegment(day, path, channel);
+        segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, roundToRecords(size));
+        segment.buffer.putInt(4, MAGIC);
+        segment.buffer.putInt(8, VERSION);
+        segment.buffer.putLong(16, day);
+        segment.buffer.put(0, HEADER);
+        segment.position = RECORD_SIZE;
+        return segment;
+    }
+
+    /**
+     * Open an existing segment, replaying its prices in journal order. The segment is left positioned
+     * after its last complete record, ready for appends.
+     * @param day
+     * @param path
+     * @param prices receives every price of the segment
+     * @return
+     * @throws IOException
+     */
+    static JournalSegment open(long day, Path path, Consumer<Price> prices) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        JournalSegment segment = new JournalSegment(day, path, channel);
+        segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, roundToRecords((int) channel.size()));
+        if (segment.buffer.get(0) != HEADER || segment.buffer.getInt(4) != MAGIC || segment.buffer.getInt(8) != VERSION) {
+            channel.close();
+            throw new IOException("Not a price journal segment: " + path);
+        }
+        segment.replay(prices);
+        return segment;
+    }
+
+    /**
+     * Append a price, defining its symbols first if the segment has not seen them yet. Not thread
+     * safe, the journal serialises appends.
+     * @param price
+     */
+    void append(Price price) {
+        int instrument = symbol(price.getInstrument());
+        int vendor = symbol(price.getVendor());
+        int market = symbol(price.getMarket());
+        int assetClass = symbol(price.getAssetClass());
+        int record = reserve();
+        buffer.put(record + 1, ScaledDecimal.scale(price.getBid()));
+        buffer.put(record + 2, ScaledDecimal.scale(price.getAsk()));
+        buffer.putInt(record + 4, instrument);
+        buffer.putInt(record + 8, vendor);
+        buffer.putInt(record + 12, market);
+        buffer.putInt(record + 16, assetClass);
+        buffer.putLong(record + 24, price.getAsOfDate().getTime());
+        buffer.putLong(record + 32, ScaledDecimal.unscaled(price.getBid()));
+        buffer.putLong(record + 40, ScaledDecimal.unscaled(price.getAsk()));
+        buffer.put(record, PRICE);
+    }
+
+    /**
+     * Flush the appended records to disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        channel.close();
+        path.toFile().delete();
+    }
+
+    /**
+     * Check a price can be journaled, so a bad price is rejected before anything is written.
+     * @param price
+     */
+    static void validate(Price price) {
+        ScaledDecimal.scale(price.getBid());
+        ScaledDecimal.unscaled(price.getBid());
+        ScaledDecimal.scale(price.getAsk());
+        ScaledDecimal.unscaled(price.getAsk());
+        validate(price.getInstrument());
+        validate(price.getVendor());
+        validate(price.getMarket());
+        validate(price.getAssetClass());
+    }
+
+    private static void validate(String symbol) {
+        if (symbol != null && symbol.getBytes(StandardCharsets.UTF_8).length > MAX_SYMBOL_BYTES) {
+            throw new IllegalArgumentException("Symbol longer than " + MAX_SYMBOL_BYTES + " bytes cannot be journaled: " + symbol);
+        }
+    }
+
+    private int symbol(String symbol) {
+        int id = symbols.find(symbol);
+        if (id != SymbolTable.UNKNOWN) {
+            return id;
+        }
+        id = symbols.intern(symbol);
+        int record = reserve();
+        buffer.putInt(record + 4, id);
+        if (symbol == null) {
+            buffer.putShort(record + 8, (short) -1);
+        } else {
+            byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort(record + 8, (short) bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                buffer.put(record + 10 + i, bytes[i]);
+            }
+        }
+        buffer.put(record, SYMBOL);
+        return id;
+    }
+
+    private void replay(Consumer<Price> prices) throws IOException {
+        position = RECORD_SIZE;
+        while (position < buffer.capacity()) {
+            int record = position;
+            byte type = buffer.get(record);
+            if (type == SYMBOL) {
+                int id = buffer.getInt(record + 4);
+                short length = buffer.getShort(record + 8);
+                String symbol = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = buffer.get(record + 10 + i);
+                    }
+                    symbol = new String(bytes, StandardCharsets.UTF_8);
+                }
+                //ids are handed out in journal order, so interning again must give the same id
+                if (symbols.intern(symbol) != id) {
+                    throw new IOException("Corrupt symbol record " + id + " at " + record + " in " + path);
+                }
+            } else if (type == PRICE) {
+                prices.accept(new Price(new Date(buffer.getLong(record + 24)),
+                        symbols.symbol(buffer.getInt(record + 16)),
+                        symbols.symbol(buffer.getInt(record + 4)),
+                        symbols.symbol(buffer.getInt(record + 8)),
+                        symbols.symbol(buffer.getInt(record + 12)),
+                        ScaledDecimal.decode(buffer.getLong(record + 32), buffer.get(record + 1)),
+                        ScaledDecimal.decode(buffer.getLong(record + 40), buffer.get(record + 2))));
+            } else {
+                //zero filled space after the last complete record
+                break;
+            }
+            position += RECORD_SIZE;
+        }
+    }
+
+    private int reserve() {
+        if (position + RECORD_SIZE > buffer.capacity()) {
+            grow();
+        }
+        int record = position;
+        position += RECORD_SIZE;
+        return record;
+    }
+
+    private void grow() {
+        if (buffer.capacity() > Integer.MAX_VALUE / 2) {
+            throw new IllegalStateException("Journal segment " + path + " is full");
+        }
+        try {
+            //flush the old mapping before the file is remapped larger
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) buffer.capacity() * 2);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to extend journal segment " + path, e);
+        }
+    }
+
+    private static int roundToRecords(int size) {
+        return Math.max(2, size / RECORD_SIZE) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,337 @@
+package com.mfc.trading.instrument.service.journal;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.metrics.TimedReadWriteLock;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.*;
+
+/**
+ * Persistent pricing service, every price added is appended to a {@link PriceJournal} before it is
+ * handed to the in memory service, and opening the service replays the journal into it. Queries are
+ * served by the in memory service alone. A resend of the latest price of its series is dropped before
+ * it reaches the journal, so a feed repeating its last tick does not grow the journal nor the replay.
+ */
+public class JournaledPricingService implements PricingService, StoreStatistics, AutoCloseable {
+
+    private static final int REPLAY_BATCH_SIZE = 64 * 1024;
+    //power of two
+    private static final int SERIES_LOCK_STRIPES = 64;
+
+    private final PricingService pricingService;
+    private final long maxCacheAge;//in number of days
+    //orders the journal and the service for the writers of a series, striped by vendor and instrument
+    private final Lock[] seriesLocks = new Lock[SERIES_LOCK_STRIPES];
+    //latest price journaled per vendor and instrument, read without a lock
+    private final ConcurrentMap<String, ConcurrentMap<String, Price>> latestByVendor = new ConcurrentHashMap<>();
+    private final LongAdder resentCount = new LongAdder();
+    private PriceJournal journal;
+
+    private JournaledPricingService(PricingService pricingService, long maxCacheAge) {
+        this.pricingService = pricingService;
+        this.maxCacheAge = maxCacheAge;
+        for (int i = 0; i < SERIES_LOCK_STRIPES; i++) {
+            seriesLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Open a journaled service with the default cache age, segment size and commit interval.
+     * @see #open(Path, PricingService, long, int, long)
+     */
+    public static JournaledPricingService open(Path directory, PricingService pricingService) throws IOException {
+        return open(directory, pricingService, DEFAULT_CACHE_AGE, DEFAULT_JOURNAL_SEGMENT_SIZE, DEFAULT_JOURNAL_COMMIT_IN_MIL_SEC);
+    }
+
+    /**
+     * Open the journal in the directory and rebuild the in memory service from it. Prices already
+     * expired are skipped, the others are loaded through {@link PricingService#addAll(Collection)} in
+     * large batches.
+     * @param directory
+     * @param pricingService empty in memory service, must use the same cache age
+     * @param maxCacheAge in number of days
+     * @param segmentSize initial size in bytes of a journal segment
+     * @param commitInterval group commit interval in milliseconds
+     * @return
+     * @throws IOException
+     */
+    public static JournaledPricingService open(Path directory, PricingService pricingService, long maxCacheAge, int segmentSize, long commitInterval) throws IOException {
+        JournaledPricingService service = new JournaledPricingService(pricingService, maxCacheAge);
+        long oldCacheTime = service.oldCacheTime();
+        List<Price> batch = new ArrayList<>(REPLAY_BATCH_SIZE);
+        service.journal = PriceJournal.open(directory, segmentSize, commitInterval, price -> {
+            if (price.getAsOfDate().getTime() >= oldCacheTime) {
+                service.updateLatest(price);
+                batch.add(price);
+                if (batch.size() == REPLAY_BATCH_SIZE) {
+                    pricingService.addAll(batch);
+                    batch.clear();
+                }
+            }
+        });
+        pricingService.addAll(batch);
+        return service;
+    }
+
+    /**
+     * Journal the price and add it to the in memory service under the lock of its series, so two writers
+     * correcting the same price are replayed in the order the service applied them. A resend of the
+     * latest price is only counted as a duplicate.
+     * @param price
+     */
+    @Override
+    public void add(Price price) {
+        if (isResentLatest(price)) {
+            resentCount.increment();
+            return;
+        }
+        Lock seriesLock = seriesLocks[stripeOf(price)];
+        try {
+            seriesLock.lock();
+            journal.append(price);
+            pricingService.add(price);
+            updateLatest(price);
+        } finally {
+            seriesLock.unlock();
+        }
+    }
+
+    /**
+     * Journal and add the batch under the locks of all its series, taken in stripe order. The resends of
+     * a latest price are left out of the batch.
+     * @param prices
+     */
+    @Override
+    public void addAll(Collection<Price> prices) {
+        List<Price> changed = new ArrayList<>(prices.size());
+        BitSet stripes = new BitSet(SERIES_LOCK_STRIPES);
+        for (Price price : prices) {
+            if (isResentLatest(price)) {
+                resentCount.increment();
+            } else {
+                changed.add(price);
+                stripes.set(stripeOf(price));
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        int locked = -1;
+        try {
+            for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+                seriesLocks[stripe].lock();
+                locked = stripe;
+            }
+            journal.appendAll(changed);
+            pricingService.addAll(changed);
+            for (Price price : changed) {
+                updateLatest(price);
+            }
+        } finally {
+            for (int stripe = locked; stripe >= 0; stripe = stripes.previousSetBit(stripe - 1)) {
+                seriesLocks[stripe].unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        return pricingService.getByInstrument(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        return pricingService.getByInstruments(instrumentIds, asOfDate);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        return pricingService.getByInstrumentsAsync(instrumentIds, asOfDate, executor);
+    }
+
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        return pricingService.getByVendor(vendor, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        return pricingService.getByInstrumentAsOf(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        return pricingService.getByVendorAsOf(vendor, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        return pricingService.getByInstrumentBetween(instrumentId, from, to);
+    }
+
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        return pricingService.getByVendorBetween(vendor, from, to);
+    }
+
+    @Override
+    public Set<Price> getAllPrices() {
+        return pricingService.getAllPrices();
+    }
+
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        return pricingService.query(query);
+    }
+
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        pricingService.forEach(query, visitor);
+    }
+
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        return pricingService.cursor(query);
+    }
+
+    /**
+     * Clean up the in memory service, forget the expired latest prices and delete the journal segments of
+     * the expired days.
+     * @return the number of prices the in memory service removed
+     */
+    @Override
+    public int cleanUp() {
+        int expired = pricingService.cleanUp();
+        long oldCacheTime = oldCacheTime();
+        for (ConcurrentMap<String, Price> latestPrices : latestByVendor.values()) {
+            latestPrices.values().removeIf(latest -> latest.getAsOfDate().getTime() < oldCacheTime);
+        }
+        journal.expire(oldCacheTime);
+        return expired;
+    }
+
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return pricingService.getCompositeQuote(instrumentId);
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return pricingService.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return pricingService.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return pricingService.subscribeToAll(listener);
+    }
+
+    /**
+     * The statistics of the in memory service, empty if it keeps none.
+     * @return
+     */
+    @Override
+    public Map<String, Integer> priceCountByVendor() {
+        return statistics().map(StoreStatistics::priceCountByVendor).orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByInstrument() {
+        return statistics().map(StoreStatistics::priceCountByInstrument).orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public long expiredCount() {
+        return statistics().map(StoreStatistics::expiredCount).orElse(0L);
+    }
+
+    /**
+     * @return the resends dropped before the journal, and the duplicates of the in memory service
+     */
+    @Override
+    public long duplicateCount() {
+        return resentCount.sum() + statistics().map(StoreStatistics::duplicateCount).orElse(0L);
+    }
+
+    @Override
+    public Optional<TimedReadWriteLock> storeLock() {
+        return statistics().flatMap(StoreStatistics::storeLock);
+    }
+
+    /**
+     * Force the prices added so far to disk without waiting for the next group commit.
+     */
+    public void commit() {
+        journal.commit();
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+
+    private Optional<StoreStatistics> statistics() {
+        return pricingService instanceof StoreStatistics ? Optional.of((StoreStatistics) pricingService) : Optional.empty();
+    }
+
+    /**
+     * Lock free check against the latest price journaled. A writer racing with a correction of the same
+     * price may drop its resend, as if it had been applied just before the correction.
+     */
+    private boolean isResentLatest(Price price) {
+        ConcurrentMap<String, Price> latestPrices = latestByVendor.get(price.getVendor());
+        return latestPrices != null && price.sameQuote(latestPrices.get(price.getInstrument()));
+    }
+
+    /**
+     * Keep the price if it is the latest of its series, same rule as the upsert of the in memory service.
+     * Must be invoked under the lock of the series, or while replaying.
+     */
+    private void updateLatest(Price price) {
+        ConcurrentMap<String, Price> latestPrices = latestByVendor.computeIfAbsent(price.getVendor(), vendor -> new ConcurrentHashMap<>());
+        Price current = latestPrices.get(price.getInstrument());
+        if (current == null || price.compareTo(current) <= 0) {
+            latestPrices.put(price.getInstrument(), price);
+        }
+    }
+
+    private static int stripeOf(Price price) {
+        int hash = 31 * Objects.hashCode(price.getVendor()) + Objects.hashCode(price.getInstrument());
+        return (hash ^ (hash >>> 16)) & (SERIES_LOCK_STRIPES - 1);
+    }
+
+    private long oldCacheTime() {
+        return System.currentTimeMillis() - maxCacheAge * DAY_IN_MIL_SEC;
+    }
+}
@@ -0,0 +1,186 @@
+package com.mfc.trading.instrument.service.journal;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.*;
+
+/**
+ * Append only journal of prices, one memory mapped segment per day of price date, so the segments
+ * expire a whole day at a time along with the prices in the service. Appends only write to the
+ * mappings, a background committer forces the written segments to disk every commit interval,
+ * grouping all the appends of the interval into one flush.
+ */
+public class PriceJournal implements AutoCloseable {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("prices-(-?\\d+)\\.journal");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final NavigableMap<Long, JournalSegment> segments = new TreeMap<>();
+    private final Set<JournalSegment> uncommitted = new HashSet<>();
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "price-journal-committer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private PriceJournal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Open the journal with the default segment size and commit interval, replaying it.
+     * @see #open(Path, int, long, Consumer)
+     */
+    public static PriceJournal open(Path directory, Consumer<Price> prices) throws IOException {
+        return open(directory, DEFAULT_JOURNAL_SEGMENT_SIZE, DEFAULT_JOURNAL_COMMIT_IN_MIL_SEC, prices);
+    }
+
+    /**
+     * Open the journal in the directory, creating it if needed, and replay every segment oldest day first.
+     * Replay reads the mapped segments sequentially, decoding the records straight into prices.
+     * @param directory
+     * @param segmentSize initial size in bytes of a new segment, segments grow when full
+     * @param commitInterval group commit interval in milliseconds
+     * @param prices receives every journaled price
+     * @return
+     * @throws IOException
+     */
+    public static PriceJournal open(Path directory, int segmentSize, long commitInterval, Consumer<Price> prices) throws IOException {
+        if (commitInterval <= 0) {
+            throw new IllegalArgumentException("Commit interval must be positive: " + commitInterval);
+        }
+        Files.createDirectories(directory);
+        PriceJournal journal = new PriceJournal(directory, segmentSize);
+        SortedMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "prices-*.journal")) {
+            for (Path path : stream) {
+                Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    files.put(Long.parseLong(matcher.group(1)), path);
+                }
+            }
+        }
+        try {
+            for (Map.Entry<Long, Path> file : files.entrySet()) {
+                journal.segments.put(file.getKey(), JournalSegment.open(file.getKey(), file.getValue(), prices));
+            }
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        journal.committer.scheduleWithFixedDelay(journal::commit, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+    /**
+     * Append a price to the segment of its day. The price is durable after the next commit.
+     * @param price
+     */
+    public void append(Price price) {
+        JournalSegment.validate(price);
+        synchronized (this) {
+            write(price);
+        }
+    }
+
+    /**
+     * Append a batch of prices. The whole batch is validated first, so a bad price leaves the journal
+     * untouched.
+     * @param prices
+     */
+    public void appendAll(Collection<Price> prices) {
+        for (Price price : prices) {
+            JournalSegment.validate(price);
+        }
+        synchronized (this) {
+            for (Price price : prices) {
+                write(price);
+            }
+        }
+    }
+
+    /**
+     * Force every segment written since the last commit to disk. Called by the background committer,
+     * callers that need a batch durable straight away, e.g. after loading a vendor file, may call it too.
+     */
+    public void commit() {
+        List<JournalSegment> written;
+        synchronized (this) {
+            if (uncommitted.isEmpty()) {
+                return;
+            }
+            written = new ArrayList<>(uncommitted);
+            uncommitted.clear();
+        }
+        //forced outside the lock, appends carry on while the pages are flushed
+        for (JournalSegment segment : written) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Delete the segments of the days entirely before the cut off.
+     * @param cutOffTime epoch millis, the same cut off the service expires its prices at
+     */
+    public synchronized void expire(long cutOffTime) {
+        NavigableMap<Long, JournalSegment> expired = segments.headMap(Math.floorDiv(cutOffTime, DAY_IN_MIL_SEC), false);
+        for (JournalSegment segment : expired.values()) {
+            uncommitted.remove(segment);
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to delete journal segment of day " + segment.day, e);
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * Commit and close every segment and stop the committer.
+     */
+    @Override
+    public void close() {
+        committer.shutdown();
+        commit();
+        synchronized (this) {
+            for (JournalSegment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to close journal segment of day " + segment.day, e);
+                }
+            }
+            segments.clear();
+        }
+    }
+
+    private void write(Price price) {
+        long day = Math.floorDiv(price.getAsOfDate().getTime(), DAY_IN_MIL_SEC);
+        JournalSegment segment = segments.get(day);
+        if (segment == null) {
+            try {
+                segment = JournalSegment.create(day, directory.resolve("prices-" + day + ".journal"), segmentSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to create journal segment of day " + day, e);
+            }
+            segments.put(day, segment);
+        }
+        segment.append(price);
+        uncommitted.add(segment);
+    }
+}
@@ -0,0 +1,514 @@
+package com.mfc.trading.instrument.service.memory;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.composite.CompositeQuoteBook;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.metrics.TimedReadWriteLock;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.query.SeriesIndex;
+import com.mfc.trading.instrument.service.snapshot.PriceSnapshotReader;
+import com.mfc.trading.instrument.service.snapshot.PriceSnapshotWriter;
+import com.mfc.trading.instrument.service.snapshot.Snapshottable;
+import com.mfc.trading.instrument.service.stream.PriceDispatcher;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+import com.mfc.trading.instrument.service.util.BasketLookup;
+import com.mfc.trading.instrument.service.util.Upsert;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+/**
+ * Lock free alternative to {@link PricingServiceImpl}. Readers never block and writers only contend
+ * when they update the same (vendor, instrument) series.
+ */
+public class ConcurrentPricingServiceImpl implements PricingService, Snapshottable, StoreStatistics {
+
+    private final long maxCacheAge;//in number of days
+
+    public ConcurrentPricingServiceImpl() {
+        this(DEFAULT_CACHE_AGE);
+    }
+
+    public ConcurrentPricingServiceImpl(long maxCacheAge) {
+        this(maxCacheAge, CompositeQuotePolicy.DEFAULT);
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     */
+    public ConcurrentPricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy) {
+        this(maxCacheAge, compositeQuotePolicy, new PriceDispatcher());
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     * @param priceDispatcher publishes the new latest prices, may be shared with other stores
+     */
+    public ConcurrentPricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy, PriceDispatcher priceDispatcher) {
+        this.maxCacheAge = maxCacheAge;
+        this.compositeQuotes = new CompositeQuoteBook(compositeQuotePolicy);
+        this.priceDispatcher = priceDispatcher;
+    }
+
+    /*
+        same two level views as PricingServiceImpl, but every (vendor, instrument) series is a single
+        ConcurrentSkipListSet instance referenced from both views. A price is therefore published to the
+        by-vendor and by-instrument views with one insert, so the views can never disagree on the content
+        of a series. The series is created inside compute() of the vendor view, which is the only place a
+        series gets linked into, or unlinked from, the instrument view. Vendor groups are never removed, so
+        writers of a vendor do not have to serialise on its group.
+         */
+    private final ConcurrentMap<String, ConcurrentMap<String, NavigableSet<Price>>> pricesByVendorMap = new ConcurrentHashMap<>(5); //expects 5 vendors
+    private final ConcurrentMap<String, ConcurrentMap<String, NavigableSet<Price>>> pricesByInstrumentMap = new ConcurrentHashMap<>(1000); //expect 1000 instr as per requirement
+    //latest price per series, only updated while holding the series' compute() of the vendor view
+    private final LatestPriceIndex latestByVendor = new LatestPriceIndex(Price::getInstrument);
+    private final LatestPriceIndex latestByInstrument = new LatestPriceIndex(Price::getVendor);
+    //series holding prices of a market or asset class, updated with the series like the latest prices
+    private final SeriesIndex seriesByMarket = new SeriesIndex(Price::getMarket);
+    private final SeriesIndex seriesByAssetClass = new SeriesIndex(Price::getAssetClass);
+    private final ExpiryBuckets expiryBuckets = new ExpiryBuckets();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final LongAdder duplicateCount = new LongAdder();
+    //new latest prices are published from the series' compute(), so each series is published in order
+    private final PriceDispatcher priceDispatcher;
+    //best bid/ask and mid per instrument, updated with the latest prices
+    private final CompositeQuoteBook compositeQuotes;
+
+    /**
+     * Add new price update from vendors to the service. A price for a date already held replaces the
+     * stored one, unless it quotes the same bid and ask. A resend of the latest price of its series is
+     * dropped before entering compute(). A correction is a remove and an add of the skip list, so a
+     * concurrent reader of that date may briefly find no price for it.
+     * @param price
+     */
+    @Override
+    public void add(Price price) {
+        String vendor = price.getVendor();
+        String instrument = price.getInstrument();
+        if (price.sameQuote(latestByVendor.latest(vendor, instrument))) {
+            duplicateCount.increment();
+            return;
+        }
+        pricesByVendorMap
+                .computeIfAbsent(vendor, key -> new ConcurrentHashMap<>())
+                .compute(instrument, (key, series) -> {
+                    if (series == null) {
+                        series = linkSeries(vendor, instrument, new ConcurrentSkipListSet<>());
+                    }
+                    if (PriceSeries.upsert(series, price) == Upsert.DUPLICATE) {
+                        duplicateCount.increment();
+                    } else {
+                        seriesByMarket.record(price);
+                        seriesByAssetClass.record(price);
+                        boolean latest = latestByVendor.update(vendor, price);
+                        latestByInstrument.update(instrument, price);
+                        if (latest) {
+                            compositeQuotes.update(price);
+                            priceDispatcher.publish(price);
+                        }
+                    }
+                    return series;
+                });
+        expiryBuckets.record(price);
+    }
+
+    /**
+     * Add a batch of prices, grouped and sorted by series up front so each series is updated in one
+     * step. Lock free like add, so the batch becomes visible series by series rather than at once.
+     * Resends of the latest prices are dropped before grouping.
+     * @param prices
+     */
+    @Override
+    public void addAll(Collection<Price> prices) {
+        List<Price> changed = new ArrayList<>(prices.size());
+        for (Price price : prices) {
+            if (price.sameQuote(latestByVendor.latest(price.getVendor(), price.getInstrument()))) {
+                duplicateCount.increment();
+            } else {
+                changed.add(price);
+            }
+        }
+        PriceSeries.groupByVendorAndInstrument(changed).forEach((vendor, byInstrument) ->
+                byInstrument.forEach((instrument, group) -> addSeries(vendor, instrument, group)));
+    }
+
+    /**
+     * Stream a snapshot of the store to the channel series by series. Lock free, so each series is
+     * consistent on its own but prices added while the snapshot is written may or may not be included.
+     * @param channel
+     * @throws IOException
+     */
+    @Override
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        PriceSnapshotWriter writer = new PriceSnapshotWriter(channel);
+        for (Map.Entry<String, ConcurrentMap<String, NavigableSet<Price>>> byVendor : pricesByVendorMap.entrySet()) {
+            for (Map.Entry<String, NavigableSet<Price>> series : byVendor.getValue().entrySet()) {
+                writer.writeSeries(byVendor.getKey(), series.getKey(), series.getValue());
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Load a snapshot, each series block is added to its series as it is read.
+     * @param channel
+     * @throws IOException
+     */
+    @Override
+    public void restoreSnapshot(ReadableByteChannel channel) throws IOException {
+        new PriceSnapshotReader(channel).read(this::addSeries);
+    }
+
+    /**
+     * Method returns latest of prices for a given instrumentID, if a date is specified, then
+     * it returns set of prices based on the date  and the instrument specified. If no prices found
+     * for the given date, an empty set will be returned. The latest prices are returned as an
+     * immutable set, shared by the readers until the next write.
+     * @param instrumentId
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        if (asOfDate == null) {
+            return latestByInstrument.latest(instrumentId);
+        } else {
+            return getPricesByGroupNameWithDate(instrumentId, asOfDate, pricesByInstrumentMap);
+        }
+    }
+
+    /**
+     * Method returns the prices matching a query combining vendor, instrument, market, asset class and
+     * dates. The planner intersects the view and secondary indexes of the predicates set, so only the
+     * matching series are visited. Lock free, each series is read as of one point in time.
+     * @param query
+     * @return
+     */
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        return PriceSeries.query(query, pricesByVendorMap, pricesByInstrumentMap, seriesByMarket, seriesByAssetClass);
+    }
+
+    /**
+     * Method visits the prices matching a query without collecting them. Lock free, each series is walked
+     * in place while writers keep adding to it, so a price added during the visit may or may not be seen.
+     * @param query
+     * @param visitor
+     */
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        PriceSeries.forEach(query, pricesByVendorMap, pricesByInstrumentMap, seriesByMarket, seriesByAssetClass, visitor);
+    }
+
+    /**
+     * Method returns a cursor over the prices matching a query. Lock free, the cursor holds nothing and
+     * walks the skip lists as it advances, with the weak consistency of their iterators rather than a
+     * snapshot. Use forEach or query on the locked store where a large read must be one snapshot.
+     * @param query
+     * @return
+     */
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        return PriceSeries.cursor(query, pricesByVendorMap, pricesByInstrumentMap, seriesByMarket, seriesByAssetClass, null);
+    }
+
+    /**
+     * Method returns the prices of a basket of instruments, latest or dated like getByInstrument, looked
+     * up in parallel on the default executor. The store takes no lock, so each series is read as of one
+     * point in time but a write may land in between two instruments of the basket. Use the locked
+     * store where the basket must be one snapshot. The latest prices are immutable sets.
+     * @param instrumentIds
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        return getByInstruments(instrumentIds, asOfDate, BasketLookup.defaultExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getByInstruments(instrumentIds, asOfDate, executor), executor);
+    }
+
+    private Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        return BasketLookup.resolve(instrumentIds, instrumentId -> asOfDate == null
+                ? latestByInstrument.latest(instrumentId)
+                : getPricesByGroupNameWithDate(instrumentId, asOfDate, pricesByInstrumentMap), executor);
+    }
+
+    /**
+     * Method returns latest of prices for a given vendor, if a date is specified, then
+     * it returns set of prices based on the date  and the vendor specified. If no prices found
+     * for the given date, an empty set will be returned. The latest prices are returned as an
+     * immutable set, shared by the readers until the next write.
+     * @param vendor
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        if (asOfDate == null) {
+            return latestByVendor.latest(vendor);
+        } else {
+            return getPricesByGroupNameWithDate(vendor, asOfDate, pricesByVendorMap);
+        }
+    }
+
+    /**
+     * Method returns, for each vendor of the instrument, the latest price dated at or before the
+     * given date. Used for EOD marking when a vendor did not price on the date itself.
+     * @param instrumentId
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        return PriceSeries.seek(pricesByInstrumentMap.get(instrumentId), series -> PriceSeries.latestAtOrBefore(series, asOfDate));
+    }
+
+    /**
+     * Method returns, for each instrument of the vendor, the latest price dated at or before the
+     * given date.
+     * @param vendor
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        return PriceSeries.seek(pricesByVendorMap.get(vendor), series -> PriceSeries.latestAtOrBefore(series, asOfDate));
+    }
+
+    /**
+     * Method returns all the prices of the instrument dated from (inclusive) up to to (exclusive).
+     * @param instrumentId
+     * @param from
+     * @param to
+     * @return
+     */
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        return PriceSeries.range(pricesByInstrumentMap.get(instrumentId), from, to);
+    }
+
+    /**
+     * Method returns all the prices of the vendor dated from (inclusive) up to to (exclusive).
+     * @param vendor
+     * @param from
+     * @param to
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        return PriceSeries.range(pricesByVendorMap.get(vendor), from, to);
+    }
+
+    /**
+     * Method return all the stored in the map, as a copy. forEach and cursor of PriceQuery.all() read
+     * the store in place instead.
+     * @return Set<Price>
+     */
+    @Override
+    public Set<Price> getAllPrices() {
+        return pricesByVendorMap
+                .values()
+                .stream()
+                .flatMap(p -> p
+                        .values()
+                        .stream()
+                        .flatMap(pr -> pr.stream())
+                ).collect(Collectors.toSet());
+    }
+
+    /**
+     * Clean up expired prices based on current system time. Only the series recorded in the expired day
+     * buckets are trimmed, each one in place, so readers keep running while the expired tail of a series
+     * is removed. Series left empty are unlinked from both views.
+     * @return the number of prices removed
+     */
+    @Override
+    public int cleanUp() {
+        Date oldCacheDate = new Date(System.currentTimeMillis() - maxCacheAge * DAY_IN_MIL_SEC);
+        return expiryBuckets.expire(oldCacheDate.getTime(), (vendor, instrument) -> expireSeries(vendor, instrument, oldCacheDate));
+    }
+
+    /**
+     * Composite quote of the instrument across its vendors, a lookup of the quote consolidated when its
+     * latest prices were added.
+     * @param instrumentId
+     * @return the quote, or null if no vendor prices the instrument
+     */
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return compositeQuotes.quote(instrumentId);
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return priceDispatcher.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return priceDispatcher.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return priceDispatcher.subscribeToAll(listener);
+    }
+
+    /**
+     * Walks every series, the size of a skip list set is not constant time.
+     * @return
+     */
+    @Override
+    public Map<String, Integer> priceCountByVendor() {
+        return PriceSeries.countByGroup(pricesByVendorMap);
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByInstrument() {
+        return PriceSeries.countByGroup(pricesByInstrumentMap);
+    }
+
+    @Override
+    public long expiredCount() {
+        return expiredCount.get();
+    }
+
+    @Override
+    public long duplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    @Override
+    public Optional<TimedReadWriteLock> storeLock() {
+        return Optional.empty();
+    }
+
+    /**
+     * Add the prices of one series in a single compute() of the vendor view.
+     * @param vendor
+     * @param instrument
+     * @param group prices of the series sorted by date
+     */
+    private void addSeries(String vendor, String instrument, SortedSet<Price> group) {
+        pricesByVendorMap
+                .computeIfAbsent(vendor, key -> new ConcurrentHashMap<>())
+                .compute(instrument, (key, series) -> {
+                    if (series == null) {
+                        series = linkSeries(vendor, instrument, new ConcurrentSkipListSet<>(group));
+                    } else {
+                        for (Price price : group) {
+                            if (PriceSeries.upsert(series, price) == Upsert.DUPLICATE) {
+                                duplicateCount.increment();
+                            }
+                        }
+                    }
+                    for (Price price : group) {
+                        seriesByMarket.record(price);
+                        seriesByAssetClass.record(price);
+                    }
+                    Price first = series.first();
+                    boolean latest = latestByVendor.update(vendor, first);
+                    latestByInstrument.update(instrument, first);
+                    if (latest) {
+                        compositeQuotes.update(first);
+                        priceDispatcher.publish(first);
+                    }
+                    return series;
+                });
+        expiryBuckets.recordAll(vendor, instrument, group);
+    }
+
+    /**
+     * Link a new series into the instrument view. Must be invoked from compute() of the vendor
+     * view, the instrument group is updated under its own compute() so an empty group being removed by
+     * cleanUp cannot swallow the new series.
+     * @param vendor
+     * @param instrument
+     * @param series
+     * @return the series
+     */
+    private NavigableSet<Price> linkSeries(String vendor, String instrument, NavigableSet<Price> series) {
+        pricesByInstrumentMap.compute(instrument, (key, group) -> {
+            if (group == null) {
+                group = new ConcurrentHashMap<>();
+            }
+            group.put(vendor, series);
+            return group;
+        });
+        return series;
+    }
+
+    /**
+     * Trim a series under its compute() of the vendor view, so neither the latest index nor the unlinking
+     * of an empty series can race with add.
+     * @param vendor
+     * @param instrument
+     * @param oldCacheDate
+     */
+    private int expireSeries(String vendor, String instrument, Date oldCacheDate) {
+        ConcurrentMap<String, NavigableSet<Price>> byInstrument = pricesByVendorMap.get(vendor);
+        if (byInstrument == null) {
+            return 0;
+        }
+        int[] removed = new int[1];
+        byInstrument.computeIfPresent(instrument, (key, series) -> {
+            int expired = PriceSeries.expire(series, oldCacheDate);
+            if (expired == 0) {
+                return series;
+            }
+            removed[0] = expired;
+            expiredCount.addAndGet(expired);
+            Price latest = series.isEmpty() ? null : series.first();
+            latestByVendor.reset(vendor, instrument, latest);
+            latestByInstrument.reset(instrument, vendor, latest);
+            compositeQuotes.reset(instrument, vendor, latest);
+            seriesByMarket.retain(vendor, instrument, series);
+            seriesByAssetClass.retain(vendor, instrument, series);
+            if (latest != null) {
+                return series;
+            }
+            pricesByInstrumentMap.computeIfPresent(instrument, (k, group) -> {
+                group.remove(vendor, series);
+                return group.isEmpty() ? null : group;
+            });
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * a common method to get prices by instrument or by vendor from the price view for a specified date
+     * @param groupName
+     * @param asOfDate
+     * @param priceView
+     * @return
+     */
+    private Set<Price> getPricesByGroupNameWithDate(String groupName, Date asOfDate, ConcurrentMap<String, ConcurrentMap<String, NavigableSet<Price>>> priceView) {
+        return PriceSeries.seek(priceView.get(groupName), series -> PriceSeries.exact(series, asOfDate));
+    }
+}
@@ -0,0 +1,96 @@
+package com.mfc.trading.instrument.service.memory;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.ToIntBiFunction;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+
+/**
+ * Day buckets of the series holding prices of that day (day -> vendor -> instruments). Expiry only visits
+ * the series recorded in the expired buckets instead of scanning the whole store, and the buckets
+ * themselves are dropped a whole day at a time. Shared with the compact store.
+ */
+public final class ExpiryBuckets {
+
+    private final ConcurrentNavigableMap<Long, ConcurrentMap<String, Set<String>>> seriesByDay = new ConcurrentSkipListMap<>();
+
+    /**
+     * Record the series of a price in the bucket of its day. Must be called after the price is
+     * inserted into the series, so a concurrent expiry either sees the bucket or leaves a new one behind.
+     * @param price
+     */
+    public void record(Price price) {
+        seriesByDay
+                .computeIfAbsent(dayOf(price.getAsOfDate().getTime()), day -> new ConcurrentHashMap<>())
+                .computeIfAbsent(price.getVendor(), vendor -> ConcurrentHashMap.newKeySet())
+                .add(price.getInstrument());
+    }
+
+    /**
+     * Record the series of a group of prices, once per distinct day. Same contract as {@link #record(Price)}.
+     * @param vendor
+     * @param instrument
+     * @param prices prices of the series, sorted by date
+     */
+    void recordAll(String vendor, String instrument, SortedSet<Price> prices) {
+        long recordedDay = Long.MIN_VALUE;
+        for (Price price : prices) {
+            long day = dayOf(price.getAsOfDate().getTime());
+            if (day != recordedDay) {
+                seriesByDay
+                        .computeIfAbsent(day, key -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(vendor, key -> ConcurrentHashMap.newKeySet())
+                        .add(instrument);
+                recordedDay = day;
+            }
+        }
+    }
+
+    /**
+     * Drop every bucket older than the day of the cut off and hand each (vendor, instrument) series that
+     * may hold prices before the cut off to the expiry action. The bucket of the cut off day is kept,
+     * as it still holds the prices dated at or after the cut off.
+     * @param cutOffTime epoch millis, prices strictly before it are expired
+     * @param expireSeries receives (vendor, instrument) of each series to trim, possibly more than once,
+     *                     and returns the number of prices it removed
+     * @return the number of prices removed
+     */
+    public int expire(long cutOffTime, ToIntBiFunction<String, String> expireSeries) {
+        long cutOffDay = dayOf(cutOffTime);
+        int expired = 0;
+        Map.Entry<Long, ConcurrentMap<String, Set<String>>> bucket;
+        while ((bucket = seriesByDay.firstEntry()) != null && bucket.getKey() < cutOffDay) {
+            //remove first, prices added to this day afterwards open a new bucket for the next run
+            if (seriesByDay.remove(bucket.getKey(), bucket.getValue())) {
+                expired += expireEachSeries(bucket.getValue(), expireSeries);
+            }
+        }
+        ConcurrentMap<String, Set<String>> cutOffBucket = seriesByDay.get(cutOffDay);
+        if (cutOffBucket != null) {
+            expired += expireEachSeries(cutOffBucket, expireSeries);
+        }
+        return expired;
+    }
+
+    private static int expireEachSeries(Map<String, Set<String>> bucket, ToIntBiFunction<String, String> expireSeries) {
+        int expired = 0;
+        for (Map.Entry<String, Set<String>> vendor : bucket.entrySet()) {
+            for (String instrument : vendor.getValue()) {
+                expired += expireSeries.applyAsInt(vendor.getKey(), instrument);
+            }
+        }
+        return expired;
+    }
+
+    static long dayOf(long time) {
+        return Math.floorDiv(time, DAY_IN_MIL_SEC);
+    }
+}
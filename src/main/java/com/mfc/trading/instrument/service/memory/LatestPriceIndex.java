@@ -0,0 +1,206 @@
+package com.mfc.trading.instrument.service.memory;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Maintains the latest price of every series of a price view, grouped the same way as the view
+ * (vendor -> instrument or instrument -> vendor). The index is updated incrementally by the writers,
+ * so a latest price read is a single map lookup. The latest prices of a group are read as an immutable
+ * set, copied once per change of the group and then shared by the readers. A batch is staged aside and
+ * published at once, the readers retry while a batch is being published so they see none or all of it.
+ */
+final class LatestPriceIndex {
+
+    private final Function<Price, String> memberKey;
+    private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<>();
+    //odd while a batch is being published
+    private volatile long batchSequence;
+
+    /**
+     * @param memberKey extracts the second level key of the view from a price, i.e. the vendor for
+     *                  a by-instrument view and the instrument for a by-vendor view
+     */
+    LatestPriceIndex(Function<Price, String> memberKey) {
+        this.memberKey = memberKey;
+    }
+
+    /**
+     * Record a price added to the series. The stored price is replaced by a later price, or by a
+     * correction of its date quoting another bid or ask, matching the upsert of the series.
+     * Callers must serialise updates of the same series.
+     * @param group
+     * @param price
+     * @return true if the price became the latest of its series
+     */
+    boolean update(String group, Price price) {
+        Group latestPrices = groups.computeIfAbsent(group, key -> new Group());
+        String member = memberKey.apply(price);
+        if (!isLater(price, latestPrices.prices.get(member))) {
+            return false;
+        }
+        latestPrices.prices.put(member, price);
+        latestPrices.version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return an empty batch, its updates are not visible until it is published
+     */
+    Batch batch() {
+        return new Batch();
+    }
+
+    private boolean isLater(Price price, Price current) {
+        return current == null || (price.compareTo(current) <= 0 && !price.sameQuote(current));
+    }
+
+    /**
+     * Reset the latest price of a series after prices were removed from it.
+     * @param group
+     * @param member
+     * @param latest the new head of the series, or null if the series is now empty
+     */
+    void reset(String group, String member, Price latest) {
+        Group latestPrices = groups.get(group);
+        if (latestPrices == null) {
+            return;
+        }
+        if (latest == null) {
+            latestPrices.prices.remove(member);
+        } else {
+            latestPrices.prices.put(member, latest);
+        }
+        latestPrices.version.incrementAndGet();
+    }
+
+    /**
+     * Lock free lookup of the latest price of one series.
+     * @param group
+     * @param member
+     * @return the latest price, or null
+     */
+    Price latest(String group, String member) {
+        for (;;) {
+            long sequence = batchSequence;
+            if ((sequence & 1) == 0) {
+                Group latestPrices = groups.get(group);
+                Price latest = latestPrices == null ? null : latestPrices.prices.get(member);
+                if (batchSequence == sequence) {
+                    return latest;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Returns the latest prices of the group as an immutable set, later updates do not change it. The set
+     * is shared until the group changes, the first read after a change copies the group. Lock free, retried
+     * while a batch is being published.
+     * @param group
+     * @return
+     */
+    Set<Price> latest(String group) {
+        for (;;) {
+            long sequence = batchSequence;
+            if ((sequence & 1) == 0) {
+                Group latestPrices = groups.get(group);
+                Set<Price> latest = latestPrices == null ? Collections.emptySet() : latestPrices.snapshot();
+                if (batchSequence == sequence) {
+                    return latest;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * The latest prices of a batch, staged aside and then published in one step. Like update, callers must
+     * serialise the batch with the other updates of its series.
+     */
+    final class Batch {
+        private final Map<String, Map<String, Price>> staged = new HashMap<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Stage a price added to the series by the batch.
+         * @param group
+         * @param price
+         * @return true if the price becomes the latest of its series once the batch is published
+         */
+        boolean update(String group, Price price) {
+            Map<String, Price> stagedPrices = staged.computeIfAbsent(group, key -> new HashMap<>());
+            String member = memberKey.apply(price);
+            Price current = stagedPrices.get(member);
+            if (current == null) {
+                Group latestPrices = groups.get(group);
+                current = latestPrices == null ? null : latestPrices.prices.get(member);
+            }
+            if (!isLater(price, current)) {
+                return false;
+            }
+            stagedPrices.put(member, price);
+            return true;
+        }
+
+        /**
+         * Make the staged prices visible, each changed group gets one version bump.
+         */
+        void publish() {
+            if (staged.isEmpty()) {
+                return;
+            }
+            batchSequence++;
+            try {
+                staged.forEach((group, stagedPrices) -> {
+                    if (!stagedPrices.isEmpty()) {
+                        Group latestPrices = groups.computeIfAbsent(group, key -> new Group());
+                        latestPrices.prices.putAll(stagedPrices);
+                        latestPrices.version.incrementAndGet();
+                    }
+                });
+            } finally {
+                batchSequence++;
+            }
+            staged.clear();
+        }
+    }
+
+    private static final class Group {
+        private final ConcurrentMap<String, Price> prices = new ConcurrentHashMap<>();
+        //incremented after every change of the prices
+        private final AtomicLong version = new AtomicLong();
+        private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, Collections.emptySet()));
+
+        private Set<Price> snapshot() {
+            long current = version.get();
+            Snapshot published = snapshot.get();
+            if (published.version == current) {
+                return published.prices;
+            }
+            //the copy sees at least the changes up to the version read before it
+            Snapshot copy = new Snapshot(current, Collections.unmodifiableSet(new HashSet<>(prices.values())));
+            snapshot.accumulateAndGet(copy, (previous, next) -> next.version > previous.version ? next : previous);
+            return copy.prices;
+        }
+    }
+
+    private static final class Snapshot {
+        private final long version;
+        private final Set<Price> prices;
+
+        private Snapshot(long version, Set<Price> prices) {
+            this.version = version;
+            this.prices = prices;
+        }
+    }
+}
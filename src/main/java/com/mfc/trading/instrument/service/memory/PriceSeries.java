@@ -0,0 +1,355 @@
+package com.mfc.trading.instrument.service.memory;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.query.QueryPlanner;
+import com.mfc.trading.instrument.service.query.SeriesIndex;
+import com.mfc.trading.instrument.service.query.SeriesSet;
+import com.mfc.trading.instrument.service.util.Upsert;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+/**
+ * Date seeks over a (vendor, instrument) price series. A series is ordered by {@link Price#compareTo(Price)},
+ * i.e. latest date first, so every lookup is a single O(log n) navigation from a probe price carrying
+ * only the date.
+ */
+final class PriceSeries {
+
+    private PriceSeries() {
+    }
+
+    /**
+     * @param series
+     * @param asOfDate
+     * @return the price of the series with exactly the given date, or null
+     */
+    static Price exact(NavigableSet<Price> series, Date asOfDate) {
+        Price price = latestAtOrBefore(series, asOfDate);
+        return price != null && price.getAsOfDate().compareTo(asOfDate) == 0 ? price : null;
+    }
+
+    /**
+     * @param series
+     * @param asOfDate
+     * @return the latest price of the series dated at or before the given date, or null
+     */
+    static Price latestAtOrBefore(NavigableSet<Price> series, Date asOfDate) {
+        //older prices sort after newer ones, so the ceiling is the latest price not after the date
+        return series.ceiling(probe(asOfDate));
+    }
+
+    /**
+     * @param series
+     * @param from inclusive
+     * @param to exclusive
+     * @return a view of the prices of the series dated within [from, to)
+     */
+    static NavigableSet<Price> between(NavigableSet<Price> series, Date from, Date to) {
+        return series.subSet(probe(to), false, probe(from), true);
+    }
+
+    /**
+     * Insert a price into a series. A price of a date already held replaces the stored price, unless it
+     * quotes the same bid and ask, so vendor corrections win and resends leave the series untouched.
+     * @param series
+     * @param price
+     * @return the outcome
+     */
+    static Upsert upsert(NavigableSet<Price> series, Price price) {
+        Price stored = series.ceiling(price);
+        if (stored == null || stored.compareTo(price) != 0) {
+            series.add(price);
+            return Upsert.ADDED;
+        }
+        if (stored.sameQuote(price)) {
+            return Upsert.DUPLICATE;
+        }
+        series.remove(stored);
+        series.add(price);
+        return Upsert.CORRECTED;
+    }
+
+    /**
+     * Group a batch of prices by vendor and instrument, each group sorted as a series. As with single adds,
+     * a later price of a date in the batch replaces an earlier one.
+     * @param prices
+     * @return vendor -> instrument -> prices
+     */
+    static Map<String, Map<String, TreeSet<Price>>> groupByVendorAndInstrument(Collection<Price> prices) {
+        return prices
+                .stream()
+                .collect(Collectors.groupingBy(Price::getVendor,
+                        Collectors.groupingBy(Price::getInstrument, Collector.of(TreeSet::new, PriceSeries::replace, (left, right) -> {
+                            right.forEach(price -> replace(left, price));
+                            return left;
+                        }))));
+    }
+
+    private static void replace(TreeSet<Price> series, Price price) {
+        series.remove(price);
+        series.add(price);
+    }
+
+    /**
+     * Apply a seek to every series of a group and collect the prices found.
+     * @param group series of a vendor or an instrument, may be null
+     * @param seek
+     * @return
+     */
+    static Set<Price> seek(Map<String, ? extends NavigableSet<Price>> group, Function<NavigableSet<Price>, Price> seek) {
+        if (group == null) {
+            return new HashSet<>();
+        }
+        return group
+                .values()
+                .stream()
+                .map(seek)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Collect the prices of every series of a group dated within [from, to).
+     * @param group series of a vendor or an instrument, may be null
+     * @param from inclusive
+     * @param to exclusive
+     * @return
+     */
+    static Set<Price> range(Map<String, ? extends NavigableSet<Price>> group, Date from, Date to) {
+        checkRange(from, to);
+        if (group == null) {
+            return new HashSet<>();
+        }
+        return group
+                .values()
+                .stream()
+                .flatMap(series -> between(series, from, to).stream())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Run a query over the series of a store, visiting only the series found by the query planner.
+     * @param query
+     * @param byVendor vendor -> instrument -> series
+     * @param byInstrument instrument -> vendor -> series
+     * @param byMarket
+     * @param byAssetClass
+     * @return the prices picked by the dates of the query and matching its predicates
+     */
+    static Set<Price> query(PriceQuery query,
+                            Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byVendor,
+                            Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byInstrument,
+                            SeriesIndex byMarket, SeriesIndex byAssetClass) {
+        Set<Price> prices = new HashSet<>();
+        forEach(query, byVendor, byInstrument, byMarket, byAssetClass, prices::add);
+        return prices;
+    }
+
+    /**
+     * Visit the prices of a query in place, nothing is collected.
+     * @param query
+     * @param byVendor vendor -> instrument -> series
+     * @param byInstrument instrument -> vendor -> series
+     * @param byMarket
+     * @param byAssetClass
+     * @param visitor receives the prices picked by the dates of the query and matching its predicates
+     */
+    static void forEach(PriceQuery query,
+                        Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byVendor,
+                        Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byInstrument,
+                        SeriesIndex byMarket, SeriesIndex byAssetClass,
+                        Consumer<? super Price> visitor) {
+        forEachSeries(query, byVendor, byInstrument, byMarket, byAssetClass, series -> select(series, query, visitor));
+    }
+
+    /**
+     * Find the series of a query for a cursor. Only the references to the series are collected, their
+     * prices are picked as the cursor reaches them.
+     * @param query
+     * @param byVendor vendor -> instrument -> series
+     * @param byInstrument instrument -> vendor -> series
+     * @param byMarket
+     * @param byAssetClass
+     * @param seriesLock taken to pick the prices of each series the cursor reaches, null for lock free series
+     * @return the cursor, holding nothing between two series
+     */
+    static PriceCursor cursor(PriceQuery query,
+                              Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byVendor,
+                              Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byInstrument,
+                              SeriesIndex byMarket, SeriesIndex byAssetClass,
+                              Lock seriesLock) {
+        List<NavigableSet<Price>> found = new ArrayList<>();
+        forEachSeries(query, byVendor, byInstrument, byMarket, byAssetClass, found::add);
+        return PriceCursor.of(new Selection(found.iterator(), query, seriesLock), () -> {
+        });
+    }
+
+    private static void forEachSeries(PriceQuery query,
+                                      Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byVendor,
+                                      Map<String, ? extends Map<String, ? extends NavigableSet<Price>>> byInstrument,
+                                      SeriesIndex byMarket, SeriesIndex byAssetClass,
+                                      Consumer<NavigableSet<Price>> visitor) {
+        QueryPlanner.forEachSeries(query,
+                vendor -> SeriesSet.ofVendor(vendor, byVendor.get(vendor)),
+                instrument -> SeriesSet.ofInstrument(instrument, byInstrument.get(instrument)),
+                byMarket::series,
+                byAssetClass::series,
+                SeriesSet.all(byVendor),
+                (vendor, instrument) -> {
+                    Map<String, ? extends NavigableSet<Price>> group = byVendor.get(vendor);
+                    NavigableSet<Price> series = group == null ? null : group.get(instrument);
+                    if (series != null) {
+                        visitor.accept(series);
+                    }
+                });
+    }
+
+    /**
+     * Pick the prices of a series selected by the dates of a query and matching its predicates.
+     * @param series
+     * @param query
+     * @param visitor receives the prices
+     */
+    static void select(NavigableSet<Price> series, PriceQuery query, Consumer<? super Price> visitor) {
+        Iterator<Price> selected = selection(series, query);
+        while (selected.hasNext()) {
+            Price price = selected.next();
+            if (query.matches(price)) {
+                visitor.accept(price);
+            }
+        }
+    }
+
+    /**
+     * @param series
+     * @param query
+     * @return the prices of the series selected by the dates of the query, a view for the ranges
+     */
+    private static Iterator<Price> selection(NavigableSet<Price> series, PriceQuery query) {
+        switch (query.getDates()) {
+            case LATEST:
+                //the iterator rather than first(), a lock free series may be emptied concurrently
+                Iterator<Price> latest = series.iterator();
+                return single(latest.hasNext() ? latest.next() : null);
+            case ON:
+                return single(exact(series, query.getTo()));
+            case AS_OF:
+                return single(latestAtOrBefore(series, query.getTo()));
+            case BETWEEN:
+                return between(series, query.getFrom(), query.getTo()).iterator();
+            default:
+                return series.iterator();
+        }
+    }
+
+    private static Iterator<Price> single(Price price) {
+        return price == null ? Collections.emptyIterator() : Collections.singleton(price).iterator();
+    }
+
+    /**
+     * Remove the prices of the series dated strictly before the cut off.
+     * @param series
+     * @param cutOffDate
+     * @return the number of prices removed
+     */
+    static int expire(NavigableSet<Price> series, Date cutOffDate) {
+        NavigableSet<Price> expired = series.tailSet(probe(cutOffDate), false);
+        int count = expired.size();
+        if (count > 0) {
+            expired.clear();
+        }
+        return count;
+    }
+
+    /**
+     * Count the prices of every group of a view.
+     * @param priceView
+     * @return group -> number of prices
+     */
+    static Map<String, Integer> countByGroup(Map<String, ? extends Map<String, ? extends Set<Price>>> priceView) {
+        Map<String, Integer> counts = new HashMap<>();
+        priceView.forEach((group, series) -> counts.put(group, series.values().stream().mapToInt(Set::size).sum()));
+        return counts;
+    }
+
+    static void checkRange(Date from, Date to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Both from and to dates are required");
+        }
+        if (from.after(to)) {
+            throw new IllegalArgumentException("from date " + from + " is after to date " + to);
+        }
+    }
+
+    static Price probe(Date asOfDate) {
+        return new Price(asOfDate, null, null, null, null, null, null);
+    }
+
+    /**
+     * The prices of a query picked series by series as the iteration reaches them. The prices of a locked
+     * series are copied under its lock, so the lock is only held for the read of one series.
+     */
+    private static final class Selection implements Iterator<Price> {
+        private final Iterator<NavigableSet<Price>> series;
+        private final PriceQuery query;
+        private final Lock seriesLock;
+        private Iterator<Price> selected = Collections.emptyIterator();
+        private Price next;
+
+        private Selection(Iterator<NavigableSet<Price>> series, PriceQuery query, Lock seriesLock) {
+            this.series = series;
+            this.query = query;
+            this.seriesLock = seriesLock;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (selected.hasNext()) {
+                    Price price = selected.next();
+                    if (query.matches(price)) {
+                        next = price;
+                    }
+                } else if (series.hasNext()) {
+                    selected = seriesLock == null ? selection(series.next(), query) : copyOfSelection(series.next());
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Price next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Price price = next;
+            next = null;
+            return price;
+        }
+
+        //copies only the prices of the series matching the query, under the lock
+        private Iterator<Price> copyOfSelection(NavigableSet<Price> prices) {
+            List<Price> copy = new ArrayList<>();
+            try {
+                seriesLock.lock();
+                selection(prices, query).forEachRemaining(price -> {
+                    if (query.matches(price)) {
+                        copy.add(price);
+                    }
+                });
+            } finally {
+                seriesLock.unlock();
+            }
+            return copy.iterator();
+        }
+    }
+}
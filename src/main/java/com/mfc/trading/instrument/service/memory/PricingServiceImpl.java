@@ -1,25 +1,85 @@
 package com.mfc.trading.instrument.service.memory;
 
+import com.mfc.trading.instrument.pojo.CompositeQuote;
 import com.mfc.trading.instrument.pojo.Price;
 import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.composite.CompositeQuoteBook;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.metrics.TimedReadWriteLock;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.query.SeriesIndex;
+import com.mfc.trading.instrument.service.snapshot.PriceSnapshotReader;
+import com.mfc.trading.instrument.service.snapshot.PriceSnapshotWriter;
+import com.mfc.trading.instrument.service.snapshot.Snapshottable;
+import com.mfc.trading.instrument.service.stream.PriceDispatcher;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+import com.mfc.trading.instrument.service.util.BasketLookup;
 import com.mfc.trading.instrument.service.util.PricingConstant;
+import com.mfc.trading.instrument.service.util.Upsert;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.mfc.trading.instrument.service.util.PricingConstant.*;
 import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
 
-public class PricingServiceImpl implements PricingService {
+public class PricingServiceImpl implements PricingService, Snapshottable, StoreStatistics {
 
-    private ReadWriteLock pricingLock           = new ReentrantReadWriteLock(true);
+    //fair, timed only when asked for, see storeLock
+    private final ReadWriteLock pricingLock;
     private final long maxCacheAge;//in number of days
 
     public PricingServiceImpl() {
-        maxCacheAge= DEFAULT_CACHE_AGE;
+        this(DEFAULT_CACHE_AGE);
+    }
+
+    public PricingServiceImpl(long maxCacheAge) {
+        this(maxCacheAge, CompositeQuotePolicy.DEFAULT);
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     */
+    public PricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy) {
+        this(maxCacheAge, compositeQuotePolicy, new PriceDispatcher());
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     * @param priceDispatcher publishes the new latest prices, may be shared with other stores
+     */
+    public PricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy, PriceDispatcher priceDispatcher) {
+        this(maxCacheAge, compositeQuotePolicy, priceDispatcher, false);
+    }
+
+    /**
+     * @param maxCacheAge in number of days
+     * @param compositeQuotePolicy vendor priority and staleness cutoff of the composite quotes
+     * @param priceDispatcher publishes the new latest prices, may be shared with other stores
+     * @param timedLock whether to record the wait and hold times of the store lock, for the metrics
+     *                  decorator. Off by default, it costs two nanoTime calls per lock operation
+     */
+    public PricingServiceImpl(long maxCacheAge, CompositeQuotePolicy compositeQuotePolicy, PriceDispatcher priceDispatcher, boolean timedLock) {
+        this.pricingLock = timedLock ? new TimedReadWriteLock(true) : new ReentrantReadWriteLock(true);
+        this.maxCacheAge = maxCacheAge;
+        this.compositeQuotes = new CompositeQuoteBook(compositeQuotePolicy);
+        this.priceDispatcher = priceDispatcher;
     }
 
     /*
@@ -31,76 +91,283 @@ public class PricingServiceImpl implements PricingService {
          */
     private Map<String,Map<String, TreeSet<Price>>> pricesByVendorMap = new HashMap<>(5); //expects 5 vendors
     private Map<String,Map<String, TreeSet<Price>>> pricesByInstrumentMap = new HashMap<>(1000); //expect 1000 instr as per requirement
+    /*
+        latest price per series for each view, maintained on add/cleanUp so the latest price reads
+        neither walk the TreeSets nor take the read lock.
+         */
+    private final LatestPriceIndex latestByVendor = new LatestPriceIndex(Price::getInstrument);
+    private final LatestPriceIndex latestByInstrument = new LatestPriceIndex(Price::getVendor);
+    //series holding prices of a market or asset class, so a query only visits the matching series
+    private final SeriesIndex seriesByMarket = new SeriesIndex(Price::getMarket);
+    private final SeriesIndex seriesByAssetClass = new SeriesIndex(Price::getAssetClass);
+    //series holding prices of each day, so cleanUp only visits the series of the expired days
+    private final ExpiryBuckets expiryBuckets = new ExpiryBuckets();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final LongAdder duplicateCount = new LongAdder();
+    //new latest prices are published from the write lock, so each series is published in order
+    private final PriceDispatcher priceDispatcher;
+    //best bid/ask and mid per instrument, updated with the latest prices
+    private final CompositeQuoteBook compositeQuotes;
 
     /**
-     * Add new price update from vendors to the service
+     * Add new price update from vendors to the service. A price for a date already held replaces the
+     * stored one, unless it quotes the same bid and ask. A resend of the latest price of its series is
+     * dropped without taking the write lock, older resends are dropped under it.
      * @param price
      */
     public void add(Price price) {
+        if(isResentLatest(price)){
+            duplicateCount.increment();
+            return;
+        }
         //apply write lock
         try {
             pricingLock.writeLock().lock();
             //Add it to the price view by Vendors
-            addOrUpdatePrices(pricesByVendorMap,price,price.getVendor(),price.getInstrument());
+            if(addOrUpdatePrices(pricesByVendorMap,price,price.getVendor(),price.getInstrument())==Upsert.DUPLICATE){
+                duplicateCount.increment();
+                return;
+            }
             //add it to the price view by Instruments
             addOrUpdatePrices(pricesByInstrumentMap,price,price.getInstrument(),price.getVendor());
+            boolean latest = latestByVendor.update(price.getVendor(),price);
+            latestByInstrument.update(price.getInstrument(),price);
+            expiryBuckets.record(price);
+            seriesByMarket.record(price);
+            seriesByAssetClass.record(price);
+            if(latest){
+                compositeQuotes.update(price);
+                priceDispatcher.publish(price);
+            }
         }finally {
             pricingLock.writeLock().unlock();
         }
 
     }
 
+    /**
+     * Add a batch of prices, e.g. a vendor EOD file. The batch is grouped and sorted by series before
+     * taking the write lock, then each group is applied to both views in one pass under a single write
+     * lock, so a locked read sees either none or all of the batch. The new latest prices are staged aside
+     * and published to the lock free latest price views in one step before the write lock is released, so
+     * a latest read also sees none or all of the batch. Resends of the latest prices are dropped before grouping.
+     * @param prices
+     */
+    @Override
+    public void addAll(Collection<Price> prices) {
+        List<Price> changed = new ArrayList<>(prices.size());
+        for(Price price : prices){
+            if(isResentLatest(price)){
+                duplicateCount.increment();
+            }else {
+                changed.add(price);
+            }
+        }
+        Map<String, Map<String, TreeSet<Price>>> batch = PriceSeries.groupByVendorAndInstrument(changed);
+        Lock writeLock = pricingLock.writeLock();
+        try {
+            writeLock.lock();
+            SeriesBatch seriesBatch = new SeriesBatch();
+            batch.forEach((vendor, byInstrument) -> byInstrument.forEach((instrument, group) -> seriesBatch.addSeries(vendor,instrument,group)));
+            seriesBatch.publish();
+        }finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stream a snapshot of the store to the channel series by series, under the read lock so the
+     * snapshot is consistent.
+     * @param channel
+     * @throws IOException
+     */
+    @Override
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            PriceSnapshotWriter writer = new PriceSnapshotWriter(channel);
+            for (Map.Entry<String, Map<String, TreeSet<Price>>> byVendor : pricesByVendorMap.entrySet()) {
+                for (Map.Entry<String, TreeSet<Price>> series : byVendor.getValue().entrySet()) {
+                    writer.writeSeries(byVendor.getKey(),series.getKey(),series.getValue());
+                }
+            }
+            writer.close();
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Load a snapshot under the write lock, each series block is turned into the TreeSets of both views
+     * in linear time as it is read.
+     * @param channel
+     * @throws IOException
+     */
+    @Override
+    public void restoreSnapshot(ReadableByteChannel channel) throws IOException {
+        Lock writeLock = pricingLock.writeLock();
+        try {
+            writeLock.lock();
+            SeriesBatch seriesBatch = new SeriesBatch();
+            new PriceSnapshotReader(channel).read(seriesBatch::addSeries);
+            seriesBatch.publish();
+        }finally {
+            writeLock.unlock();
+        }
+    }
+
     /**
      * Method returns latest of prices for a given instrumentID, if a date is specified, then
      * it returns set of prices based on the date  and the instrument specified. If no prices found
-     * for the given date, an empty set will be returned.
+     * for the given date, an empty set will be returned. The latest prices are returned as an
+     * immutable set, shared by the readers until the next write.
      * @param instrumentId
      * @param asOfDate
      * @return
      */
     public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
-
+        if(asOfDate==null){// return the latest prices that matches the instrument ids
+            return latestByInstrument.latest(instrumentId);
+        }
         Lock readLock = pricingLock.readLock();
         try{
             readLock.lock();
-            if(asOfDate==null){// return the latest prices that matches the instrument ids
-                return getPricesByGroupName(instrumentId, pricesByInstrumentMap);
-            }else {//return prices with instrument, and that matches given date
-                return getPricesByGroupNameWithDate(instrumentId, asOfDate, pricesByInstrumentMap);
-            }
+            //return prices with instrument, and that matches given date
+            return getPricesByGroupNameWithDate(instrumentId, asOfDate, pricesByInstrumentMap);
         }finally {
             readLock.unlock();
         }
 
     }
 
+    /**
+     * Method returns the prices of a basket of instruments, latest or dated like getByInstrument. The
+     * whole basket is read under one read lock, so no write lands in between two of its instruments,
+     * while the lookups run in parallel on the default executor. The latest prices are immutable sets.
+     * @param instrumentIds
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        return getByInstruments(instrumentIds, asOfDate, BasketLookup.defaultExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getByInstruments(instrumentIds, asOfDate, executor), executor);
+    }
+
+    private Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            //the lookups on the executor threads do not take the lock, holding it here keeps the writers out until they are all done
+            return BasketLookup.resolve(instrumentIds, instrumentId -> asOfDate==null
+                    ? latestByInstrument.latest(instrumentId)
+                    : getPricesByGroupNameWithDate(instrumentId, asOfDate, pricesByInstrumentMap), executor);
+        }finally {
+            readLock.unlock();
+        }
+    }
+
 
 
 
     /**
      * Method returns latest of prices for a given vendor, if a date is specified, then
      * it returns set of prices based on the date  and the vendor specified. If no prices found
-     * for the given date, an empty set will be returned.
+     * for the given date, an empty set will be returned. The latest prices are returned as an
+     * immutable set, shared by the readers until the next write.
      * @param vendor
      * @param asOfDate
      * @return
      */
     public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        if(asOfDate==null) {
+            return latestByVendor.latest(vendor);
+        }
         Lock readLock = pricingLock.readLock();
         try{
             readLock.lock();
-            if(asOfDate==null) {
-                return getPricesByGroupName(vendor, pricesByVendorMap);
-            }else{
-                return getPricesByGroupNameWithDate(vendor, asOfDate, pricesByVendorMap);
-            }
+            return getPricesByGroupNameWithDate(vendor, asOfDate, pricesByVendorMap);
         }finally {
             readLock.unlock();
         }
     }
 
     /**
-     * Method return all the stored in the map
+     * Method returns, for each vendor of the instrument, the latest price dated at or before the
+     * given date. Used for EOD marking when a vendor did not price on the date itself.
+     * @param instrumentId
+     * @param asOfDate
+     * @return
+     */
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.seek(pricesByInstrumentMap.get(instrumentId), series -> PriceSeries.latestAtOrBefore(series, asOfDate));
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns, for each instrument of the vendor, the latest price dated at or before the
+     * given date.
+     * @param vendor
+     * @param asOfDate
+     * @return
+     */
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.seek(pricesByVendorMap.get(vendor), series -> PriceSeries.latestAtOrBefore(series, asOfDate));
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns all the prices of the instrument dated from (inclusive) up to to (exclusive).
+     * @param instrumentId
+     * @param from
+     * @param to
+     * @return
+     */
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.range(pricesByInstrumentMap.get(instrumentId), from, to);
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns all the prices of the vendor dated from (inclusive) up to to (exclusive).
+     * @param vendor
+     * @param from
+     * @param to
+     * @return
+     */
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.range(pricesByVendorMap.get(vendor), from, to);
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method return all the stored in the map, as a copy. forEach and cursor of PriceQuery.all() read
+     * the store in place instead.
      * @return Set<Price>
      */
     @Override
@@ -123,21 +390,134 @@ public class PricingServiceImpl implements PricingService {
     }
 
     /**
-     * Clean up expired prices based on current system time;
+     * Method returns the prices matching a query combining vendor, instrument, market, asset class and
+     * dates. The planner intersects the view and secondary indexes of the predicates set, so only the
+     * matching series are visited, under the read lock.
+     * @param query
+     * @return
+     */
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.query(query,pricesByVendorMap,pricesByInstrumentMap,seriesByMarket,seriesByAssetClass);
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method visits the prices matching a query under the read lock, so the visit sees one snapshot of
+     * the store and no set of the results is built. The visitor must not write to the store.
+     * @param query
+     * @param visitor
+     */
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            PriceSeries.forEach(query,pricesByVendorMap,pricesByInstrumentMap,seriesByMarket,seriesByAssetClass,visitor);
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Method returns a cursor over the prices matching a query. The series are found under the read lock,
+     * then the cursor takes it again for each series it reaches, copying the prices it picks from it. So an
+     * open cursor never holds back the writers, but it reads each series as of the moment it reaches it
+     * rather than one snapshot of the store, use forEach or query for that.
+     * @param query
+     * @return
      */
-    public void cleanUp() {
-        Set<Price> allPrices = getAllPrices();
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.cursor(query,pricesByVendorMap,pricesByInstrumentMap,seriesByMarket,seriesByAssetClass,readLock);
+        }finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Clean up expired prices based on current system time. Only the series recorded in the expired day
+     * buckets are visited, all of them under one write lock, and series or groups left empty are
+     * removed from the views.
+     * @return the number of prices removed
+     */
+    public int cleanUp() {
         Date oldCacheDate =new Date(System.currentTimeMillis() - maxCacheAge * DAY_IN_MIL_SEC);
-        Set<Price> expiredPrices = allPrices.stream().filter(price -> price.getAsOfDate().before(oldCacheDate)).collect(Collectors.toSet());
         Lock writeLock = pricingLock.writeLock();
-        for(Price expired: expiredPrices){
-            try {
-                writeLock.lock();
-                deletePrice(expired.getVendor(),expired.getInstrument(),expired,pricesByVendorMap);
-                deletePrice(expired.getInstrument(),expired.getVendor(),expired,pricesByInstrumentMap);
-            }finally {
-                writeLock.unlock();
-            }
+        try {
+            writeLock.lock();
+            return expiryBuckets.expire(oldCacheDate.getTime(), (vendor, instrument) -> expireSeries(vendor, instrument, oldCacheDate));
+        }finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Composite quote of the instrument across its vendors, a lookup of the quote consolidated when its
+     * latest prices were added.
+     * @param instrumentId
+     * @return the quote, or null if no vendor prices the instrument
+     */
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return compositeQuotes.quote(instrumentId);
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return priceDispatcher.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return priceDispatcher.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return priceDispatcher.subscribeToAll(listener);
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByVendor() {
+        return countByGroup(pricesByVendorMap);
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByInstrument() {
+        return countByGroup(pricesByInstrumentMap);
+    }
+
+    @Override
+    public long expiredCount() {
+        return expiredCount.get();
+    }
+
+    @Override
+    public long duplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    @Override
+    public Optional<TimedReadWriteLock> storeLock() {
+        return pricingLock instanceof TimedReadWriteLock ? Optional.of((TimedReadWriteLock) pricingLock) : Optional.empty();
+    }
+
+    private Map<String, Integer> countByGroup(Map<String,Map<String, TreeSet<Price>>> priceView) {
+        Lock readLock = pricingLock.readLock();
+        try{
+            readLock.lock();
+            return PriceSeries.countByGroup(priceView);
+        }finally {
+            readLock.unlock();
         }
     }
 
@@ -148,7 +528,7 @@ public class PricingServiceImpl implements PricingService {
      * @param groupByNameFirst
      * @param groupByNameSecond
      */
-    private void addOrUpdatePrices(Map<String,Map<String, TreeSet<Price>>> priceView, Price price,String groupByNameFirst,String groupByNameSecond ){
+    private Upsert addOrUpdatePrices(Map<String,Map<String, TreeSet<Price>>> priceView, Price price,String groupByNameFirst,String groupByNameSecond ){
         if(priceView.containsKey(groupByNameFirst)){
             Map<String, TreeSet<Price>> firstLevelGroup = priceView.get(groupByNameFirst);
             if(firstLevelGroup==null){
@@ -158,27 +538,88 @@ public class PricingServiceImpl implements PricingService {
             }
             //create new map if groupByNameSecond doesn't exist already
             firstLevelGroup.computeIfAbsent(groupByNameSecond, key->new TreeSet<>());
-            firstLevelGroup.get(groupByNameSecond).add(price);
+            return PriceSeries.upsert(firstLevelGroup.get(groupByNameSecond),price);
         }else {
             HashMap<String, TreeSet<Price>> firstLevelGroup = new HashMap<>();
             firstLevelGroup.computeIfAbsent(groupByNameSecond, key->new TreeSet<>()).add(price);
             priceView.put(groupByNameFirst,firstLevelGroup);
+            return Upsert.ADDED;
         }
     }
 
     /**
-     *  a common method to get prices by instrument or by vendor from the price view
-     * @param groupName
+     * Lock free check against the latest price index, most resends are of the current price.
+     * @param price
+     * @return true if the price is a resend of the latest price of its series
+     */
+    private boolean isResentLatest(Price price) {
+        return price.sameQuote(latestByVendor.latest(price.getVendor(),price.getInstrument()));
+    }
+
+    /**
+     * Series added by one batch. The views are updated series by series while the new latest prices are
+     * staged, they are published and dispatched once the whole batch is in the views. Must be used from
+     * the write lock.
+     */
+    private final class SeriesBatch {
+        private final LatestPriceIndex.Batch byVendor = latestByVendor.batch();
+        private final LatestPriceIndex.Batch byInstrument = latestByInstrument.batch();
+        private final List<Price> latestPrices = new ArrayList<>();
+
+        /**
+         * Add the prices of one series to both views and the indexes.
+         * @param vendor
+         * @param instrument
+         * @param group prices of the series sorted by date
+         */
+        private void addSeries(String vendor, String instrument, SortedSet<Price> group) {
+            duplicateCount.add(addAllPrices(pricesByVendorMap,group,vendor,instrument));
+            addAllPrices(pricesByInstrumentMap,group,instrument,vendor);
+            Price first = pricesByVendorMap.get(vendor).get(instrument).first();
+            if(byVendor.update(vendor,first)){
+                latestPrices.add(first);
+            }
+            byInstrument.update(instrument,first);
+            expiryBuckets.recordAll(vendor,instrument,group);
+            for(Price price : group){
+                seriesByMarket.record(price);
+                seriesByAssetClass.record(price);
+            }
+        }
+
+        private void publish() {
+            byVendor.publish();
+            byInstrument.publish();
+            for(Price latest : latestPrices){
+                compositeQuotes.update(latest);
+                priceDispatcher.publish(latest);
+            }
+        }
+    }
+
+    /**
+     * Batch counterpart of addOrUpdatePrices, a new series is built straight from the sorted group in
+     * linear time, an existing one upserts the prices of the group.
      * @param priceView
-     * @return
+     * @param group prices of the series sorted by date
+     * @param groupByNameFirst
+     * @param groupByNameSecond
+     * @return the number of prices of the group already stored with the same quote
      */
-    private Set<Price> getPricesByGroupName(String groupName, Map<String, Map<String, TreeSet<Price>>> priceView) {
-        return priceView
-                .get(groupName)
-                .values()
-                .stream()
-                .flatMap(prices -> prices.stream().limit(1))
-                .collect(Collectors.toSet());
+    private int addAllPrices(Map<String,Map<String, TreeSet<Price>>> priceView, SortedSet<Price> group,String groupByNameFirst,String groupByNameSecond ){
+        Map<String, TreeSet<Price>> firstLevelGroup = priceView.computeIfAbsent(groupByNameFirst, key->new HashMap<>());
+        TreeSet<Price> series = firstLevelGroup.get(groupByNameSecond);
+        if(series==null){
+            firstLevelGroup.put(groupByNameSecond,new TreeSet<>(group));
+            return 0;
+        }
+        int duplicates = 0;
+        for(Price price : group){
+            if(PriceSeries.upsert(series,price)==Upsert.DUPLICATE){
+                duplicates++;
+            }
+        }
+        return duplicates;
     }
 
     /**
@@ -189,32 +630,49 @@ public class PricingServiceImpl implements PricingService {
      * @return
      */
     private Set<Price> getPricesByGroupNameWithDate(String groupName, Date asOfDate, Map<String, Map<String, TreeSet<Price>>> priceView) {
-        return priceView
-                .get(groupName)
-                .values()
-                .stream()
-                .flatMap(prices -> prices
-                        .stream()
-                        .filter(pr -> pr.getAsOfDate().compareTo(asOfDate) == 0)
-                ).collect(Collectors.toSet());
+        return PriceSeries.seek(priceView.get(groupName), series -> PriceSeries.exact(series, asOfDate));
     }
 
     /**
-     * This delete method must be invoke from the write lock to the price is removed from the map
+     * This expire method must be invoke from the write lock so the series is trimmed in both views
      * atomically and completely.
+     * @param vendor
+     * @param instrument
+     * @param oldCacheDate
+     * @return the number of prices removed from the series
+     */
+    private int expireSeries(String vendor, String instrument, Date oldCacheDate) {
+        Map<String, TreeSet<Price>> byInstrument = pricesByVendorMap.get(vendor);
+        TreeSet<Price> series = byInstrument==null ? null : byInstrument.get(instrument);
+        int expired = series==null ? 0 : PriceSeries.expire(series,oldCacheDate);
+        if(expired==0){
+            return 0;
+        }
+        expiredCount.addAndGet(expired);
+        PriceSeries.expire(pricesByInstrumentMap.get(instrument).get(vendor),oldCacheDate);
+        Price latest = series.isEmpty() ? null : series.first();
+        latestByVendor.reset(vendor,instrument,latest);
+        latestByInstrument.reset(instrument,vendor,latest);
+        compositeQuotes.reset(instrument,vendor,latest);
+        seriesByMarket.retain(vendor,instrument,series);
+        seriesByAssetClass.retain(vendor,instrument,series);
+        if(latest==null){
+            deleteSeries(pricesByVendorMap,vendor,instrument);
+            deleteSeries(pricesByInstrumentMap,instrument,vendor);
+        }
+        return expired;
+    }
+
+    /**
+     * Remove an empty series from the view, along with its group once the group holds no series.
+     * @param priceView
      * @param firstGroupName
      * @param secondGroupName
-     * @param price
-     * @param priceView
      */
-    private void deletePrice(String firstGroupName, String secondGroupName,Price price,Map<String, Map<String, TreeSet<Price>>> priceView) {
-        if(priceView.containsKey(firstGroupName)){
-            priceView
-                    .get(firstGroupName)
-                    .computeIfPresent(secondGroupName,(key,val)->{
-                        val.remove(price);
-                        return val;
-                    });
-        }
+    private void deleteSeries(Map<String, Map<String, TreeSet<Price>>> priceView, String firstGroupName, String secondGroupName) {
+        priceView.computeIfPresent(firstGroupName,(key,group)->{
+            group.remove(secondGroupName);
+            return group.isEmpty() ? null : group;
+        });
     }
 }
@@ -0,0 +1,293 @@
+package com.mfc.trading.instrument.service.metrics;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Pricing service decorator recording the latency of every operation in a {@link LatencyHistogram}, and
+ * exposing it with the internal counters of the store through a pull API and JMX. Recording costs two
+ * nanoTime calls and a few atomic increments per call, without allocating, so it can stay on. The lock
+ * times are only reported for a locked store built with a timed lock.
+ */
+public class MetricsPricingService implements PricingService, PricingServiceMetricsMXBean {
+
+    public enum Operation {
+        ADD, ADD_ALL, GET_BY_INSTRUMENT, GET_BY_INSTRUMENTS, GET_BY_VENDOR, GET_AS_OF, GET_BETWEEN, GET_ALL_PRICES, QUERY, FOR_EACH, OPEN_CURSOR, CLEAN_UP, GET_COMPOSITE_QUOTE
+    }
+
+    private final PricingService pricingService;
+    //internal counters of the store, null if it does not report any
+    private final StoreStatistics statistics;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder cleanUpRuns = new LongAdder();
+    private final AtomicLong lastExpiredCount = new AtomicLong();
+
+    public MetricsPricingService(PricingService pricingService) {
+        this.pricingService = pricingService;
+        this.statistics = pricingService instanceof StoreStatistics ? (StoreStatistics) pricingService : null;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Register the metrics with the platform MBean server.
+     * @param name distinguishes the services of a JVM
+     * @return the name the MBean was registered under
+     * @throws JMException
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.mfc.trading.instrument:type=PricingService,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * @param operation
+     * @return the latency of the operation so far
+     */
+    public LatencySnapshot latency(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    @Override
+    public void add(Price price) {
+        long start = System.nanoTime();
+        pricingService.add(price);
+        record(Operation.ADD, start);
+    }
+
+    @Override
+    public void addAll(Collection<Price> prices) {
+        long start = System.nanoTime();
+        pricingService.addAll(prices);
+        record(Operation.ADD_ALL, start);
+    }
+
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getByInstrument(instrumentId, asOfDate);
+        record(Operation.GET_BY_INSTRUMENT, start);
+        return prices;
+    }
+
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        long start = System.nanoTime();
+        Map<String, Set<Price>> prices = pricingService.getByInstruments(instrumentIds, asOfDate);
+        record(Operation.GET_BY_INSTRUMENTS, start);
+        return prices;
+    }
+
+    /**
+     * Records the time from the call to the completion of the future, queueing on the executor included.
+     */
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        long start = System.nanoTime();
+        return pricingService.getByInstrumentsAsync(instrumentIds, asOfDate, executor)
+                .whenComplete((prices, failure) -> record(Operation.GET_BY_INSTRUMENTS, start));
+    }
+
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getByVendor(vendor, asOfDate);
+        record(Operation.GET_BY_VENDOR, start);
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getByInstrumentAsOf(instrumentId, asOfDate);
+        record(Operation.GET_AS_OF, start);
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getByVendorAsOf(vendor, asOfDate);
+        record(Operation.GET_AS_OF, start);
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getByInstrumentBetween(instrumentId, from, to);
+        record(Operation.GET_BETWEEN, start);
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getByVendorBetween(vendor, from, to);
+        record(Operation.GET_BETWEEN, start);
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getAllPrices() {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.getAllPrices();
+        record(Operation.GET_ALL_PRICES, start);
+        return prices;
+    }
+
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        long start = System.nanoTime();
+        Set<Price> prices = pricingService.query(query);
+        record(Operation.QUERY, start);
+        return prices;
+    }
+
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        long start = System.nanoTime();
+        pricingService.forEach(query, visitor);
+        record(Operation.FOR_EACH, start);
+    }
+
+    /**
+     * Only the opening of the cursor is timed, it is then iterated at the pace of the caller.
+     * @param query
+     * @return
+     */
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        long start = System.nanoTime();
+        PriceCursor cursor = pricingService.cursor(query);
+        record(Operation.OPEN_CURSOR, start);
+        return cursor;
+    }
+
+    /**
+     * Clean up the store, counting the prices it expired.
+     * @return the number of prices removed
+     */
+    @Override
+    public int cleanUp() {
+        long start = System.nanoTime();
+        int expired = pricingService.cleanUp();
+        record(Operation.CLEAN_UP, start);
+        cleanUpRuns.increment();
+        lastExpiredCount.set(expired);
+        return expired;
+    }
+
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        long start = System.nanoTime();
+        CompositeQuote quote = pricingService.getCompositeQuote(instrumentId);
+        record(Operation.GET_COMPOSITE_QUOTE, start);
+        return quote;
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return pricingService.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return pricingService.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return pricingService.subscribeToAll(listener);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> snapshots = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            snapshots.put(operation.name(), latency(operation));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public LatencySnapshot getReadLockWait() {
+        return lockTime(TimedReadWriteLock::readWait);
+    }
+
+    @Override
+    public LatencySnapshot getReadLockHold() {
+        return lockTime(TimedReadWriteLock::readHold);
+    }
+
+    @Override
+    public LatencySnapshot getWriteLockWait() {
+        return lockTime(TimedReadWriteLock::writeWait);
+    }
+
+    @Override
+    public LatencySnapshot getWriteLockHold() {
+        return lockTime(TimedReadWriteLock::writeHold);
+    }
+
+    @Override
+    public Map<String, Integer> getPriceCountByVendor() {
+        return statistics == null ? Collections.emptyMap() : statistics.priceCountByVendor();
+    }
+
+    @Override
+    public Map<String, Integer> getPriceCountByInstrument() {
+        return statistics == null ? Collections.emptyMap() : statistics.priceCountByInstrument();
+    }
+
+    @Override
+    public long getCleanUpRuns() {
+        return cleanUpRuns.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return statistics == null ? 0 : statistics.expiredCount();
+    }
+
+    @Override
+    public long getLastExpiredCount() {
+        return lastExpiredCount.get();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return statistics == null ? 0 : statistics.duplicateCount();
+    }
+
+    private void record(Operation operation, long start) {
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+    }
+
+    private LatencySnapshot lockTime(Function<TimedReadWriteLock, LatencySnapshot> time) {
+        return statistics == null ? null : statistics.storeLock().map(time).orElse(null);
+    }
+}
@@ -0,0 +1,24 @@
+package com.mfc.trading.instrument.service.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MetricsPricingService}, durations in nanoseconds. The lock times are null when the
+ * store is lock free or does not report them.
+ */
+public interface PricingServiceMetricsMXBean {
+    //latency per operation name
+    Map<String, LatencySnapshot> getLatencies();
+    LatencySnapshot getReadLockWait();
+    LatencySnapshot getReadLockHold();
+    LatencySnapshot getWriteLockWait();
+    LatencySnapshot getWriteLockHold();
+    Map<String, Integer> getPriceCountByVendor();
+    Map<String, Integer> getPriceCountByInstrument();
+    long getCleanUpRuns();
+    //prices removed by every cleanUp run, and by the last one
+    long getExpiredCount();
+    long getLastExpiredCount();
+    //resends of a stored price dropped on add
+    long getDuplicateCount();
+}
@@ -0,0 +1,19 @@
+package com.mfc.trading.instrument.service.metrics;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Internal counters of a price store, read on demand by {@link MetricsPricingService}.
+ */
+public interface StoreStatistics {
+    //number of prices held per vendor, counted when called
+    Map<String, Integer> priceCountByVendor();
+    Map<String, Integer> priceCountByInstrument();
+    //prices removed by cleanUp since the store was created
+    long expiredCount();
+    //resends of a stored price dropped by add and addAll since the store was created
+    long duplicateCount();
+    //wait and hold times of the store lock, empty for a lock free store or one built without a timed lock
+    Optional<TimedReadWriteLock> storeLock();
+}
@@ -0,0 +1,123 @@
+package com.mfc.trading.instrument.service.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ReentrantReadWriteLock recording how long threads wait to acquire each lock and how long they hold it.
+ * A lock operation costs two extra nanoTime calls, a thread local lookup and a few atomic increments, so
+ * stores only use it when built with a timed lock.
+ */
+public final class TimedReadWriteLock implements ReadWriteLock {
+
+    private final TimedLock readLock;
+    private final TimedLock writeLock;
+
+    public TimedReadWriteLock(boolean fair) {
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock(fair);
+        this.readLock = new TimedLock(lock.readLock());
+        this.writeLock = new TimedLock(lock.writeLock());
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    public LatencySnapshot readWait() {
+        return readLock.waits.snapshot();
+    }
+
+    public LatencySnapshot readHold() {
+        return readLock.holds.snapshot();
+    }
+
+    public LatencySnapshot writeWait() {
+        return writeLock.waits.snapshot();
+    }
+
+    public LatencySnapshot writeHold() {
+        return writeLock.holds.snapshot();
+    }
+
+    /**
+     * Lock timing its acquisitions. The hold time of a reentrant acquisition is recorded once, from the
+     * outermost lock to the matching unlock.
+     */
+    private static final class TimedLock implements Lock {
+        private final Lock lock;
+        private final LatencyHistogram waits = new LatencyHistogram();
+        private final LatencyHistogram holds = new LatencyHistogram();
+        //per thread hold depth and time of the outermost acquisition
+        private final ThreadLocal<long[]> holders = ThreadLocal.withInitial(() -> new long[2]);
+
+        private TimedLock(Lock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            lock.lock();
+            acquired(start);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            long start = System.nanoTime();
+            lock.lockInterruptibly();
+            acquired(start);
+        }
+
+        @Override
+        public boolean tryLock() {
+            long start = System.nanoTime();
+            if (!lock.tryLock()) {
+                return false;
+            }
+            acquired(start);
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long start = System.nanoTime();
+            if (!lock.tryLock(time, unit)) {
+                return false;
+            }
+            acquired(start);
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            long[] holder = holders.get();
+            lock.unlock();
+            if (--holder[0] == 0) {
+                holds.record(System.nanoTime() - holder[1]);
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            return lock.newCondition();
+        }
+
+        private void acquired(long start) {
+            long now = System.nanoTime();
+            waits.record(now - start);
+            long[] holder = holders.get();
+            if (holder[0]++ == 0) {
+                holder[1] = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.mfc.trading.instrument.service.offheap;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.ScaledDecimal;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * The archived prices of one day, written once to off-heap memory and never modified. Records are
+ * fixed 48 bytes, sorted by instrument, vendor and date descending, followed by an index of the record
+ * numbers sorted by vendor, so the prices of an instrument or of a vendor are found by binary search.
+ *
+ * <pre>
+ * RECORD  time(8) bid(8) ask(8) instrument(4) vendor(4) assetClass(4) market(4) bidScale(1) askScale(1) pad(6)
+ * INDEX   record(4) per record
+ * </pre>
+ * Symbols are ids of the symbol tables of the archive. Buffers are only read with absolute gets, so any
+ * number of threads can read a bucket at once.
+ */
+final class DayBucket {
+
+    static final int RECORD_SIZE = 48;
+    private static final int TIME = 0;
+    private static final int BID = 8;
+    private static final int ASK = 16;
+    private static final int INSTRUMENT = 24;
+    private static final int VENDOR = 28;
+    private static final int ASSET_CLASS = 32;
+    private static final int MARKET = 36;
+    private static final int BID_SCALE = 40;
+    private static final int ASK_SCALE = 41;
+
+    final long day;
+    final int size;
+    final ByteBuffer buffer;
+
+    private DayBucket(long day, int size, ByteBuffer buffer) {
+        this.day = day;
+        this.size = size;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Write the prices of a day.
+     * @param day
+     * @param prices sorted by instrument, vendor and date descending, one price per series and date
+     * @param symbols instrument, vendor, asset class and market ids of each price
+     * @param memory
+     * @return
+     */
+    static DayBucket write(long day, Price[] prices, int[][] symbols, OffHeapMemory memory) {
+        int size = prices.length;
+        ByteBuffer buffer = memory.allocate(day, Math.multiplyExact(size, RECORD_SIZE + Integer.BYTES));
+        long[] byVendor = new long[size];
+        for (int i = 0; i < size; i++) {
+            Price price = prices[i];
+            int record = i * RECORD_SIZE;
+            buffer.putLong(record + TIME, price.getAsOfDate().getTime());
+            buffer.putLong(record + BID, ScaledDecimal.unscaled(price.getBid()));
+            buffer.putLong(record + ASK, ScaledDecimal.unscaled(price.getAsk()));
+            buffer.putInt(record + INSTRUMENT, symbols[i][0]);
+            buffer.putInt(record + VENDOR, symbols[i][1]);
+            buffer.putInt(record + ASSET_CLASS, symbols[i][2]);
+            buffer.putInt(record + MARKET, symbols[i][3]);
+            buffer.put(record + BID_SCALE, ScaledDecimal.scale(price.getBid()));
+            buffer.put(record + ASK_SCALE, ScaledDecimal.scale(price.getAsk()));
+            byVendor[i] = (long) symbols[i][1] << 32 | i;
+        }
+        //record numbers within a vendor stay in record order, i.e. by instrument and date descending
+        Arrays.sort(byVendor);
+        int index = size * RECORD_SIZE;
+        for (int i = 0; i < size; i++) {
+            buffer.putInt(index + i * Integer.BYTES, (int) byVendor[i]);
+        }
+        return new DayBucket(day, size, buffer);
+    }
+
+    long time(int record) {
+        return buffer.getLong(record * RECORD_SIZE + TIME);
+    }
+
+    int instrument(int record) {
+        return buffer.getInt(record * RECORD_SIZE + INSTRUMENT);
+    }
+
+    int vendor(int record) {
+        return buffer.getInt(record * RECORD_SIZE + VENDOR);
+    }
+
+    int assetClass(int record) {
+        return buffer.getInt(record * RECORD_SIZE + ASSET_CLASS);
+    }
+
+    int market(int record) {
+        return buffer.getInt(record * RECORD_SIZE + MARKET);
+    }
+
+    BigDecimal bid(int record) {
+        return ScaledDecimal.decode(buffer.getLong(record * RECORD_SIZE + BID), buffer.get(record * RECORD_SIZE + BID_SCALE));
+    }
+
+    BigDecimal ask(int record) {
+        return ScaledDecimal.decode(buffer.getLong(record * RECORD_SIZE + ASK), buffer.get(record * RECORD_SIZE + ASK_SCALE));
+    }
+
+    /**
+     * Visit the records of an instrument, by vendor and date descending.
+     * @param instrument
+     * @param records
+     */
+    void forEachOfInstrument(int instrument, IntConsumer records) {
+        for (int record = lowerBound(instrument, false); record < size && instrument(record) == instrument; record++) {
+            records.accept(record);
+        }
+    }
+
+    /**
+     * Visit the records of a vendor, by instrument and date descending.
+     * @param vendor
+     * @param records
+     */
+    void forEachOfVendor(int vendor, IntConsumer records) {
+        for (int position = lowerBound(vendor, true); position < size; position++) {
+            int record = vendorRecord(position);
+            if (vendor(record) != vendor) {
+                return;
+            }
+            records.accept(record);
+        }
+    }
+
+    private int vendorRecord(int position) {
+        return buffer.getInt(size * RECORD_SIZE + position * Integer.BYTES);
+    }
+
+    /**
+     * @return the first position holding the symbol or a greater one, in record order or vendor index order
+     */
+    private int lowerBound(int symbol, boolean byVendor) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int value = byVendor ? vendor(vendorRecord(middle)) : instrument(middle);
+            if (value < symbol) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,85 @@
+package com.mfc.trading.instrument.service.offheap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supplies the memory the day buckets of the archive are written to, outside of the Java heap.
+ * A buffer is released once its bucket has been replaced or expired, no reader uses it afterwards.
+ */
+public interface OffHeapMemory {
+
+    /**
+     * @param day epoch day of the bucket
+     * @param bytes
+     * @return a buffer of exactly the given capacity
+     */
+    ByteBuffer allocate(long day, int bytes);
+
+    void release(long day, ByteBuffer buffer);
+
+    /**
+     * Direct buffers, their memory is freed when the released buffer is garbage collected and bounded
+     * by -XX:MaxDirectMemorySize.
+     * @return
+     */
+    static OffHeapMemory direct() {
+        return new OffHeapMemory() {
+            @Override
+            public ByteBuffer allocate(long day, int bytes) {
+                return ByteBuffer.allocateDirect(bytes);
+            }
+
+            @Override
+            public void release(long day, ByteBuffer buffer) {
+            }
+        };
+    }
+
+    /**
+     * Memory mapped files in the directory, one per bucket, so the history lives in the page cache and
+     * can exceed the physical memory. A file is deleted when its bucket is released.
+     * @param directory
+     * @return
+     */
+    static OffHeapMemory mapped(Path directory) {
+        return new OffHeapMemory() {
+            private final AtomicLong sequence = new AtomicLong();
+            private final Map<ByteBuffer, Path> files = Collections.synchronizedMap(new IdentityHashMap<>());
+
+            @Override
+            public ByteBuffer allocate(long day, int bytes) {
+                Path path = directory.resolve(day + "-" + sequence.incrementAndGet() + ".bucket");
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    //the mapping stays valid once the channel is closed
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                    files.put(buffer, path);
+                    return buffer;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public void release(long day, ByteBuffer buffer) {
+                Path path = files.remove(buffer);
+                try {
+                    if (path != null) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
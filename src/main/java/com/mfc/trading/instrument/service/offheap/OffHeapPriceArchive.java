@@ -0,0 +1,640 @@
+package com.mfc.trading.instrument.service.offheap;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.util.BasketLookup;
+import com.mfc.trading.instrument.service.util.SymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+
+/**
+ * Price history kept off the Java heap in one {@link DayBucket} per day. The heap only holds the symbol
+ * tables, the bucket of each day and the latest archived price of each series, so its size depends on
+ * the number of series and not on the number of days retained. Prices are decoded on read, so a query
+ * only creates the prices it returns.
+ * <p>
+ * A bucket is immutable, prices added to an archived day rebuild its bucket. Archiving is meant to
+ * happen a day at a time, late prices of old days are expected to be rare.
+ */
+final class OffHeapPriceArchive implements AutoCloseable {
+
+    private final OffHeapMemory memory;
+    private final ReadWriteLock archiveLock = new ReentrantReadWriteLock();
+    private final SymbolTable instruments = new SymbolTable(1024);
+    private final SymbolTable vendors = new SymbolTable(64);
+    private final SymbolTable assetClasses = new SymbolTable(16);
+    private final SymbolTable markets = new SymbolTable(64);
+    private final TreeMap<Long, DayBucket> buckets = new TreeMap<>();
+    /* latest archived price of every series, by instrument then vendor and by vendor then instrument */
+    private final Map<String, Map<String, Price>> latestByInstrument = new HashMap<>();
+    private final Map<String, Map<String, Price>> latestByVendor = new HashMap<>();
+
+    OffHeapPriceArchive(OffHeapMemory memory) {
+        this.memory = memory;
+    }
+
+    static long dayOf(long time) {
+        return Math.floorDiv(time, DAY_IN_MIL_SEC);
+    }
+
+    /**
+     * Archive prices. Like the on-heap stores a price replaces the price archived for its series and
+     * date, unless it quotes the same bid and ask, such resends are dropped without rewriting their day.
+     * @param prices
+     * @return the number of resends dropped
+     */
+    int append(Collection<Price> prices) {
+        Lock writeLock = archiveLock.writeLock();
+        try {
+            writeLock.lock();
+            Map<Long, List<Price>> byDay = new TreeMap<>();
+            int duplicates = 0;
+            for (Price price : prices) {
+                if (isArchived(price)) {
+                    duplicates++;
+                } else {
+                    byDay.computeIfAbsent(dayOf(price.getAsOfDate().getTime()), day -> new ArrayList<>()).add(price);
+                }
+            }
+            byDay.forEach((day, added) -> {
+                DayBucket current = buckets.get(day);
+                List<Price> dayPrices = current == null ? added : decodeAll(current);
+                if (current != null) {
+                    dayPrices.addAll(added);
+                }
+                replace(day, write(day, dayPrices));
+            });
+            byDay.values().forEach(added -> added.forEach(price -> {
+                updateLatest(latestByInstrument, price.getInstrument(), price.getVendor(), price);
+                updateLatest(latestByVendor, price.getVendor(), price.getInstrument(), price);
+            }));
+            return duplicates;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Must be invoked while a lock of the archive is held.
+     * @return true if the price is archived with the same bid and ask
+     */
+    private boolean isArchived(Price price) {
+        for (Price archived : dated(instrumentScan(price.getInstrument()), price.getAsOfDate().getTime())) {
+            if (archived.sameQuote(price)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Set<Price> byInstrument(String instrumentId, long time) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return dated(instrumentScan(instrumentId), time);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    Set<Price> byVendor(String vendor, long time) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return dated(vendorScan(vendor), time);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Look up a basket of instruments under one read lock, so no archiving lands in between.
+     * @param instrumentIds
+     * @param time
+     * @param executor
+     * @return
+     */
+    Map<String, Set<Price>> byInstruments(Collection<String> instrumentIds, long time, Executor executor) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return BasketLookup.resolve(instrumentIds, instrumentId -> dated(instrumentScan(instrumentId), time), executor);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    Set<Price> instrumentAsOf(String instrumentId, long time) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return asOf(instrumentScan(instrumentId), time);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    Set<Price> vendorAsOf(String vendor, long time) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return asOf(vendorScan(vendor), time);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    Set<Price> instrumentBetween(String instrumentId, long from, long to) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return between(instrumentScan(instrumentId), from, to);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    Set<Price> vendorBetween(String vendor, long from, long to) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            return between(vendorScan(vendor), from, to);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Run a query over the archive. The instrument or vendor of the query narrows the records visited by
+     * binary search in each bucket visited, market and asset class are compared on the records before
+     * decoding. The latest prices are read from the on-heap index.
+     * @param query
+     * @return
+     */
+    Set<Price> query(PriceQuery query) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            switch (query.getDates()) {
+                case LATEST:
+                    return latest(query);
+                case ON:
+                    return dated(scan(query, true), query.getTo().getTime());
+                case AS_OF:
+                    //the latest price of each series is picked before market and asset class are filtered
+                    Set<Price> prices = asOf(scan(query, false), query.getTo().getTime());
+                    prices.removeIf(price -> !query.matches(price));
+                    return prices;
+                case BETWEEN:
+                    return between(scan(query, true), query.getFrom().getTime(), query.getTo().getTime());
+                default:
+                    return between(scan(query, true), Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Visit the prices of a range query under the read lock, each record is decoded as it is visited.
+     * @param range a BETWEEN query
+     * @param visitor
+     */
+    void forEach(PriceQuery range, Consumer<? super Price> visitor) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            between(scan(range, true), range.getFrom().getTime(), range.getTo().getTime(), visitor);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * A cursor over the prices of a range query. The days are found when the cursor is opened, the records
+     * of a day are found and decoded under the read lock when the cursor reaches the day, so an open
+     * cursor never holds back the writers and a day it has not reached yet may be rewritten or released.
+     * @param range a BETWEEN query
+     * @return
+     */
+    PriceCursor cursor(PriceQuery range) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            GroupScan scan = scan(range, true);
+            long from = range.getFrom().getTime();
+            long to = range.getTo().getTime();
+            List<Long> days = scan == null || from >= to
+                    ? Collections.emptyList()
+                    : new ArrayList<>(buckets.subMap(dayOf(from), true, dayOf(to - 1), true).keySet());
+            return PriceCursor.of(new RecordCursor(days.iterator(), scan, from, to), () -> {
+            });
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @param instrumentId
+     * @return the latest archived price of each vendor of the instrument
+     */
+    Collection<Price> latestOfInstrument(String instrumentId) {
+        return latest(latestByInstrument, instrumentId);
+    }
+
+    /**
+     * @param vendor
+     * @return the latest archived price of each instrument of the vendor
+     */
+    Collection<Price> latestOfVendor(String vendor) {
+        return latest(latestByVendor, vendor);
+    }
+
+    /**
+     * Remove the prices dated strictly before the cut off, releasing the buckets of the days expired.
+     * @param cutOff
+     * @return the number of prices removed
+     */
+    int expire(long cutOff) {
+        Lock writeLock = archiveLock.writeLock();
+        try {
+            writeLock.lock();
+            int expired = 0;
+            long cutOffDay = dayOf(cutOff);
+            Iterator<DayBucket> expiredDays = buckets.headMap(cutOffDay, false).values().iterator();
+            while (expiredDays.hasNext()) {
+                DayBucket bucket = expiredDays.next();
+                expired += bucket.size;
+                expiredDays.remove();
+                memory.release(bucket.day, bucket.buffer);
+            }
+            DayBucket partial = buckets.get(cutOffDay);
+            if (partial != null) {
+                List<Price> kept = new ArrayList<>(partial.size);
+                for (int record = 0; record < partial.size; record++) {
+                    if (partial.time(record) >= cutOff) {
+                        kept.add(decode(partial, record));
+                    }
+                }
+                if (kept.size() < partial.size) {
+                    expired += partial.size - kept.size();
+                    replace(cutOffDay, write(cutOffDay, kept));
+                }
+            }
+            expireLatest(latestByInstrument, cutOff);
+            expireLatest(latestByVendor, cutOff);
+            return expired;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of prices archived
+     */
+    long size() {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            long size = 0;
+            for (DayBucket bucket : buckets.values()) {
+                size += bucket.size;
+            }
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return the bytes of off-heap memory used by the buckets
+     */
+    long offHeapBytes() {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            long bytes = 0;
+            for (DayBucket bucket : buckets.values()) {
+                bytes += bucket.buffer.capacity();
+            }
+            return bytes;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Release every bucket, the archive is empty afterwards.
+     */
+    @Override
+    public void close() {
+        Lock writeLock = archiveLock.writeLock();
+        try {
+            writeLock.lock();
+            for (DayBucket bucket : buckets.values()) {
+                memory.release(bucket.day, bucket.buffer);
+            }
+            buckets.clear();
+            latestByInstrument.clear();
+            latestByVendor.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Set<Price> dated(GroupScan scan, long time) {
+        Set<Price> prices = new HashSet<>();
+        DayBucket bucket = scan == null ? null : buckets.get(dayOf(time));
+        if (bucket != null) {
+            scan.forEach(bucket, record -> {
+                if (bucket.time(record) == time) {
+                    prices.add(decode(bucket, record));
+                }
+            });
+        }
+        return prices;
+    }
+
+    private Set<Price> asOf(GroupScan scan, long time) {
+        Set<Price> prices = new HashSet<>();
+        if (scan == null) {
+            return prices;
+        }
+        Set<Long> seriesFound = new HashSet<>();
+        //latest day first, the first price of a series at or before the date is its latest
+        for (DayBucket bucket : buckets.headMap(dayOf(time), true).descendingMap().values()) {
+            scan.forEach(bucket, record -> {
+                if (bucket.time(record) <= time && seriesFound.add((long) bucket.instrument(record) << 32 | bucket.vendor(record))) {
+                    prices.add(decode(bucket, record));
+                }
+            });
+        }
+        return prices;
+    }
+
+    private Set<Price> between(GroupScan scan, long from, long to) {
+        Set<Price> prices = new HashSet<>();
+        between(scan, from, to, prices::add);
+        return prices;
+    }
+
+    private void between(GroupScan scan, long from, long to, Consumer<? super Price> visitor) {
+        if (scan == null || from >= to) {
+            return;
+        }
+        for (DayBucket bucket : buckets.subMap(dayOf(from), true, dayOf(to - 1), true).values()) {
+            scan.forEach(bucket, record -> {
+                long time = bucket.time(record);
+                if (time >= from && time < to) {
+                    visitor.accept(decode(bucket, record));
+                }
+            });
+        }
+    }
+
+    private Set<Price> latest(PriceQuery query) {
+        Collection<Map<String, Price>> groups;
+        if (query.getInstrument() != null) {
+            groups = Collections.singletonList(latestByInstrument.getOrDefault(query.getInstrument(), Collections.emptyMap()));
+        } else if (query.getVendor() != null) {
+            groups = Collections.singletonList(latestByVendor.getOrDefault(query.getVendor(), Collections.emptyMap()));
+        } else {
+            groups = latestByVendor.values();
+        }
+        Set<Price> prices = new HashSet<>();
+        for (Map<String, Price> group : groups) {
+            for (Price price : group.values()) {
+                if (query.matches(price)) {
+                    prices.add(price);
+                }
+            }
+        }
+        return prices;
+    }
+
+    /**
+     * @param query
+     * @param attributes whether to also filter market and asset class
+     * @return the records of the query in a bucket, null if the query names an unknown symbol
+     */
+    private GroupScan scan(PriceQuery query, boolean attributes) {
+        int instrument = find(instruments, query.getInstrument());
+        int vendor = find(vendors, query.getVendor());
+        int market = attributes ? find(markets, query.getMarket()) : SymbolTable.UNKNOWN;
+        int assetClass = attributes ? find(assetClasses, query.getAssetClass()) : SymbolTable.UNKNOWN;
+        if ((query.getInstrument() != null && instrument == SymbolTable.UNKNOWN)
+                || (query.getVendor() != null && vendor == SymbolTable.UNKNOWN)
+                || (attributes && query.getMarket() != null && market == SymbolTable.UNKNOWN)
+                || (attributes && query.getAssetClass() != null && assetClass == SymbolTable.UNKNOWN)) {
+            return null;
+        }
+        GroupScan group;
+        if (instrument != SymbolTable.UNKNOWN) {
+            group = (bucket, records) -> bucket.forEachOfInstrument(instrument, records);
+        } else if (vendor != SymbolTable.UNKNOWN) {
+            group = (bucket, records) -> bucket.forEachOfVendor(vendor, records);
+        } else {
+            group = (bucket, records) -> {
+                for (int record = 0; record < bucket.size; record++) {
+                    records.accept(record);
+                }
+            };
+        }
+        return (bucket, records) -> group.forEach(bucket, record -> {
+            if ((vendor == SymbolTable.UNKNOWN || bucket.vendor(record) == vendor)
+                    && (market == SymbolTable.UNKNOWN || bucket.market(record) == market)
+                    && (assetClass == SymbolTable.UNKNOWN || bucket.assetClass(record) == assetClass)) {
+                records.accept(record);
+            }
+        });
+    }
+
+    private static int find(SymbolTable symbols, String symbol) {
+        return symbol == null ? SymbolTable.UNKNOWN : symbols.find(symbol);
+    }
+
+    private GroupScan instrumentScan(String instrumentId) {
+        int instrument = instruments.find(instrumentId);
+        return instrument == SymbolTable.UNKNOWN ? null : (bucket, records) -> bucket.forEachOfInstrument(instrument, records);
+    }
+
+    private GroupScan vendorScan(String vendorName) {
+        int vendor = vendors.find(vendorName);
+        return vendor == SymbolTable.UNKNOWN ? null : (bucket, records) -> bucket.forEachOfVendor(vendor, records);
+    }
+
+    /**
+     * Sort the prices of a day in bucket order, dropping all but the last price of a series and date,
+     * and write them to a new bucket.
+     * @return the bucket, or null if there are no prices
+     */
+    private DayBucket write(long day, List<Price> prices) {
+        int size = prices.size();
+        if (size == 0) {
+            return null;
+        }
+        int[][] symbols = new int[size][];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            Price price = prices.get(i);
+            symbols[i] = new int[]{instruments.intern(price.getInstrument()), vendors.intern(price.getVendor()),
+                    assetClasses.intern(price.getAssetClass()), markets.intern(price.getMarket())};
+            order[i] = i;
+        }
+        //a stable sort, the prices of a series and date stay in the order they were added
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> symbols[i][0])
+                .thenComparingInt(i -> symbols[i][1])
+                .thenComparing(i -> prices.get(i).getAsOfDate(), Comparator.reverseOrder()));
+        Price[] sorted = new Price[size];
+        int[][] sortedSymbols = new int[size][];
+        int kept = 0;
+        for (int i : order) {
+            Price price = prices.get(i);
+            if (kept > 0 && sortedSymbols[kept - 1][0] == symbols[i][0] && sortedSymbols[kept - 1][1] == symbols[i][1]
+                    && sorted[kept - 1].getAsOfDate().getTime() == price.getAsOfDate().getTime()) {
+                //a later price of the date is a correction
+                sorted[kept - 1] = price;
+                sortedSymbols[kept - 1] = symbols[i];
+                continue;
+            }
+            sorted[kept] = price;
+            sortedSymbols[kept++] = symbols[i];
+        }
+        return DayBucket.write(day, Arrays.copyOf(sorted, kept), sortedSymbols, memory);
+    }
+
+    private void replace(long day, DayBucket bucket) {
+        DayBucket previous = bucket == null ? buckets.remove(day) : buckets.put(day, bucket);
+        if (previous != null) {
+            memory.release(previous.day, previous.buffer);
+        }
+    }
+
+    private List<Price> decodeAll(DayBucket bucket) {
+        List<Price> prices = new ArrayList<>(bucket.size);
+        for (int record = 0; record < bucket.size; record++) {
+            prices.add(decode(bucket, record));
+        }
+        return prices;
+    }
+
+    private Price decode(DayBucket bucket, int record) {
+        return new Price(new Date(bucket.time(record)),
+                assetClasses.symbol(bucket.assetClass(record)),
+                instruments.symbol(bucket.instrument(record)),
+                vendors.symbol(bucket.vendor(record)),
+                markets.symbol(bucket.market(record)),
+                bucket.bid(record),
+                bucket.ask(record));
+    }
+
+    private Collection<Price> latest(Map<String, Map<String, Price>> latestByGroup, String group) {
+        Lock readLock = archiveLock.readLock();
+        try {
+            readLock.lock();
+            Map<String, Price> latest = latestByGroup.get(group);
+            return latest == null ? Collections.emptyList() : new ArrayList<>(latest.values());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private static void updateLatest(Map<String, Map<String, Price>> latestByGroup, String group, String member, Price price) {
+        //replaced by a later price or a correction of its date
+        latestByGroup.computeIfAbsent(group, key -> new HashMap<>()).merge(member, price, (current, added) -> added.compareTo(current) <= 0 ? added : current);
+    }
+
+    private static void expireLatest(Map<String, Map<String, Price>> latestByGroup, long cutOff) {
+        latestByGroup.values().removeIf(latest -> {
+            latest.values().removeIf(price -> price.getAsOfDate().getTime() < cutOff);
+            return latest.isEmpty();
+        });
+    }
+
+    /**
+     * Visits the records of one instrument or vendor in a bucket.
+     */
+    private interface GroupScan {
+        void forEach(DayBucket bucket, IntConsumer records);
+    }
+
+    /**
+     * The records of a range, found and decoded day by day under the read lock as the iteration reaches
+     * the day.
+     */
+    private final class RecordCursor implements Iterator<Price> {
+        private final Iterator<Long> days;
+        private final GroupScan scan;
+        private final long from;
+        private final long to;
+        private Iterator<Price> decoded = Collections.emptyIterator();
+
+        private RecordCursor(Iterator<Long> days, GroupScan scan, long from, long to) {
+            this.days = days;
+            this.scan = scan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!decoded.hasNext()) {
+                if (!days.hasNext()) {
+                    return false;
+                }
+                decoded = decodeDay(days.next());
+            }
+            return true;
+        }
+
+        @Override
+        public Price next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return decoded.next();
+        }
+
+        private Iterator<Price> decodeDay(long day) {
+            List<Price> prices = new ArrayList<>();
+            Lock readLock = archiveLock.readLock();
+            try {
+                readLock.lock();
+                DayBucket bucket = buckets.get(day);
+                if (bucket != null) {
+                    scan.forEach(bucket, record -> {
+                        long time = bucket.time(record);
+                        if (time >= from && time < to) {
+                            prices.add(decode(bucket, record));
+                        }
+                    });
+                }
+            } finally {
+                readLock.unlock();
+            }
+            return prices.iterator();
+        }
+    }
+}
@@ -0,0 +1,647 @@
+package com.mfc.trading.instrument.service.offheap;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+import com.mfc.trading.instrument.service.util.BasketLookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_ARCHIVE_AGE;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_HOT_DAYS;
+
+/**
+ * Pricing service keeping a long history without growing the heap. The last few days are kept on-heap
+ * in a {@link PricingServiceImpl}, older days are archived off-heap by {@link OffHeapPriceArchive}, so
+ * the heap used depends on the number of series and the on-heap days, not on the retention.
+ * <p>
+ * Each clean up rolls the days leaving the on-heap window to the archive before expiring them on-heap.
+ * Queries with a date are routed by date: the on-heap store serves its days, the archive the older ones,
+ * and range and as of queries combine both. Prices added one by one with an archived date are queued and
+ * archived together, before any query reads the archive, a batch is archived in one go.
+ * Latest prices come from the on-heap store, completed by the archive for the series without a price in
+ * the on-heap window. Composite quotes and subscriptions follow the on-heap store.
+ */
+public class TieredPricingService implements PricingService, AutoCloseable {
+
+    //late prices archived together
+    private static final int MAX_LATE_PRICES = 1024;
+
+    private final long hotDays;
+    private final long maxCacheAge;
+    private final LongSupplier clock;
+    private final PricingServiceImpl hotStore;
+    private final OffHeapPriceArchive archive;
+    /* taken shared by writers and exclusively by a roll, so no price is added to the on-heap days being archived */
+    private final ReadWriteLock rollLock = new ReentrantReadWriteLock();
+    //prices dated before are served by the archive, the start of the oldest on-heap day
+    private volatile long boundary;
+    private final LongAdder archivedDuplicates = new LongAdder();
+    /* late prices of archived days not archived yet, read by no query before they are */
+    private final Lock lateLock = new ReentrantLock();
+    private List<Price> late = new ArrayList<>();
+    private volatile boolean hasLate;
+
+    public TieredPricingService() {
+        this(DEFAULT_HOT_DAYS, DEFAULT_ARCHIVE_AGE, OffHeapMemory.direct());
+    }
+
+    /**
+     * @param hotDays number of days before today kept on-heap
+     * @param maxCacheAge in number of days
+     * @param memory where the archived days are written
+     */
+    public TieredPricingService(long hotDays, long maxCacheAge, OffHeapMemory memory) {
+        this(hotDays, maxCacheAge, memory, System::currentTimeMillis);
+    }
+
+    TieredPricingService(long hotDays, long maxCacheAge, OffHeapMemory memory, LongSupplier clock) {
+        if (hotDays <= 0 || maxCacheAge <= hotDays) {
+            throw new IllegalArgumentException("On-heap days must be positive and less than the cache age: " + hotDays + ", " + maxCacheAge);
+        }
+        this.hotDays = hotDays;
+        this.maxCacheAge = maxCacheAge;
+        this.clock = clock;
+        //a day of slack, the on-heap store only expires days already rolled to the archive
+        this.hotStore = new PricingServiceImpl(hotDays + 1);
+        this.archive = new OffHeapPriceArchive(memory);
+        this.boundary = boundaryAt(clock.getAsLong());
+    }
+
+    @Override
+    public void add(Price price) {
+        Lock readLock = rollLock.readLock();
+        try {
+            readLock.lock();
+            if (price.getAsOfDate().getTime() >= boundary) {
+                hotStore.add(price);
+                return;
+            }
+            bufferLate(price);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Add a batch, the part dated in the on-heap window is published at once, the archived part is
+     * archived in one go. Archived prices becoming the latest of their series are published with the
+     * on-heap part.
+     * @param prices
+     */
+    @Override
+    public void addAll(Collection<Price> prices) {
+        Lock readLock = rollLock.readLock();
+        try {
+            readLock.lock();
+            List<Price> onHeap = new ArrayList<>(prices.size());
+            List<Price> archived = new ArrayList<>();
+            for (Price price : prices) {
+                (price.getAsOfDate().getTime() < boundary ? archived : onHeap).add(price);
+            }
+            if (!archived.isEmpty()) {
+                Lock lock = lateLock;
+                try {
+                    lock.lock();
+                    appendLate();
+                    archivedDuplicates.add(archive.append(archived));
+                    for (Price price : archived) {
+                        if (isLatest(price)) {
+                            onHeap.add(price);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            hotStore.addAll(onHeap);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        if (asOfDate == null) {
+            return latest(hotStore.getByInstrument(instrumentId, null), archive().latestOfInstrument(instrumentId), Price::getVendor);
+        }
+        long time = asOfDate.getTime();
+        return time < boundary ? archive().byInstrument(instrumentId, time) : hotStore.getByInstrument(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        if (asOfDate != null && asOfDate.getTime() < boundary) {
+            return archive().byInstruments(instrumentIds, asOfDate.getTime(), BasketLookup.defaultExecutor());
+        }
+        Map<String, Set<Price>> prices = hotStore.getByInstruments(instrumentIds, asOfDate);
+        return asOfDate == null ? withArchivedLatest(prices) : prices;
+    }
+
+    /**
+     * The basket is one snapshot of the tier serving its date, the archived latest prices completing the
+     * latest prices of the on-heap store are read afterwards.
+     * @param instrumentIds
+     * @param asOfDate
+     * @param executor
+     * @return
+     */
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        if (asOfDate != null && asOfDate.getTime() < boundary) {
+            return CompletableFuture.supplyAsync(() -> archive().byInstruments(instrumentIds, asOfDate.getTime(), executor), executor);
+        }
+        CompletableFuture<Map<String, Set<Price>>> prices = hotStore.getByInstrumentsAsync(instrumentIds, asOfDate, executor);
+        return asOfDate == null ? prices.thenApply(this::withArchivedLatest) : prices;
+    }
+
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        if (asOfDate == null) {
+            return latest(hotStore.getByVendor(vendor, null), archive().latestOfVendor(vendor), Price::getInstrument);
+        }
+        long time = asOfDate.getTime();
+        return time < boundary ? archive().byVendor(vendor, time) : hotStore.getByVendor(vendor, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        long time = asOfDate.getTime();
+        if (time < boundary) {
+            return archive().instrumentAsOf(instrumentId, time);
+        }
+        Set<Price> onHeap = hotStore.getByInstrumentAsOf(instrumentId, asOfDate);
+        if (covers(onHeap, archive().latestOfInstrument(instrumentId), Price::getVendor)) {
+            return onHeap;
+        }
+        return union(onHeap, archive().instrumentAsOf(instrumentId, time), Price::getVendor);
+    }
+
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        long time = asOfDate.getTime();
+        if (time < boundary) {
+            return archive().vendorAsOf(vendor, time);
+        }
+        Set<Price> onHeap = hotStore.getByVendorAsOf(vendor, asOfDate);
+        if (covers(onHeap, archive().latestOfVendor(vendor), Price::getInstrument)) {
+            return onHeap;
+        }
+        return union(onHeap, archive().vendorAsOf(vendor, time), Price::getInstrument);
+    }
+
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        checkRange(from, to);
+        long boundary = this.boundary;
+        Set<Price> prices = new HashSet<>();
+        if (to.getTime() > boundary) {
+            prices.addAll(hotStore.getByInstrumentBetween(instrumentId, new Date(Math.max(from.getTime(), boundary)), to));
+        }
+        if (from.getTime() < boundary) {
+            prices.addAll(archive().instrumentBetween(instrumentId, from.getTime(), Math.min(to.getTime(), boundary)));
+        }
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        checkRange(from, to);
+        long boundary = this.boundary;
+        Set<Price> prices = new HashSet<>();
+        if (to.getTime() > boundary) {
+            prices.addAll(hotStore.getByVendorBetween(vendor, new Date(Math.max(from.getTime(), boundary)), to));
+        }
+        if (from.getTime() < boundary) {
+            prices.addAll(archive().vendorBetween(vendor, from.getTime(), Math.min(to.getTime(), boundary)));
+        }
+        return prices;
+    }
+
+    @Override
+    public Set<Price> getAllPrices() {
+        Set<Price> prices = new HashSet<>();
+        forEach(PriceQuery.all(), prices::add);
+        return prices;
+    }
+
+    /**
+     * Run the query on the tier holding its dates, or on both and combine them like the single key
+     * getters. For the latest and as of prices, an archived price is only returned for a series the
+     * on-heap store has no price for, whatever the market or asset class of that price.
+     * @param query
+     * @return
+     */
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        long boundary = this.boundary;
+        switch (query.getDates()) {
+            case ON:
+                return query.getTo().getTime() < boundary ? archive().query(query) : hotStore.query(query);
+            case BETWEEN:
+            case ALL:
+                Set<Price> prices = new HashSet<>();
+                forEachInRange(query, boundary, prices::add);
+                return prices;
+            default:
+                if (query.getDates() == PriceQuery.Dates.AS_OF && query.getTo().getTime() < boundary) {
+                    return archive().query(query);
+                }
+                Set<Price> latest = new HashSet<>(hotStore.query(query));
+                Set<Price> archived = archive().query(query);
+                if (archived.isEmpty()) {
+                    return latest;
+                }
+                //the series priced on-heap whatever their market or asset class, read in one query
+                PriceQuery series = query.getDates() == PriceQuery.Dates.LATEST ? PriceQuery.latest() : PriceQuery.asOf(query.getTo());
+                Set<List<String>> onHeap = new HashSet<>();
+                for (Price price : hotStore.query(series.vendor(query.getVendor()).instrument(query.getInstrument()))) {
+                    onHeap.add(seriesOf(price));
+                }
+                for (Price price : archived) {
+                    if (!onHeap.contains(seriesOf(price))) {
+                        latest.add(price);
+                    }
+                }
+                return latest;
+        }
+    }
+
+    /**
+     * Visit the prices of a range, or of the whole store, tier by tier without collecting them. The
+     * latest and as of prices are combined across the tiers first, there is at most one per series.
+     * @param query
+     * @param visitor
+     */
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        long boundary = this.boundary;
+        switch (query.getDates()) {
+            case ON:
+                if (query.getTo().getTime() < boundary) {
+                    archive().query(query).forEach(visitor);
+                } else {
+                    hotStore.forEach(query, visitor);
+                }
+                break;
+            case BETWEEN:
+            case ALL:
+                forEachInRange(query, boundary, visitor);
+                break;
+            default:
+                query(query).forEach(visitor);
+        }
+    }
+
+    /**
+     * A cursor over the on-heap part of a range, then over the archived part, each tier opened once the
+     * previous one is exhausted. The latest and as of prices are combined across the tiers first.
+     * @param query
+     * @return
+     */
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        long boundary = this.boundary;
+        switch (query.getDates()) {
+            case ON:
+                return query.getTo().getTime() < boundary ? PriceCursor.of(archive().query(query)) : hotStore.cursor(query);
+            case BETWEEN:
+            case ALL:
+                List<Supplier<PriceCursor>> tiers = new ArrayList<>(2);
+                PriceQuery onHeap = onHeapPart(query, boundary);
+                if (onHeap != null) {
+                    tiers.add(() -> hotStore.cursor(onHeap));
+                }
+                PriceQuery archived = archivedPart(query, boundary);
+                if (archived != null) {
+                    tiers.add(() -> archive().cursor(archived));
+                }
+                return PriceCursor.concat(tiers);
+            default:
+                return PriceCursor.of(query(query));
+        }
+    }
+
+    /**
+     * Roll the days leaving the on-heap window to the archive, then expire both tiers.
+     * @return the number of prices expired from the archive, the on-heap store only drops days archived already
+     */
+    @Override
+    public int cleanUp() {
+        long now = clock.getAsLong();
+        roll(boundaryAt(now));
+        hotStore.cleanUp();
+        return archive().expire(now - maxCacheAge * DAY_IN_MIL_SEC);
+    }
+
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return hotStore.getCompositeQuote(instrumentId);
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return hotStore.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return hotStore.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return hotStore.subscribeToAll(listener);
+    }
+
+    /**
+     * @return the number of prices archived off-heap
+     */
+    public long archivedCount() {
+        return archive().size();
+    }
+
+    /**
+     * @return the number of resent prices dropped by either tier
+     */
+    public long duplicateCount() {
+        flushLate();
+        return hotStore.duplicateCount() + archivedDuplicates.sum();
+    }
+
+    /**
+     * @return the bytes of off-heap memory holding the archive
+     */
+    public long offHeapBytes() {
+        return archive().offHeapBytes();
+    }
+
+    /**
+     * Release the off-heap memory of the archive.
+     */
+    @Override
+    public void close() {
+        archive.close();
+    }
+
+    /**
+     * An archived price that is the latest of its series, or corrects it, is also kept on-heap, until the on-heap store
+     * expires it, so that composite quotes and subscriptions see it like on a single store.
+     * @param price already archived
+     * @return
+     */
+    private boolean isLatest(Price price) {
+        if (hasLaterOnHeap(price)) {
+            return false;
+        }
+        for (Price latest : archive.latestOfInstrument(price.getInstrument())) {
+            if (Objects.equals(latest.getVendor(), price.getVendor())) {
+                return latest == price;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the on-heap store holds a later price of the series
+     */
+    private boolean hasLaterOnHeap(Price price) {
+        Price latest = onHeapLatest(price);
+        return latest != null && price.getAsOfDate().before(latest.getAsOfDate());
+    }
+
+    /**
+     * @return the latest price of the series in the on-heap store, or null
+     */
+    private Price onHeapLatest(Price price) {
+        for (Price latest : hotStore.getByInstrument(price.getInstrument(), null)) {
+            if (Objects.equals(latest.getVendor(), price.getVendor())) {
+                return latest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the price is later than the archived prices of its series, or corrects the latest of them
+     */
+    private boolean isLaterThanArchived(Price price) {
+        for (Price latest : archive.latestOfInstrument(price.getInstrument())) {
+            if (Objects.equals(latest.getVendor(), price.getVendor())) {
+                return !price.getAsOfDate().before(latest.getAsOfDate()) && !price.sameQuote(latest);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue a price of an archived day, the queue is archived once full. Archiving a price rewrites its day, so
+     * the prices added one by one are archived together, each day rewritten once. A price becoming the latest of
+     * its series is kept on-heap at once, like isLatest, so composite quotes and subscriptions do not wait for
+     * the queue to be archived. Late prices queued before cannot be later: those were kept on-heap.
+     */
+    private void bufferLate(Price price) {
+        Lock lock = lateLock;
+        try {
+            lock.lock();
+            Price onHeap = onHeapLatest(price);
+            if (price.sameQuote(onHeap)) {
+                //a resend of an archived latest price kept on-heap
+                archivedDuplicates.increment();
+                return;
+            }
+            late.add(price);
+            hasLate = true;
+            if ((onHeap == null || !price.getAsOfDate().before(onHeap.getAsOfDate())) && isLaterThanArchived(price)) {
+                hotStore.add(price);
+            }
+            if (late.size() >= MAX_LATE_PRICES) {
+                appendLate();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the archive, once the late prices queued are archived
+     */
+    private OffHeapPriceArchive archive() {
+        flushLate();
+        return archive;
+    }
+
+    private void flushLate() {
+        if (!hasLate) {
+            return;
+        }
+        Lock lock = lateLock;
+        try {
+            lock.lock();
+            appendLate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be invoked under the late lock.
+     */
+    private void appendLate() {
+        if (late.isEmpty()) {
+            return;
+        }
+        List<Price> prices = late;
+        late = new ArrayList<>();
+        hasLate = false;
+        archivedDuplicates.add(archive.append(prices));
+    }
+
+    private void forEachInRange(PriceQuery query, long boundary, Consumer<? super Price> visitor) {
+        PriceQuery onHeap = onHeapPart(query, boundary);
+        if (onHeap != null) {
+            hotStore.forEach(onHeap, visitor);
+        }
+        PriceQuery archived = archivedPart(query, boundary);
+        if (archived != null) {
+            archive().forEach(archived, visitor);
+        }
+    }
+
+    /**
+     * @param query a BETWEEN or ALL query
+     * @param boundary
+     * @return the range of the query served on-heap, null if it has none. The on-heap store may still hold
+     * days already rolled to the archive, they are left out.
+     */
+    private static PriceQuery onHeapPart(PriceQuery query, long boundary) {
+        boolean all = query.getDates() == PriceQuery.Dates.ALL;
+        long from = all ? boundary : Math.max(query.getFrom().getTime(), boundary);
+        long to = all ? Long.MAX_VALUE : query.getTo().getTime();
+        return from < to ? query.withRange(new Date(from), new Date(to)) : null;
+    }
+
+    /**
+     * @param query a BETWEEN or ALL query
+     * @param boundary
+     * @return the range of the query served by the archive, null if it has none
+     */
+    private static PriceQuery archivedPart(PriceQuery query, long boundary) {
+        boolean all = query.getDates() == PriceQuery.Dates.ALL;
+        long from = all ? Long.MIN_VALUE : query.getFrom().getTime();
+        long to = all ? boundary : Math.min(query.getTo().getTime(), boundary);
+        return from < to ? query.withRange(new Date(from), new Date(to)) : null;
+    }
+
+    private long boundaryAt(long now) {
+        return (OffHeapPriceArchive.dayOf(now) - hotDays) * DAY_IN_MIL_SEC;
+    }
+
+    private void roll(long newBoundary) {
+        Lock writeLock = rollLock.writeLock();
+        try {
+            writeLock.lock();
+            long oldBoundary = boundary;
+            if (newBoundary <= oldBoundary) {
+                return;
+            }
+            flushLate();
+            List<Price> rolled = new ArrayList<>();
+            hotStore.forEach(PriceQuery.between(new Date(oldBoundary), new Date(newBoundary)), rolled::add);
+            //archived before the boundary moves, so a reader finds the days in one tier or the other
+            archive.append(rolled);
+            boundary = newBoundary;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Map<String, Set<Price>> withArchivedLatest(Map<String, Set<Price>> prices) {
+        prices.replaceAll((instrumentId, latest) -> union(latest, archive().latestOfInstrument(instrumentId), Price::getVendor));
+        return prices;
+    }
+
+    /**
+     * @return the on-heap latest prices, completed by the archived latest price of the series they miss
+     */
+    private static Set<Price> latest(Set<Price> onHeap, Collection<Price> archivedLatest, Function<Price, String> member) {
+        return covers(onHeap, archivedLatest, member) ? onHeap : Collections.unmodifiableSet(union(onHeap, archivedLatest, member));
+    }
+
+    /**
+     * @return true if every archived series has a price among the on-heap prices
+     */
+    private static boolean covers(Set<Price> onHeap, Collection<Price> archived, Function<Price, String> member) {
+        if (archived.isEmpty()) {
+            return true;
+        }
+        Set<String> members = members(onHeap, member);
+        for (Price price : archived) {
+            if (!members.contains(member.apply(price))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the on-heap prices and the archived prices of the series the on-heap prices miss
+     */
+    private static Set<Price> union(Set<Price> onHeap, Collection<Price> archived, Function<Price, String> member) {
+        Set<String> members = members(onHeap, member);
+        Set<Price> prices = new HashSet<>(onHeap);
+        for (Price price : archived) {
+            if (!members.contains(member.apply(price))) {
+                prices.add(price);
+            }
+        }
+        return prices;
+    }
+
+    private static List<String> seriesOf(Price price) {
+        return Arrays.asList(price.getVendor(), price.getInstrument());
+    }
+
+    private static Set<String> members(Set<Price> prices, Function<Price, String> member) {
+        Set<String> members = new HashSet<>();
+        for (Price price : prices) {
+            members.add(member.apply(price));
+        }
+        return members;
+    }
+
+    private static void checkRange(Date from, Date to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Both from and to dates are required");
+        }
+        if (from.after(to)) {
+            throw new IllegalArgumentException("from date " + from + " is after to date " + to);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Cursor over the prices of several cursors, each opened once the previous one is exhausted, so a store
+ * is only read once the iteration reaches it.
+ */
+final class ConcatenatedCursor implements PriceCursor {
+
+    private final Iterator<Supplier<PriceCursor>> cursors;
+    private PriceCursor current;
+    private boolean closed;
+
+    ConcatenatedCursor(Iterator<Supplier<PriceCursor>> cursors) {
+        this.cursors = cursors;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!closed) {
+            if (current != null && current.hasNext()) {
+                return true;
+            }
+            current = null;
+            if (!cursors.hasNext()) {
+                closed = true;
+                return false;
+            }
+            current = cursors.next().get();
+        }
+        return false;
+    }
+
+    @Override
+    public Price next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over an iterator, running its release once the iterator is exhausted or the cursor closed.
+ */
+final class IteratorCursor implements PriceCursor {
+
+    private final Iterator<Price> prices;
+    //null once released
+    private Runnable release;
+
+    IteratorCursor(Iterator<Price> prices, Runnable release) {
+        this.prices = prices;
+        this.release = release;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (release == null) {
+            return false;
+        }
+        if (prices.hasNext()) {
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public Price next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return prices.next();
+    }
+
+    @Override
+    public void close() {
+        Runnable released = release;
+        if (released != null) {
+            release = null;
+            released.run();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Read only, lazily evaluated iteration over the prices of a query. The prices are found and, for the
+ * compact and off-heap stores, decoded as the cursor advances, so a large read never builds a set of
+ * its results. Use it in a try-with-resources block:
+ * <pre>
+ *     try (PriceCursor prices = service.cursor(PriceQuery.all())) {
+ *         while (prices.hasNext()) {
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ * A cursor over a locked store takes the read lock of the store once to find the series of the query,
+ * then again for each series it reaches, so an open cursor never holds back the writers. It reads each
+ * series as of the moment it reaches it, not one snapshot of the store: use forEach or query for that.
+ * A cursor is not thread safe.
+ */
+public interface PriceCursor extends Iterator<Price>, AutoCloseable {
+
+    /**
+     * Release what the cursor holds, idempotent. An exhausted cursor is closed already.
+     */
+    @Override
+    void close();
+
+    /**
+     * @param prices
+     * @param release run once, when the cursor is exhausted or closed
+     * @return a cursor over the prices
+     */
+    static PriceCursor of(Iterator<Price> prices, Runnable release) {
+        return new IteratorCursor(prices, release);
+    }
+
+    /**
+     * @param prices results already collected, e.g. of a query bounded by the number of series
+     * @return a cursor over the prices, holding nothing
+     */
+    static PriceCursor of(Collection<Price> prices) {
+        return new IteratorCursor(prices.iterator(), () -> {
+        });
+    }
+
+    /**
+     * @param cursors opened one after the other, each once the previous one is exhausted
+     * @return a cursor over the prices of all of them, holding at most one of them open at a time
+     */
+    static PriceCursor concat(List<Supplier<PriceCursor>> cursors) {
+        return new ConcatenatedCursor(cursors.iterator());
+    }
+}
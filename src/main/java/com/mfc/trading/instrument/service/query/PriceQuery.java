@@ -0,0 +1,172 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Immutable query combining predicates on vendor, instrument, market and asset class with a date
+ * selection, e.g. {@code PriceQuery.asOf(date).market("XLON").assetClass("Equity")}. A predicate left
+ * unset matches any value.
+ * <p>
+ * The date selection picks the prices of each (vendor, instrument) series like the single key getters:
+ * the latest price, the price of a date, the latest price at or before a date, or the prices within a
+ * range. The market and asset class predicates then filter the prices picked, they are attributes of a
+ * price rather than of its series.
+ */
+public final class PriceQuery {
+
+    public enum Dates {
+        //the latest price of each series
+        LATEST,
+        //the price of each series dated exactly at the date
+        ON,
+        //the latest price of each series dated at or before the date
+        AS_OF,
+        //the prices of each series dated within [from, to)
+        BETWEEN,
+        //every price of each series
+        ALL
+    }
+
+    private final Dates dates;
+    private final Date from;
+    private final Date to;
+    private final String vendor;
+    private final String instrument;
+    private final String market;
+    private final String assetClass;
+
+    private PriceQuery(Dates dates, Date from, Date to, String vendor, String instrument, String market, String assetClass) {
+        this.dates = dates;
+        this.from = from;
+        this.to = to;
+        this.vendor = vendor;
+        this.instrument = instrument;
+        this.market = market;
+        this.assetClass = assetClass;
+    }
+
+    public static PriceQuery latest() {
+        return new PriceQuery(Dates.LATEST, null, null, null, null, null, null);
+    }
+
+    public static PriceQuery on(Date asOfDate) {
+        Objects.requireNonNull(asOfDate, "asOfDate");
+        return new PriceQuery(Dates.ON, asOfDate, asOfDate, null, null, null, null);
+    }
+
+    public static PriceQuery asOf(Date asOfDate) {
+        Objects.requireNonNull(asOfDate, "asOfDate");
+        return new PriceQuery(Dates.AS_OF, null, asOfDate, null, null, null, null);
+    }
+
+    /**
+     * Every price held, e.g. to visit the whole store without collecting it.
+     * @return
+     */
+    public static PriceQuery all() {
+        return new PriceQuery(Dates.ALL, null, null, null, null, null, null);
+    }
+
+    /**
+     * @param from inclusive
+     * @param to exclusive
+     * @return
+     */
+    public static PriceQuery between(Date from, Date to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Both from and to dates are required");
+        }
+        if (from.after(to)) {
+            throw new IllegalArgumentException("from date " + from + " is after to date " + to);
+        }
+        return new PriceQuery(Dates.BETWEEN, from, to, null, null, null, null);
+    }
+
+    public PriceQuery vendor(String vendor) {
+        return new PriceQuery(dates, from, to, vendor, instrument, market, assetClass);
+    }
+
+    public PriceQuery instrument(String instrument) {
+        return new PriceQuery(dates, from, to, vendor, instrument, market, assetClass);
+    }
+
+    public PriceQuery market(String market) {
+        return new PriceQuery(dates, from, to, vendor, instrument, market, assetClass);
+    }
+
+    public PriceQuery assetClass(String assetClass) {
+        return new PriceQuery(dates, from, to, vendor, instrument, market, assetClass);
+    }
+
+    /**
+     * The same predicates over another range, e.g. the part of a BETWEEN query served by one tier of a store.
+     * @param from inclusive
+     * @param to exclusive
+     * @return
+     */
+    public PriceQuery withRange(Date from, Date to) {
+        PriceQuery range = between(from, to);
+        return new PriceQuery(range.dates, range.from, range.to, vendor, instrument, market, assetClass);
+    }
+
+    public Dates getDates() {
+        return dates;
+    }
+
+    /**
+     * @return the start of the range, the date of an ON query, null otherwise
+     */
+    public Date getFrom() {
+        return from;
+    }
+
+    /**
+     * @return the end of the range, the date of an ON or AS_OF query, null for LATEST and ALL
+     */
+    public Date getTo() {
+        return to;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public String getInstrument() {
+        return instrument;
+    }
+
+    public String getMarket() {
+        return market;
+    }
+
+    public String getAssetClass() {
+        return assetClass;
+    }
+
+    /**
+     * @param price
+     * @return true if the price satisfies the vendor, instrument, market and asset class predicates
+     */
+    public boolean matches(Price price) {
+        return (vendor == null || vendor.equals(price.getVendor()))
+                && (instrument == null || instrument.equals(price.getInstrument()))
+                && (market == null || market.equals(price.getMarket()))
+                && (assetClass == null || assetClass.equals(price.getAssetClass()));
+    }
+
+    @Override
+    public String toString() {
+        return "PriceQuery{" +
+                "dates=" + dates +
+                ", from=" + from +
+                ", to=" + to +
+                ", vendor='" + vendor + '\'' +
+                ", instrument='" + instrument + '\'' +
+                ", market='" + market + '\'' +
+                ", assetClass='" + assetClass + '\'' +
+                '}';
+    }
+}
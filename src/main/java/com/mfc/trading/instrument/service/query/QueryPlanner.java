@@ -0,0 +1,76 @@
+package com.mfc.trading.instrument.service.query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Index intersection over the series of a store. The series matching every predicate of a query are found
+ * by walking the smallest index and probing the others, so a query visits no more series than its most
+ * selective predicate matches, and the whole store only when the query has no predicate at all.
+ */
+public final class QueryPlanner {
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * Resolve the series of a query against the indexes of a store.
+     * @param query
+     * @param byVendor series of a vendor
+     * @param byInstrument series of an instrument
+     * @param byMarket series holding prices of a market
+     * @param byAssetClass series holding prices of an asset class
+     * @param all every series of the store
+     * @param series receives each (vendor, instrument) series matching all the predicates
+     */
+    public static void forEachSeries(PriceQuery query,
+                                     Function<String, SeriesSet> byVendor,
+                                     Function<String, SeriesSet> byInstrument,
+                                     Function<String, SeriesSet> byMarket,
+                                     Function<String, SeriesSet> byAssetClass,
+                                     SeriesSet all,
+                                     BiConsumer<String, String> series) {
+        List<SeriesSet> predicates = new ArrayList<>(4);
+        addPredicate(predicates, query.getVendor(), byVendor);
+        addPredicate(predicates, query.getInstrument(), byInstrument);
+        addPredicate(predicates, query.getMarket(), byMarket);
+        addPredicate(predicates, query.getAssetClass(), byAssetClass);
+        intersect(predicates, all, series);
+    }
+
+    /**
+     * @param predicates series matching each predicate
+     * @param all every series, walked if there is no predicate
+     * @param series receives each series contained in every predicate
+     */
+    static void intersect(List<SeriesSet> predicates, SeriesSet all, BiConsumer<String, String> series) {
+        if (predicates.isEmpty()) {
+            all.forEach(series);
+            return;
+        }
+        //at most four predicates, the sizes of the index views are sums over a handful of vendors
+        predicates.sort(Comparator.comparingInt(SeriesSet::size));
+        SeriesSet driver = predicates.get(0);
+        if (driver.size() == 0) {
+            return;
+        }
+        List<SeriesSet> probes = predicates.subList(1, predicates.size());
+        driver.forEach((vendor, instrument) -> {
+            for (SeriesSet probe : probes) {
+                if (!probe.contains(vendor, instrument)) {
+                    return;
+                }
+            }
+            series.accept(vendor, instrument);
+        });
+    }
+
+    private static void addPredicate(List<SeriesSet> predicates, String value, Function<String, SeriesSet> index) {
+        if (value != null) {
+            predicates.add(index.apply(value));
+        }
+    }
+}
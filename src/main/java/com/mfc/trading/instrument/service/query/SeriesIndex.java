@@ -0,0 +1,116 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Secondary index of the series holding prices with a given value of a price attribute, e.g. market or
+ * asset class (value -> vendor -> instruments). The index is kept per series rather than per price, so
+ * it stays as small as the number of series and is updated once per new value of a series.
+ * <p>
+ * The index may hold a series which no longer holds the value, after a correction changed it or an
+ * expiry removed it, until the series is next {@link #retain retained}. Queries filter the prices of the
+ * series found anyway, so a stale entry costs a series visit, never a wrong result. Thread safe, updates
+ * of the same series must be serialised by the caller.
+ */
+public final class SeriesIndex {
+
+    private final Function<Price, String> attribute;
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<String>>> seriesByValue = new ConcurrentHashMap<>();
+
+    /**
+     * @param attribute extracts the indexed value from a price, e.g. Price::getMarket
+     */
+    public SeriesIndex(Function<Price, String> attribute) {
+        this.attribute = attribute;
+    }
+
+    /**
+     * Record the series of a price under its value. Must be called after the price is inserted into
+     * the series.
+     * @param price
+     */
+    public void record(Price price) {
+        String value = attribute.apply(price);
+        if (value == null) {
+            return;
+        }
+        Set<String> instruments = seriesByValue
+                .computeIfAbsent(value, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(price.getVendor(), vendor -> ConcurrentHashMap.newKeySet());
+        //most prices repeat the values of their series, a lookup is cheaper than an add
+        if (!instruments.contains(price.getInstrument())) {
+            instruments.add(price.getInstrument());
+        }
+    }
+
+    /**
+     * Drop the entries of a series for the values it no longer holds.
+     * @param vendor
+     * @param instrument
+     * @param prices what is left of the series, empty once the series is removed
+     */
+    public void retain(String vendor, String instrument, Collection<Price> prices) {
+        Set<String> held = new HashSet<>();
+        for (Price price : prices) {
+            held.add(attribute.apply(price));
+        }
+        retainValues(vendor, instrument, held);
+    }
+
+    /**
+     * Drop the entries of a series for the values it no longer holds.
+     * @param vendor
+     * @param instrument
+     * @param held values of the prices left in the series
+     */
+    public void retainValues(String vendor, String instrument, Set<String> held) {
+        //vendor groups are never removed, so a record for another series of the vendor cannot be lost
+        seriesByValue.forEach((value, byVendor) -> {
+            Set<String> instruments = byVendor.get(vendor);
+            if (instruments != null && !held.contains(value)) {
+                instruments.remove(instrument);
+            }
+        });
+    }
+
+    /**
+     * @param value
+     * @return a view of the series recorded under the value
+     */
+    public SeriesSet series(String value) {
+        Map<String, Set<String>> byVendor = seriesByValue.get(value);
+        if (byVendor == null) {
+            return SeriesSet.EMPTY;
+        }
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                int size = 0;
+                for (Set<String> instruments : byVendor.values()) {
+                    size += instruments.size();
+                }
+                return size;
+            }
+
+            @Override
+            public boolean contains(String vendor, String instrument) {
+                Set<String> instruments = byVendor.get(vendor);
+                return instruments != null && instruments.contains(instrument);
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> series) {
+                byVendor.forEach((vendor, instruments) -> instruments.forEach(instrument -> series.accept(vendor, instrument)));
+            }
+        };
+    }
+}
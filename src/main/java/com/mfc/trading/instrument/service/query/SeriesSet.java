@@ -0,0 +1,112 @@
+package com.mfc.trading.instrument.service.query;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The (vendor, instrument) series matching one predicate of a query, as seen by the {@link QueryPlanner}.
+ * Implementations are views over the indexes of a store, nothing is copied.
+ */
+public interface SeriesSet {
+
+    SeriesSet EMPTY = new SeriesSet() {
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public boolean contains(String vendor, String instrument) {
+            return false;
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, String> series) {
+        }
+    };
+
+    //number of series, or an upper bound when counting is not cheap
+    int size();
+
+    boolean contains(String vendor, String instrument);
+
+    void forEach(BiConsumer<String, String> series);
+
+    /**
+     * @param vendor
+     * @param byInstrument series of the vendor keyed by instrument, may be null
+     * @return the series of a vendor
+     */
+    static SeriesSet ofVendor(String vendor, Map<String, ?> byInstrument) {
+        if (byInstrument == null) {
+            return EMPTY;
+        }
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return byInstrument.size();
+            }
+
+            @Override
+            public boolean contains(String seriesVendor, String instrument) {
+                return vendor.equals(seriesVendor) && byInstrument.containsKey(instrument);
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> series) {
+                byInstrument.keySet().forEach(instrument -> series.accept(vendor, instrument));
+            }
+        };
+    }
+
+    /**
+     * @param instrument
+     * @param byVendor series of the instrument keyed by vendor, may be null
+     * @return the series of an instrument
+     */
+    static SeriesSet ofInstrument(String instrument, Map<String, ?> byVendor) {
+        if (byVendor == null) {
+            return EMPTY;
+        }
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return byVendor.size();
+            }
+
+            @Override
+            public boolean contains(String vendor, String seriesInstrument) {
+                return instrument.equals(seriesInstrument) && byVendor.containsKey(vendor);
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> series) {
+                byVendor.keySet().forEach(vendor -> series.accept(vendor, instrument));
+            }
+        };
+    }
+
+    /**
+     * @param byVendor every series of a store, vendor -> instrument -> series
+     * @return all the series, only walked when a query has no other predicate
+     */
+    static SeriesSet all(Map<String, ? extends Map<String, ?>> byVendor) {
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean contains(String vendor, String instrument) {
+                Map<String, ?> byInstrument = byVendor.get(vendor);
+                return byInstrument != null && byInstrument.containsKey(instrument);
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> series) {
+                byVendor.forEach((vendor, byInstrument) -> byInstrument.keySet().forEach(instrument -> series.accept(vendor, instrument)));
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+package com.mfc.trading.instrument.service.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers of one size shared by the connections of a server. A connection only holds a buffer
+ * while it has bytes buffered, so idle connections cost no buffer. Only used by the selector thread.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+    private int allocated;
+
+    /**
+     * @param bufferSize
+     * @param maxPooled buffers kept for reuse, more are left to the garbage collector when released
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pooled.pollFirst();
+        if (buffer == null) {
+            allocated++;
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (pooled.size() < maxPooled) {
+            buffer.clear();
+            pooled.addFirst(buffer);
+        }
+    }
+
+    /**
+     * @return the number of buffers allocated so far, pooled or not
+     */
+    int allocated() {
+        return allocated;
+    }
+}
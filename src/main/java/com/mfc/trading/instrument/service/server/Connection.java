@@ -0,0 +1,273 @@
+package com.mfc.trading.instrument.service.server;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.util.SymbolTable;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mfc.trading.instrument.service.server.PriceProtocol.*;
+
+/**
+ * One client of a {@link PriceServer}, only used by the selector thread. The frames of a read are decoded
+ * in place from a pooled buffer and applied to the store in order, the replies are encoded into pooled
+ * buffers queued until the socket takes them. A client not reading its replies is not read from either,
+ * once {@link #MAX_QUEUED_BUFFERS} buffers of replies are waiting.
+ */
+final class Connection {
+
+    static final int MAX_QUEUED_BUFFERS = 16;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final PricingService service;
+    private final BufferPool buffers;
+    //shared by the connections of the server
+    private final LongAdder pricesReceived;
+    private final SymbolDictionary received = new SymbolDictionary();
+    private final SymbolTable sent = new SymbolTable(1024);
+    //reused for every batch, the stores do not keep the collection passed to addAll
+    private final List<Price> batch = new ArrayList<>(MAX_PRICES_PER_FRAME);
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    //bytes read but not decoded yet, in write mode between reads, null when there are none
+    private ByteBuffer inbound;
+    //reply being encoded, null when there is none
+    private ByteBuffer reply;
+
+    Connection(SocketChannel channel, SelectionKey key, PricingService service, BufferPool buffers, LongAdder pricesReceived) {
+        this.channel = channel;
+        this.key = key;
+        this.service = service;
+        this.buffers = buffers;
+        this.pricesReceived = pricesReceived;
+    }
+
+    /**
+     * Serve the connection once its socket is ready.
+     * @param readable
+     * @return false once the client closed the connection
+     * @throws IOException on a broken connection or a protocol error, the connection must then be closed
+     */
+    boolean serve(boolean readable) throws IOException {
+        if (readable && !isBackPressured()) {
+            if (inbound == null) {
+                inbound = buffers.acquire();
+            }
+            if (channel.read(inbound) < 0) {
+                return false;
+            }
+        }
+        //frames left undecoded by the back pressure are decoded once the replies before them drain
+        drain();
+        while (decodeFrames() > 0) {
+            drain();
+            if (isBackPressured()) {
+                break;
+            }
+        }
+        key.interestOps((isBackPressured() ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        return true;
+    }
+
+    /**
+     * Give the buffers back to the pool, the connection is closed.
+     */
+    void release() {
+        if (inbound != null) {
+            buffers.release(inbound);
+            inbound = null;
+        }
+        if (reply != null) {
+            buffers.release(reply);
+            reply = null;
+        }
+        while (!outbound.isEmpty()) {
+            buffers.release(outbound.pollFirst());
+        }
+    }
+
+    /**
+     * @return the number of frames decoded
+     */
+    private int decodeFrames() throws ProtocolException {
+        if (inbound == null) {
+            return 0;
+        }
+        int decoded = 0;
+        inbound.flip();
+        try {
+            while (inbound.remaining() >= Integer.BYTES && !isBackPressured()) {
+                int length = inbound.getInt(inbound.position());
+                if (length < 1 || length > MAX_FRAME_SIZE - Integer.BYTES) {
+                    throw new ProtocolException("Invalid frame length: " + length);
+                }
+                if (inbound.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                int end = inbound.position() + Integer.BYTES + length;
+                int limit = inbound.limit();
+                inbound.position(inbound.position() + Integer.BYTES).limit(end);
+                decodeFrame();
+                inbound.limit(limit).position(end);
+                decoded++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Frame shorter than its content");
+        }
+        inbound.compact();
+        if (inbound.position() == 0) {
+            buffers.release(inbound);
+            inbound = null;
+        }
+        return decoded;
+    }
+
+    private void decodeFrame() throws ProtocolException {
+        byte type = inbound.get();
+        switch (type) {
+            case SYMBOL:
+                readSymbol(inbound, received);
+                break;
+            case PRICES:
+                addPrices();
+                break;
+            case GET_BY_INSTRUMENT:
+            case GET_BY_VENDOR:
+                query(type);
+                break;
+            default:
+                throw new ProtocolException("Unknown frame type: " + type);
+        }
+    }
+
+    private void addPrices() throws ProtocolException {
+        int request = inbound.getInt();
+        short count = inbound.getShort();
+        if (count < 0 || count * PRICE_SIZE > inbound.remaining()) {
+            throw new ProtocolException("Frame shorter than its " + count + " prices");
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                batch.add(readPrice(inbound, received));
+            }
+            service.addAll(batch);
+            pricesReceived.add(count);
+            ByteBuffer buffer = reserve(HEADER_SIZE + Integer.BYTES);
+            int start = beginFrame(buffer, ACK);
+            buffer.putInt(request);
+            buffer.putInt(count);
+            endFrame(buffer, start);
+        } catch (RuntimeException e) {
+            putError(reserve(HEADER_SIZE + MAX_SYMBOL_SIZE), request, e.toString());
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void query(byte type) throws ProtocolException {
+        int request = inbound.getInt();
+        String group = received.symbol(inbound.getInt());
+        long time = inbound.getLong();
+        Date asOfDate = time == LATEST ? null : new Date(time);
+        //start of the RESULT frame being encoded in the reply, -1 between frames
+        int start = -1;
+        try {
+            Set<Price> prices = type == GET_BY_INSTRUMENT ? service.getByInstrument(group, asOfDate) : service.getByVendor(group, asOfDate);
+            for (Price price : prices) {
+                define(price.getInstrument());
+                define(price.getVendor());
+                define(price.getMarket());
+                define(price.getAssetClass());
+            }
+            Iterator<Price> results = prices.iterator();
+            do {
+                int count = Math.min(MAX_PRICES_PER_FRAME, prices.size());
+                ByteBuffer buffer = reserve(HEADER_SIZE + count * PRICE_SIZE);
+                start = beginFrame(buffer, RESULT);
+                buffer.putInt(request);
+                int last = buffer.position();
+                buffer.put((byte) 0);
+                int countAt = buffer.position();
+                buffer.putShort((short) 0);
+                short written = 0;
+                while (written < MAX_PRICES_PER_FRAME && results.hasNext()) {
+                    Price price = results.next();
+                    putPrice(buffer, price, sent.find(price.getInstrument()), sent.find(price.getVendor()),
+                            sent.find(price.getMarket()), sent.find(price.getAssetClass()));
+                    written++;
+                }
+                buffer.put(last, (byte) (results.hasNext() ? 0 : 1));
+                buffer.putShort(countAt, written);
+                endFrame(buffer, start);
+                start = -1;
+            } while (results.hasNext());
+        } catch (RuntimeException e) {
+            //a stored price or symbol the protocol cannot carry fails the request, not the connection
+            if (start >= 0) {
+                reply.position(start);
+            }
+            putError(reserve(HEADER_SIZE + MAX_SYMBOL_SIZE), request, e.toString());
+        }
+    }
+
+    /**
+     * Send a SYMBOL frame the first time a symbol is replied.
+     */
+    private void define(String symbol) {
+        if (sent.find(symbol) == SymbolTable.UNKNOWN) {
+            byte[] bytes = encodeSymbol(symbol);
+            putSymbol(reserve(symbolFrameSize(bytes)), sent.intern(symbol), bytes);
+        }
+    }
+
+    /**
+     * @param bytes at most the size of a frame
+     * @return the reply buffer with room for the bytes
+     */
+    private ByteBuffer reserve(int bytes) {
+        if (reply != null && reply.remaining() < bytes) {
+            reply.flip();
+            outbound.addLast(reply);
+            reply = null;
+        }
+        if (reply == null) {
+            reply = buffers.acquire();
+        }
+        return reply;
+    }
+
+    /**
+     * Write the queued replies until the socket buffer is full.
+     */
+    private void drain() throws IOException {
+        if (reply != null && reply.position() > 0) {
+            reply.flip();
+            outbound.addLast(reply);
+            reply = null;
+        }
+        while (!outbound.isEmpty()) {
+            ByteBuffer head = outbound.peekFirst();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                return;
+            }
+            buffers.release(outbound.pollFirst());
+        }
+    }
+
+    private boolean isBackPressured() {
+        return outbound.size() >= MAX_QUEUED_BUFFERS;
+    }
+}
@@ -0,0 +1,395 @@
+package com.mfc.trading.instrument.service.server;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.SymbolTable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static com.mfc.trading.instrument.service.server.PriceProtocol.*;
+
+/**
+ * Client of a {@link PriceServer}. Requests are pipelined: they are encoded and sent without waiting for
+ * the previous answers, and their futures complete as the answers are read, by {@link #awaitOutstanding},
+ * {@link #flush} or a blocking query. The socket is read while a request is written, so the server never
+ * waits on a client busy writing. Not thread safe, one client per publishing thread.
+ */
+public class PriceClient implements AutoCloseable {
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+    private final SymbolTable sent = new SymbolTable(1024);
+    private final SymbolDictionary received = new SymbolDictionary();
+    //answered in the order they were sent
+    private final ArrayDeque<Pending> outstanding = new ArrayDeque<>();
+    private int nextRequest;
+
+    private PriceClient(SocketChannel channel, Selector selector) throws IOException {
+        this.channel = channel;
+        this.selector = selector;
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public static PriceClient connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        Selector selector = null;
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            return new PriceClient(channel, selector);
+        } catch (IOException e) {
+            channel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Send the prices to the store of the server, in frames of at most {@link #maxPricesPerFrame()} prices.
+     * @param prices
+     * @return the number of prices the server added, or the first error of the store
+     * @throws IOException
+     * @throws IllegalArgumentException if a price does not fit the protocol, the frames before it are sent
+     */
+    public CompletableFuture<Integer> send(Collection<Price> prices) throws IOException {
+        Batch batch = new Batch();
+        Iterator<Price> iterator = prices.iterator();
+        Price[] frame = new Price[Math.min(MAX_PRICES_PER_FRAME, prices.size())];
+        do {
+            int count = 0;
+            while (count < frame.length && iterator.hasNext()) {
+                Price price = iterator.next();
+                define(price.getInstrument());
+                define(price.getVendor());
+                define(price.getMarket());
+                define(price.getAssetClass());
+                frame[count++] = price;
+            }
+            int request = nextRequest++;
+            reserve(HEADER_SIZE + count * PRICE_SIZE);
+            int start = beginFrame(out, PRICES);
+            out.putInt(request);
+            out.putShort((short) count);
+            try {
+                for (int i = 0; i < count; i++) {
+                    Price price = frame[i];
+                    putPrice(out, price, sent.find(price.getInstrument()), sent.find(price.getVendor()),
+                            sent.find(price.getMarket()), sent.find(price.getAssetClass()));
+                }
+            } catch (RuntimeException e) {
+                //a price the protocol cannot carry, the half written frame is never sent
+                out.position(start);
+                throw e;
+            }
+            endFrame(out, start);
+            batch.frames++;
+            outstanding.addLast(new BatchFrame(request, batch));
+        } while (iterator.hasNext());
+        return batch.future;
+    }
+
+    public CompletableFuture<Set<Price>> requestByInstrument(String instrument, Date asOfDate) throws IOException {
+        return request(GET_BY_INSTRUMENT, instrument, asOfDate);
+    }
+
+    public CompletableFuture<Set<Price>> requestByVendor(String vendor, Date asOfDate) throws IOException {
+        return request(GET_BY_VENDOR, vendor, asOfDate);
+    }
+
+    /**
+     * Query the store of the server, after every request sent before.
+     * @param instrument
+     * @param asOfDate null for the latest prices
+     * @return the prices of the instrument
+     * @throws IOException
+     * @throws IllegalArgumentException with the message of the server if the store rejected the query
+     */
+    public Set<Price> getByInstrument(String instrument, Date asOfDate) throws IOException {
+        return await(requestByInstrument(instrument, asOfDate));
+    }
+
+    public Set<Price> getByVendor(String vendor, Date asOfDate) throws IOException {
+        return await(requestByVendor(vendor, asOfDate));
+    }
+
+    /**
+     * Send the encoded requests and read the answers until at most max requests are outstanding, a
+     * publisher calls it to bound its pipeline.
+     * @param max
+     * @throws IOException
+     */
+    public void awaitOutstanding(int max) throws IOException {
+        writeOut();
+        while (outstanding.size() > max) {
+            selector.select();
+            selector.selectedKeys().clear();
+            read();
+        }
+    }
+
+    /**
+     * Send the encoded requests and wait for all their answers.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        awaitOutstanding(0);
+    }
+
+    /**
+     * @return the requests sent or encoded whose answer was not read yet, a batch counts one per frame
+     */
+    public int outstanding() {
+        return outstanding.size();
+    }
+
+    public static int maxPricesPerFrame() {
+        return MAX_PRICES_PER_FRAME;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            selector.close();
+        }
+    }
+
+    private CompletableFuture<Set<Price>> request(byte type, String group, Date asOfDate) throws IOException {
+        define(group);
+        int request = nextRequest++;
+        reserve(HEADER_SIZE + Long.BYTES);
+        int start = beginFrame(out, type);
+        out.putInt(request);
+        out.putInt(sent.find(group));
+        out.putLong(asOfDate == null ? LATEST : asOfDate.getTime());
+        endFrame(out, start);
+        Query query = new Query(request);
+        outstanding.addLast(query);
+        return query.future;
+    }
+
+    private Set<Price> await(CompletableFuture<Set<Price>> future) throws IOException {
+        flush();
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Send a SYMBOL frame the first time a symbol is used.
+     */
+    private void define(String symbol) throws IOException {
+        if (sent.find(symbol) == SymbolTable.UNKNOWN) {
+            byte[] bytes = encodeSymbol(symbol);
+            reserve(symbolFrameSize(bytes));
+            putSymbol(out, sent.intern(symbol), bytes);
+        }
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            writeOut();
+        }
+    }
+
+    /**
+     * Write the encoded frames, reading the answers whenever the socket cannot take more.
+     */
+    private void writeOut() throws IOException {
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    read();
+                }
+            }
+        } finally {
+            key.interestOps(SelectionKey.OP_READ);
+            out.compact();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException("Connection closed by the server with " + outstanding.size() + " requests outstanding");
+        }
+        in.flip();
+        try {
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > MAX_FRAME_SIZE - Integer.BYTES) {
+                    throw new ProtocolException("Invalid frame length: " + length);
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                int end = in.position() + Integer.BYTES + length;
+                int limit = in.limit();
+                in.position(in.position() + Integer.BYTES).limit(end);
+                decodeFrame();
+                in.limit(limit).position(end);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Frame shorter than its content");
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void decodeFrame() throws ProtocolException {
+        byte type = in.get();
+        if (type == SYMBOL) {
+            readSymbol(in, received);
+            return;
+        }
+        int request = in.getInt();
+        Pending pending = outstanding.peekFirst();
+        if (pending == null || pending.request != request) {
+            throw new ProtocolException("Answer to request " + request + " out of order");
+        }
+        switch (type) {
+            case ACK:
+                pending.ack(in.getInt());
+                outstanding.pollFirst();
+                break;
+            case RESULT:
+                boolean last = in.get() != 0;
+                short count = in.getShort();
+                for (int i = 0; i < count; i++) {
+                    pending.result(readPrice(in, received));
+                }
+                if (last) {
+                    pending.complete();
+                    outstanding.pollFirst();
+                }
+                break;
+            case ERROR:
+                pending.fail(readError(in));
+                outstanding.pollFirst();
+                break;
+            default:
+                throw new ProtocolException("Unknown frame type: " + type);
+        }
+    }
+
+    private abstract static class Pending {
+
+        final int request;
+
+        Pending(int request) {
+            this.request = request;
+        }
+
+        void ack(int count) throws ProtocolException {
+            throw new ProtocolException("Unexpected ACK of request " + request);
+        }
+
+        void result(Price price) throws ProtocolException {
+            throw new ProtocolException("Unexpected RESULT of request " + request);
+        }
+
+        void complete() {
+        }
+
+        abstract void fail(String message);
+    }
+
+    /**
+     * Prices sent by one call to {@link #send}, complete once every frame is answered.
+     */
+    private static final class Batch {
+
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        int frames;
+        int added;
+        String error;
+
+        void answered() {
+            if (--frames > 0) {
+                return;
+            }
+            if (error == null) {
+                future.complete(added);
+            } else {
+                future.completeExceptionally(new IllegalArgumentException(error));
+            }
+        }
+    }
+
+    private static final class BatchFrame extends Pending {
+
+        private final Batch batch;
+
+        BatchFrame(int request, Batch batch) {
+            super(request);
+            this.batch = batch;
+        }
+
+        @Override
+        void ack(int count) {
+            batch.added += count;
+            batch.answered();
+        }
+
+        @Override
+        void fail(String message) {
+            if (batch.error == null) {
+                batch.error = message;
+            }
+            batch.answered();
+        }
+    }
+
+    private static final class Query extends Pending {
+
+        final CompletableFuture<Set<Price>> future = new CompletableFuture<>();
+        private final Set<Price> prices = new LinkedHashSet<>();
+
+        Query(int request) {
+            super(request);
+        }
+
+        @Override
+        void result(Price price) {
+            prices.add(price);
+        }
+
+        @Override
+        void complete() {
+            future.complete(prices);
+        }
+
+        @Override
+        void fail(String message) {
+            future.completeExceptionally(new IllegalArgumentException(message));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.mfc.trading.instrument.service.server;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_SERVER_PORT;
+
+/**
+ * Publishes a synthetic vendors x instruments x days price history to a {@link PriceServer}, one price per
+ * series and day, oldest day first. The batches are pipelined, at most window frames wait for their ACK,
+ * so the rate measured is the one of the server and not of the round trips.
+ */
+public class PriceLoadGenerator {
+
+    public static final String ASSET_EQUITY = "Equity";
+    public static final String MARKET_XLON = "XLON";
+
+    private final int vendors;
+    private final int instruments;
+    private final int days;
+    private final int batchSize;
+    private final int window;
+
+    /**
+     * @param vendors
+     * @param instruments
+     * @param days day 0 is today, older days go back in time
+     * @param batchSize prices per call to {@link PriceClient#send}
+     * @param window frames sent and not acknowledged yet
+     */
+    public PriceLoadGenerator(int vendors, int instruments, int days, int batchSize, int window) {
+        if (vendors < 1 || instruments < 1 || days < 1 || batchSize < 1 || window < 1) {
+            throw new IllegalArgumentException("Load must have at least one vendor, instrument, day, price per batch and frame in flight");
+        }
+        this.vendors = vendors;
+        this.instruments = instruments;
+        this.days = days;
+        this.batchSize = batchSize;
+        this.window = window;
+    }
+
+    /**
+     * Publish the whole history and wait for the server to acknowledge it.
+     * @param client
+     * @return what was published and how fast
+     * @throws IOException
+     * @throws IllegalArgumentException if the store rejected a batch
+     */
+    public Result run(PriceClient client) throws IOException {
+        Random random = new Random(42);
+        long today = System.currentTimeMillis() / DAY_IN_MIL_SEC * DAY_IN_MIL_SEC;
+        List<CompletableFuture<Integer>> acks = new ArrayList<>();
+        List<Price> batch = new ArrayList<>(batchSize);
+        long start = System.nanoTime();
+        for (int d = days - 1; d >= 0; d--) {
+            Date asOfDate = new Date(today - d * DAY_IN_MIL_SEC);
+            for (int v = 0; v < vendors; v++) {
+                for (int i = 0; i < instruments; i++) {
+                    batch.add(price(asOfDate, instrument(i), vendor(v), random));
+                    if (batch.size() == batchSize) {
+                        acks.add(client.send(batch));
+                        //send copies the prices into its frames, the list is free again
+                        batch.clear();
+                        client.awaitOutstanding(window);
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            acks.add(client.send(batch));
+        }
+        client.flush();
+        long elapsed = System.nanoTime() - start;
+        long added = 0;
+        for (CompletableFuture<Integer> ack : acks) {
+            added += ack.join();
+        }
+        return new Result(added, acks.size(), elapsed);
+    }
+
+    public static Price price(Date asOfDate, String instrument, String vendor, Random random) {
+        BigDecimal bid = BigDecimal.valueOf(10_000 + random.nextInt(10_000), 2);
+        return new Price(asOfDate, ASSET_EQUITY, instrument, vendor, MARKET_XLON, bid, bid.add(BigDecimal.valueOf(5, 2)));
+    }
+
+    public static String vendor(int index) {
+        return "Vendor" + index;
+    }
+
+    public static String instrument(int index) {
+        return String.format("GB%010d", index);
+    }
+
+    /**
+     * Publish to a running server.
+     * @param args host [port [vendors instruments days [batchSize window]]]
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PriceLoadGenerator host [port [vendors instruments days [batchSize window]]]");
+            System.exit(1);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVER_PORT;
+        PriceLoadGenerator generator = args.length > 4
+                ? new PriceLoadGenerator(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                        args.length > 5 ? Integer.parseInt(args[5]) : 1000, args.length > 6 ? Integer.parseInt(args[6]) : 64)
+                : new PriceLoadGenerator(10, 1000, 5, 1000, 64);
+        try (PriceClient client = PriceClient.connect(new InetSocketAddress(args[0], port))) {
+            System.out.println(generator.run(client));
+        }
+    }
+
+    public static final class Result {
+
+        private final long prices;
+        private final int batches;
+        private final long elapsedNanos;
+
+        Result(long prices, int batches, long elapsedNanos) {
+            this.prices = prices;
+            this.batches = batches;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the prices the server acknowledged
+         */
+        public long getPrices() {
+            return prices;
+        }
+
+        public int getBatches() {
+            return batches;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getPricesPerSecond() {
+            return prices * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(elapsedNanos, 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d prices in %d batches, %.1f ms, %.0f prices/s",
+                    prices, batches, elapsedNanos / 1e6, getPricesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.mfc.trading.instrument.service.server;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.ScaledDecimal;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Length prefixed binary protocol of the {@link PriceServer}. Every message is one frame, both sides may
+ * pipeline any number of frames and the server answers the requests in the order they were sent.
+ *
+ * <pre>
+ * frame             := length(int, of type and body) type(byte) body
+ * SYMBOL            := id(int) length(short, -1 for null) utf8 bytes
+ * PRICES            := request(int) count(short) price*
+ * GET_BY_INSTRUMENT := request(int) instrument(int) asOfDate(long, LATEST for the latest prices)
+ * GET_BY_VENDOR     := request(int) vendor(int) asOfDate(long, LATEST for the latest prices)
+ * ACK               := request(int) count(int)
+ * RESULT            := request(int) last(byte) count(short) price*
+ * ERROR             := request(int) length(short) utf8 message
+ * price             := time(long) instrument(int) vendor(int) market(int) assetClass(int)
+ *                      bidScale(byte) bid(long) askScale(byte) ask(long)
+ * </pre>
+ * Symbols (instruments, vendors, markets, asset classes) are sent once per connection and direction: a
+ * SYMBOL frame defines an id before the first frame using it, like the dictionary of a snapshot. A price
+ * therefore has a fixed size and decodes without any string. A frame is at most {@link #MAX_FRAME_SIZE}
+ * bytes, larger batches and results are split into several frames.
+ */
+public final class PriceProtocol {
+
+    public static final byte SYMBOL = 1;
+    public static final byte PRICES = 2;
+    public static final byte GET_BY_INSTRUMENT = 3;
+    public static final byte GET_BY_VENDOR = 4;
+    public static final byte ACK = 5;
+    public static final byte RESULT = 6;
+    public static final byte ERROR = 7;
+
+    //asOfDate of a request for the latest prices
+    public static final long LATEST = Long.MIN_VALUE;
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+    public static final int PRICE_SIZE = Long.BYTES + 4 * Integer.BYTES + 2 * (1 + Long.BYTES);
+    //length, type, request and the widest header of a frame of prices
+    static final int HEADER_SIZE = Integer.BYTES + 1 + Integer.BYTES + 1 + Short.BYTES;
+    static final int MAX_PRICES_PER_FRAME = (MAX_FRAME_SIZE - HEADER_SIZE) / PRICE_SIZE;
+    static final int MAX_SYMBOL_SIZE = Short.MAX_VALUE;
+
+    private PriceProtocol() {
+    }
+
+    /**
+     * Start a frame, its length is written by {@link #endFrame}.
+     * @param buffer
+     * @param type
+     * @return the position of the frame
+     */
+    static int beginFrame(ByteBuffer buffer, byte type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(type);
+        return start;
+    }
+
+    static void endFrame(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - Integer.BYTES);
+    }
+
+    /**
+     * @param symbol
+     * @return the encoded symbol, null for a null symbol
+     * @throws IllegalArgumentException if the symbol does not fit a frame
+     */
+    static byte[] encodeSymbol(String symbol) {
+        if (symbol == null) {
+            return null;
+        }
+        byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_SYMBOL_SIZE) {
+            throw new IllegalArgumentException("Symbol too long for a frame: " + symbol);
+        }
+        return bytes;
+    }
+
+    static void putSymbol(ByteBuffer buffer, int id, byte[] bytes) {
+        int start = beginFrame(buffer, SYMBOL);
+        buffer.putInt(id);
+        if (bytes == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        endFrame(buffer, start);
+    }
+
+    static int symbolFrameSize(byte[] bytes) {
+        return Integer.BYTES + 1 + Integer.BYTES + Short.BYTES + (bytes == null ? 0 : bytes.length);
+    }
+
+    /**
+     * Read the body of a SYMBOL frame into the dictionary of the connection.
+     */
+    static void readSymbol(ByteBuffer buffer, SymbolDictionary symbols) throws ProtocolException {
+        int id = buffer.getInt();
+        short length = buffer.getShort();
+        String symbol = null;
+        if (length >= 0) {
+            if (length > buffer.remaining()) {
+                throw new ProtocolException("Symbol " + id + " overruns its frame");
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            symbol = new String(bytes, StandardCharsets.UTF_8);
+        }
+        symbols.define(id, symbol);
+    }
+
+    /**
+     * Write a price, its symbols must have been sent already.
+     */
+    static void putPrice(ByteBuffer buffer, Price price, int instrument, int vendor, int market, int assetClass) {
+        buffer.putLong(price.getAsOfDate().getTime());
+        buffer.putInt(instrument);
+        buffer.putInt(vendor);
+        buffer.putInt(market);
+        buffer.putInt(assetClass);
+        buffer.put(ScaledDecimal.scale(price.getBid()));
+        buffer.putLong(ScaledDecimal.unscaled(price.getBid()));
+        buffer.put(ScaledDecimal.scale(price.getAsk()));
+        buffer.putLong(ScaledDecimal.unscaled(price.getAsk()));
+    }
+
+    /**
+     * Decode a price straight from the buffer, its symbols are the strings of the dictionary.
+     */
+    static Price readPrice(ByteBuffer buffer, SymbolDictionary symbols) throws ProtocolException {
+        long time = buffer.getLong();
+        String instrument = symbols.symbol(buffer.getInt());
+        String vendor = symbols.symbol(buffer.getInt());
+        String market = symbols.symbol(buffer.getInt());
+        String assetClass = symbols.symbol(buffer.getInt());
+        byte bidScale = buffer.get();
+        long bid = buffer.getLong();
+        byte askScale = buffer.get();
+        long ask = buffer.getLong();
+        return new Price(new Date(time), assetClass, instrument, vendor, market,
+                ScaledDecimal.decode(bid, bidScale), ScaledDecimal.decode(ask, askScale));
+    }
+
+    static void putError(ByteBuffer buffer, int request, String message) {
+        byte[] bytes = (message == null ? "" : message).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_SYMBOL_SIZE);
+        int start = beginFrame(buffer, ERROR);
+        buffer.putInt(request);
+        buffer.putShort((short) length);
+        buffer.put(bytes, 0, length);
+        endFrame(buffer, start);
+    }
+
+    static String readError(ByteBuffer buffer) {
+        byte[] bytes = new byte[Math.max(buffer.getShort(), 0)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,197 @@
+package com.mfc.trading.instrument.service.server;
+
+import com.mfc.trading.instrument.service.PriceEvictor;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_SERVER_PORT;
+
+/**
+ * Standalone ingestion endpoint of a pricing service, so feed handlers can publish prices over TCP
+ * instead of embedding the library. One selector thread accepts the clients and serves them with
+ * non-blocking sockets, speaking the {@link PriceProtocol}: batches of prices are decoded from pooled
+ * buffers straight into {@link PricingService#addAll}, and getByInstrument/getByVendor requests are
+ * answered in the order they were pipelined.
+ * <p>
+ * The store is called from the selector thread, so a store whose writes block, e.g. on a lock held by a
+ * long read, delays every client. The sharded store only queues the writes and suits the server best.
+ */
+public class PriceServer implements AutoCloseable {
+
+    //buffers kept for reuse, about two per busy connection
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private final PricingService service;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final BufferPool buffers = new BufferPool(PriceProtocol.MAX_FRAME_SIZE, MAX_POOLED_BUFFERS);
+    private final Thread selectorThread;
+    private volatile boolean closed;
+    private final LongAdder pricesReceived = new LongAdder();
+    //only written by the selector thread
+    private volatile int connections;
+
+    private PriceServer(PricingService service, Selector selector, ServerSocketChannel serverChannel) {
+        this.service = service;
+        this.selector = selector;
+        this.serverChannel = serverChannel;
+        this.selectorThread = new Thread(this::run, "price-server");
+        this.selectorThread.setDaemon(true);
+    }
+
+    /**
+     * Start serving the store on the address.
+     * @param service
+     * @param address port 0 picks a free port, see {@link #getLocalAddress()}
+     * @return the running server
+     * @throws IOException if the address cannot be bound
+     */
+    public static PriceServer open(PricingService service, InetSocketAddress address) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        PriceServer server = new PriceServer(service, selector, serverChannel);
+        server.selectorThread.start();
+        return server;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of prices added to the store by the clients
+     */
+    public long pricesReceived() {
+        return pricesReceived.sum();
+    }
+
+    public int connections() {
+        return connections;
+    }
+
+    /**
+     * Stop serving, every client connection is closed. The store is left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serve a concurrent store on the port given as argument, or the default port, until the process is
+     * killed.
+     * @param args [port]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SERVER_PORT;
+        PricingService service = new ConcurrentPricingServiceImpl();
+        new PriceEvictor(service).start();
+        PriceServer server = open(service, new InetSocketAddress(port));
+        System.out.println("Serving prices on " + server.getLocalAddress());
+        server.selectorThread.join();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        serve(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    disconnect(key);
+                }
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key, service, buffers, pricesReceived));
+        connections++;
+    }
+
+    private void serve(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        boolean open;
+        try {
+            open = connection.serve(key.isReadable());
+        } catch (IOException | RuntimeException e) {
+            //a broken connection, a client speaking another protocol or a failure serving it, the other clients carry on
+            open = false;
+        }
+        if (!open) {
+            disconnect(key);
+        }
+    }
+
+    private void disconnect(SelectionKey key) {
+        ((Connection) key.attachment()).release();
+        key.cancel();
+        closeQuietly(key.channel());
+        connections--;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+            //nothing left to serve
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.mfc.trading.instrument.service.server;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * Symbols received on a connection, by the id their sender gave them. Each symbol is decoded once per
+ * connection, the prices decoded afterwards share its String instance.
+ */
+final class SymbolDictionary {
+
+    //bounds the dictionary a peer can make us allocate
+    private static final int MAX_SYMBOLS = 1 << 20;
+
+    private String[] symbols = new String[64];
+    private boolean[] defined = new boolean[64];
+
+    void define(int id, String symbol) throws ProtocolException {
+        if (id < 0 || id >= MAX_SYMBOLS) {
+            throw new ProtocolException("Symbol id out of range: " + id);
+        }
+        if (id >= symbols.length) {
+            int length = Math.max(symbols.length * 2, id + 1);
+            symbols = Arrays.copyOf(symbols, length);
+            defined = Arrays.copyOf(defined, length);
+        }
+        symbols[id] = symbol;
+        defined[id] = true;
+    }
+
+    String symbol(int id) throws ProtocolException {
+        if (id < 0 || id >= defined.length || !defined[id]) {
+            throw new ProtocolException("Undefined symbol id: " + id);
+        }
+        return symbols[id];
+    }
+}
@@ -0,0 +1,158 @@
+package com.mfc.trading.instrument.service.sharded;
+
+import com.mfc.trading.instrument.service.PricingService;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One shard of a {@link ShardedPricingService}: a store only ever written by the partition's own worker
+ * thread, so its writers never contend. Writes wait in a bounded queue, a writer finding it full waits for
+ * the worker to catch up. Readers query the store directly, a thread that queued writes waits for its own
+ * writes to be applied first, the other readers do not wait.
+ */
+final class Partition implements AutoCloseable {
+
+    private static final long PARK_NANOS = 10_000;
+    private static final CompletableFuture<Void> APPLIED = CompletableFuture.completedFuture(null);
+    //wakes the worker blocked on an empty queue when the partition closes
+    private static final Runnable WAKE_UP = () -> {
+    };
+
+    final PricingService store;
+    private final int index;
+    private final BlockingQueue<Runnable> writes;
+    //the writes of the calling thread not reported to it yet
+    private final ThreadLocal<CompletableFuture<Void>> ownWrites = ThreadLocal.withInitial(() -> APPLIED);
+    //used by close to let the worker finish the writes that passed the check before the close
+    private final AtomicLong submitted = new AtomicLong();
+    //advanced by the worker once a write is run, or by a writer whose write is rejected
+    private final AtomicLong applied = new AtomicLong();
+    private volatile boolean closed;
+
+    Partition(int index, PricingService store, int queueSize) {
+        this.index = index;
+        this.store = store;
+        this.writes = new ArrayBlockingQueue<>(queueSize);
+        Thread writer = new Thread(this::run, "price-partition-" + index);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue an update of the store on the worker thread, waiting for room while the queue is full. Updates
+     * are applied in submission order. An update failing on the worker is reported to the thread that
+     * queued it only, by its next {@link #ownWrites()}.
+     * @param update
+     * @return completes once the update is applied, exceptionally with its failure
+     * @throws RejectedExecutionException if the partition is closed, or the caller is interrupted while
+     *                                    waiting for room
+     */
+    CompletableFuture<Void> write(Runnable update) {
+        submitted.incrementAndGet();
+        if (closed) {
+            applied.incrementAndGet();
+            throw new RejectedExecutionException("Partition " + index + " is closed");
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            writes.put(() -> {
+                try {
+                    update.run();
+                    done.complete(null);
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                }
+            });
+        } catch (InterruptedException e) {
+            applied.incrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in partition " + index, e);
+        }
+        CompletableFuture<Void> own = ownWrites.get();
+        ownWrites.set(own == APPLIED || (own.isDone() && !own.isCompletedExceptionally()) ? done : CompletableFuture.allOf(own, done));
+        return done;
+    }
+
+    /**
+     * The writes the calling thread queued so far, a failure among them is handed over once: later calls
+     * no longer report it.
+     * @return completes once the writes are applied, exceptionally if one of them failed
+     */
+    CompletableFuture<Void> ownWrites() {
+        CompletableFuture<Void> own = ownWrites.get();
+        if (own == APPLIED) {
+            return own;
+        }
+        if (own.isDone()) {
+            ownWrites.remove();
+        } else {
+            ownWrites.set(own.exceptionally(failure -> null));
+        }
+        return own;
+    }
+
+    /**
+     * Wait for writes of the partition, so a reader sees its own writes.
+     * @param writes as returned by {@link #ownWrites()}
+     * @throws IllegalStateException if one of the writes failed
+     */
+    void await(CompletableFuture<Void> writes) {
+        try {
+            writes.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("A write queued before to partition " + index + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the writes of the calling thread.
+     * @throws IllegalStateException if one of them failed
+     */
+    void awaitOwnWrites() {
+        await(ownWrites());
+    }
+
+    /**
+     * Stop the worker once the writes already queued are applied, later writes are rejected.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        submitted.incrementAndGet();
+        //a full queue keeps the worker busy, it sees the close after its next write
+        if (!writes.offer(WAKE_UP)) {
+            applied.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                //once closed, only the writers that passed the check before the close are waited for
+                Runnable update = closed ? writes.poll(PARK_NANOS, TimeUnit.NANOSECONDS) : writes.take();
+                if (update != null) {
+                    try {
+                        update.run();
+                    } finally {
+                        applied.incrementAndGet();
+                    }
+                }
+                if (closed && applied.get() == submitted.get()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            //the process is going away, the daemon thread with it
+            Thread.currentThread().interrupt();
+        }
+    }
+}
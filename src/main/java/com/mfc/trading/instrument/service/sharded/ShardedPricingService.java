@@ -0,0 +1,449 @@
+package com.mfc.trading.instrument.service.sharded;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.metrics.TimedReadWriteLock;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceDispatcher;
+import com.mfc.trading.instrument.service.stream.PriceListener;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
+import com.mfc.trading.instrument.service.util.BasketLookup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_PARTITION_QUEUE_SIZE;
+
+/**
+ * Pricing service partitioned by instrument across N shards, each owning a store written by a single
+ * worker thread. Writes are routed by instrument and queued to the worker of the shard, so writers on
+ * different shards never contend and a writer never waits for a lock. Queries of an instrument are
+ * served by its shard alone, queries of a vendor or of all prices fan out to the shards in parallel and
+ * merge the results.
+ * <p>
+ * add and addAll return once the prices are queued, a writer waits while the queue of a shard is full. A
+ * price the shards would fail on is rejected before it is queued, any other failure of a write on a shard
+ * is reported to the thread that queued it by its next query of the shard or cleanUp, never to another
+ * writer. A query waits only for the writes its own thread queued to its shards, so a writer reads its own
+ * writes while the other readers are served the current state of the shards. The fan out of a query runs
+ * on the threads of the service, not on the common pool.
+ * <p>
+ * The shards publish their new latest prices to one dispatcher, so a subscription spanning shards still
+ * has a single listener thread and conflates per series like on a single store.
+ */
+public class ShardedPricingService implements PricingService, StoreStatistics, AutoCloseable {
+
+    private final Partition[] partitions;
+    private final PriceDispatcher priceDispatcher = new PriceDispatcher();
+    //queries the shards other than the first one of a fan out, the caller queries that one
+    private final ExecutorService fanOutExecutor;
+
+    /**
+     * One partition per available core.
+     */
+    public ShardedPricingService() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_AGE);
+    }
+
+    /**
+     * @param partitions number of shards
+     * @param maxCacheAge in number of days
+     */
+    public ShardedPricingService(int partitions, long maxCacheAge) {
+        this(partitions, dispatcher -> new ConcurrentPricingServiceImpl(maxCacheAge, CompositeQuotePolicy.DEFAULT, dispatcher));
+    }
+
+    /**
+     * @param partitions number of shards
+     * @param partitionFactory creates the store of a shard publishing to the given dispatcher, the store
+     *                         must support readers concurrent with its writer
+     */
+    public ShardedPricingService(int partitions, Function<PriceDispatcher, ? extends PricingService> partitionFactory) {
+        this(partitions, DEFAULT_PARTITION_QUEUE_SIZE, partitionFactory);
+    }
+
+    /**
+     * @param partitions number of shards
+     * @param queueSize writes a shard queues before its writers wait
+     * @param partitionFactory creates the store of a shard publishing to the given dispatcher, the store
+     *                         must support readers concurrent with its writer
+     */
+    public ShardedPricingService(int partitions, int queueSize, Function<PriceDispatcher, ? extends PricingService> partitionFactory) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Number of partitions must be positive: " + partitions);
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Partition queue size must be positive: " + queueSize);
+        }
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition(i, partitionFactory.apply(priceDispatcher), queueSize);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        this.fanOutExecutor = Executors.newFixedThreadPool(Math.max(1, partitions - 1), runnable -> {
+            Thread thread = new Thread(runnable, "price-fan-out-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a price to the shard of its instrument.
+     * @param price
+     * @throws NullPointerException if the price has no vendor, instrument or date
+     */
+    @Override
+    public void add(Price price) {
+        validate(price);
+        Partition partition = partitionOf(price.getInstrument());
+        partition.write(() -> partition.store.add(price));
+    }
+
+    /**
+     * Split a batch by shard and queue each part as one batch of its shard, so a shard sees either none
+     * or all of its part of the batch. Nothing is queued if a price of the batch is invalid.
+     * @param prices
+     * @throws NullPointerException if a price has no vendor, instrument or date
+     */
+    @Override
+    public void addAll(Collection<Price> prices) {
+        for (Price price : prices) {
+            validate(price);
+        }
+        List<List<Price>> batches = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (Price price : prices) {
+            batches.get(indexOf(price.getInstrument())).add(price);
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            List<Price> batch = batches.get(i);
+            if (!batch.isEmpty()) {
+                Partition partition = partitions[i];
+                partition.write(() -> partition.store.addAll(batch));
+            }
+        }
+    }
+
+    @Override
+    public Set<Price> getByInstrument(String instrumentId, Date asOfDate) {
+        return readPartitionOf(instrumentId).getByInstrument(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Map<String, Set<Price>> getByInstruments(Collection<String> instrumentIds, Date asOfDate) {
+        return BasketLookup.join(getByInstrumentsAsync(instrumentIds, asOfDate, BasketLookup.defaultExecutor()));
+    }
+
+    /**
+     * Split the basket by shard and resolve each part on its shard in parallel. Each part is one
+     * snapshot of its shard, the shards are not read at the same instant.
+     * @param instrumentIds
+     * @param asOfDate
+     * @param executor
+     * @return
+     */
+    @Override
+    public CompletableFuture<Map<String, Set<Price>>> getByInstrumentsAsync(Collection<String> instrumentIds, Date asOfDate, Executor executor) {
+        List<List<String>> baskets = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            baskets.add(new ArrayList<>());
+        }
+        for (String instrumentId : instrumentIds) {
+            baskets.get(indexOf(instrumentId)).add(instrumentId);
+        }
+        List<CompletableFuture<Map<String, Set<Price>>>> parts = new ArrayList<>();
+        for (int i = 0; i < partitions.length; i++) {
+            List<String> basket = baskets.get(i);
+            if (!basket.isEmpty()) {
+                Partition partition = partitions[i];
+                CompletableFuture<Void> ownWrites = partition.ownWrites();
+                parts.add(CompletableFuture
+                        .runAsync(() -> partition.await(ownWrites), executor)
+                        .thenCompose(ignored -> partition.store.getByInstrumentsAsync(basket, asOfDate, executor)));
+            }
+        }
+        return CompletableFuture
+                .allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    Map<String, Set<Price>> prices = new HashMap<>();
+                    for (CompletableFuture<Map<String, Set<Price>>> part : parts) {
+                        prices.putAll(part.join());
+                    }
+                    return prices;
+                });
+    }
+
+    /**
+     * Latest or dated prices of the vendor, merged from every shard. The latest prices are returned
+     * read only like those of the single store services.
+     * @param vendor
+     * @param asOfDate
+     * @return
+     */
+    @Override
+    public Set<Price> getByVendor(String vendor, Date asOfDate) {
+        Set<Price> prices = fanOut(store -> store.getByVendor(vendor, asOfDate));
+        return asOfDate == null ? Collections.unmodifiableSet(prices) : prices;
+    }
+
+    @Override
+    public Set<Price> getByInstrumentAsOf(String instrumentId, Date asOfDate) {
+        return readPartitionOf(instrumentId).getByInstrumentAsOf(instrumentId, asOfDate);
+    }
+
+    @Override
+    public Set<Price> getByVendorAsOf(String vendor, Date asOfDate) {
+        return fanOut(store -> store.getByVendorAsOf(vendor, asOfDate));
+    }
+
+    @Override
+    public Set<Price> getByInstrumentBetween(String instrumentId, Date from, Date to) {
+        return readPartitionOf(instrumentId).getByInstrumentBetween(instrumentId, from, to);
+    }
+
+    @Override
+    public Set<Price> getByVendorBetween(String vendor, Date from, Date to) {
+        return fanOut(store -> store.getByVendorBetween(vendor, from, to));
+    }
+
+    @Override
+    public Set<Price> getAllPrices() {
+        return fanOut(PricingService::getAllPrices);
+    }
+
+    /**
+     * A query naming its instrument runs on the shard of the instrument only, any other query runs on
+     * every shard and the results are merged.
+     * @param query
+     * @return
+     */
+    @Override
+    public Set<Price> query(PriceQuery query) {
+        if (query.getInstrument() != null) {
+            return readPartitionOf(query.getInstrument()).query(query);
+        }
+        return fanOut(store -> store.query(query));
+    }
+
+    /**
+     * Visit the shards one after the other on the calling thread, so the visitor need not be thread safe.
+     * Each shard is visited once the writes the caller queued to it are applied.
+     * @param query
+     * @param visitor
+     */
+    @Override
+    public void forEach(PriceQuery query, Consumer<? super Price> visitor) {
+        if (query.getInstrument() != null) {
+            readPartitionOf(query.getInstrument()).forEach(query, visitor);
+            return;
+        }
+        for (Partition partition : partitions) {
+            partition.awaitOwnWrites();
+            partition.store.forEach(query, visitor);
+        }
+    }
+
+    /**
+     * A cursor chaining the cursors of the shards, the cursor of a shard is opened once the previous
+     * shard is exhausted and the writes the caller queued to it before opening the cursor are applied.
+     * @param query
+     * @return
+     */
+    @Override
+    public PriceCursor cursor(PriceQuery query) {
+        if (query.getInstrument() != null) {
+            return readPartitionOf(query.getInstrument()).cursor(query);
+        }
+        List<Supplier<PriceCursor>> cursors = new ArrayList<>(partitions.length);
+        for (Partition partition : partitions) {
+            CompletableFuture<Void> ownWrites = partition.ownWrites();
+            cursors.add(() -> {
+                partition.await(ownWrites);
+                return partition.store.cursor(query);
+            });
+        }
+        return PriceCursor.concat(cursors);
+    }
+
+    /**
+     * Clean up every shard on its worker thread, returns once all of them are done.
+     * @return the number of prices removed from the shards
+     * @throws IllegalStateException once all shards are done, if the clean up of a shard, or a write the
+     *                               caller queued before, failed
+     */
+    @Override
+    public int cleanUp() {
+        AtomicInteger expired = new AtomicInteger();
+        for (Partition partition : partitions) {
+            partition.write(() -> expired.addAndGet(partition.store.cleanUp()));
+        }
+        IllegalStateException failure = null;
+        for (Partition partition : partitions) {
+            try {
+                partition.awaitOwnWrites();
+            } catch (IllegalStateException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return expired.get();
+    }
+
+    @Override
+    public CompositeQuote getCompositeQuote(String instrumentId) {
+        return readPartitionOf(instrumentId).getCompositeQuote(instrumentId);
+    }
+
+    @Override
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return priceDispatcher.subscribeToInstrument(instrumentId, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return priceDispatcher.subscribeToVendor(vendor, listener);
+    }
+
+    @Override
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return priceDispatcher.subscribeToAll(listener);
+    }
+
+    /**
+     * Price counts merged from the shards keeping statistics.
+     * @return
+     */
+    @Override
+    public Map<String, Integer> priceCountByVendor() {
+        return mergeCounts(StoreStatistics::priceCountByVendor);
+    }
+
+    @Override
+    public Map<String, Integer> priceCountByInstrument() {
+        return mergeCounts(StoreStatistics::priceCountByInstrument);
+    }
+
+    @Override
+    public long expiredCount() {
+        long expired = 0;
+        for (Partition partition : partitions) {
+            if (partition.store instanceof StoreStatistics) {
+                expired += ((StoreStatistics) partition.store).expiredCount();
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    public long duplicateCount() {
+        long duplicates = 0;
+        for (Partition partition : partitions) {
+            if (partition.store instanceof StoreStatistics) {
+                duplicates += ((StoreStatistics) partition.store).duplicateCount();
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return empty, each shard has its own store and no shared lock
+     */
+    @Override
+    public Optional<TimedReadWriteLock> storeLock() {
+        return Optional.empty();
+    }
+
+    /**
+     * Stop the worker threads once the writes already queued are applied, and the fan out threads.
+     */
+    @Override
+    public void close() {
+        for (Partition partition : partitions) {
+            partition.close();
+        }
+        fanOutExecutor.shutdown();
+    }
+
+    private PricingService readPartitionOf(String instrumentId) {
+        Partition partition = partitionOf(instrumentId);
+        partition.awaitOwnWrites();
+        return partition.store;
+    }
+
+    private Set<Price> fanOut(Function<PricingService, Set<Price>> query) {
+        List<CompletableFuture<Set<Price>>> parts = new ArrayList<>(partitions.length - 1);
+        for (int i = 1; i < partitions.length; i++) {
+            Partition partition = partitions[i];
+            CompletableFuture<Void> ownWrites = partition.ownWrites();
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                partition.await(ownWrites);
+                return query.apply(partition.store);
+            }, fanOutExecutor));
+        }
+        partitions[0].awaitOwnWrites();
+        Set<Price> prices = new HashSet<>(query.apply(partitions[0].store));
+        for (CompletableFuture<Set<Price>> part : parts) {
+            prices.addAll(BasketLookup.join(part));
+        }
+        return prices;
+    }
+
+    private static void validate(Price price) {
+        Objects.requireNonNull(price, "price");
+        Objects.requireNonNull(price.getVendor(), "vendor");
+        Objects.requireNonNull(price.getInstrument(), "instrument");
+        Objects.requireNonNull(price.getAsOfDate(), "asOfDate");
+    }
+
+    private Map<String, Integer> mergeCounts(Function<StoreStatistics, Map<String, Integer>> counts) {
+        Map<String, Integer> merged = new HashMap<>();
+        for (Partition partition : partitions) {
+            if (partition.store instanceof StoreStatistics) {
+                counts.apply((StoreStatistics) partition.store).forEach((group, count) -> merged.merge(group, count, Integer::sum));
+            }
+        }
+        return merged;
+    }
+
+    private Partition partitionOf(String instrumentId) {
+        return partitions[indexOf(instrumentId)];
+    }
+
+    private int indexOf(String instrumentId) {
+        if (instrumentId == null) {
+            return 0;
+        }
+        int hash = instrumentId.hashCode();
+        //spread the high bits, ISINs sharing a prefix differ in their last characters
+        return Math.floorMod(hash ^ (hash >>> 16), partitions.length);
+    }
+}
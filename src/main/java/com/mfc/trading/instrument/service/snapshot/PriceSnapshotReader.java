@@ -0,0 +1,199 @@
+package com.mfc.trading.instrument.service.snapshot;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.ScaledDecimal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.SortedSet;
+
+import static com.mfc.trading.instrument.service.snapshot.PriceSnapshotWriter.*;
+
+/**
+ * Reads a snapshot written by {@link PriceSnapshotWriter} from a channel through a single pooled buffer,
+ * handing each series to the store as soon as its block is decoded. Every length, count and symbol id is
+ * checked against its bounds before it is used, a corrupt snapshot fails with an IOException.
+ */
+public class PriceSnapshotReader {
+
+    /**
+     * Receives the series of a snapshot.
+     */
+    public interface SeriesConsumer {
+        /**
+         * @param vendor
+         * @param instrument
+         * @param prices read only prices of the series in series order, latest first
+         */
+        void accept(String vendor, String instrument, SortedSet<Price> prices);
+    }
+
+    private final ReadableByteChannel channel;
+    //series are read into arrays grown as the prices are read, so a corrupt count cannot allocate more
+    private static final int INITIAL_SERIES_SIZE = 64;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private String[] symbols = new String[1024];
+    private int symbolCount;
+
+    public PriceSnapshotReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.flip();
+    }
+
+    /**
+     * Read the whole snapshot.
+     * @param consumer receives every series
+     * @return the number of prices read
+     * @throws IOException if the channel does not hold a complete snapshot
+     */
+    public long read(SeriesConsumer consumer) throws IOException {
+        ensure(2 * Integer.BYTES);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a price snapshot");
+        }
+        long priceCount = 0;
+        while (true) {
+            ensure(1);
+            byte tag = buffer.get();
+            if (tag == SYMBOL) {
+                readSymbol();
+            } else if (tag == SERIES) {
+                priceCount += readSeries(consumer);
+            } else if (tag == END) {
+                ensure(Long.BYTES);
+                long expected = buffer.getLong();
+                if (expected != priceCount) {
+                    throw new IOException("Snapshot holds " + expected + " prices, read " + priceCount);
+                }
+                return priceCount;
+            } else {
+                throw new IOException("Corrupt snapshot, unknown block " + tag);
+            }
+        }
+    }
+
+    private void readSymbol() throws IOException {
+        //the writer numbers the symbols in the order it writes them
+        long id = getVarLong();
+        if (id != symbolCount) {
+            throw new IOException("Corrupt snapshot, symbol id " + id + " out of order");
+        }
+        long length = unZigZag(getVarLong());
+        if (length < -1 || length > BUFFER_SIZE) {
+            throw new IOException("Corrupt snapshot, symbol length out of range: " + length);
+        }
+        String symbol = null;
+        if (length >= 0) {
+            ensure((int) length);
+            byte[] bytes = new byte[(int) length];
+            buffer.get(bytes);
+            symbol = new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (symbolCount == symbols.length) {
+            symbols = Arrays.copyOf(symbols, symbols.length * 2);
+        }
+        symbols[symbolCount++] = symbol;
+    }
+
+    private int readSeries(SeriesConsumer consumer) throws IOException {
+        String vendor = symbols[getSymbolId()];
+        String instrument = symbols[getSymbolId()];
+        long length = getVarLong();
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Corrupt snapshot, series length out of range: " + length);
+        }
+        int count = (int) length;
+        long[] times = new long[Math.min(count, INITIAL_SERIES_SIZE)];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += unZigZag(getVarLong());
+            if (i == times.length) {
+                times = Arrays.copyOf(times, (int) Math.min(count, 2L * times.length));
+            }
+            times[i] = previous;
+        }
+        //every time took a byte of the channel at least, the count is no longer larger than the snapshot
+        int[] assetClasses = new int[count];
+        for (int i = 0; i < count; i++) {
+            assetClasses[i] = getSymbolId();
+        }
+        int[] markets = new int[count];
+        for (int i = 0; i < count; i++) {
+            markets[i] = getSymbolId();
+        }
+        byte[] bidScales = new byte[count];
+        for (int i = 0; i < count; i++) {
+            ensure(1);
+            bidScales[i] = buffer.get();
+        }
+        long[] bids = new long[count];
+        for (int i = 0; i < count; i++) {
+            bids[i] = unZigZag(getVarLong());
+        }
+        byte[] askScales = new byte[count];
+        for (int i = 0; i < count; i++) {
+            ensure(1);
+            askScales[i] = buffer.get();
+        }
+        Price[] prices = new Price[count];
+        for (int i = 0; i < count; i++) {
+            long ask = unZigZag(getVarLong());
+            prices[i] = new Price(new Date(times[i]), symbols[assetClasses[i]], instrument, vendor, symbols[markets[i]],
+                    ScaledDecimal.decode(bids[i], bidScales[i]), ScaledDecimal.decode(ask, askScales[i]));
+        }
+        consumer.accept(vendor, instrument, new SortedPriceArray(prices));
+        return count;
+    }
+
+    /**
+     * @return the id of a symbol read before
+     * @throws IOException if no such symbol was read
+     */
+    private int getSymbolId() throws IOException {
+        long id = getVarLong();
+        if (id < 0 || id >= symbolCount) {
+            throw new IOException("Corrupt snapshot, unknown symbol id " + id);
+        }
+        return (int) id;
+    }
+
+    private long getVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            ensure(1);
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt snapshot, malformed varint");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        if (bytes > buffer.capacity()) {
+            //more than the buffer holds, the reads would never fill it
+            throw new IOException("Corrupt snapshot, block of " + bytes + " bytes");
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Snapshot is truncated");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,168 @@
+package com.mfc.trading.instrument.service.snapshot;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.util.ScaledDecimal;
+import com.mfc.trading.instrument.service.util.SymbolTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Streams prices to a channel in the snapshot format, one series at a time through a single pooled
+ * buffer, so the store is never copied.
+ *
+ * <pre>
+ * snapshot := magic(int) version(int) block* END priceCount(long)
+ * SYMBOL   := tag id(varint) length(varint, -1 for null) utf8 bytes
+ * SERIES   := tag vendor(varint) instrument(varint) count(varint)
+ *             time column: first time, then deltas to the previous price (zigzag varlong)
+ *             asset class column, market column (varint ids)
+ *             bid scale column (byte), bid column (zigzag varlong unscaled)
+ *             ask scale column (byte), ask column (zigzag varlong unscaled)
+ * </pre>
+ * Symbols (instruments, vendors, markets, asset classes) share one dictionary, an entry is written the
+ * first time a symbol is used.
+ */
+public class PriceSnapshotWriter implements AutoCloseable {
+
+    static final int MAGIC = 0x50525353;//PRSS
+    static final int VERSION = 1;
+    static final byte END = 0;
+    static final byte SYMBOL = 1;
+    static final byte SERIES = 2;
+    static final int BUFFER_SIZE = 64 * 1024;
+    //widest encoding of a varlong plus a tag
+    private static final int MAX_FIELD_SIZE = 11;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final SymbolTable symbols = new SymbolTable(1024);
+    private long priceCount;
+
+    public PriceSnapshotWriter(WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+    }
+
+    /**
+     * Write one series.
+     * @param vendor
+     * @param instrument
+     * @param prices the prices of the series in series order, iterated once per column
+     * @throws IOException
+     */
+    public void writeSeries(String vendor, String instrument, Collection<Price> prices) throws IOException {
+        int count = prices.size();
+        if (count == 0) {
+            return;
+        }
+        int vendorId = symbol(vendor);
+        int instrumentId = symbol(instrument);
+        for (Price price : prices) {
+            symbol(price.getAssetClass());
+            symbol(price.getMarket());
+        }
+        ensure(3 * MAX_FIELD_SIZE);
+        buffer.put(SERIES);
+        putVarLong(vendorId);
+        putVarLong(instrumentId);
+        putVarLong(count);
+        long previous = 0;
+        for (Price price : prices) {
+            long time = price.getAsOfDate().getTime();
+            ensure(MAX_FIELD_SIZE);
+            putVarLong(zigZag(time - previous));
+            previous = time;
+        }
+        for (Price price : prices) {
+            ensure(MAX_FIELD_SIZE);
+            putVarLong(symbols.find(price.getAssetClass()));
+        }
+        for (Price price : prices) {
+            ensure(MAX_FIELD_SIZE);
+            putVarLong(symbols.find(price.getMarket()));
+        }
+        for (Price price : prices) {
+            ensure(1);
+            buffer.put(ScaledDecimal.scale(price.getBid()));
+        }
+        for (Price price : prices) {
+            ensure(MAX_FIELD_SIZE);
+            putVarLong(zigZag(ScaledDecimal.unscaled(price.getBid())));
+        }
+        for (Price price : prices) {
+            ensure(1);
+            buffer.put(ScaledDecimal.scale(price.getAsk()));
+        }
+        for (Price price : prices) {
+            ensure(MAX_FIELD_SIZE);
+            putVarLong(zigZag(ScaledDecimal.unscaled(price.getAsk())));
+        }
+        priceCount += count;
+    }
+
+    /**
+     * Write the end of the snapshot and flush it, the channel is left open.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        ensure(1 + Long.BYTES);
+        buffer.put(END);
+        buffer.putLong(priceCount);
+        flush();
+    }
+
+    private int symbol(String symbol) throws IOException {
+        int id = symbols.find(symbol);
+        if (id != SymbolTable.UNKNOWN) {
+            return id;
+        }
+        id = symbols.intern(symbol);
+        byte[] bytes = symbol == null ? null : symbol.getBytes(StandardCharsets.UTF_8);
+        int length = bytes == null ? 0 : bytes.length;
+        if (length + 3 * MAX_FIELD_SIZE > BUFFER_SIZE) {
+            throw new IllegalArgumentException("Symbol too long for a snapshot: " + symbol);
+        }
+        ensure(length + 3 * MAX_FIELD_SIZE);
+        buffer.put(SYMBOL);
+        putVarLong(id);
+        if (bytes == null) {
+            putVarLong(zigZag(-1));
+        } else {
+            putVarLong(zigZag(length));
+            buffer.put(bytes);
+        }
+        return id;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
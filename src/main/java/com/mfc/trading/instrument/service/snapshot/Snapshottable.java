@@ -0,0 +1,26 @@
+package com.mfc.trading.instrument.service.snapshot;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A price store that can checkpoint its whole content in the binary snapshot format and load it back,
+ * e.g. on another node.
+ */
+public interface Snapshottable {
+
+    /**
+     * Stream a consistent snapshot of every stored price to the channel, series by series.
+     * @param channel
+     * @throws IOException
+     */
+    void writeSnapshot(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Load a snapshot into the store, building each series straight from its snapshot block.
+     * @param channel
+     * @throws IOException
+     */
+    void restoreSnapshot(ReadableByteChannel channel) throws IOException;
+}
@@ -0,0 +1,90 @@
+package com.mfc.trading.instrument.service.snapshot;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.*;
+
+/**
+ * Read only sorted set over an array of prices already in series order (latest first). Handing it to
+ * a TreeSet or ConcurrentSkipListSet constructor builds the series in linear time, without comparing
+ * the prices again.
+ */
+final class SortedPriceArray extends AbstractSet<Price> implements SortedSet<Price> {
+
+    private final Price[] prices;
+    private final int from;
+    private final int to;
+
+    SortedPriceArray(Price[] prices) {
+        this(prices, 0, prices.length);
+    }
+
+    private SortedPriceArray(Price[] prices, int from, int to) {
+        this.prices = prices;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public Iterator<Price> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(prices).subList(from, to)).iterator();
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public Comparator<? super Price> comparator() {
+        return null;
+    }
+
+    @Override
+    public SortedSet<Price> subSet(Price fromElement, Price toElement) {
+        return new SortedPriceArray(prices, indexOf(fromElement), Math.max(indexOf(fromElement), indexOf(toElement)));
+    }
+
+    @Override
+    public SortedSet<Price> headSet(Price toElement) {
+        return new SortedPriceArray(prices, from, indexOf(toElement));
+    }
+
+    @Override
+    public SortedSet<Price> tailSet(Price fromElement) {
+        return new SortedPriceArray(prices, indexOf(fromElement), to);
+    }
+
+    @Override
+    public Price first() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return prices[from];
+    }
+
+    @Override
+    public Price last() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return prices[to - 1];
+    }
+
+    /**
+     * @return index of the first price not less than the element
+     */
+    private int indexOf(Price element) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (prices[mid].compareTo(element) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,389 @@
+package com.mfc.trading.instrument.service.stream;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_DISPATCH_RING_SIZE;
+
+/**
+ * Pushes new latest prices to subscribers by instrument, by vendor or for all prices.
+ * <p>
+ * Writers publish into a lock free multi producer ring buffer drained by a single dispatcher thread.
+ * The dispatcher never runs listener code, it only routes each price into the mailbox of the matching
+ * subscriptions. A mailbox keeps the latest pending price per (vendor, instrument) series and is drained
+ * on the delivery executor, so a slow listener only gets conflated updates and never holds back the
+ * writers. A writer finding the ring full does not wait either, its price is conflated per series in an
+ * overflow routed once the prices claimed in the ring before it are, and later writers go through the
+ * overflow until then. Publishing costs a single volatile read while nobody is subscribed.
+ */
+public final class PriceDispatcher {
+
+    private final AtomicReferenceArray<Price> ring;
+    private final int mask;
+    //next sequence to claim by the writers
+    private final AtomicLong tail = new AtomicLong();
+    //next sequence to dispatch, only advanced by the dispatcher thread
+    private final AtomicLong head = new AtomicLong();
+    private final Executor deliveryExecutor;
+    //latest price per series published while the ring was full, guarded by itself
+    private final Map<SeriesKey, Price> overflow = new LinkedHashMap<>();
+    //set while the overflow holds prices, writers keep the order of a series by going through it too
+    private volatile boolean overflowing;
+
+    private final List<Subscription> allSubscriptions = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, List<Subscription>> subscriptionsByInstrument = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<Subscription>> subscriptionsByVendor = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriptionCount = new AtomicInteger();
+
+    //started with the first subscription, gone once the last one is closed
+    private volatile Thread dispatcher;
+    private volatile boolean parked;
+
+    public PriceDispatcher() {
+        this(DEFAULT_DISPATCH_RING_SIZE, defaultDeliveryExecutor());
+    }
+
+    /**
+     * @param ringSize capacity of the ring buffer, rounded up to a power of two
+     * @param deliveryExecutor runs the listeners, one task at a time per subscription
+     */
+    public PriceDispatcher(int ringSize, Executor deliveryExecutor) {
+        if (ringSize <= 0) {
+            throw new IllegalArgumentException("Ring size must be positive: " + ringSize);
+        }
+        int capacity = Integer.highestOneBit(ringSize);
+        if (capacity < ringSize) {
+            capacity <<= 1;
+        }
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.deliveryExecutor = Objects.requireNonNull(deliveryExecutor);
+    }
+
+    /**
+     * Publish a price that became the latest of its series. Callers must publish the prices of a series
+     * in the order they were stored. Never waits, neither for the dispatcher nor for a listener: while
+     * the ring is full the price replaces the one of its series pending in the overflow.
+     * @param price
+     */
+    public void publish(Price price) {
+        if (subscriptionCount.get() == 0) {
+            return;
+        }
+        if (!overflowing) {
+            //a slot is only claimed while the ring has room for it
+            for (long sequence = tail.get(); sequence - head.get() < ring.length(); sequence = tail.get()) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    //a volatile write, so the parked flag read below cannot be reordered before it
+                    ring.set(index(sequence), price);
+                    wakeUpDispatcher();
+                    return;
+                }
+            }
+        }
+        synchronized (overflow) {
+            overflowing = true;
+            overflow.put(new SeriesKey(price.getVendor(), price.getInstrument()), price);
+        }
+        wakeUpDispatcher();
+    }
+
+    private void wakeUpDispatcher() {
+        if (parked) {
+            Thread thread = dispatcher;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Subscribe to the new latest prices of an instrument, conflated per vendor.
+     * @param instrumentId
+     * @param listener
+     * @return
+     */
+    public PriceSubscription subscribeToInstrument(String instrumentId, PriceListener listener) {
+        return subscribe(subscriptionsByInstrument, Objects.requireNonNull(instrumentId), listener);
+    }
+
+    /**
+     * Subscribe to the new latest prices of a vendor, conflated per instrument.
+     * @param vendor
+     * @param listener
+     * @return
+     */
+    public PriceSubscription subscribeToVendor(String vendor, PriceListener listener) {
+        return subscribe(subscriptionsByVendor, Objects.requireNonNull(vendor), listener);
+    }
+
+    /**
+     * Subscribe to the new latest prices of every series, conflated per (vendor, instrument).
+     * @param listener
+     * @return
+     */
+    public PriceSubscription subscribeToAll(PriceListener listener) {
+        return subscribe(null, null, listener);
+    }
+
+    /**
+     * @param subscriptionsByKey subscriptions by instrument or by vendor, null for all prices
+     * @param key
+     * @param listener
+     * @return
+     */
+    private synchronized PriceSubscription subscribe(ConcurrentMap<String, List<Subscription>> subscriptionsByKey, String key, PriceListener listener) {
+        Subscription subscription = new Subscription(subscriptionsByKey, key, Objects.requireNonNull(listener));
+        if (subscriptionsByKey == null) {
+            allSubscriptions.add(subscription);
+        } else {
+            subscriptionsByKey.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(subscription);
+        }
+        if (dispatcher == null) {
+            //the slots claimed and the overflow filled for the previous subscribers are not routed
+            long discardBefore = tail.get();
+            synchronized (overflow) {
+                overflow.clear();
+                overflowing = false;
+            }
+            Thread thread = new Thread(() -> dispatch(discardBefore), "price-dispatcher");
+            thread.setDaemon(true);
+            dispatcher = thread;
+            thread.start();
+        }
+        //counted last, so writers only publish once the dispatcher runs
+        subscriptionCount.incrementAndGet();
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        List<Subscription> subscriptions = subscription.subscriptionsByKey == null
+                ? allSubscriptions
+                : subscription.subscriptionsByKey.get(subscription.key);
+        if (subscriptions == null || !subscriptions.remove(subscription)) {
+            return;
+        }
+        if (subscription.subscriptionsByKey != null && subscriptions.isEmpty()) {
+            subscription.subscriptionsByKey.remove(subscription.key);
+        }
+        //let an idle dispatcher notice it has nothing left to do
+        subscriptionCount.decrementAndGet();
+        LockSupport.unpark(dispatcher);
+    }
+
+    /**
+     * @param discardBefore first sequence claimed for the subscribers of this dispatcher, the slots
+     *                      before it are drained without routing their prices
+     */
+    private void dispatch(long discardBefore) {
+        long sequence = head.get();
+        while (true) {
+            int index = index(sequence);
+            Price price = ring.get(index);
+            if (price == null) {
+                if (!routeOverflow(sequence) && !await(index, sequence)) {
+                    return;
+                }
+                continue;
+            }
+            ring.lazySet(index, null);
+            head.lazySet(sequence + 1);
+            if (sequence >= discardBefore) {
+                route(price);
+            }
+            sequence++;
+        }
+    }
+
+    /**
+     * Route the prices of the overflow once every slot claimed before them is routed.
+     * @param sequence next sequence to dispatch
+     * @return true if the overflow was routed
+     */
+    private boolean routeOverflow(long sequence) {
+        if (!overflowing) {
+            return false;
+        }
+        List<Price> prices;
+        synchronized (overflow) {
+            //a writer still filling a claimed slot published before the overflow
+            if (!overflowing || tail.get() != sequence) {
+                return false;
+            }
+            prices = new ArrayList<>(overflow.values());
+            overflow.clear();
+            overflowing = false;
+        }
+        for (Price price : prices) {
+            route(price);
+        }
+        return true;
+    }
+
+    /**
+     * Park the dispatcher until a writer fills the slot or the overflow can be routed.
+     * @param index
+     * @param sequence
+     * @return false when the dispatcher stopped as nobody is subscribed any more
+     */
+    private boolean await(int index, long sequence) {
+        if (subscriptionCount.get() == 0) {
+            synchronized (this) {
+                if (subscriptionCount.get() == 0 && ring.get(index) == null) {
+                    dispatcher = null;
+                    return false;
+                }
+            }
+        }
+        parked = true;
+        //checked again after raising the flag, a writer filling the slot meanwhile sees the flag and unparks
+        if (ring.get(index) == null && !(overflowing && tail.get() == sequence)) {
+            LockSupport.park(this);
+        }
+        parked = false;
+        return true;
+    }
+
+    private void route(Price price) {
+        SeriesKey key = new SeriesKey(price.getVendor(), price.getInstrument());
+        offer(allSubscriptions, key, price);
+        offer(subscriptionsOf(subscriptionsByInstrument, price.getInstrument()), key, price);
+        offer(subscriptionsOf(subscriptionsByVendor, price.getVendor()), key, price);
+    }
+
+    private static List<Subscription> subscriptionsOf(Map<String, List<Subscription>> subscriptions, String key) {
+        return key == null ? null : subscriptions.get(key);
+    }
+
+    private void offer(List<Subscription> subscriptions, SeriesKey key, Price price) {
+        if (subscriptions != null) {
+            for (Subscription subscription : subscriptions) {
+                subscription.offer(key, price);
+            }
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    private static ExecutorService defaultDeliveryExecutor() {
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "price-listener");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A listener and its conflating mailbox. At most one delivery task per subscription is queued on
+     * the executor at any time, so a listener is never invoked concurrently.
+     */
+    private final class Subscription implements PriceSubscription, Runnable {
+        private final ConcurrentMap<String, List<Subscription>> subscriptionsByKey;
+        private final String key;
+        private final PriceListener listener;
+        private final ConcurrentMap<SeriesKey, Price> pending = new ConcurrentHashMap<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong conflated = new AtomicLong();
+        private volatile boolean closed;
+
+        private Subscription(ConcurrentMap<String, List<Subscription>> subscriptionsByKey, String key, PriceListener listener) {
+            this.subscriptionsByKey = subscriptionsByKey;
+            this.key = key;
+            this.listener = listener;
+        }
+
+        private void offer(SeriesKey key, Price price) {
+            if (pending.put(key, price) != null) {
+                conflated.incrementAndGet();
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                deliveryExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                for (Map.Entry<SeriesKey, Price> entry : pending.entrySet()) {
+                    if (closed) {
+                        pending.clear();
+                        break;
+                    }
+                    Price price = entry.getValue();
+                    //a price replaced meanwhile stays pending and is picked up by the next pass
+                    if (pending.remove(entry.getKey(), price)) {
+                        deliver(price);
+                    }
+                }
+                scheduled.set(false);
+                //an offer racing with the end of the pass may have seen scheduled still set
+            } while (!pending.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        private void deliver(Price price) {
+            try {
+                listener.onPrice(price);
+            } catch (RuntimeException e) {
+                //keep delivering to the listener, report the failure like any uncaught exception
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+
+        @Override
+        public long conflatedCount() {
+            return conflated.get();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            unsubscribe(this);
+        }
+    }
+
+    private static final class SeriesKey {
+        private final String vendor;
+        private final String instrument;
+
+        private SeriesKey(String vendor, String instrument) {
+            this.vendor = vendor;
+            this.instrument = instrument;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return Objects.equals(vendor, other.vendor) && Objects.equals(instrument, other.instrument);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(vendor) + Objects.hashCode(instrument);
+        }
+    }
+}
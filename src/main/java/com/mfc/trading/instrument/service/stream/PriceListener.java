@@ -0,0 +1,12 @@
+package com.mfc.trading.instrument.service.stream;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+/**
+ * Receives the prices pushed to a subscription. Invoked from a delivery thread, one call at a time
+ * per subscription.
+ */
+@FunctionalInterface
+public interface PriceListener {
+    void onPrice(Price price);
+}
@@ -0,0 +1,16 @@
+package com.mfc.trading.instrument.service.stream;
+
+/**
+ * Handle of a listener registered with a {@link PriceDispatcher}, closing it stops the deliveries.
+ */
+public interface PriceSubscription extends AutoCloseable {
+
+    /**
+     * @return the number of prices replaced by a later price of the same series before the listener
+     * could receive them
+     */
+    long conflatedCount();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,138 @@
+package com.mfc.trading.instrument.service.util;
+
+import com.mfc.trading.instrument.pojo.Price;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_BASKET_CHUNK_SIZE;
+
+/**
+ * Resolves a basket of instruments by splitting it in chunks looked up in parallel on an executor.
+ * The calling thread looks up the first chunk, then every chunk no executor thread has started yet,
+ * so it only ever waits for lookups already running. A store can therefore hold its read lock around
+ * the whole basket without a busy executor dead locking the caller, and the chunks read the store
+ * while the caller keeps the writers out.
+ */
+public final class BasketLookup {
+
+    private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+
+    private BasketLookup() {
+    }
+
+    /**
+     * @return a virtual thread per task executor when the runtime has virtual threads, the common
+     * fork join pool otherwise
+     */
+    public static Executor defaultExecutor() {
+        return DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * Look up every instrument of the basket, an unknown instrument maps to an empty set.
+     * @param instrumentIds
+     * @param lookup prices of one instrument, must be safe to call from the executor threads
+     * @param executor
+     * @return a new map of the prices by instrument
+     */
+    public static Map<String, Set<Price>> resolve(Collection<String> instrumentIds, Function<String, Set<Price>> lookup, Executor executor) {
+        String[] basket = instrumentIds.toArray(new String[0]);
+        int chunkCount = (basket.length + DEFAULT_BASKET_CHUNK_SIZE - 1) / DEFAULT_BASKET_CHUNK_SIZE;
+        Map<String, Set<Price>> prices = new HashMap<>(basket.length * 4 / 3 + 1);
+        Chunk[] chunks = new Chunk[chunkCount];
+        for (int i = 1; i < chunkCount; i++) {
+            chunks[i] = new Chunk(basket, i * DEFAULT_BASKET_CHUNK_SIZE, Math.min(basket.length, (i + 1) * DEFAULT_BASKET_CHUNK_SIZE), lookup);
+            try {
+                executor.execute(chunks[i]);
+            } catch (RejectedExecutionException e) {
+                //left to the calling thread
+            }
+        }
+        resolve(basket, 0, Math.min(basket.length, DEFAULT_BASKET_CHUNK_SIZE), lookup, prices);
+        for (int i = 1; i < chunkCount; i++) {
+            chunks[i].run();
+        }
+        for (int i = 1; i < chunkCount; i++) {
+            prices.putAll(join(chunks[i].result));
+        }
+        return prices;
+    }
+
+    /**
+     * Wait for a future, rethrowing the unchecked failure that completed it as is.
+     * @param future
+     * @return
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void resolve(String[] basket, int from, int to, Function<String, Set<Price>> lookup, Map<String, Set<Price>> prices) {
+        for (int i = from; i < to; i++) {
+            prices.put(basket[i], lookup.apply(basket[i]));
+        }
+    }
+
+    private static Executor createDefaultExecutor() {
+        try {
+            //virtual threads are only there from Java 21, the build targets 17
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    /**
+     * Part of a basket, looked up by the first thread that claims it.
+     */
+    private static final class Chunk implements Runnable {
+        private final String[] basket;
+        private final int from;
+        private final int to;
+        private final Function<String, Set<Price>> lookup;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Map<String, Set<Price>>> result = new CompletableFuture<>();
+
+        private Chunk(String[] basket, int from, int to, Function<String, Set<Price>> lookup) {
+            this.basket = basket;
+            this.from = from;
+            this.to = to;
+            this.lookup = lookup;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Map<String, Set<Price>> prices = new HashMap<>((to - from) * 4 / 3 + 1);
+                resolve(basket, from, to, lookup, prices);
+                result.complete(prices);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+}
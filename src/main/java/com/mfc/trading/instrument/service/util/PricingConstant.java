@@ -3,4 +3,13 @@ package com.mfc.trading.instrument.service.util;
 public interface PricingConstant {
     long DEFAULT_CACHE_AGE =   30;
     long DAY_IN_MIL_SEC = 24 * 60 * 60 * 1000L;
+    long DEFAULT_EVICTION_PERIOD_IN_MIL_SEC = 60 * 60 * 1000L;
+    long DEFAULT_JOURNAL_COMMIT_IN_MIL_SEC = 100;
+    int DEFAULT_JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    int DEFAULT_DISPATCH_RING_SIZE = 16 * 1024;
+    int DEFAULT_BASKET_CHUNK_SIZE = 64;
+    int DEFAULT_PARTITION_QUEUE_SIZE = 4 * 1024;
+    long DEFAULT_HOT_DAYS = 2;
+    long DEFAULT_ARCHIVE_AGE = 2 * 365;
+    int DEFAULT_SERVER_PORT = 7400;
 }
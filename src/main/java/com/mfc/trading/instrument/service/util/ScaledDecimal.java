@@ -0,0 +1,41 @@
+package com.mfc.trading.instrument.service.util;
+
+import java.math.BigDecimal;
+
+/**
+ * Fixed point encoding of a BigDecimal as its unscaled long value and a byte scale. The pair decodes
+ * back to an equal BigDecimal of the same scale, so decoded prices keep the hash code of the prices
+ * that were added.
+ */
+public final class ScaledDecimal {
+
+    //scale marking a null decimal, not a valid scale of an encoded value
+    public static final byte NULL_SCALE = Byte.MIN_VALUE;
+
+    private ScaledDecimal() {
+    }
+
+    public static long unscaled(BigDecimal value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value.unscaledValue().bitLength() > 63) {
+            throw new IllegalArgumentException("Price " + value + " does not fit a scaled long");
+        }
+        return value.unscaledValue().longValue();
+    }
+
+    public static byte scale(BigDecimal value) {
+        if (value == null) {
+            return NULL_SCALE;
+        }
+        if (value.scale() <= NULL_SCALE || value.scale() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Price " + value + " does not fit a scaled long");
+        }
+        return (byte) value.scale();
+    }
+
+    public static BigDecimal decode(long unscaled, byte scale) {
+        return scale == NULL_SCALE ? null : BigDecimal.valueOf(unscaled, scale);
+    }
+}
@@ -0,0 +1,58 @@
+package com.mfc.trading.instrument.service.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns symbols (instruments, vendors, markets, asset classes) into dense int ids, so stores and
+ * binary formats can refer to a symbol by id and keep a single String instance per symbol. Not thread
+ * safe, the owner guards it with its own lock.
+ */
+public final class SymbolTable {
+
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> ids;
+    private String[] symbols;
+    private int size;
+
+    public SymbolTable(int expectedSize) {
+        ids = new HashMap<>(expectedSize * 2);
+        symbols = new String[expectedSize];
+    }
+
+    /**
+     * @param symbol
+     * @return the id of the symbol, a new one if the symbol is seen for the first time
+     */
+    public int intern(String symbol) {
+        Integer id = ids.get(symbol);
+        if (id != null) {
+            return id;
+        }
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        symbols[size] = symbol;
+        ids.put(symbol, size);
+        return size++;
+    }
+
+    /**
+     * @param symbol
+     * @return the id of the symbol or {@link #UNKNOWN}, never creates an id
+     */
+    public int find(String symbol) {
+        Integer id = ids.get(symbol);
+        return id == null ? UNKNOWN : id;
+    }
+
+    public String symbol(int id) {
+        return symbols[id];
+    }
+
+    public int size() {
+        return size;
+    }
+}
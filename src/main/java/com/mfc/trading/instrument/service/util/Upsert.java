@@ -0,0 +1,13 @@
+package com.mfc.trading.instrument.service.util;
+
+/**
+ * Outcome of adding a price to its series.
+ */
+public enum Upsert {
+    //first price of its date
+    ADDED,
+    //replaced the stored price of its date, which quoted another bid or ask
+    CORRECTED,
+    //same quote as the stored price of its date, the series is unchanged
+    DUPLICATE
+}
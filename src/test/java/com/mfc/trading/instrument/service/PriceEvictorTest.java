@@ -0,0 +1,41 @@
+package com.mfc.trading.instrument.service;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.util.PricingConstant;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PriceEvictorTest {
+
+    @Test
+    public void evictsExpiredPricesInBackground() throws Exception {
+        PricingService service = new PricingServiceImpl(1);
+        long now = System.currentTimeMillis();
+        Price expired = new Price(new Date(now - 2 * PricingConstant.DAY_IN_MIL_SEC), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN);
+        Price live = new Price(new Date(now), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN);
+        service.add(expired);
+        service.add(live);
+
+        try (PriceEvictor ignored = new PriceEvictor(service, 10, TimeUnit.MILLISECONDS).start()) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (service.getAllPrices().size() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        assertThat(service.getAllPrices().size(), is(1));
+        assertTrue(service.getAllPrices().contains(live));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositivePeriod() {
+        new PriceEvictor(new PricingServiceImpl(), 0, TimeUnit.SECONDS);
+    }
+}
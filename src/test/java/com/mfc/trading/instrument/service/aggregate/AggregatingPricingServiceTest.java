@@ -0,0 +1,149 @@
+package com.mfc.trading.instrument.service.aggregate;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.pojo.PriceBar;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.PricingServiceImplTest;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class AggregatingPricingServiceTest extends PricingServiceImplTest {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Override
+    protected PricingService createService() {
+        return new AggregatingPricingService(new PricingServiceImpl(), HOUR, DAY_IN_MIL_SEC);
+    }
+
+    @Test
+    public void barsFollowAddsCorrectionsAndResends() {
+        AggregatingPricingService service = new AggregatingPricingService(new PricingServiceImpl(), MINUTE, HOUR);
+        long hour = System.currentTimeMillis() / HOUR * HOUR - HOUR;
+        Date start = new Date(hour);
+        service.addAll(Arrays.asList(
+                price(hour + 10_000, "Reuters", "99", "101"),
+                price(hour + 40_000, "Reuters", "102", "102"),
+                price(hour + 20_000, "Reuters", "98", "98")));
+        //a bid only price has no mid
+        service.add(new Price(new Date(hour + 30_000), "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("90"), null));
+        service.add(price(hour + MINUTE + 5_000, "Reuters", "101", "101"));
+        service.add(price(hour + 15_000, "Bloomberg", "100.5", "100.5"));
+
+        assertBar(service.getBar("GB0006640972", "Reuters", MINUTE, new Date(hour + 59_999)), "100", "102", "98", "102", "100", 3);
+        assertBar(service.getBar("GB0006640972", "Reuters", HOUR, start), "100", "102", "98", "101", "100.25", 4);
+        assertNull(service.getBar("GB0006640972", "Reuters", MINUTE, new Date(hour + 2 * MINUTE)));
+
+        //a resend leaves the bars as they are, a correction of the high recomputes it
+        service.add(price(hour + 40_000, "Reuters", "102", "102"));
+        assertThat(service.getBar("GB0006640972", "Reuters", MINUTE, start).getCount(), is(3));
+        service.add(price(hour + 40_000, "Reuters", "99", "99"));
+        assertBar(service.getBar("GB0006640972", "Reuters", MINUTE, start), "100", "100", "98", "99", "99", 3);
+        service.add(price(hour + 20_000, "Reuters", "97", "97"));
+        assertBar(service.getBar("GB0006640972", "Reuters", HOUR, start), "100", "101", "97", "101", "99.25", 4);
+
+        List<PriceBar> bars = service.getBars("GB0006640972", "Reuters", MINUTE, start, new Date(hour + HOUR));
+        assertThat(bars.size(), is(2));
+        assertThat(bars.get(0).getStart(), is(start));
+        assertThat(bars.get(1).getStart(), is(new Date(hour + MINUTE)));
+        assertThat(service.getBars("GB0006640972", "Reuters", MINUTE, new Date(hour + 1), new Date(hour + HOUR)).size(), is(1));
+        assertTrue(service.getBars("GB0006640972", "Markit", MINUTE, start, new Date(hour + HOUR)).isEmpty());
+
+        Map<String, PriceBar> byVendor = service.getBarsByInstrument("GB0006640972", HOUR, start);
+        assertThat(byVendor.keySet().size(), is(2));
+        assertBar(byVendor.get("Bloomberg"), "100.5", "100.5", "100.5", "100.5", "100.5", 1);
+    }
+
+    @Test
+    public void cleanUpDropsTheExpiredBarsAndRecomputesTheBarOfTheCutOff() {
+        //the store expires as of the time of its clean up, so the clock of the bars is the current time
+        long now = System.currentTimeMillis();
+        long cutOff = now - 10 * DAY_IN_MIL_SEC;
+        //an interval whose bar holding the cut off starts and ends minutes away from it
+        long interval = HOUR;
+        while (cutOff % interval < 2 * MINUTE || interval - cutOff % interval < 2 * MINUTE) {
+            interval += 5 * MINUTE;
+        }
+        AggregatingPricingService service = new AggregatingPricingService(new PricingServiceImpl(10), 10, () -> now, interval);
+        service.addAll(Arrays.asList(
+                price(cutOff - 2 * interval, "Reuters", "1", "1"),
+                price(cutOff - MINUTE, "Reuters", "2", "2"),
+                price(cutOff + MINUTE, "Reuters", "3", "3"),
+                price(now, "Reuters", "4", "4"),
+                price(cutOff - MINUTE, "Bloomberg", "5", "5")));
+        assertThat(service.getBar("GB0006640972", "Reuters", interval, new Date(cutOff)).getCount(), is(2));
+
+        service.cleanUp();
+
+        assertNull(service.getBar("GB0006640972", "Reuters", interval, new Date(cutOff - 2 * interval)));
+        assertBar(service.getBar("GB0006640972", "Reuters", interval, new Date(cutOff)), "3", "3", "3", "3", "3", 1);
+        assertBar(service.getBar("GB0006640972", "Reuters", interval, new Date(now)), "4", "4", "4", "4", "4", 1);
+        assertThat(service.getBarsByInstrument("GB0006640972", interval, new Date(cutOff)).keySet(), is(Collections.singleton("Reuters")));
+    }
+
+    @Test
+    public void seriesAreWrittenConcurrently() throws Exception {
+        AggregatingPricingService service = new AggregatingPricingService(new ConcurrentPricingServiceImpl(), MINUTE, HOUR);
+        long hour = System.currentTimeMillis() / HOUR * HOUR - HOUR;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            String vendor = "Vendor" + w;
+            writers.add(executor.submit(() -> {
+                //out of order, every price is corrected once and then resent
+                for (int i = 599; i >= 0; i--) {
+                    service.add(price(hour + i * 1000L, vendor, "1", "1"));
+                    service.addAll(Arrays.asList(price(hour + i * 1000L, vendor, String.valueOf(i), String.valueOf(i)),
+                            price(hour + i * 1000L, vendor, String.valueOf(i), String.valueOf(i))));
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+        for (int w = 0; w < 4; w++) {
+            assertBar(service.getBar("GB0006640972", "Vendor" + w, HOUR, new Date(hour)), "0", "599", "0", "599", "299.5", 600);
+            assertThat(service.getBars("GB0006640972", "Vendor" + w, MINUTE, new Date(hour), new Date(hour + HOUR)).size(), is(10));
+        }
+
+        //a correction dropping the ask takes the price out of the bars
+        service.add(new Price(new Date(hour + 599_000), "Equity", "GB0006640972", "Vendor0", "XLON", BigDecimal.ONE, null));
+        assertBar(service.getBar("GB0006640972", "Vendor0", HOUR, new Date(hour)), "0", "598", "0", "598", "299", 599);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void barsOfAnIntervalNotConfiguredAreRejected() {
+        new AggregatingPricingService(new PricingServiceImpl(), HOUR).getBar("GB0006640972", "Reuters", MINUTE, new Date());
+    }
+
+    private static Price price(long time, String vendor, String bid, String ask) {
+        return new Price(new Date(time), "Equity", "GB0006640972", vendor, "XLON", new BigDecimal(bid), new BigDecimal(ask));
+    }
+
+    private static void assertBar(PriceBar bar, String open, String high, String low, String close, String averageMid, int count) {
+        assertThat(bar.getOpen(), is(new BigDecimal(open)));
+        assertThat(bar.getHigh(), is(new BigDecimal(high)));
+        assertThat(bar.getLow(), is(new BigDecimal(low)));
+        assertThat(bar.getClose(), is(new BigDecimal(close)));
+        assertThat(bar.getAverageMid(), is(new BigDecimal(averageMid)));
+        assertThat(bar.getCount(), is(count));
+    }
+}
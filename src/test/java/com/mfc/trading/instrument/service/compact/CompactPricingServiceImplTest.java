@@ -0,0 +1,99 @@
+package com.mfc.trading.instrument.service.compact;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.memory.PricingServiceImplTest;
+import com.mfc.trading.instrument.service.stream.PriceDispatcher;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class CompactPricingServiceImplTest extends PricingServiceImplTest {
+
+    @Override
+    protected PricingService createService() {
+        return new CompactPricingServiceImpl();
+    }
+
+    @Test
+    public void decodedPricesKeepValueAndScale() {
+        PricingService service = createService();
+        Date now = new Date();
+        Price price = new Price(now, "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("101.2500"), new BigDecimal("-0.5E+3"));
+        service.add(price);
+
+        Set<Price> prices = service.getByInstrument("GB0006640972", now);
+        assertThat(prices.size(), is(1));
+        Price decoded = prices.iterator().next();
+        assertThat(decoded.getBid(), is(new BigDecimal("101.2500")));
+        assertThat(decoded.getAsk(), is(new BigDecimal("-0.5E+3")));
+        assertThat(decoded.getAsOfDate(), is(now));
+        assertThat(decoded.getMarket(), is("XLON"));
+        assertThat(decoded.hashCode(), is(price.hashCode()));
+    }
+
+    @Test
+    public void resendsOfTheLatestPriceTakeNoLock() throws Exception {
+        CompactPricingServiceImpl service = new CompactPricingServiceImpl(DEFAULT_CACHE_AGE, CompositeQuotePolicy.DEFAULT, new PriceDispatcher(), true);
+        Date now = new Date();
+        service.add(new Price(now, "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("101.25"), BigDecimal.TEN));
+        Price resent = new Price(now, "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("101.25"), BigDecimal.TEN);
+        Lock writeLock = service.storeLock().get().writeLock();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            writeLock.lock();
+            //neither waits for the write lock held here
+            writer.submit(() -> service.add(resent)).get(5, TimeUnit.SECONDS);
+            writer.submit(() -> service.addAll(Collections.singletonList(resent))).get(5, TimeUnit.SECONDS);
+        } finally {
+            writeLock.unlock();
+            writer.shutdownNow();
+        }
+        assertThat(service.duplicateCount(), is(2L));
+        assertThat(service.getAllPrices().size(), is(1));
+    }
+
+    @Test
+    public void nullBidAndAskAreKept() {
+        PricingService service = createService();
+        Date now = new Date();
+        service.add(new Price(now, "Equity", "GB0006640972", "Reuters", "XLON", null, null));
+
+        Price decoded = service.getByVendor("Reuters", null).iterator().next();
+        assertNull(decoded.getBid());
+        assertNull(decoded.getAsk());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPricesBeyondLongPrecision() {
+        createService().add(new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("123456789012345678901234567890"), BigDecimal.ONE));
+    }
+
+    @Test
+    public void rejectedBatchLeavesStoreUntouched() {
+        PricingService service = createService();
+        Date now = new Date();
+        Price valid = new Price(now, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN);
+        Price invalid = new Price(now, "Equity", "GB00BCDBXK43", "Reuters", "XLON", new BigDecimal("123456789012345678901234567890"), BigDecimal.ONE);
+        try {
+            service.addAll(Arrays.asList(valid, invalid));
+            fail("batch with an unsupported price must be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(service.getAllPrices().isEmpty());
+        }
+    }
+}
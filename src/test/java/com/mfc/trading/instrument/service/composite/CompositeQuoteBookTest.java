@@ -0,0 +1,86 @@
+package com.mfc.trading.instrument.service.composite;
+
+import com.mfc.trading.instrument.pojo.CompositeQuote;
+import com.mfc.trading.instrument.pojo.Price;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class CompositeQuoteBookTest {
+
+    private static final String ISIN = "GB0006640972";
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void vendorPriorityBreaksTies() {
+        CompositeQuoteBook book = new CompositeQuoteBook(new CompositeQuotePolicy(Arrays.asList("Markit", "Reuters"), 1, TimeUnit.DAYS), now::get);
+        book.update(price("Bloomberg", now.get(), "10", "11"));
+        book.update(price("Reuters", now.get(), "10", "12"));
+        book.update(price("Markit", now.get(), "9", "11"));
+
+        CompositeQuote quote = book.quote(ISIN);
+        assertThat(quote.getBidVendor(), is("Reuters"));
+        assertThat(quote.getAskVendor(), is("Markit"));
+        assertThat(quote.getMid(), is(new BigDecimal("10.5")));
+    }
+
+    @Test
+    public void unlistedVendorsRankByName() {
+        CompositeQuoteBook book = new CompositeQuoteBook(CompositeQuotePolicy.DEFAULT, now::get);
+        book.update(price("Reuters", now.get(), "10", "11"));
+        book.update(price("Bloomberg", now.get(), "10", "11"));
+        assertThat(book.quote(ISIN).getBidVendor(), is("Bloomberg"));
+        assertThat(book.quote(ISIN).getAskVendor(), is("Bloomberg"));
+    }
+
+    @Test
+    public void stalePricesDropOutOfTheQuote() {
+        CompositeQuoteBook book = new CompositeQuoteBook(new CompositeQuotePolicy(Arrays.asList("Reuters"), 100, TimeUnit.MILLISECONDS), now::get);
+        book.update(price("Reuters", now.get() - 50, "10", "11"));
+        book.update(price("Bloomberg", now.get() - 10, "9", "12"));
+        book.update(price("Markit", now.get() - 200, "20", "1"));
+
+        CompositeQuote quote = book.quote(ISIN);
+        assertThat(quote.getVendorCount(), is(2));
+        assertThat(quote.getBestBid(), is(new BigDecimal("10")));
+        assertSame(quote, book.quote(ISIN));
+
+        //Reuters goes stale without any add, the next read rebuilds the quote
+        now.addAndGet(60);
+        quote = book.quote(ISIN);
+        assertThat(quote.getVendorCount(), is(1));
+        assertThat(quote.getBidVendor(), is("Bloomberg"));
+        assertThat(quote.getAsOfDate(), is(new Date(now.get() - 70)));
+
+        now.addAndGet(100);
+        quote = book.quote(ISIN);
+        assertThat(quote.getVendorCount(), is(0));
+        assertNull(quote.getBestBid());
+        assertNull(quote.getMid());
+    }
+
+    @Test
+    public void resetRemovesEmptySeries() {
+        CompositeQuoteBook book = new CompositeQuoteBook(CompositeQuotePolicy.DEFAULT, now::get);
+        book.update(price("Reuters", now.get(), "10", "11"));
+        book.reset(ISIN, "Reuters", null);
+        assertNull(book.quote(ISIN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveStaleness() {
+        new CompositeQuotePolicy(Arrays.asList("Reuters"), 0, TimeUnit.SECONDS);
+    }
+
+    private static Price price(String vendor, long time, String bid, String ask) {
+        return new Price(new Date(time), "Equity", ISIN, vendor, "XLON", new BigDecimal(bid), new BigDecimal(ask));
+    }
+}
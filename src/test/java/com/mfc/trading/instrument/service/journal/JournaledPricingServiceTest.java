@@ -0,0 +1,215 @@
+package com.mfc.trading.instrument.service.journal;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.util.PricingConstant;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class JournaledPricingServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private Date today;
+    private Date yesterday;
+    private Date expired;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("journal").toPath();
+        long now = System.currentTimeMillis();
+        today = new Date(now);
+        yesterday = new Date(now - PricingConstant.DAY_IN_MIL_SEC);
+        expired = new Date(now - 31 * PricingConstant.DAY_IN_MIL_SEC);
+    }
+
+    @Test
+    public void restartRebuildsTheService() throws Exception {
+        Price reuters = new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("101.25"), new BigDecimal("101.50"));
+        Price bloomberg = new Price(yesterday, "Equity", "GB0006640972", "Bloomberg", null, BigDecimal.TEN, null);
+        Price markit = new Price(today, "Equity", "GB00BMH46555", "Markit", "XLON", BigDecimal.ONE, BigDecimal.ONE);
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            service.add(reuters);
+            service.addAll(Arrays.asList(bloomberg, markit));
+        }
+
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            Set<Price> allPrices = service.getAllPrices();
+            assertThat(allPrices.size(), is(3));
+            assertTrue(allPrices.contains(reuters));
+            assertTrue(allPrices.contains(bloomberg));
+            assertTrue(allPrices.contains(markit));
+            Price restored = service.getByInstrument("GB0006640972", yesterday).iterator().next();
+            assertNull(restored.getMarket());
+            assertNull(restored.getAsk());
+            assertThat(restored.hashCode(), is(bloomberg.hashCode()));
+
+            //appends after a restart go on after the replayed records
+            Price next = new Price(new Date(today.getTime() + 1), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.ONE);
+            service.add(next);
+            service.commit();
+        }
+
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            assertThat(service.getAllPrices().size(), is(4));
+        }
+    }
+
+    @Test
+    public void segmentsGrowBeyondTheirInitialSize() throws Exception {
+        List<Price> prices = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            prices.add(new Price(new Date(yesterday.getTime() + i), "Equity", "ISIN" + (i % 50), "Reuters", "XLON", BigDecimal.valueOf(i), BigDecimal.valueOf(i)));
+        }
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl(), PricingConstant.DEFAULT_CACHE_AGE, 1024, 10)) {
+            service.addAll(prices);
+        }
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            assertThat(service.getAllPrices().size(), is(1000));
+        }
+    }
+
+    @Test
+    public void cleanUpDeletesExpiredSegments() throws Exception {
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            service.add(new Price(expired, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN));
+            service.add(new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN));
+            assertThat(journalFiles().length, is(2));
+            service.cleanUp();
+            assertThat(journalFiles().length, is(1));
+            assertThat(service.getAllPrices().size(), is(1));
+        }
+    }
+
+    @Test
+    public void expiredPricesAreNotReplayed() throws Exception {
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            service.add(new Price(expired, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN));
+            service.add(new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN));
+        }
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            assertThat(service.getAllPrices().size(), is(1));
+        }
+    }
+
+    @Test
+    public void tornRecordIsNotReplayed() throws Exception {
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            service.add(new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN));
+            service.add(new Price(new Date(today.getTime() + 1), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.ONE));
+        }
+        //header, 4 symbols and 2 prices, clear the type of the last price as if it never reached the disk
+        try (RandomAccessFile file = new RandomAccessFile(journalFiles()[0], "rw")) {
+            file.seek(6 * JournalSegment.RECORD_SIZE);
+            file.write(0);
+        }
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            Set<Price> allPrices = service.getAllPrices();
+            assertThat(allPrices.size(), is(1));
+            assertThat(allPrices.iterator().next().getBid(), is(BigDecimal.TEN));
+        }
+    }
+
+    @Test
+    public void concurrentCorrectionsReplayAsTheServiceAppliedThem() throws Exception {
+        int writers = 4;
+        int series = 8;
+        Map<String, BigDecimal> live = new HashMap<>();
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            ExecutorService executor = Executors.newFixedThreadPool(writers);
+            List<Future<?>> results = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        //every writer corrects the same prices of today, alone or in batches
+                        Price price = new Price(today, "Equity", "ISIN" + (i % series), "Reuters", "XLON", BigDecimal.valueOf(writer * 10000 + i), null);
+                        if (i % 2 == 0) {
+                            service.add(price);
+                        } else {
+                            service.addAll(Arrays.asList(price, new Price(today, "Equity", "ISIN" + ((i + 1) % series), "Reuters", "XLON", BigDecimal.valueOf(-i), null)));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            executor.shutdown();
+            for (Price price : service.getAllPrices()) {
+                live.put(price.getInstrument(), price.getBid());
+            }
+        }
+
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            Map<String, BigDecimal> replayed = new HashMap<>();
+            for (Price price : service.getAllPrices()) {
+                replayed.put(price.getInstrument(), price.getBid());
+            }
+            assertThat(live.size(), is(series));
+            assertThat(replayed, is(live));
+        }
+    }
+
+    @Test
+    public void resentLatestPricesAreNotJournaled() throws Exception {
+        Price price = new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN);
+        Price other = new Price(today, "Equity", "GB00BMH46555", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.ONE);
+        PricingServiceImpl store = new PricingServiceImpl();
+        try (JournaledPricingService service = JournaledPricingService.open(directory, store)) {
+            service.add(price);
+            service.add(new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.TEN, BigDecimal.TEN));
+            service.addAll(Arrays.asList(price, other));
+            //the resends never reached the store
+            assertThat(store.duplicateCount(), is(0L));
+            assertThat(service.duplicateCount(), is(2L));
+            //a correction of the latest price is journaled
+            service.add(new Price(today, "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN));
+            assertThat(service.duplicateCount(), is(2L));
+        }
+        store = new PricingServiceImpl();
+        try (JournaledPricingService service = JournaledPricingService.open(directory, store)) {
+            assertThat(service.getAllPrices().size(), is(2));
+            assertThat(service.getByInstrument("GB0006640972", null).iterator().next().getBid(), is(BigDecimal.ONE));
+            //the replayed latest prices are known, a resend after the restart is dropped too
+            service.add(other);
+            assertThat(store.duplicateCount(), is(0L));
+            assertThat(service.duplicateCount(), is(1L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSymbolsTooLongForARecord() throws Exception {
+        try (JournaledPricingService service = JournaledPricingService.open(directory, new PricingServiceImpl())) {
+            char[] name = new char[JournalSegment.MAX_SYMBOL_BYTES + 1];
+            Arrays.fill(name, 'V');
+            service.add(new Price(today, "Equity", "GB0006640972", new String(name), "XLON", BigDecimal.TEN, BigDecimal.TEN));
+        }
+    }
+
+    private File[] journalFiles() {
+        return directory.toFile().listFiles((dir, name) -> name.endsWith(".journal"));
+    }
+}
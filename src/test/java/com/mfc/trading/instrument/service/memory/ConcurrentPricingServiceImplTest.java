@@ -0,0 +1,71 @@
+package com.mfc.trading.instrument.service.memory;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class ConcurrentPricingServiceImplTest extends PricingServiceImplTest {
+
+    @Override
+    protected PricingService createService() {
+        return new ConcurrentPricingServiceImpl();
+    }
+
+    @Override
+    protected boolean publishesBatchAtOnce() {
+        return false;
+    }
+
+    @Test
+    public void concurrentWritersKeepBothViewsConsistent() throws Exception {
+        PricingService service = createService();
+        int writers = 4;
+        int instruments = 200;
+        long now = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int w = 0; w < writers; w++) {
+                String vendor = "Vendor" + w;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < instruments; i++) {
+                        service.add(new Price(new Date(now), "Equity", "ISIN" + i, vendor, "XLON", BigDecimal.ONE, BigDecimal.TEN));
+                        //readers must never see a missing group while writers are running
+                        assertNotNull(service.getByInstrument("ISIN" + i, null));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(service.getAllPrices().size(), is(writers * instruments));
+        for (int w = 0; w < writers; w++) {
+            assertThat(service.getByVendor("Vendor" + w, null).size(), is(instruments));
+        }
+        for (int i = 0; i < instruments; i++) {
+            Set<Price> byInstrument = service.getByInstrument("ISIN" + i, null);
+            assertThat(byInstrument.size(), is(writers));
+        }
+    }
+}
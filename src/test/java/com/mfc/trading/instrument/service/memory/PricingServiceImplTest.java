@@ -1,7 +1,12 @@
 package com.mfc.trading.instrument.service.memory;
 
+import com.mfc.trading.instrument.pojo.CompositeQuote;
 import com.mfc.trading.instrument.pojo.Price;
 import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.metrics.StoreStatistics;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import com.mfc.trading.instrument.service.stream.PriceSubscription;
 import com.mfc.trading.instrument.service.util.PricingConstant;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,8 +14,20 @@ import org.junit.Test;
 import java.math.BigDecimal;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
@@ -71,7 +88,16 @@ public class PricingServiceImplTest {
         PR_0307_MKT_6555 = new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB00BMH46555,VENDOR_MARKIT,MARKET_XLON,BigDecimal.TEN,BigDecimal.TEN);
         PR_0207_MKT_6555 = new Price(date_02_07_2020, ASSET_EQUITY, ISIN_GB00BMH46555,VENDOR_MARKIT,MARKET_XLON,BigDecimal.TEN,BigDecimal.TEN);
         PR_0107_MKT_6555 = new Price(date_01_07_2020, ASSET_EQUITY, ISIN_GB00BMH46555,VENDOR_MARKIT,MARKET_XLON,BigDecimal.TEN,BigDecimal.TEN);
-        serviceUnderTest = new PricingServiceImpl();
+        serviceUnderTest = createService();
+    }
+
+    protected PricingService createService() {
+        return new PricingServiceImpl();
+    }
+
+    //false for a store publishing a batch series by series
+    protected boolean publishesBatchAtOnce() {
+        return true;
     }
 
     @Test
@@ -181,7 +207,7 @@ public class PricingServiceImplTest {
         assertTrue(allPrices.contains(PR_0207_REU_0972));
         assertTrue(allPrices.contains(PR_0106_REU_0972));
         //now call cleanup on the service
-        serviceUnderTest.cleanUp();
+        assertThat(serviceUnderTest.cleanUp(), is(1));
         Set<Price> allPricesCleaned = serviceUnderTest.getAllPrices();
         assertNotNull(allPricesCleaned);
         assertThat(allPricesCleaned.size(),is(2));
@@ -191,4 +217,464 @@ public class PricingServiceImplTest {
 
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void latestPricesFollowCleanUp() {
+        serviceUnderTest.add(PR_0106_REU_0972);
+        serviceUnderTest.add(PR_0307_REU_XK43);
+        Set<Price> latestByVendor = serviceUnderTest.getByVendor(VENDOR_REUTERS, null);
+        assertThat(latestByVendor.size(), is(2));
+        assertTrue(latestByVendor.contains(PR_0106_REU_0972));
+
+        //the only price of GB0006640972 expires, so it drops out of the latest prices
+        serviceUnderTest.cleanUp();
+        latestByVendor = serviceUnderTest.getByVendor(VENDOR_REUTERS, null);
+        assertThat(latestByVendor.size(), is(1));
+        assertTrue(latestByVendor.contains(PR_0307_REU_XK43));
+        assertTrue(serviceUnderTest.getByInstrument(ISIN_GB0006640972, null).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void latestPricesAreReadOnly() {
+        serviceUnderTest.add(PR_0307_REU_XK43);
+        serviceUnderTest.getByInstrument(ISIN_GB00BCDBXK43, null).add(PR_0407_REU_XK43);
+    }
+
+    @Test
+    public void latestPricesAreNotChangedByLaterWrites() {
+        serviceUnderTest.addAll(Arrays.asList(PR_0307_REU_XK43, PR_0307_REU_0972));
+        Set<Price> byVendor = serviceUnderTest.getByVendor(VENDOR_REUTERS, null);
+        Set<Price> byInstrument = serviceUnderTest.getByInstrument(ISIN_GB00BCDBXK43, null);
+        Map<String, Set<Price>> basket = serviceUnderTest.getByInstruments(Arrays.asList(ISIN_GB00BCDBXK43, ISIN_GB0006640972), null);
+
+        serviceUnderTest.addAll(Arrays.asList(PR_0407_REU_XK43, PR_0407_BLM_XK43, PR_0307_MKT_6555));
+        assertThat(byVendor, is(set(PR_0307_REU_XK43, PR_0307_REU_0972)));
+        assertThat(byInstrument, is(set(PR_0307_REU_XK43)));
+        assertThat(basket.get(ISIN_GB00BCDBXK43), is(set(PR_0307_REU_XK43)));
+        assertThat(serviceUnderTest.getByInstrument(ISIN_GB00BCDBXK43, null), is(set(PR_0407_REU_XK43, PR_0407_BLM_XK43)));
+    }
+
+    @Test
+    public void getAsOf() {
+        serviceUnderTest.add(PR_0407_REU_XK43);
+        serviceUnderTest.add(PR_0307_REU_0972);
+        serviceUnderTest.add(PR_0207_REU_0972);
+        serviceUnderTest.add(PR_0407_BLM_XK43);
+        serviceUnderTest.add(PR_0307_BLM_XK43);
+
+        //Bloomberg has a price on the 3rd, Reuters only on the 4th so it is not marked yet
+        Set<Price> byInstrument = serviceUnderTest.getByInstrumentAsOf(ISIN_GB00BCDBXK43, date_03_07_2020);
+        assertThat(byInstrument.size(), is(1));
+        assertTrue(byInstrument.contains(PR_0307_BLM_XK43));
+
+        //no Reuters price for GB0006640972 on the 4th, so the price from the 3rd is used
+        Set<Price> byVendor = serviceUnderTest.getByVendorAsOf(VENDOR_REUTERS, date_04_07_2020);
+        assertThat(byVendor.size(), is(2));
+        assertTrue(byVendor.contains(PR_0407_REU_XK43));
+        assertTrue(byVendor.contains(PR_0307_REU_0972));
+
+        assertTrue(serviceUnderTest.getByVendorAsOf(VENDOR_REUTERS, date_01_07_2020).isEmpty());
+    }
+
+    @Test
+    public void getBetween() {
+        serviceUnderTest.add(PR_0407_REU_XK43);
+        serviceUnderTest.add(PR_0307_REU_XK43);
+        serviceUnderTest.add(PR_0307_REU_0972);
+        serviceUnderTest.add(PR_0207_REU_0972);
+        serviceUnderTest.add(PR_0307_BLM_0972);
+
+        Set<Price> byVendor = serviceUnderTest.getByVendorBetween(VENDOR_REUTERS, date_02_07_2020, date_04_07_2020);
+        assertThat(byVendor.size(), is(3));
+        assertTrue(byVendor.contains(PR_0307_REU_XK43));
+        assertTrue(byVendor.contains(PR_0307_REU_0972));
+        assertTrue(byVendor.contains(PR_0207_REU_0972));
+
+        Set<Price> byInstrument = serviceUnderTest.getByInstrumentBetween(ISIN_GB0006640972, date_03_07_2020, date_04_07_2020);
+        assertThat(byInstrument.size(), is(2));
+        assertTrue(byInstrument.contains(PR_0307_REU_0972));
+        assertTrue(byInstrument.contains(PR_0307_BLM_0972));
+
+        assertTrue(serviceUnderTest.getByInstrumentBetween(ISIN_GB0006640972, date_03_07_2020, date_03_07_2020).isEmpty());
+        assertTrue(serviceUnderTest.getByInstrumentBetween(ISIN_GB00BMH46555, date_01_07_2020, date_04_07_2020).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getBetweenRejectsInvertedRange() {
+        serviceUnderTest.getByVendorBetween(VENDOR_REUTERS, date_04_07_2020, date_02_07_2020);
+    }
+
+    @Test
+    public void cleanUpRemovesEmptySeries() {
+        Date date_31_05_2020 = new Date(date_01_06_2020.getTime() - PricingConstant.DAY_IN_MIL_SEC);
+        Price PR_3105_BLM_0972 = new Price(date_31_05_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_BLOOMBERG, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN);
+        serviceUnderTest.add(PR_0106_REU_0972);
+        serviceUnderTest.add(PR_3105_BLM_0972);
+        serviceUnderTest.add(PR_0307_REU_XK43);
+
+        assertThat(serviceUnderTest.cleanUp(), is(2));
+        assertThat(serviceUnderTest.getAllPrices().size(), is(1));
+        assertTrue(serviceUnderTest.getByVendor(VENDOR_BLOOMBERG, null).isEmpty());
+        assertTrue(serviceUnderTest.getByInstrument(ISIN_GB0006640972, null).isEmpty());
+        assertTrue(serviceUnderTest.getByInstrumentBetween(ISIN_GB0006640972, date_31_05_2020, date_04_07_2020).isEmpty());
+
+        //the series is created again on the next price
+        serviceUnderTest.add(PR_0307_BLM_0972);
+        assertTrue(serviceUnderTest.getByInstrument(ISIN_GB0006640972, null).contains(PR_0307_BLM_0972));
+        assertTrue(serviceUnderTest.getByVendor(VENDOR_BLOOMBERG, date_03_07_2020).contains(PR_0307_BLM_0972));
+    }
+
+    @Test
+    public void addAll() {
+        serviceUnderTest.add(PR_0207_REU_0972);
+        Price PR_0307_REU_0972_RESENT = new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, BigDecimal.ONE, BigDecimal.ONE);
+        serviceUnderTest.addAll(Arrays.asList(PR_0407_REU_XK43, PR_0307_REU_XK43, PR_0307_REU_0972, PR_0307_REU_0972_RESENT,
+                PR_0407_BLM_XK43, PR_0207_MKT_6555, PR_0307_MKT_6555, PR_0107_MKT_6555));
+
+        Set<Price> allPrices = serviceUnderTest.getAllPrices();
+        assertThat(allPrices.size(), is(8));
+        //as with single adds a later price of a date replaces the earlier one
+        assertTrue(allPrices.contains(PR_0307_REU_0972_RESENT));
+        assertFalse(allPrices.stream().anyMatch(price -> price.equals(PR_0307_REU_0972) && price.getBid().equals(BigDecimal.TEN)));
+
+        Set<Price> latestByVendor = serviceUnderTest.getByVendor(VENDOR_REUTERS, null);
+        assertThat(latestByVendor.size(), is(2));
+        assertTrue(latestByVendor.contains(PR_0407_REU_XK43));
+        assertTrue(latestByVendor.stream().anyMatch(price -> price.equals(PR_0307_REU_0972) && price.getBid().equals(BigDecimal.ONE)));
+        assertTrue(serviceUnderTest.getByInstrument(ISIN_GB00BMH46555, null).contains(PR_0307_MKT_6555));
+        assertThat(serviceUnderTest.getByInstrument(ISIN_GB00BCDBXK43, date_04_07_2020).size(), is(2));
+        assertThat(serviceUnderTest.getByVendorBetween(VENDOR_MARKIT, date_01_07_2020, date_04_07_2020).size(), is(3));
+    }
+
+    @Test
+    public void resentPricesAreDropped() throws Exception {
+        BlockingQueue<Price> received = new LinkedBlockingQueue<>();
+        try (PriceSubscription subscription = serviceUnderTest.subscribeToInstrument(ISIN_GB0006640972, received::add)) {
+            serviceUnderTest.add(PR_0307_REU_0972);
+            serviceUnderTest.add(PR_0207_REU_0972);
+            assertThat(received.poll(5, TimeUnit.SECONDS), is(PR_0307_REU_0972));
+            Price resent = new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN);
+            Price resentOlder = new Price(date_02_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN);
+            serviceUnderTest.add(resent);
+            serviceUnderTest.add(resentOlder);
+            serviceUnderTest.addAll(Arrays.asList(resent, resentOlder));
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        }
+        assertThat(serviceUnderTest.getAllPrices(), is(set(PR_0307_REU_0972, PR_0207_REU_0972)));
+        if (serviceUnderTest instanceof StoreStatistics) {
+            assertThat(((StoreStatistics) serviceUnderTest).duplicateCount(), is(4L));
+        }
+    }
+
+    @Test
+    public void correctionsReplaceTheStoredPrice() throws Exception {
+        BlockingQueue<Price> received = new LinkedBlockingQueue<>();
+        try (PriceSubscription subscription = serviceUnderTest.subscribeToInstrument(ISIN_GB0006640972, received::add)) {
+            serviceUnderTest.add(PR_0307_REU_0972);
+            serviceUnderTest.add(PR_0207_REU_0972);
+            serviceUnderTest.add(PR_0307_BLM_0972);
+            Set<Price> latest = new HashSet<>(Arrays.asList(received.poll(5, TimeUnit.SECONDS), received.poll(5, TimeUnit.SECONDS)));
+            assertThat(latest, is(set(PR_0307_REU_0972, PR_0307_BLM_0972)));
+            serviceUnderTest.add(new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, new BigDecimal("11"), BigDecimal.TEN));
+            //the correction of an older date does not change the latest price, so it is not pushed
+            serviceUnderTest.addAll(Arrays.asList(new Price(date_02_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, BigDecimal.ONE, BigDecimal.ONE)));
+            assertThat(received.poll(5, TimeUnit.SECONDS).getBid(), is(new BigDecimal("11")));
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        }
+        assertThat(serviceUnderTest.getAllPrices().size(), is(3));
+        assertThat(bidOf(serviceUnderTest.getByVendor(VENDOR_REUTERS, null)), is(new BigDecimal("11")));
+        assertThat(bidOf(serviceUnderTest.getByVendor(VENDOR_REUTERS, date_03_07_2020)), is(new BigDecimal("11")));
+        assertThat(bidOf(serviceUnderTest.getByVendor(VENDOR_REUTERS, date_02_07_2020)), is(BigDecimal.ONE));
+        assertThat(serviceUnderTest.getByInstrumentBetween(ISIN_GB0006640972, date_02_07_2020, date_04_07_2020).size(), is(3));
+        CompositeQuote quote = serviceUnderTest.getCompositeQuote(ISIN_GB0006640972);
+        assertThat(quote.getBestBid(), is(new BigDecimal("11")));
+        assertThat(quote.getBidVendor(), is(VENDOR_REUTERS));
+    }
+
+    @Test
+    public void queryCombinesPredicates() {
+        Price PR_0307_BLM_0972_XPAR = new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_BLOOMBERG, "XPAR", BigDecimal.TEN, BigDecimal.TEN);
+        Price PR_0207_MKT_6555_BOND = new Price(date_02_07_2020, "Bond", ISIN_GB00BMH46555, VENDOR_MARKIT, MARKET_XLON, BigDecimal.ONE, BigDecimal.ONE);
+        serviceUnderTest.addAll(Arrays.asList(PR_0407_REU_XK43, PR_0307_REU_XK43, PR_0307_REU_0972, PR_0207_REU_0972, PR_0106_REU_0972,
+                PR_0207_BLM_0972, PR_0307_BLM_0972_XPAR, PR_0307_MKT_6555, PR_0207_MKT_6555_BOND));
+
+        assertThat(serviceUnderTest.query(PriceQuery.latest()), is(set(PR_0407_REU_XK43, PR_0307_REU_0972, PR_0307_BLM_0972_XPAR, PR_0307_MKT_6555)));
+        //the latest Bloomberg price is on XPAR, so the series has no latest XLON price
+        assertThat(serviceUnderTest.query(PriceQuery.latest().market(MARKET_XLON)), is(set(PR_0407_REU_XK43, PR_0307_REU_0972, PR_0307_MKT_6555)));
+        assertThat(serviceUnderTest.query(PriceQuery.asOf(date_02_07_2020).market(MARKET_XLON).assetClass(ASSET_EQUITY)), is(set(PR_0207_REU_0972, PR_0207_BLM_0972)));
+        assertThat(serviceUnderTest.query(PriceQuery.asOf(date_01_07_2020).market(MARKET_XLON)), is(set(PR_0106_REU_0972)));
+        assertThat(serviceUnderTest.query(PriceQuery.on(date_03_07_2020).vendor(VENDOR_REUTERS).market(MARKET_XLON)), is(set(PR_0307_REU_XK43, PR_0307_REU_0972)));
+        assertThat(serviceUnderTest.query(PriceQuery.between(date_02_07_2020, date_04_07_2020).instrument(ISIN_GB0006640972).market("XPAR")), is(set(PR_0307_BLM_0972_XPAR)));
+        assertThat(serviceUnderTest.query(PriceQuery.between(date_01_06_2020, date_03_07_2020).vendor(VENDOR_REUTERS).instrument(ISIN_GB0006640972)), is(set(PR_0106_REU_0972, PR_0207_REU_0972)));
+        assertThat(serviceUnderTest.query(PriceQuery.between(date_01_07_2020, date_04_07_2020).assetClass("Bond")), is(set(PR_0207_MKT_6555_BOND)));
+        assertTrue(serviceUnderTest.query(PriceQuery.latest().market("XNYS")).isEmpty());
+        assertTrue(serviceUnderTest.query(PriceQuery.latest().vendor(VENDOR_MARKIT).instrument(ISIN_GB0006640972)).isEmpty());
+    }
+
+    @Test
+    public void queryFollowsCorrectionsAndCleanUp() {
+        Price PR_0307_REU_0972_XPAR = new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, "XPAR", BigDecimal.ONE, BigDecimal.ONE);
+        Price PR_0106_BLM_0972_XPAR = new Price(date_01_06_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_BLOOMBERG, "XPAR", BigDecimal.TEN, BigDecimal.TEN);
+        serviceUnderTest.add(PR_0307_REU_0972);
+        serviceUnderTest.add(PR_0106_BLM_0972_XPAR);
+        assertThat(serviceUnderTest.query(PriceQuery.latest().market("XPAR")), is(set(PR_0106_BLM_0972_XPAR)));
+
+        //the correction moves the Reuters price to XPAR
+        serviceUnderTest.add(PR_0307_REU_0972_XPAR);
+        assertTrue(serviceUnderTest.query(PriceQuery.latest().market(MARKET_XLON)).isEmpty());
+        assertThat(serviceUnderTest.query(PriceQuery.on(date_03_07_2020).market("XPAR")), is(set(PR_0307_REU_0972_XPAR)));
+
+        serviceUnderTest.cleanUp();
+        assertThat(serviceUnderTest.query(PriceQuery.latest().market("XPAR")), is(set(PR_0307_REU_0972_XPAR)));
+        assertThat(serviceUnderTest.query(PriceQuery.latest().instrument(ISIN_GB0006640972)), is(set(PR_0307_REU_0972_XPAR)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void queryRejectsInvertedRange() {
+        PriceQuery.between(date_03_07_2020, date_02_07_2020);
+    }
+
+    @Test
+    public void forEachAndCursorVisitEachPriceOnce() {
+        Price PR_0307_BLM_0972_XPAR = new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_BLOOMBERG, "XPAR", BigDecimal.TEN, BigDecimal.TEN);
+        serviceUnderTest.addAll(Arrays.asList(PR_0407_REU_XK43, PR_0307_REU_XK43, PR_0307_REU_0972, PR_0207_REU_0972, PR_0106_REU_0972,
+                PR_0207_BLM_0972, PR_0307_BLM_0972_XPAR, PR_0307_MKT_6555));
+        assertThat(serviceUnderTest.query(PriceQuery.all()), is(serviceUnderTest.getAllPrices()));
+
+        for (PriceQuery query : Arrays.asList(PriceQuery.all(), PriceQuery.all().vendor(VENDOR_REUTERS), PriceQuery.latest().market(MARKET_XLON),
+                PriceQuery.asOf(date_02_07_2020), PriceQuery.on(date_03_07_2020).instrument(ISIN_GB0006640972),
+                PriceQuery.between(date_01_06_2020, date_04_07_2020).market("XPAR"), PriceQuery.all().market("XNYS"))) {
+            Set<Price> expected = serviceUnderTest.query(query);
+            List<Price> visited = new ArrayList<>();
+            serviceUnderTest.forEach(query, visited::add);
+            List<Price> iterated = new ArrayList<>();
+            try (PriceCursor cursor = serviceUnderTest.cursor(query)) {
+                cursor.forEachRemaining(iterated::add);
+                assertFalse(cursor.hasNext());
+            }
+            assertThat(query.toString(), new HashSet<>(visited), is(expected));
+            assertThat(query.toString(), visited.size(), is(expected.size()));
+            assertThat(query.toString(), new HashSet<>(iterated), is(expected));
+            assertThat(query.toString(), iterated.size(), is(expected.size()));
+        }
+    }
+
+    @Test
+    public void writersProgressWhileACursorIsOpen() throws Exception {
+        serviceUnderTest.addAll(Arrays.asList(PR_0307_REU_0972, PR_0207_REU_0972, PR_0407_REU_XK43));
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            List<Price> iterated = new ArrayList<>();
+            try (PriceCursor cursor = serviceUnderTest.cursor(PriceQuery.all())) {
+                iterated.add(cursor.next());
+                //a writer neither waits for the cursor to be exhausted nor closed
+                writer.submit(() -> serviceUnderTest.add(PR_0307_REU_XK43)).get(5, TimeUnit.SECONDS);
+                writer.submit(() -> serviceUnderTest.add(PR_0307_BLM_0972)).get(5, TimeUnit.SECONDS);
+                cursor.forEachRemaining(iterated::add);
+            }
+            assertThat(new HashSet<>(iterated).size(), is(iterated.size()));
+            assertTrue(iterated.containsAll(set(PR_0307_REU_0972, PR_0207_REU_0972, PR_0407_REU_XK43)));
+            assertThat(writer.submit(() -> serviceUnderTest.getAllPrices()).get(), is(set(PR_0307_REU_XK43, PR_0307_BLM_0972, PR_0407_REU_XK43, PR_0307_REU_0972, PR_0207_REU_0972)));
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void latestReadsSeeNoneOrAllOfABatch() throws Exception {
+        if (!publishesBatchAtOnce()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int batches = 500;
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            serviceUnderTest.addAll(batchAt(new Date(now)));
+            Future<Set<Price>> written = writer.submit(() -> {
+                for (int i = 1; i <= batches; i++) {
+                    serviceUnderTest.addAll(batchAt(new Date(now + i)));
+                }
+                return serviceUnderTest.getByInstrument(ISIN_GB00BCDBXK43, null);
+            });
+            while (!written.isDone()) {
+                assertOneDate(serviceUnderTest.getByInstrument(ISIN_GB00BCDBXK43, null));
+                assertOneDate(serviceUnderTest.getByVendor(VENDOR_REUTERS, null));
+            }
+            Set<Price> latest = written.get();
+            assertThat(latest.size(), is(2));
+            assertThat(latest.iterator().next().getAsOfDate(), is(new Date(now + batches)));
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private List<Price> batchAt(Date date) {
+        return Arrays.asList(
+                new Price(date, ASSET_EQUITY, ISIN_GB00BCDBXK43, VENDOR_REUTERS, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN),
+                new Price(date, ASSET_EQUITY, ISIN_GB00BCDBXK43, VENDOR_BLOOMBERG, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN),
+                new Price(date, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN));
+    }
+
+    private void assertOneDate(Set<Price> latest) {
+        assertThat(latest.size(), is(2));
+        Set<Date> dates = new HashSet<>();
+        for (Price price : latest) {
+            dates.add(price.getAsOfDate());
+        }
+        assertThat(dates.toString(), dates.size(), is(1));
+    }
+
+    @Test
+    public void addAllExpiresLikeAdd() {
+        serviceUnderTest.addAll(Arrays.asList(PR_0106_REU_0972, PR_0207_REU_0972));
+        serviceUnderTest.cleanUp();
+        Set<Price> allPrices = serviceUnderTest.getAllPrices();
+        assertThat(allPrices.size(), is(1));
+        assertTrue(allPrices.contains(PR_0207_REU_0972));
+    }
+
+    @Test
+    public void getByInstruments() {
+        serviceUnderTest.addAll(Arrays.asList(PR_0407_REU_XK43, PR_0307_REU_XK43, PR_0307_REU_0972, PR_0207_REU_0972,
+                PR_0407_BLM_XK43, PR_0207_MKT_6555));
+        List<String> basket = Arrays.asList(ISIN_GB00BCDBXK43, ISIN_GB0006640972, ISIN_GB00BMH46555, "UNKNOWN");
+
+        Map<String, Set<Price>> latest = serviceUnderTest.getByInstruments(basket, null);
+        assertThat(latest.size(), is(4));
+        assertThat(latest.get(ISIN_GB00BCDBXK43), is(set(PR_0407_REU_XK43, PR_0407_BLM_XK43)));
+        assertThat(latest.get(ISIN_GB0006640972), is(set(PR_0307_REU_0972)));
+        assertThat(latest.get(ISIN_GB00BMH46555), is(set(PR_0207_MKT_6555)));
+        assertTrue(latest.get("UNKNOWN").isEmpty());
+
+        Map<String, Set<Price>> dated = serviceUnderTest.getByInstrumentsAsync(basket, date_03_07_2020).join();
+        assertThat(dated.get(ISIN_GB00BCDBXK43), is(set(PR_0307_REU_XK43)));
+        assertThat(dated.get(ISIN_GB0006640972), is(set(PR_0307_REU_0972)));
+        assertTrue(dated.get(ISIN_GB00BMH46555).isEmpty());
+    }
+
+    @Test
+    public void getByInstrumentsSpreadsLargeBasketsOnTheExecutor() {
+        List<Price> prices = new ArrayList<>();
+        List<String> basket = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String instrument = "GB" + i;
+            basket.add(instrument);
+            prices.add(new Price(date_03_07_2020, ASSET_EQUITY, instrument, VENDOR_REUTERS, MARKET_XLON, BigDecimal.TEN, BigDecimal.TEN));
+        }
+        serviceUnderTest.addAll(prices);
+        //one thread runs both the basket and its chunks, the caller picks up the chunks the thread cannot start
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Map<String, Set<Price>> latest = serviceUnderTest.getByInstrumentsAsync(basket, null, executor).join();
+            assertThat(latest.size(), is(1000));
+            for (Price price : prices) {
+                assertThat(latest.get(price.getInstrument()), is(set(price)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void subscribersReceiveNewLatestPrices() throws Exception {
+        BlockingQueue<Price> byInstrument = new LinkedBlockingQueue<>();
+        BlockingQueue<Price> byVendor = new LinkedBlockingQueue<>();
+        try (PriceSubscription instrumentSubscription = serviceUnderTest.subscribeToInstrument(ISIN_GB0006640972, byInstrument::add);
+             PriceSubscription vendorSubscription = serviceUnderTest.subscribeToVendor(VENDOR_MARKIT, byVendor::add)) {
+            serviceUnderTest.add(PR_0207_REU_0972);
+            assertThat(byInstrument.poll(5, TimeUnit.SECONDS), is(PR_0207_REU_0972));
+            //an older price does not change the latest price, so it is not pushed
+            serviceUnderTest.add(PR_0106_REU_0972);
+            serviceUnderTest.add(PR_0307_BLM_XK43);
+            serviceUnderTest.addAll(Arrays.asList(PR_0307_REU_0972, PR_0207_MKT_6555, PR_0107_MKT_6555));
+            assertThat(byInstrument.poll(5, TimeUnit.SECONDS), is(PR_0307_REU_0972));
+            assertThat(byVendor.poll(5, TimeUnit.SECONDS), is(PR_0207_MKT_6555));
+            assertNull(byInstrument.poll(100, TimeUnit.MILLISECONDS));
+            assertNull(byVendor.poll(0, TimeUnit.MILLISECONDS));
+        }
+        serviceUnderTest.add(PR_0307_MKT_6555);
+        assertNull(byVendor.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void slowSubscribersAreConflated() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<Price> received = new LinkedBlockingQueue<>();
+        try (PriceSubscription subscription = serviceUnderTest.subscribeToAll(price -> {
+            received.add(price);
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })) {
+            serviceUnderTest.add(PR_0307_REU_XK43);
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            //the listener is stuck, the writers are not
+            serviceUnderTest.add(PR_0107_MKT_6555);
+            serviceUnderTest.add(PR_0207_MKT_6555);
+            serviceUnderTest.add(PR_0307_MKT_6555);
+            serviceUnderTest.add(PR_0407_REU_XK43);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (subscription.conflatedCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(subscription.conflatedCount(), is(2L));
+            release.countDown();
+            assertThat(received.poll(5, TimeUnit.SECONDS), is(PR_0307_REU_XK43));
+            Set<Price> latest = new HashSet<>(Arrays.asList(received.poll(5, TimeUnit.SECONDS), received.poll(5, TimeUnit.SECONDS)));
+            assertThat(latest, is(new HashSet<>(Arrays.asList(PR_0307_MKT_6555, PR_0407_REU_XK43))));
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void compositeQuoteConsolidatesTheLatestVendorPrices() {
+        assertNull(serviceUnderTest.getCompositeQuote(ISIN_GB0006640972));
+        serviceUnderTest.add(new Price(date_02_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, new BigDecimal("100.10"), new BigDecimal("100.30")));
+        serviceUnderTest.add(new Price(date_03_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_BLOOMBERG, MARKET_XLON, new BigDecimal("100.05"), new BigDecimal("100.20")));
+        serviceUnderTest.add(new Price(date_01_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_BLOOMBERG, MARKET_XLON, new BigDecimal("99"), new BigDecimal("99")));
+
+        CompositeQuote quote = serviceUnderTest.getCompositeQuote(ISIN_GB0006640972);
+        assertThat(quote.getBestBid(), is(new BigDecimal("100.10")));
+        assertThat(quote.getBidVendor(), is(VENDOR_REUTERS));
+        assertThat(quote.getBestAsk(), is(new BigDecimal("100.20")));
+        assertThat(quote.getAskVendor(), is(VENDOR_BLOOMBERG));
+        assertThat(quote.getMid(), is(new BigDecimal("100.15")));
+        assertThat(quote.getAsOfDate(), is(date_03_07_2020));
+        assertThat(quote.getVendorCount(), is(2));
+        //a read is a lookup of the quote built on add
+        assertSame(quote, serviceUnderTest.getCompositeQuote(ISIN_GB0006640972));
+
+        serviceUnderTest.addAll(Arrays.asList(new Price(date_04_07_2020, ASSET_EQUITY, ISIN_GB0006640972, VENDOR_REUTERS, MARKET_XLON, new BigDecimal("100.00"), null)));
+        quote = serviceUnderTest.getCompositeQuote(ISIN_GB0006640972);
+        assertThat(quote.getBestBid(), is(new BigDecimal("100.05")));
+        assertThat(quote.getBidVendor(), is(VENDOR_BLOOMBERG));
+        assertThat(quote.getAskVendor(), is(VENDOR_BLOOMBERG));
+        assertThat(quote.getMid(), is(new BigDecimal("100.125")));
+    }
+
+    @Test
+    public void compositeQuoteFollowsCleanUp() {
+        serviceUnderTest.add(PR_0106_REU_0972);
+        serviceUnderTest.add(PR_0307_BLM_0972);
+        serviceUnderTest.add(PR_0107_MKT_6555);
+        assertThat(serviceUnderTest.getCompositeQuote(ISIN_GB0006640972).getVendorCount(), is(2));
+        serviceUnderTest.cleanUp();
+        CompositeQuote quote = serviceUnderTest.getCompositeQuote(ISIN_GB0006640972);
+        assertThat(quote.getVendorCount(), is(1));
+        assertThat(quote.getBidVendor(), is(VENDOR_BLOOMBERG));
+        assertNotNull(serviceUnderTest.getCompositeQuote(ISIN_GB00BMH46555));
+    }
+
+    private static BigDecimal bidOf(Set<Price> prices) {
+        assertThat(prices.size(), is(1));
+        return prices.iterator().next().getBid();
+    }
+
+    private static Set<Price> set(Price... prices) {
+        return new HashSet<>(Arrays.asList(prices));
+    }
+}
@@ -0,0 +1,49 @@
+package com.mfc.trading.instrument.service.metrics;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueContiguously() {
+        long previousHighest = -1;
+        for (int index = 0; index <= LatencyHistogram.indexOf(Long.MAX_VALUE); index++) {
+            long lowest = previousHighest + 1;
+            assertThat(LatencyHistogram.indexOf(lowest), is(index));
+            previousHighest = LatencyHistogram.highestValueOf(index);
+            assertThat(LatencyHistogram.indexOf(previousHighest), is(index));
+        }
+        assertThat(previousHighest, is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(100_000L));
+        assertThat(snapshot.getMax(), is(100_000_000L));
+        assertThat(snapshot.getMean(), is(50_000_500L));
+        assertWithin(snapshot.getP50(), 50_000_000L);
+        assertWithin(snapshot.getP90(), 90_000_000L);
+        assertWithin(snapshot.getP99(), 99_000_000L);
+        assertWithin(snapshot.getP999(), 99_900_000L);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencySnapshot snapshot = new LatencyHistogram().snapshot();
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getP99(), is(0L));
+        assertThat(snapshot.getMean(), is(0L));
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual + " is not within 1/16 of " + expected, Math.abs(actual - expected) <= expected / 16);
+    }
+}
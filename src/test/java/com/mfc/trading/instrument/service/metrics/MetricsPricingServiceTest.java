@@ -0,0 +1,119 @@
+package com.mfc.trading.instrument.service.metrics;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.stream.PriceDispatcher;
+import com.mfc.trading.instrument.service.util.PricingConstant;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class MetricsPricingServiceTest {
+
+    private Date today;
+    private Date expired;
+
+    @Before
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        today = new Date(now);
+        expired = new Date(now - 31 * PricingConstant.DAY_IN_MIL_SEC);
+    }
+
+    @Test
+    public void recordsLatencyPerOperation() {
+        MetricsPricingService service = new MetricsPricingService(timedStore());
+        service.add(price(today, "GB0006640972", "Reuters"));
+        service.addAll(Arrays.asList(price(today, "GB0006640972", "Bloomberg"), price(today, "GB00BMH46555", "Reuters")));
+        service.getByInstrument("GB0006640972", null);
+        service.getByInstrument("GB0006640972", today);
+        service.getByVendor("Reuters", today);
+        service.getByVendorAsOf("Reuters", today);
+        service.getAllPrices();
+
+        assertThat(service.latency(MetricsPricingService.Operation.ADD).getCount(), is(1L));
+        assertThat(service.latency(MetricsPricingService.Operation.ADD_ALL).getCount(), is(1L));
+        assertThat(service.latency(MetricsPricingService.Operation.GET_BY_INSTRUMENT).getCount(), is(2L));
+        assertThat(service.latency(MetricsPricingService.Operation.GET_BY_VENDOR).getCount(), is(1L));
+        assertThat(service.latency(MetricsPricingService.Operation.GET_AS_OF).getCount(), is(1L));
+        assertThat(service.latency(MetricsPricingService.Operation.GET_BETWEEN).getCount(), is(0L));
+        assertTrue(service.latency(MetricsPricingService.Operation.GET_ALL_PRICES).getMax() > 0);
+
+        //the locked store times its lock, the dated reads and both writes took it
+        assertThat(service.getWriteLockWait().getCount(), is(2L));
+        assertThat(service.getWriteLockHold().getCount(), is(2L));
+        assertTrue(service.getReadLockHold().getCount() >= 3);
+    }
+
+    @Test
+    public void storeLockIsOnlyTimedWhenAskedFor() {
+        MetricsPricingService service = new MetricsPricingService(new PricingServiceImpl());
+        service.add(price(today, "GB0006640972", "Reuters"));
+        assertNull(service.getWriteLockWait());
+        assertNull(service.getReadLockHold());
+        assertThat(service.latency(MetricsPricingService.Operation.ADD).getCount(), is(1L));
+    }
+
+    @Test
+    public void reportsStoreSizesAndExpiry() {
+        MetricsPricingService service = new MetricsPricingService(new ConcurrentPricingServiceImpl());
+        service.addAll(Arrays.asList(price(today, "GB0006640972", "Reuters"),
+                price(expired, "GB0006640972", "Reuters"),
+                price(expired, "GB00BMH46555", "Reuters"),
+                price(today, "GB0006640972", "Bloomberg")));
+        assertThat(service.getPriceCountByVendor().get("Reuters"), is(3));
+        assertThat(service.getPriceCountByInstrument().get("GB0006640972"), is(3));
+
+        assertThat(service.cleanUp(), is(2));
+        assertThat(service.getCleanUpRuns(), is(1L));
+        assertThat(service.getLastExpiredCount(), is(2L));
+        assertThat(service.getPriceCountByVendor().get("Reuters"), is(1));
+        assertNull(service.getPriceCountByInstrument().get("GB00BMH46555"));
+        //a lock free store has no lock to time
+        assertNull(service.getWriteLockWait());
+
+        assertThat(service.cleanUp(), is(0));
+        assertThat(service.getLastExpiredCount(), is(0L));
+        assertThat(service.getExpiredCount(), is(2L));
+    }
+
+    @Test
+    public void exposesMetricsThroughJmx() throws Exception {
+        MetricsPricingService service = new MetricsPricingService(timedStore());
+        service.add(price(today, "GB0006640972", "Reuters"));
+        service.getByInstrument("GB0006640972", today);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = service.registerMBean("test");
+        try {
+            TabularData latencies = (TabularData) server.getAttribute(name, "Latencies");
+            CompositeData add = (CompositeData) latencies.get(new Object[]{"ADD"}).get("value");
+            assertThat(add.get("count"), is(1L));
+            CompositeData lockHold = (CompositeData) server.getAttribute(name, "WriteLockHold");
+            assertThat(lockHold.get("count"), is(1L));
+            assertThat(server.getAttribute(name, "ExpiredCount"), is(0L));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static PricingServiceImpl timedStore() {
+        return new PricingServiceImpl(PricingConstant.DEFAULT_CACHE_AGE, CompositeQuotePolicy.DEFAULT, new PriceDispatcher(), true);
+    }
+
+    private static Price price(Date date, String instrument, String vendor) {
+        return new Price(date, "Equity", instrument, vendor, "XLON", BigDecimal.ONE, BigDecimal.TEN);
+    }
+}
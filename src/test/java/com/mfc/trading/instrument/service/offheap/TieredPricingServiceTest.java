@@ -0,0 +1,239 @@
+package com.mfc.trading.instrument.service.offheap;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.memory.PricingServiceImplTest;
+import com.mfc.trading.instrument.service.query.PriceCursor;
+import com.mfc.trading.instrument.service.query.PriceQuery;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class TieredPricingServiceTest extends PricingServiceImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<TieredPricingService> services = new ArrayList<>();
+
+    @Override
+    protected PricingService createService() {
+        return track(new TieredPricingService(1, DEFAULT_CACHE_AGE, OffHeapMemory.direct()));
+    }
+
+    @After
+    public void tearDown() {
+        services.forEach(TieredPricingService::close);
+    }
+
+    @Test
+    public void olderDaysAreServedOffHeap() {
+        long now = System.currentTimeMillis();
+        TieredPricingService service = track(new TieredPricingService(1, 365, OffHeapMemory.direct()));
+        Price today = price(now, "GB0006640972", "Reuters", "101.25");
+        Price lastWeek = price(now - 7 * DAY_IN_MIL_SEC, "GB0006640972", "Reuters", "99.50");
+        Price lastMonth = price(now - 30 * DAY_IN_MIL_SEC, "GB0006640972", "Bloomberg", "98.125");
+        Price lastYear = price(now - 300 * DAY_IN_MIL_SEC, "GB00BMH46555", "Bloomberg", "12");
+        service.addAll(Arrays.asList(today, lastWeek, lastMonth, lastYear));
+
+        assertThat(service.archivedCount(), is(3L));
+        assertTrue(service.offHeapBytes() > 0);
+        assertThat(service.getByInstrument("GB0006640972", lastWeek.getAsOfDate()), is(set(lastWeek)));
+        assertThat(service.getByVendor("Bloomberg", lastYear.getAsOfDate()), is(set(lastYear)));
+        assertThat(service.getByInstrument("GB0006640972", today.getAsOfDate()), is(set(today)));
+        //the archived prices keep the scale of the prices added
+        assertThat(service.getByInstrument("GB0006640972", lastMonth.getAsOfDate()).iterator().next().getBid(), is(new BigDecimal("98.125")));
+
+        //Bloomberg has no price on-heap, its latest price comes from the archive
+        assertThat(service.getByInstrument("GB0006640972", null), is(set(today, lastMonth)));
+        assertThat(service.getByVendor("Bloomberg", null), is(set(lastMonth, lastYear)));
+        assertThat(service.getByInstrumentAsOf("GB0006640972", new Date(now - DAY_IN_MIL_SEC)), is(set(lastWeek, lastMonth)));
+        assertThat(service.getByInstrumentAsOf("GB0006640972", new Date(now)), is(set(today, lastMonth)));
+        assertThat(service.getByInstrumentBetween("GB0006640972", lastMonth.getAsOfDate(), new Date(now + 1)), is(set(today, lastWeek, lastMonth)));
+        assertThat(service.getAllPrices(), is(set(today, lastWeek, lastMonth, lastYear)));
+        assertThat(service.getByInstruments(Collections.singletonList("GB0006640972"), lastWeek.getAsOfDate()).get("GB0006640972"), is(set(lastWeek)));
+    }
+
+    @Test
+    public void cleanUpRollsDaysOffHeapAndExpiresTheArchive() {
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        TieredPricingService service = track(new TieredPricingService(1, 10, OffHeapMemory.direct(), clock::get));
+        Price today = price(clock.get(), "GB0006640972", "Reuters", "101.25");
+        Price corrected = price(clock.get(), "GB0006640972", "Reuters", "1");
+        service.add(today);
+        assertThat(service.archivedCount(), is(0L));
+
+        clock.addAndGet(3 * DAY_IN_MIL_SEC);
+        service.cleanUp();
+        assertThat(service.archivedCount(), is(1L));
+        assertThat(service.getByInstrument("GB0006640972", today.getAsOfDate()), is(set(today)));
+        assertThat(service.getByInstrument("GB0006640972", null), is(set(today)));
+        //like on-heap a resend is dropped and a correction replaces the archived price
+        service.add(price(today.getAsOfDate().getTime(), "GB0006640972", "Reuters", "101.25"));
+        assertThat(service.duplicateCount(), is(1L));
+        service.add(corrected);
+        assertThat(service.getByInstrument("GB0006640972", today.getAsOfDate()).iterator().next().getBid(), is(new BigDecimal("1")));
+        assertThat(service.getByInstrument("GB0006640972", null).iterator().next().getBid(), is(new BigDecimal("1")));
+
+        clock.addAndGet(10 * DAY_IN_MIL_SEC);
+        service.cleanUp();
+        assertThat(service.archivedCount(), is(0L));
+        assertThat(service.offHeapBytes(), is(0L));
+        assertTrue(service.getByInstrument("GB0006640972", today.getAsOfDate()).isEmpty());
+        assertTrue(service.getAllPrices().isEmpty());
+    }
+
+    @Test
+    public void lateTicksOfADayAreArchivedTogether() {
+        long now = System.currentTimeMillis();
+        AtomicLong allocations = new AtomicLong();
+        OffHeapMemory direct = OffHeapMemory.direct();
+        TieredPricingService service = track(new TieredPricingService(1, 365, new OffHeapMemory() {
+            @Override
+            public ByteBuffer allocate(long day, int bytes) {
+                allocations.incrementAndGet();
+                return direct.allocate(day, bytes);
+            }
+
+            @Override
+            public void release(long day, ByteBuffer buffer) {
+                direct.release(day, buffer);
+            }
+        }));
+        service.add(price(now, "GB0006640972", "Reuters", "101.25"));
+        long lastWeek = now - 7 * DAY_IN_MIL_SEC;
+        for (int i = 0; i < 100; i++) {
+            service.add(price(lastWeek + i, "GB0006640972", "Reuters", String.valueOf(i)));
+        }
+        //a resend of a queued tick
+        service.add(price(lastWeek, "GB0006640972", "Reuters", "0"));
+        assertThat(allocations.get(), is(0L));
+
+        //queued until the archive is read, then the day is written once
+        assertThat(service.getByInstrumentBetween("GB0006640972", new Date(lastWeek), new Date(lastWeek + 100)).size(), is(100));
+        assertThat(allocations.get(), is(1L));
+        assertThat(service.archivedCount(), is(100L));
+        assertThat(service.getByInstrument("GB0006640972", null).iterator().next().getAsOfDate(), is(new Date(now)));
+    }
+
+    @Test
+    public void archivedTicksOfASeriesWithoutAnOnHeapPriceAreQueuedToo() {
+        long lastWeek = System.currentTimeMillis() - 7 * DAY_IN_MIL_SEC;
+        AtomicLong allocations = new AtomicLong();
+        OffHeapMemory direct = OffHeapMemory.direct();
+        TieredPricingService service = track(new TieredPricingService(1, 365, new OffHeapMemory() {
+            @Override
+            public ByteBuffer allocate(long day, int bytes) {
+                allocations.incrementAndGet();
+                return direct.allocate(day, bytes);
+            }
+
+            @Override
+            public void release(long day, ByteBuffer buffer) {
+                direct.release(day, buffer);
+            }
+        }));
+        for (int i = 0; i < 100; i++) {
+            service.add(price(lastWeek + i, "GB0006640972", "Reuters", String.valueOf(i + 1)));
+        }
+        //the latest tick is kept on-heap at once, the day is not written yet
+        assertThat(service.getCompositeQuote("GB0006640972").getBestBid(), is(new BigDecimal("100")));
+        assertThat(allocations.get(), is(0L));
+
+        assertThat(service.getByInstrument("GB0006640972", null).iterator().next().getAsOfDate(), is(new Date(lastWeek + 99)));
+        assertThat(allocations.get(), is(1L));
+        assertThat(service.archivedCount(), is(100L));
+    }
+
+    @Test
+    public void latestQueriesCompleteTheOnHeapSeriesWithTheArchive() {
+        long now = System.currentTimeMillis();
+        TieredPricingService service = track(new TieredPricingService(1, 365, OffHeapMemory.direct()));
+        Price today = price(now, "GB0006640972", "Reuters", "101.25");
+        Price lastWeek = price(now - 7 * DAY_IN_MIL_SEC, "GB0006640972", "Reuters", "99.50");
+        Price otherMarket = new Price(new Date(now), "Equity", "GB00BMH46555", "Reuters", "XPAR", BigDecimal.ONE, BigDecimal.ONE);
+        Price archivedOnly = price(now - 7 * DAY_IN_MIL_SEC, "GB00BMH46555", "Bloomberg", "12");
+        Price archivedBehindOtherMarket = price(now - 7 * DAY_IN_MIL_SEC, "GB00BMH46555", "Reuters", "13");
+        service.addAll(Arrays.asList(today, lastWeek, otherMarket, archivedOnly, archivedBehindOtherMarket));
+
+        assertThat(service.query(PriceQuery.latest().market("XLON")), is(set(today, archivedOnly)));
+        assertThat(service.query(PriceQuery.latest().vendor("Reuters")), is(set(today, otherMarket)));
+        assertThat(service.query(PriceQuery.asOf(new Date(now - DAY_IN_MIL_SEC)).market("XLON")), is(set(lastWeek, archivedOnly, archivedBehindOtherMarket)));
+    }
+
+    @Test
+    public void cursorWalksTheOnHeapDaysThenTheArchive() {
+        long now = System.currentTimeMillis();
+        TieredPricingService service = track(new TieredPricingService(1, 365, OffHeapMemory.direct()));
+        Price today = price(now, "GB0006640972", "Reuters", "101.25");
+        Price lastWeek = price(now - 7 * DAY_IN_MIL_SEC, "GB0006640972", "Reuters", "99.50");
+        Price lastMonth = price(now - 30 * DAY_IN_MIL_SEC, "GB0006640972", "Bloomberg", "98.125");
+        Price lastYear = price(now - 300 * DAY_IN_MIL_SEC, "GB00BMH46555", "Bloomberg", "12");
+        service.addAll(Arrays.asList(today, lastWeek, lastMonth, lastYear));
+
+        List<Price> iterated = new ArrayList<>();
+        try (PriceCursor cursor = service.cursor(PriceQuery.all())) {
+            iterated.add(cursor.next());
+            assertThat(iterated.get(0), is(today));
+            cursor.forEachRemaining(iterated::add);
+        }
+        assertThat(new HashSet<>(iterated), is(set(today, lastWeek, lastMonth, lastYear)));
+        assertThat(iterated.size(), is(4));
+
+        List<Price> visited = new ArrayList<>();
+        service.forEach(PriceQuery.between(lastMonth.getAsOfDate(), new Date(now + 1)).instrument("GB0006640972"), visited::add);
+        assertThat(new HashSet<>(visited), is(set(today, lastWeek, lastMonth)));
+        assertThat(visited.size(), is(3));
+    }
+
+    @Test
+    public void archiveCanBeMemoryMapped() throws Exception {
+        File directory = folder.newFolder("archive");
+        long now = System.currentTimeMillis();
+        TieredPricingService service = track(new TieredPricingService(1, 365, OffHeapMemory.mapped(directory.toPath())));
+        Price lastWeek = price(now - 7 * DAY_IN_MIL_SEC, "GB0006640972", "Reuters", "99.50");
+        Price lastMonth = price(now - 30 * DAY_IN_MIL_SEC, "GB0006640972", "Reuters", "98");
+        service.addAll(Arrays.asList(lastWeek, lastMonth));
+        assertThat(directory.list().length, is(2));
+        assertThat(service.getByVendorBetween("Reuters", lastMonth.getAsOfDate(), new Date(now)), is(set(lastWeek, lastMonth)));
+
+        service.close();
+        assertThat(directory.list().length, is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnOnHeapWindowAsLongAsTheCacheAge() {
+        new TieredPricingService(30, 30, OffHeapMemory.direct());
+    }
+
+    private TieredPricingService track(TieredPricingService service) {
+        services.add(service);
+        return service;
+    }
+
+    private static Price price(long time, String instrument, String vendor, String bid) {
+        return new Price(new Date(time), "Equity", instrument, vendor, "XLON", new BigDecimal(bid), null);
+    }
+
+    private static Set<Price> set(Price... prices) {
+        return new HashSet<>(Arrays.asList(prices));
+    }
+}
@@ -0,0 +1,68 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class PriceCursorTest {
+
+    private final Price reuters = new Price(new Date(0), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.ONE);
+    private final Price bloomberg = new Price(new Date(0), "Equity", "GB0006640972", "Bloomberg", "XLON", BigDecimal.TEN, BigDecimal.TEN);
+
+    @Test
+    public void releasesOnceExhaustedOrClosed() {
+        AtomicInteger released = new AtomicInteger();
+        PriceCursor cursor = PriceCursor.of(Collections.singletonList(reuters).iterator(), released::incrementAndGet);
+        assertThat(cursor.next(), is(reuters));
+        assertThat(released.get(), is(0));
+        assertFalse(cursor.hasNext());
+        assertThat(released.get(), is(1));
+        cursor.close();
+        assertThat(released.get(), is(1));
+
+        PriceCursor abandoned = PriceCursor.of(Collections.singletonList(reuters).iterator(), released::incrementAndGet);
+        abandoned.close();
+        assertThat(released.get(), is(2));
+        assertFalse(abandoned.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextFailsOnceExhausted() {
+        PriceCursor.of(Collections.emptyList()).next();
+    }
+
+    @Test
+    public void concatOpensOneCursorAtATime() {
+        List<String> events = new ArrayList<>();
+        List<Supplier<PriceCursor>> cursors = Arrays.asList(
+                opening("first", Collections.singletonList(reuters), events),
+                opening("empty", Collections.emptyList(), events),
+                opening("last", Collections.singletonList(bloomberg), events));
+        try (PriceCursor cursor = PriceCursor.concat(cursors)) {
+            assertTrue(events.isEmpty());
+            assertThat(cursor.next(), is(reuters));
+            assertThat(cursor.next(), is(bloomberg));
+            assertThat(events, is(Arrays.asList("open first", "close first", "open empty", "close empty", "open last")));
+        }
+        assertThat(events.get(events.size() - 1), is("close last"));
+    }
+
+    private static Supplier<PriceCursor> opening(String name, List<Price> prices, List<String> events) {
+        return () -> {
+            events.add("open " + name);
+            return PriceCursor.of(prices.iterator(), () -> events.add("close " + name));
+        };
+    }
+}
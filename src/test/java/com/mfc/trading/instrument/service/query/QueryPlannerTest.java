@@ -0,0 +1,126 @@
+package com.mfc.trading.instrument.service.query;
+
+import com.mfc.trading.instrument.pojo.Price;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class QueryPlannerTest {
+
+    private final SeriesIndex byMarket = new SeriesIndex(Price::getMarket);
+    private final SeriesIndex byAssetClass = new SeriesIndex(Price::getAssetClass);
+    private final Map<String, Map<String, String>> byVendor = new HashMap<>();
+
+    @Test
+    public void walksTheMostSelectiveIndexAndProbesTheOthers() {
+        for (int instrument = 0; instrument < 100; instrument++) {
+            add("Reuters", "GB" + instrument, "XLON", "Equity");
+            add("Bloomberg", "GB" + instrument, "XLON", instrument < 50 ? "Equity" : "Bond");
+        }
+        add("Bloomberg", "FR0", "XPAR", "Equity");
+        add("Reuters", "FR0", "XPAR", "Bond");
+
+        List<String> visited = new ArrayList<>();
+        QueryPlanner.intersect(new ArrayList<>(Arrays.asList(counting(byMarket.series("XLON"), visited), counting(byAssetClass.series("Equity"), visited),
+                counting(byMarket.series("XPAR"), visited))), unused(), (vendor, instrument) -> fail("XLON and XPAR have no series in common"));
+        //only the two XPAR series are walked
+        assertThat(visited, is(Arrays.asList("Bloomberg/FR0", "Reuters/FR0")));
+
+        List<String> found = new ArrayList<>();
+        QueryPlanner.forEachSeries(PriceQuery.latest().market("XPAR").assetClass("Equity"), vendor -> SeriesSet.ofVendor(vendor, byVendor.get(vendor)),
+                instrument -> SeriesSet.EMPTY, byMarket::series, byAssetClass::series, unused(), (vendor, instrument) -> found.add(vendor + "/" + instrument));
+        assertThat(found, is(Collections.singletonList("Bloomberg/FR0")));
+    }
+
+    @Test
+    public void retainDropsTheValuesASeriesNoLongerHolds() {
+        add("Reuters", "GB0", "XLON", "Equity");
+        add("Reuters", "GB0", "XPAR", "Equity");
+        byMarket.retain("Reuters", "GB0", Collections.singletonList(price("Reuters", "GB0", "XPAR", "Equity")));
+        assertThat(byMarket.series("XLON").size(), is(0));
+        assertTrue(byMarket.series("XPAR").contains("Reuters", "GB0"));
+        byMarket.retain("Reuters", "GB0", Collections.emptyList());
+        assertThat(byMarket.series("XPAR").size(), is(0));
+    }
+
+    @Test
+    public void aQueryWithoutPredicateWalksEverySeries() {
+        add("Reuters", "GB0", "XLON", "Equity");
+        add("Bloomberg", "GB0", "XLON", "Equity");
+        List<String> found = new ArrayList<>();
+        QueryPlanner.forEachSeries(PriceQuery.latest(), QueryPlannerTest::noIndex, QueryPlannerTest::noIndex, QueryPlannerTest::noIndex, QueryPlannerTest::noIndex,
+                SeriesSet.all(byVendor), (vendor, instrument) -> found.add(vendor + "/" + instrument));
+        Collections.sort(found);
+        assertThat(found, is(Arrays.asList("Bloomberg/GB0", "Reuters/GB0")));
+    }
+
+    private void add(String vendor, String instrument, String market, String assetClass) {
+        Price price = price(vendor, instrument, market, assetClass);
+        byVendor.computeIfAbsent(vendor, key -> new HashMap<>()).put(instrument, instrument);
+        byMarket.record(price);
+        byAssetClass.record(price);
+    }
+
+    private static Price price(String vendor, String instrument, String market, String assetClass) {
+        return new Price(new Date(0), assetClass, instrument, vendor, market, BigDecimal.ONE, BigDecimal.ONE);
+    }
+
+    private static SeriesSet counting(SeriesSet series, List<String> visited) {
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return series.size();
+            }
+
+            @Override
+            public boolean contains(String vendor, String instrument) {
+                return series.contains(vendor, instrument);
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> visitor) {
+                List<String> walked = new ArrayList<>();
+                series.forEach((vendor, instrument) -> {
+                    walked.add(vendor + "/" + instrument);
+                    visitor.accept(vendor, instrument);
+                });
+                Collections.sort(walked);
+                visited.addAll(walked);
+            }
+        };
+    }
+
+    private static SeriesSet noIndex(String value) {
+        throw new AssertionError("no predicate to look up: " + value);
+    }
+
+    private static SeriesSet unused() {
+        return new SeriesSet() {
+            @Override
+            public int size() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean contains(String vendor, String instrument) {
+                throw new AssertionError("every series probed");
+            }
+
+            @Override
+            public void forEach(BiConsumer<String, String> series) {
+                throw new AssertionError("every series walked");
+            }
+        };
+    }
+}
@@ -0,0 +1,157 @@
+package com.mfc.trading.instrument.service.server;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DAY_IN_MIL_SEC;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class PriceServerTest {
+
+    private PricingService service;
+    private PriceServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        service = new PricingServiceImpl();
+        server = PriceServer.open(service, new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void loadGeneratorPipelinesBatchesIntoTheStore() throws IOException {
+        //more instruments than prices per frame, so batches and results span several frames
+        int instruments = 2 * PriceClient.maxPricesPerFrame();
+        PriceLoadGenerator generator = new PriceLoadGenerator(3, instruments, 2, 2500, 4);
+        try (PriceClient client = PriceClient.connect(server.getLocalAddress())) {
+            PriceLoadGenerator.Result result = generator.run(client);
+
+            assertThat(result.getPrices(), is(3L * instruments * 2));
+            assertThat(server.pricesReceived(), is(result.getPrices()));
+            assertThat((long) service.getAllPrices().size(), is(result.getPrices()));
+
+            Date today = new Date(System.currentTimeMillis() / DAY_IN_MIL_SEC * DAY_IN_MIL_SEC);
+            Date yesterday = new Date(today.getTime() - DAY_IN_MIL_SEC);
+            String instrument = PriceLoadGenerator.instrument(7);
+            String vendor = PriceLoadGenerator.vendor(2);
+            assertSameQuotes(client.getByInstrument(instrument, null), service.getByInstrument(instrument, null));
+            assertSameQuotes(client.getByInstrument(instrument, yesterday), service.getByInstrument(instrument, yesterday));
+            assertSameQuotes(client.getByVendor(vendor, null), service.getByVendor(vendor, null));
+            assertSameQuotes(client.getByVendor(vendor, yesterday), service.getByVendor(vendor, yesterday));
+            assertThat(client.getByVendor(vendor, null).size(), is(instruments));
+            assertTrue(client.getByInstrument("unknown", today).isEmpty());
+
+            //more results pipelined than the server queues for a client, it stops reading until they are read
+            List<CompletableFuture<Set<Price>>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(client.requestByVendor(vendor, null));
+            }
+            client.flush();
+            for (CompletableFuture<Set<Price>> prices : results) {
+                assertThat(prices.join().size(), is(instruments));
+            }
+        }
+    }
+
+    @Test
+    public void queriesPipelinedBehindBatchesSeeThem() throws IOException {
+        long now = System.currentTimeMillis();
+        Price priced = new Price(new Date(now), "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("101.25"), new BigDecimal("101.375"));
+        //a vendor quoting only a bid, without a market
+        Price bidOnly = new Price(new Date(now), "Equity", "GB0006640972", "Bloomberg", null, new BigDecimal("101.5"), null);
+        try (PriceClient client = PriceClient.connect(server.getLocalAddress())) {
+            CompletableFuture<Set<Price>> before = client.requestByInstrument("GB0006640972", null);
+            CompletableFuture<Integer> added = client.send(Arrays.asList(priced, bidOnly));
+            CompletableFuture<Set<Price>> after = client.requestByInstrument("GB0006640972", null);
+            CompletableFuture<Set<Price>> byVendor = client.requestByVendor("Bloomberg", new Date(now));
+            assertThat(client.outstanding(), is(4));
+            client.flush();
+
+            assertTrue(before.join().isEmpty());
+            assertThat(added.join(), is(2));
+            assertSameQuotes(after.join(), service.getByInstrument("GB0006640972", null));
+            Price received = byVendor.join().iterator().next();
+            assertTrue(received.sameQuote(bidOnly));
+            assertNull(received.getMarket());
+            assertNull(received.getAsk());
+            assertThat(received.getAsOfDate(), is(bidOnly.getAsOfDate()));
+            CompletableFuture<Integer> empty = client.send(Collections.emptyList());
+            client.flush();
+            assertThat(empty.join(), is(0));
+        }
+    }
+
+    @Test
+    public void malformedFrameClosesOnlyItsConnection() throws Exception {
+        try (SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+             PriceClient client = PriceClient.connect(server.getLocalAddress())) {
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES);
+            frame.putInt(Integer.MAX_VALUE).flip();
+            channel.write(frame);
+            assertThat(channel.read(ByteBuffer.allocate(16)), is(-1));
+
+            Price price = new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+            client.send(Collections.singletonList(price));
+            assertThat(client.getByInstrument("GB0006640972", null).size(), is(1));
+        }
+    }
+
+    @Test
+    public void priceTheProtocolCannotCarryFailsOnlyItsQuery() throws IOException {
+        //stored in process, its unscaled bid needs more than 63 bits
+        Price wide = new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", new BigDecimal("123456789012345678901.5"), null);
+        Price narrow = new Price(new Date(), "Equity", "GB00BMH46555", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        service.addAll(Arrays.asList(wide, narrow));
+        try (PriceClient client = PriceClient.connect(server.getLocalAddress())) {
+            try {
+                client.getByInstrument("GB0006640972", null);
+                fail("the price does not fit a scaled long");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("123456789012345678901.5"));
+            }
+            //the half written result was dropped, the connection and the server carry on
+            assertThat(client.getByInstrument("GB00BMH46555", null), is(Collections.singleton(narrow)));
+            try {
+                client.send(Collections.singletonList(wide));
+                fail("the price does not fit a scaled long");
+            } catch (IllegalArgumentException expected) {
+                //nothing of the price was sent
+            }
+            assertThat(client.getByInstrument("GB00BMH46555", null), is(Collections.singleton(narrow)));
+        }
+        try (PriceClient client = PriceClient.connect(server.getLocalAddress())) {
+            assertThat(client.getByInstrument("GB00BMH46555", null).size(), is(1));
+        }
+    }
+
+    private static void assertSameQuotes(Set<Price> received, Set<Price> stored) {
+        assertThat(received, is(stored));
+        for (Price price : received) {
+            Iterator<Price> match = stored.stream().filter(price::equals).iterator();
+            assertTrue(match.next().sameQuote(price));
+        }
+    }
+}
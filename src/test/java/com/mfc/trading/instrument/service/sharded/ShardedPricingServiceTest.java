@@ -0,0 +1,237 @@
+package com.mfc.trading.instrument.service.sharded;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.composite.CompositeQuotePolicy;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.PricingServiceImplTest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.mfc.trading.instrument.service.util.PricingConstant.DEFAULT_CACHE_AGE;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class ShardedPricingServiceTest extends PricingServiceImplTest {
+
+    private final List<ShardedPricingService> services = new ArrayList<>();
+
+    @Override
+    protected PricingService createService() {
+        ShardedPricingService service = new ShardedPricingService(4, DEFAULT_CACHE_AGE);
+        services.add(service);
+        return service;
+    }
+
+    //each shard publishes its part of a batch on its own
+    @Override
+    protected boolean publishesBatchAtOnce() {
+        return false;
+    }
+
+    @After
+    public void tearDown() {
+        services.forEach(ShardedPricingService::close);
+    }
+
+    @Test
+    public void writersReadTheirOwnWritesAcrossShards() throws Exception {
+        PricingService service = createService();
+        int writers = 4;
+        int instruments = 500;
+        long now = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int w = 0; w < writers; w++) {
+                String vendor = "Vendor" + w;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < instruments; i++) {
+                        Price price = new Price(new Date(now), "Equity", "ISIN" + i, vendor, "XLON", BigDecimal.ONE, BigDecimal.TEN);
+                        service.add(price);
+                        assertTrue(service.getByInstrument("ISIN" + i, null).contains(price));
+                    }
+                    //the fan out waits for every shard to apply the writes queued so far
+                    assertThat(service.getByVendor(vendor, null).size(), is(instruments));
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(service.getAllPrices().size(), is(writers * instruments));
+    }
+
+    @Test
+    public void invalidPricesFailForTheirWriter() {
+        PricingService service = createService();
+        Price valid = new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        Price withoutVendor = new Price(new Date(), "Equity", "GB00BMH46555", null, "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        try {
+            service.add(withoutVendor);
+            fail("a price without a vendor cannot be stored");
+        } catch (NullPointerException expected) {
+            //not queued
+        }
+        try {
+            service.addAll(Arrays.asList(valid, null));
+            fail("a null price cannot be stored");
+        } catch (NullPointerException expected) {
+            //nothing of the batch is queued
+        }
+        assertTrue(service.getAllPrices().isEmpty());
+    }
+
+    @Test
+    public void failedWriteIsReportedToItsWriterOnly() throws Exception {
+        Price rejected = new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        Price accepted = new Price(new Date(), "Equity", "GB0006640972", "Bloomberg", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        ShardedPricingService service = new ShardedPricingService(1, dispatcher -> new ConcurrentPricingServiceImpl(DEFAULT_CACHE_AGE, CompositeQuotePolicy.DEFAULT, dispatcher) {
+            @Override
+            public void add(Price price) {
+                if (price.getVendor().equals("Reuters")) {
+                    throw new IllegalArgumentException("Rejected by the store: " + price.getInstrument());
+                }
+                super.add(price);
+            }
+        });
+        services.add(service);
+        service.add(rejected);
+        //another writer is neither rejected nor told
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            other.submit(() -> {
+                service.add(accepted);
+                assertThat(service.getAllPrices().size(), is(1));
+            }).get();
+        } finally {
+            other.shutdownNow();
+        }
+        try {
+            service.getAllPrices();
+            fail("the add before failed");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause().getMessage(), is("Rejected by the store: GB0006640972"));
+        }
+        //reported once, the store takes batches
+        service.addAll(Collections.singletonList(rejected));
+        assertThat(service.getAllPrices().size(), is(2));
+    }
+
+    @Test
+    public void failedCleanUpIsReported() {
+        ShardedPricingService service = new ShardedPricingService(2, dispatcher -> new ConcurrentPricingServiceImpl(DEFAULT_CACHE_AGE, CompositeQuotePolicy.DEFAULT, dispatcher) {
+            @Override
+            public int cleanUp() {
+                throw new IllegalStateException("Clean up failed");
+            }
+        });
+        services.add(service);
+        try {
+            service.cleanUp();
+            fail("the clean up of the shards failed");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause().getMessage(), is("Clean up failed"));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void readersDoNotWaitForTheWritesOfOtherThreads() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ShardedPricingService service = new ShardedPricingService(1, dispatcher -> new ConcurrentPricingServiceImpl(DEFAULT_CACHE_AGE, CompositeQuotePolicy.DEFAULT, dispatcher) {
+            @Override
+            public void add(Price price) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.add(price);
+            }
+        });
+        services.add(service);
+        Price price = new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            writer.submit(() -> service.add(price)).get();
+            //the write is held on the worker, this thread did not queue it
+            assertTrue(service.getByInstrument("GB0006640972", null).isEmpty());
+            release.countDown();
+            assertThat(writer.submit(() -> service.getByInstrument("GB0006640972", null)).get(), is(Collections.singleton(price)));
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void writersWaitForAFullPartition() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ShardedPricingService service = new ShardedPricingService(1, 1, dispatcher -> new ConcurrentPricingServiceImpl(DEFAULT_CACHE_AGE, CompositeQuotePolicy.DEFAULT, dispatcher) {
+            @Override
+            public void add(Price price) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.add(price);
+            }
+        });
+        services.add(service);
+        long now = System.currentTimeMillis();
+        Thread writer = new Thread(() -> {
+            //the first add blocks the worker, the second fills the queue, the third waits for room
+            for (int i = 0; i < 3; i++) {
+                service.add(new Price(new Date(now + i), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN));
+            }
+        });
+        writer.start();
+        while (writer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        writer.join();
+        //only the writer waits for its writes
+        while (service.getAllPrices().size() < 3) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void writesAfterCloseAreRejectedWithoutBlockingReaders() {
+        ShardedPricingService service = (ShardedPricingService) createService();
+        Price price = new Price(new Date(), "Equity", "GB0006640972", "Reuters", "XLON", BigDecimal.ONE, BigDecimal.TEN);
+        service.add(price);
+        service.close();
+        try {
+            service.add(price);
+            fail("the service is closed");
+        } catch (RejectedExecutionException expected) {
+            //counted as done, the readers do not wait for it
+        }
+        assertThat(service.getByInstrument("GB0006640972", null).size(), is(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositivePartitionCount() {
+        new ShardedPricingService(0, DEFAULT_CACHE_AGE);
+    }
+}
@@ -0,0 +1,140 @@
+package com.mfc.trading.instrument.service.snapshot;
+
+import com.mfc.trading.instrument.pojo.Price;
+import com.mfc.trading.instrument.service.PricingService;
+import com.mfc.trading.instrument.service.memory.ConcurrentPricingServiceImpl;
+import com.mfc.trading.instrument.service.memory.PricingServiceImpl;
+import com.mfc.trading.instrument.service.util.PricingConstant;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class PriceSnapshotTest {
+
+    private Date today;
+    private Date yesterday;
+    private List<Price> prices;
+
+    @Before
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        today = new Date(now);
+        yesterday = new Date(now - PricingConstant.DAY_IN_MIL_SEC);
+        prices = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            prices.add(new Price(new Date(yesterday.getTime() + i * 1000L), "Equity", "ISIN" + (i % 20), i % 2 == 0 ? "Reuters" : "Bloomberg",
+                    "XLON", new BigDecimal("101.25").add(BigDecimal.valueOf(i)), BigDecimal.valueOf(i, 4)));
+        }
+        prices.add(new Price(today, "Bond", "GB00BMH46555", "Markit", null, BigDecimal.TEN, null));
+    }
+
+    @Test
+    public void restoreRebuildsTheLockedService() throws Exception {
+        roundTrip(new PricingServiceImpl(), new PricingServiceImpl());
+    }
+
+    @Test
+    public void restoreRebuildsTheConcurrentService() throws Exception {
+        roundTrip(new ConcurrentPricingServiceImpl(), new ConcurrentPricingServiceImpl());
+    }
+
+    @Test
+    public void snapshotsMoveBetweenImplementations() throws Exception {
+        roundTrip(new ConcurrentPricingServiceImpl(), new PricingServiceImpl());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedSnapshotIsRejected() throws Exception {
+        PricingServiceImpl source = new PricingServiceImpl();
+        source.addAll(prices);
+        byte[] snapshot = write(source);
+        new PricingServiceImpl().restoreSnapshot(Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length / 2))));
+    }
+
+    @Test
+    public void corruptLengthsCountsAndIdsAreRejected() throws Exception {
+        //a symbol longer than the buffer
+        assertCorrupt(snapshot(PriceSnapshotWriter.SYMBOL, 0, zigZag(PriceSnapshotWriter.BUFFER_SIZE + 1)));
+        //a symbol id out of order
+        assertCorrupt(snapshot(PriceSnapshotWriter.SYMBOL, 7, zigZag(0)));
+        //a series of an unknown vendor
+        assertCorrupt(snapshot(PriceSnapshotWriter.SYMBOL, 0, zigZag(0), PriceSnapshotWriter.SERIES, 1, 0, 1));
+        //a negative count
+        assertCorrupt(snapshot(PriceSnapshotWriter.SYMBOL, 0, zigZag(0), PriceSnapshotWriter.SERIES, 0, 0, -1));
+        //a count beyond the prices held, read until the snapshot ends
+        assertCorrupt(snapshot(PriceSnapshotWriter.SYMBOL, 0, zigZag(0), PriceSnapshotWriter.SERIES, 0, 0, Integer.MAX_VALUE - 8, 0, 0));
+        //an unknown market of a price
+        assertCorrupt(snapshot(PriceSnapshotWriter.SYMBOL, 0, zigZag(0), PriceSnapshotWriter.SERIES, 0, 0, 1, 0, 0, 3));
+    }
+
+    private void assertCorrupt(byte[] snapshot) {
+        try {
+            new PriceSnapshotReader(Channels.newChannel(new ByteArrayInputStream(snapshot))).read((vendor, instrument, series) -> {
+            });
+            fail("the snapshot is corrupt");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Corrupt snapshot") || expected instanceof EOFException);
+        }
+    }
+
+    /**
+     * @return the header followed by the values, as varlongs
+     */
+    private static byte[] snapshot(long... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(PriceSnapshotWriter.MAGIC).putInt(PriceSnapshotWriter.VERSION);
+        out.write(header.array(), 0, header.capacity());
+        for (long value : values) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+        return out.toByteArray();
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private <S extends PricingService & Snapshottable, T extends PricingService & Snapshottable> void roundTrip(S source, T target) throws Exception {
+        source.addAll(prices);
+        byte[] snapshot = write(source);
+        target.restoreSnapshot(Channels.newChannel(new ByteArrayInputStream(snapshot)));
+
+        Set<Price> allPrices = target.getAllPrices();
+        assertThat(allPrices.size(), is(prices.size()));
+        assertTrue(allPrices.containsAll(prices));
+        assertThat(target.getByInstrument("ISIN3", null), is(source.getByInstrument("ISIN3", null)));
+        assertThat(target.getByVendor("Reuters", null), is(source.getByVendor("Reuters", null)));
+
+        Price restored = target.getByInstrument("GB00BMH46555", today).iterator().next();
+        assertNull(restored.getMarket());
+        assertNull(restored.getAsk());
+        Price scaled = target.getByVendor("Bloomberg", new Date(yesterday.getTime() + 1000L)).iterator().next();
+        assertThat(scaled.getAsk().scale(), is(4));
+        assertThat(scaled.hashCode(), is(prices.get(1).hashCode()));
+    }
+
+    private static byte[] write(Snapshottable service) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.writeSnapshot(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+package com.mfc.trading.instrument.service.stream;
+
+import com.mfc.trading.instrument.pojo.Price;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class PriceDispatcherTest {
+
+    @Test
+    public void concurrentWritersWrapTheRing() throws Exception {
+        //a ring far smaller than the number of prices, so writers wrap around and overflow it
+        PriceDispatcher dispatcher = new PriceDispatcher(4, Executors.newSingleThreadExecutor());
+        int writers = 4;
+        int pricesPerWriter = 10000;
+        Map<String, Price> latest = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(writers);
+        try (PriceSubscription subscription = dispatcher.subscribeToAll(price -> {
+            latest.put(price.getInstrument(), price);
+            if (price.getAsOfDate().getTime() == pricesPerWriter - 1) {
+                done.countDown();
+            }
+        })) {
+            List<Thread> threads = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                String instrument = "ISIN" + writer;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < pricesPerWriter; i++) {
+                        dispatcher.publish(price(instrument, i));
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertThat(latest.size(), is(writers));
+            for (Price price : latest.values()) {
+                assertThat(price.getAsOfDate().getTime(), is(pricesPerWriter - 1L));
+            }
+        }
+    }
+
+    @Test
+    public void writersDoNotWaitForAFullRing() throws Exception {
+        //the dispatcher is held up handing the first price over to the executor, the ring fills up
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService listeners = Executors.newSingleThreadExecutor();
+        PriceDispatcher dispatcher = new PriceDispatcher(2, task -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            listeners.execute(task);
+        });
+        Map<String, Price> latest = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(2);
+        try (PriceSubscription subscription = dispatcher.subscribeToAll(price -> {
+            latest.put(price.getInstrument(), price);
+            if (price.getAsOfDate().getTime() == 99) {
+                done.countDown();
+            }
+        })) {
+            for (int i = 0; i < 100; i++) {
+                dispatcher.publish(price("ISIN0", i));
+                dispatcher.publish(price("ISIN1", i));
+            }
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertThat(latest.get("ISIN0").getAsOfDate().getTime(), is(99L));
+            assertThat(latest.get("ISIN1").getAsOfDate().getTime(), is(99L));
+        } finally {
+            listeners.shutdown();
+        }
+    }
+
+    @Test
+    public void dispatcherRestartsAfterTheLastSubscriptionIsClosed() throws Exception {
+        PriceDispatcher dispatcher = new PriceDispatcher();
+        //nobody listens, publishing is a no-op
+        dispatcher.publish(price("ISIN0", 0));
+        for (int round = 1; round <= 3; round++) {
+            CountDownLatch received = new CountDownLatch(1);
+            try (PriceSubscription subscription = dispatcher.subscribeToInstrument("ISIN0", price -> received.countDown())) {
+                dispatcher.publish(price("ISIN1", round));
+                dispatcher.publish(price("ISIN0", round));
+                assertTrue(received.await(5, TimeUnit.SECONDS));
+                assertThat(subscription.conflatedCount(), is(0L));
+            }
+        }
+    }
+
+    private static Price price(String instrument, long time) {
+        return new Price(new Date(time), "Equity", instrument, "Reuters", "XLON", BigDecimal.ONE, BigDecimal.ONE);
+    }
+}